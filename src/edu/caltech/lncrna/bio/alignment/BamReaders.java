@@ -0,0 +1,58 @@
+package edu.caltech.lncrna.bio.alignment;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+/**
+ * This class contains static methods shared by the classes that process an
+ * indexed BAM file one reference at a time, each reference with its own
+ * reader.
+ */
+final class BamReaders {
+
+    private BamReaders() { }
+
+    /**
+     * Opens a BAM file without validating its records.
+     *
+     * @param bam - the path to the BAM file
+     */
+    static SamReader open(Path bam) {
+        return SamReaderFactory.makeDefault()
+                .validationStringency(ValidationStringency.SILENT).open(bam);
+    }
+
+    /**
+     * Returns the names of the references of an indexed BAM file, in the
+     * order of its sequence dictionary.
+     *
+     * @param bam - the path to the BAM file
+     * @param action - what the caller attempted to do, for the exception
+     * message, e.g., "count reads in"
+     * @throws IllegalArgumentException if the BAM file is not indexed
+     */
+    static List<String> getIndexedReferences(Path bam, String action) {
+        try (SamReader reader = open(bam)) {
+            if (!reader.hasIndex()) {
+                throw new IllegalArgumentException("Attempted to " + action +
+                        " a BAM file without an index: " + bam);
+            }
+            List<String> rtrn = new ArrayList<>();
+            for (SAMSequenceRecord seq :
+                    reader.getFileHeader().getSequenceDictionary()
+                    .getSequences()) {
+                rtrn.add(seq.getSequenceName());
+            }
+            return rtrn;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
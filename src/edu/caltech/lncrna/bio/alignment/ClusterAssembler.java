@@ -0,0 +1,642 @@
+package edu.caltech.lncrna.bio.alignment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+
+import edu.caltech.lncrna.bio.datastructures.LongIntHashMap;
+import edu.caltech.lncrna.bio.io.SingleReadBamParser;
+import edu.caltech.lncrna.bio.sequence.BarcodeDemultiplexer;
+import edu.caltech.lncrna.bio.utils.CloseableIterator;
+
+/**
+ * This class assembles the reads of a SPRITE-style experiment into clusters,
+ * each of which is the set of alignments whose reads share a barcode.
+ * <p>
+ * The barcode of a read is the part of its name after the last
+ * {@link BarcodeDemultiplexer#NAME_DELIMITER}, as written by
+ * {@link BarcodeDemultiplexer#annotate(edu.caltech.lncrna.bio.sequence.FastqSequence)}.
+ * Barcodes are not kept. Each one is hashed to a 64-bit key, and each
+ * alignment is reduced to its key, the index of its reference in a
+ * {@link CoordinateSpace} and its start position, sixteen bytes in all.
+ * <p>
+ * Alignments are buffered up to a memory budget. Whenever the buffer fills,
+ * it is sorted by key and written to a temporary file as a run, so the
+ * memory needed does not depend on the number of reads or barcodes. The
+ * clusters are read back with a k-way merge of the runs. An input that fits
+ * within the budget is never written to disk.
+ * <p>
+ * Two different barcodes share a key with a probability of about one in
+ * 2<sup>64</sup>, so even among 10<sup>8</sup> barcodes, a collision is
+ * unlikely (about one chance in 4,000).
+ * <p>
+ * Instances are built with a {@link Builder}, and may be shared between
+ * threads.
+ */
+public final class ClusterAssembler {
+
+    private static final int RECORD_BYTES = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+    private static final String INCOMPLETE = "[" +
+            BarcodeDemultiplexer.NOT_FOUND + "]";
+
+    private final CoordinateSpace space;
+    private final int capacity;
+    private final Path tempDirectory;
+    private final int minMappingQuality;
+    private final boolean primaryOnly;
+    private final boolean keepIncompleteBarcodes;
+
+    /**
+     * An action performed on each contact of a cluster.
+     */
+    @FunctionalInterface
+    public interface ContactConsumer {
+        public void accept(int refIndex1, int pos1, int refIndex2, int pos2,
+                float weight);
+    }
+
+    private ClusterAssembler(Builder b) {
+        space = b.space;
+        capacity = (int) Math.min(b.memoryBudget / RECORD_BYTES,
+                Integer.MAX_VALUE - 8);
+        tempDirectory = b.tempDirectory;
+        minMappingQuality = b.minMappingQuality;
+        primaryOnly = b.primaryOnly;
+        keepIncompleteBarcodes = b.keepIncompleteBarcodes;
+    }
+
+    /**
+     * Returns a builder for an assembler in a coordinate space.
+     *
+     * @param space - the coordinate space that numbers the references of
+     * clustered alignments
+     * @throws NullPointerException if the coordinate space is
+     * <code>null</code>
+     */
+    public static Builder builder(CoordinateSpace space) {
+        return new Builder(space);
+    }
+
+    /**
+     * @return the coordinate space that numbers the references of the
+     * clustered alignments
+     */
+    public CoordinateSpace getCoordinateSpace() {
+        return space;
+    }
+
+    /**
+     * Returns the key of a barcode, as used by {@link Cluster#getKey()}.
+     *
+     * @param barcode - the barcode, e.g., "[A1][B7][C3]"
+     */
+    public static long barcodeKey(CharSequence barcode) {
+        return key(barcode, 0);
+    }
+
+    /**
+     * Assembles the reads of a BAM file into clusters. The BAM file need not
+     * be sorted.
+     *
+     * @param bam - the path to the BAM file
+     * @return an iterator over the clusters, which should be closed to
+     * delete any temporary files
+     */
+    public ClusterIterator assemble(Path bam) {
+        try (SingleReadBamParser parser = new SingleReadBamParser(bam)) {
+            return assemble(parser);
+        }
+    }
+
+    /**
+     * Assembles reads into clusters.
+     * <p>
+     * Reads without an alignment, without a barcode in their name, or on a
+     * reference outside of the coordinate space are skipped, as are reads
+     * filtered by the options of this assembler.
+     *
+     * @param reads - the reads
+     * @return an iterator over the clusters, which should be closed to
+     * delete any temporary files
+     * @throws NullPointerException if the iterator is <code>null</code>
+     */
+    public ClusterIterator assemble(Iterator<? extends SingleRead> reads) {
+        Objects.requireNonNull(reads, "Attempted to assemble clusters from " +
+                "a null iterator.");
+
+        List<Path> runs = new ArrayList<>();
+        long[] keys = new long[Math.min(capacity, INITIAL_CAPACITY)];
+        long[] values = new long[keys.length];
+        int size = 0;
+        boolean complete = false;
+        try {
+            while (reads.hasNext()) {
+                SingleRead read = reads.next();
+                Optional<SingleReadAlignment> alignment = read.getAlignment();
+                if (!alignment.isPresent() ||
+                        read.getMappingQuality() < minMappingQuality ||
+                        primaryOnly && (!read.isPrimaryAlignment() ||
+                                read.isSupplementaryAlignment())) {
+                    continue;
+                }
+                String name = read.getName();
+                int from = name.lastIndexOf(
+                        BarcodeDemultiplexer.NAME_DELIMITER);
+                if (from < 0) {
+                    continue;
+                }
+                from += BarcodeDemultiplexer.NAME_DELIMITER.length();
+                if (!keepIncompleteBarcodes &&
+                        name.indexOf(INCOMPLETE, from) >= 0) {
+                    continue;
+                }
+                int index = space.getReferenceIndex(alignment.get());
+                if (index < 0) {
+                    continue;
+                }
+
+                if (size == keys.length) {
+                    if (size == capacity) {
+                        runs.add(writeRun(keys, values, size));
+                        size = 0;
+                    } else {
+                        int n = (int) Math.min(2L * size, capacity);
+                        keys = Arrays.copyOf(keys, n);
+                        values = Arrays.copyOf(values, n);
+                    }
+                }
+                keys[size] = key(name, from);
+                values[size++] = ((long) index << 32) |
+                        alignment.get().getStart();
+            }
+            sort(keys, values, 0, size);
+            ClusterIterator rtrn = new ClusterIterator(runs, keys, values,
+                    size);
+            complete = true;
+            return rtrn;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (!complete) {
+                deleteAll(runs);
+            }
+        }
+    }
+
+    private static long key(CharSequence s, int from) {
+        return LongIntHashMap.mix(LongIntHashMap.hash(s, from));
+    }
+
+    /**
+     * Sorts a buffer of alignments and writes it to a temporary file.
+     */
+    private Path writeRun(long[] keys, long[] values, int size)
+            throws IOException {
+        sort(keys, values, 0, size);
+        Path run = tempDirectory == null
+                ? Files.createTempFile("clusters", ".tmp")
+                : Files.createTempFile(tempDirectory, "clusters", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(run),
+                        IO_BUFFER_SIZE))) {
+            for (int i = 0; i < size; i++) {
+                out.writeLong(keys[i]);
+                out.writeLong(values[i]);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(run);
+            throw e;
+        }
+        return run;
+    }
+
+    private static void deleteAll(List<Path> paths) {
+        for (Path p : paths) {
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException e) {
+                // Leave the file for the system to clean up
+            }
+        }
+    }
+
+    private static int compare(long[] keys, long[] values, int i, int j) {
+        int c = Long.compare(keys[i], keys[j]);
+        return c != 0 ? c : Long.compare(values[i], values[j]);
+    }
+
+    private static void swap(long[] keys, long[] values, int i, int j) {
+        long k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        long v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+
+    /**
+     * Sorts the range [from, to) of two parallel arrays by key and then by
+     * value, in place. Keys are hashes, so a median-of-three quicksort does
+     * not meet its worst case in practice.
+     */
+    private static void sort(long[] keys, long[] values, int from, int to) {
+        while (to - from > 16) {
+            int mid = (from + to) >>> 1;
+            if (compare(keys, values, mid, from) < 0) {
+                swap(keys, values, mid, from);
+            }
+            if (compare(keys, values, to - 1, from) < 0) {
+                swap(keys, values, to - 1, from);
+            }
+            if (compare(keys, values, to - 1, mid) < 0) {
+                swap(keys, values, to - 1, mid);
+            }
+            long pivotKey = keys[mid];
+            long pivotValue = values[mid];
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (keys[i] < pivotKey || keys[i] == pivotKey &&
+                        values[i] < pivotValue) {
+                    i++;
+                }
+                while (keys[j] > pivotKey || keys[j] == pivotKey &&
+                        values[j] > pivotValue) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            // Recurse into the smaller side to bound the stack depth
+            if (j - from < to - i) {
+                sort(keys, values, from, j + 1);
+                from = i;
+            } else {
+                sort(keys, values, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && compare(keys, values, j - 1, j) > 0;
+                    j--) {
+                swap(keys, values, j - 1, j);
+            }
+        }
+    }
+
+    /**
+     * A set of alignments that share a barcode.
+     * <p>
+     * Each alignment is represented by the index of its reference in the
+     * coordinate space of the assembler and its start position. Alignments
+     * are sorted by reference index and then by position.
+     */
+    public static final class Cluster {
+
+        private final long key;
+        private final long[] alignments;
+
+        private Cluster(long key, long[] alignments) {
+            this.key = key;
+            this.alignments = alignments;
+        }
+
+        /**
+         * @return the key of the barcode of this cluster
+         */
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * @return the number of alignments in this cluster
+         */
+        public int size() {
+            return alignments.length;
+        }
+
+        /**
+         * @param i - the index of an alignment in this cluster
+         * @return the reference index of the alignment
+         */
+        public int getReferenceIndex(int i) {
+            return (int) (alignments[i] >>> 32);
+        }
+
+        /**
+         * @param i - the index of an alignment in this cluster
+         * @return the start position of the alignment
+         */
+        public int getPosition(int i) {
+            return (int) alignments[i];
+        }
+
+        /**
+         * Performs an action on every pair of alignments in this cluster.
+         * <p>
+         * Each pair is weighted <code>2 / n</code>, where <code>n</code> is
+         * the size of the cluster, so that the contacts of a cluster have a
+         * total weight of <code>n - 1</code>. Pairs are generated one at a
+         * time and are never held in memory.
+         *
+         * @param action - the action to perform
+         */
+        public void forEachContact(ContactConsumer action) {
+            int n = alignments.length;
+            if (n < 2) {
+                return;
+            }
+            float weight = 2f / n;
+            for (int i = 0; i < n; i++) {
+                int refIndex1 = getReferenceIndex(i);
+                int pos1 = getPosition(i);
+                for (int j = i + 1; j < n; j++) {
+                    action.accept(refIndex1, pos1, getReferenceIndex(j),
+                            getPosition(j), weight);
+                }
+            }
+        }
+    }
+
+    /**
+     * An iterator over the clusters assembled from a set of reads, in order
+     * of key. Closing this iterator deletes any temporary files.
+     */
+    public final class ClusterIterator implements CloseableIterator<Cluster> {
+
+        private final List<Path> runs;
+        private final List<Run> sources = new ArrayList<>();
+        private final PriorityQueue<Run> heap;
+        private long[] buffer = new long[16];
+        private Cluster next;
+
+        private ClusterIterator(List<Path> runs, long[] keys, long[] values,
+                int size) throws IOException {
+            this.runs = Collections.unmodifiableList(new ArrayList<>(runs));
+            heap = new PriorityQueue<>(Math.max(runs.size() + 1, 1),
+                    (a, b) -> a.key != b.key
+                            ? Long.compare(a.key, b.key)
+                            : Long.compare(a.value, b.value));
+            try {
+                for (Path run : runs) {
+                    sources.add(new FileRun(run));
+                }
+                sources.add(new MemoryRun(keys, values, size));
+                for (Run source : sources) {
+                    if (source.advance()) {
+                        heap.add(source);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the coordinate space that numbers the references of the
+         * clustered alignments
+         */
+        public CoordinateSpace getCoordinateSpace() {
+            return space;
+        }
+
+        /**
+         * @return the number of runs that were written to disk because the
+         * reads did not fit within the memory budget
+         */
+        public int getNumberOfRuns() {
+            return runs.size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !heap.isEmpty()) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Cluster next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Cluster rtrn = next;
+            next = null;
+            return rtrn;
+        }
+
+        private Cluster advance() {
+            long key = heap.peek().key;
+            int n = 0;
+            try {
+                while (!heap.isEmpty() && heap.peek().key == key) {
+                    Run run = heap.poll();
+                    if (n == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, 2 * n);
+                    }
+                    buffer[n++] = run.value;
+                    if (run.advance()) {
+                        heap.add(run);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return new Cluster(key, Arrays.copyOf(buffer, n));
+        }
+
+        /**
+         * Performs an action on every contact of the remaining clusters,
+         * skipping clusters that are too large.
+         *
+         * @param maxClusterSize - the size of the largest cluster whose
+         * contacts are generated
+         * @param action - the action to perform
+         * @see Cluster#forEachContact(ContactConsumer)
+         */
+        public void forEachContact(int maxClusterSize,
+                ContactConsumer action) {
+            while (hasNext()) {
+                Cluster cluster = next();
+                if (cluster.size() <= maxClusterSize) {
+                    cluster.forEachContact(action);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            for (Run source : sources) {
+                source.close();
+            }
+            sources.clear();
+            heap.clear();
+            next = null;
+            deleteAll(runs);
+        }
+    }
+
+    /**
+     * A source of alignments sorted by key and then by value.
+     */
+    private static abstract class Run {
+        protected long key;
+        protected long value;
+
+        protected abstract boolean advance() throws IOException;
+
+        protected void close() {
+        }
+    }
+
+    private static final class MemoryRun extends Run {
+        private final long[] keys;
+        private final long[] values;
+        private final int size;
+        private int i = 0;
+
+        private MemoryRun(long[] keys, long[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        protected boolean advance() {
+            if (i == size) {
+                return false;
+            }
+            key = keys[i];
+            value = values[i++];
+            return true;
+        }
+    }
+
+    private static final class FileRun extends Run {
+        private final DataInputStream in;
+
+        private FileRun(Path path) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(path), IO_BUFFER_SIZE));
+        }
+
+        @Override
+        protected boolean advance() throws IOException {
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            value = in.readLong();
+            return true;
+        }
+
+        @Override
+        protected void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A builder class for {@link ClusterAssembler} objects.
+     */
+    public static final class Builder {
+
+        private final CoordinateSpace space;
+        private long memoryBudget = 256L << 20;
+        private Path tempDirectory = null;
+        private int minMappingQuality = 0;
+        private boolean primaryOnly = true;
+        private boolean keepIncompleteBarcodes = false;
+
+        private Builder(CoordinateSpace space) {
+            this.space = Objects.requireNonNull(space, "Attempted to " +
+                    "assemble clusters in a null coordinate space.");
+        }
+
+        /**
+         * @param bytes - the memory to use for buffering alignments before
+         * they are written to disk, at sixteen bytes per alignment; 256 MB
+         * by default
+         * @return this builder
+         * @throws IllegalArgumentException if the budget is too small to hold
+         * a single alignment
+         */
+        public Builder memoryBudget(long bytes) {
+            if (bytes < RECORD_BYTES) {
+                throw new IllegalArgumentException("Memory budget must be " +
+                        "at least " + RECORD_BYTES + " bytes: " + bytes);
+            }
+            this.memoryBudget = bytes;
+            return this;
+        }
+
+        /**
+         * @param tempDirectory - the directory to write temporary files to;
+         * the system default if not set
+         * @return this builder
+         */
+        public Builder tempDirectory(Path tempDirectory) {
+            this.tempDirectory = Objects.requireNonNull(tempDirectory,
+                    "Attempted to set a null temporary directory.");
+            return this;
+        }
+
+        /**
+         * @param minMappingQuality - the lowest mapping quality a read may
+         * have to be clustered
+         * @return this builder
+         */
+        public Builder minMappingQuality(int minMappingQuality) {
+            this.minMappingQuality = minMappingQuality;
+            return this;
+        }
+
+        /**
+         * @param primaryOnly - whether secondary and supplementary alignments
+         * should be skipped
+         * @return this builder
+         */
+        public Builder primaryOnly(boolean primaryOnly) {
+            this.primaryOnly = primaryOnly;
+            return this;
+        }
+
+        /**
+         * @param keepIncompleteBarcodes - whether reads with a barcode
+         * position that could not be resolved should be clustered
+         * @return this builder
+         */
+        public Builder keepIncompleteBarcodes(boolean keepIncompleteBarcodes) {
+            this.keepIncompleteBarcodes = keepIncompleteBarcodes;
+            return this;
+        }
+
+        public ClusterAssembler build() {
+            return new ClusterAssembler(this);
+        }
+    }
+}
@@ -2,11 +2,15 @@ package edu.caltech.lncrna.bio.alignment;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import edu.caltech.lncrna.bio.annotation.Annotated;
 import edu.caltech.lncrna.bio.annotation.AssemblySize;
+import edu.caltech.lncrna.bio.annotation.ReferenceDictionary;
+import edu.caltech.lncrna.bio.annotation.ReferenceNames;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
@@ -18,6 +22,10 @@ import htsjdk.samtools.ValidationStringency;
  * <p>
  * Currently, the primary use of the class is to construct headers for SAM and
  * BAM files.
+ * <p>
+ * A coordinate space also lays its references end to end, in the order of
+ * {@link #getReferenceDictionary()}, so that every position in the genome has
+ * a single <code>long</code> offset. See {@link #getOffset(String, int)}.
  */
 public final class CoordinateSpace {
 
@@ -26,6 +34,11 @@ public final class CoordinateSpace {
     public final static CoordinateSpace HG19 = new CoordinateSpace(AssemblySize.HG19);
 
     private final Map<String, Integer> refSizes;
+    private final ReferenceDictionary dict;
+    private final long[] offsets;
+
+    // Reference indices by ReferenceNames identifier, grown on demand
+    private volatile int[] indicesByNameId = new int[0];
 
     /**
      * Constructs an instance of a <code>CoordinateSpace</code> with the given
@@ -34,6 +47,8 @@ public final class CoordinateSpace {
      */
     public CoordinateSpace(Map<String, Integer> sizes) {
         this.refSizes = sizes;
+        this.dict = new ReferenceDictionary(refSizes);
+        this.offsets = computeOffsets(dict);
     }
     
     /**
@@ -50,6 +65,8 @@ public final class CoordinateSpace {
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+        this.dict = new ReferenceDictionary(refSizes);
+        this.offsets = computeOffsets(dict);
     }
     
     /**
@@ -59,6 +76,16 @@ public final class CoordinateSpace {
      */
     public CoordinateSpace(SAMFileHeader fileHeader) {
         this.refSizes = getRefSeqLengthsFromSamHeader(fileHeader);
+        this.dict = new ReferenceDictionary(refSizes);
+        this.offsets = computeOffsets(dict);
+    }
+    
+    private static long[] computeOffsets(ReferenceDictionary dict) {
+        long[] rtrn = new long[dict.size() + 1];
+        for (int i = 0; i < dict.size(); i++) {
+            rtrn[i + 1] = rtrn[i] + dict.getLength(i);
+        }
+        return rtrn;
     }
     
     private Map<String, Integer> getRefSeqLengthsFromSamHeader(SAMFileHeader header) {
@@ -74,6 +101,115 @@ public final class CoordinateSpace {
         return rtrn;
     }
     
+    /**
+     * Returns a {@link ReferenceDictionary} of the references in this
+     * coordinate space. References are numbered in the same order as the
+     * sequences of {@link #getSAMFileHeader()}.
+     */
+    public ReferenceDictionary getReferenceDictionary() {
+        return dict;
+    }
+
+    /**
+     * Returns whether another coordinate space numbers the same references,
+     * with the same lengths, in the same order, so that reference indices and
+     * linear offsets in one are valid in the other.
+     *
+     * @param other - the other coordinate space
+     */
+    public boolean isCompatible(CoordinateSpace other) {
+        ReferenceDictionary otherDict = other.getReferenceDictionary();
+        if (dict.size() != otherDict.size()) {
+            return false;
+        }
+        for (int i = 0; i < dict.size(); i++) {
+            if (!dict.getName(i).equals(otherDict.getName(i)) ||
+                    dict.getLength(i) != otherDict.getLength(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the total length of all references in this coordinate space.
+     */
+    public long getGenomeLength() {
+        return offsets[offsets.length - 1];
+    }
+    
+    /**
+     * Returns the linear offset of a position: the total length of the
+     * references before its reference, plus the position.
+     * 
+     * @param ref - the reference name, or its b37 or UCSC alias
+     * @param pos - the zero-based position
+     * @throws IllegalArgumentException if the reference is not in this
+     * coordinate space, or the position is negative or greater than the
+     * length of the reference
+     */
+    public long getOffset(String ref, int pos) {
+        int index = dict.getId(ref);
+        if (index < 0) {
+            throw new IllegalArgumentException("Reference " + ref + " is " +
+                    "not in this coordinate space.");
+        }
+        if (pos < 0 || pos > dict.getLength(index)) {
+            throw new IllegalArgumentException("Position " + pos + " is " +
+                    "outside of reference " + ref + ".");
+        }
+        return offsets[index] + pos;
+    }
+    
+    /**
+     * Returns the index in {@link #getReferenceDictionary()} of the reference
+     * of an annotation, or -1 if the reference is not in this coordinate
+     * space.
+     * <p>
+     * This method looks up the annotation's reference identifier in an
+     * array rather than looking up its name, so it is suitable for calling
+     * once per read.
+     * 
+     * @param a - the annotation
+     */
+    public int getReferenceIndex(Annotated a) {
+        int id = a.getReferenceId();
+        int[] indices = indicesByNameId;
+        if (id >= indices.length) {
+            indices = growIndices(id);
+        }
+        return indices[id];
+    }
+    
+    /**
+     * Returns the linear offset at which a reference starts.
+     * 
+     * @param index - the index of the reference in
+     * {@link #getReferenceDictionary()}
+     * @throws IndexOutOfBoundsException if the index is out of range
+     */
+    public long getReferenceOffset(int index) {
+        if (index < 0 || index >= dict.size()) {
+            throw new IndexOutOfBoundsException("Reference index out of " +
+                    "range: " + index);
+        }
+        return offsets[index];
+    }
+    
+    private synchronized int[] growIndices(int id) {
+        int[] indices = indicesByNameId;
+        if (id < indices.length) {
+            return indices;
+        }
+        int size = Math.max(ReferenceNames.size(), id + 1);
+        int[] rtrn = Arrays.copyOf(indices, size);
+        for (int i = indices.length; i < size; i++) {
+            rtrn[i] = dict.getId(ReferenceNames.getName(i));
+        }
+        indicesByNameId = rtrn;
+        return rtrn;
+    }
+    
     /**
      * Returns the htsjdk <code>SAMFileHeader</code> object represented by this
      * coordinate space.
@@ -0,0 +1,567 @@
+package edu.caltech.lncrna.bio.alignment;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import edu.caltech.lncrna.bio.datastructures.LongIntHashMap;
+import edu.caltech.lncrna.bio.io.BamWriter;
+import edu.caltech.lncrna.bio.io.SingleReadBamParser;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+/**
+ * This class marks duplicate reads and read pairs in a coordinate-sorted
+ * stream of alignments in a single pass, in the manner of Picard's
+ * <code>MarkDuplicates</code>.
+ * <p>
+ * Two single reads are duplicates if their unclipped 5' ends are at the same
+ * position on the same strand, and two pairs are duplicates if both of their
+ * ends are. If a UMI delimiter is set, duplicates must also share the UMI at
+ * the end of their read names. Of each set of duplicates, the read or pair
+ * with the highest sum of base qualities of at least 15 is kept, and the
+ * others are flagged. Ties go to the one seen first. Single reads, including
+ * reads with an unmapped mate, are only compared to other single reads.
+ * <p>
+ * Each set of duplicates is identified by a 64-bit hash of its key and held
+ * in a {@link LongIntHashMap} only while the stream is within one read length
+ * of it, after which no more members can arrive. The first read of a pair is
+ * held until its mate arrives, so memory is bounded by the span of a
+ * fragment rather than by the size of the input. Reads are returned in the
+ * order they were given.
+ * <p>
+ * Pairs with mates on different references, or further apart than
+ * {@link Builder#maxFragmentSpan(int)}, are not held. Each of their ends is
+ * grouped by the alignment starts and strands of both mates, which either
+ * end knows, and the pair whose name hashes lowest is kept, so that both
+ * ends of such a pair are always marked alike.
+ * <p>
+ * Unmapped reads and secondary and supplementary alignments are not examined
+ * and are returned unchanged. Examined reads have their duplicate flags set
+ * or cleared in place.
+ * <p>
+ * Instances are built with a {@link Builder}, and may be shared between
+ * threads.
+ */
+public final class DuplicateMarker {
+
+    private static final int MIN_BASE_QUALITY = 15;
+
+    // The kinds of keys, so that single reads and the two kinds of pairs
+    // never share a set
+    private static final long SINGLE = 1;
+    private static final long NEAR_PAIR = 2;
+    private static final long DISTANT_PAIR = 3;
+
+    private final String umiDelimiter;
+    private final int maxFragmentSpan;
+    private final boolean removeDuplicates;
+
+    private DuplicateMarker(Builder b) {
+        umiDelimiter = b.umiDelimiter;
+        maxFragmentSpan = b.maxFragmentSpan;
+        removeDuplicates = b.removeDuplicates;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Marks the duplicates in a coordinate-sorted BAM file.
+     *
+     * @param input - the path to the BAM file
+     * @param output - the path to write the marked BAM file to
+     * @return the number of reads examined and marked
+     * @throws IllegalArgumentException if the BAM file is not sorted by
+     * coordinate
+     */
+    public Metrics mark(Path input, Path output) {
+        SAMFileHeader header;
+        try (SamReader reader = SamReaderFactory.makeDefault()
+                .validationStringency(ValidationStringency.SILENT)
+                .open(input)) {
+            header = reader.getFileHeader();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+            throw new IllegalArgumentException("Attempted to mark " +
+                    "duplicates in a BAM file not sorted by coordinate: " +
+                    input);
+        }
+        try (SingleReadBamParser parser = new SingleReadBamParser(input);
+                BamWriter writer = new BamWriter(output, header)) {
+            return mark(parser, writer);
+        }
+    }
+
+    /**
+     * Marks the duplicates in a coordinate-sorted stream of reads and writes
+     * the reads to a BAM writer.
+     *
+     * @param reads - the reads
+     * @param writer - the writer
+     * @return the number of reads examined and marked
+     * @throws IllegalArgumentException if the reads are not sorted by
+     * coordinate
+     */
+    public Metrics mark(Iterator<? extends SingleRead> reads,
+            BamWriter writer) {
+        Objects.requireNonNull(writer, "Attempted to write marked reads to " +
+                "a null writer.");
+        MarkingIterator iter = mark(reads);
+        while (iter.hasNext()) {
+            writer.writeSamRecord(iter.next());
+        }
+        return iter.getMetrics();
+    }
+
+    /**
+     * Returns an iterator that marks the duplicates in a coordinate-sorted
+     * stream of reads as it is consumed.
+     *
+     * @param reads - the reads
+     * @return an iterator over the marked reads, in the order given. If this
+     * marker removes duplicates, they are skipped.
+     * @throws NullPointerException if the reads are <code>null</code>
+     */
+    public MarkingIterator mark(Iterator<? extends SingleRead> reads) {
+        return new MarkingIterator(Objects.requireNonNull(reads,
+                "Attempted to mark duplicates in a null iterator."));
+    }
+
+    private static long end(int refIndex, int pos, boolean negative) {
+        return ((long) refIndex << 33) + ((long) pos << 1) +
+                (negative ? 1 : 0);
+    }
+
+    private static long key(long kind, long end1, long end2, long umi) {
+        long h = LongIntHashMap.mix(kind);
+        h = LongIntHashMap.mix(h ^ Math.min(end1, end2));
+        h = LongIntHashMap.mix(h ^ Math.max(end1, end2));
+        return LongIntHashMap.mix(h ^ umi);
+    }
+
+    private long umi(String name) {
+        if (umiDelimiter == null) {
+            return 0;
+        }
+        int from = name.lastIndexOf(umiDelimiter);
+        return from < 0 ? 0 : LongIntHashMap.hash(name,
+                from + umiDelimiter.length());
+    }
+
+    private static long score(SAMRecord record) {
+        long rtrn = 0;
+        for (byte q : record.getBaseQualities()) {
+            if (q >= MIN_BASE_QUALITY) {
+                rtrn += q;
+            }
+        }
+        return rtrn;
+    }
+
+    /**
+     * The number of reads examined and marked by a {@link DuplicateMarker}.
+     */
+    public static final class Metrics {
+
+        private final long examinedReads;
+        private final long duplicateReads;
+
+        private Metrics(long examinedReads, long duplicateReads) {
+            this.examinedReads = examinedReads;
+            this.duplicateReads = duplicateReads;
+        }
+
+        /**
+         * @return the number of reads examined, counting each end of a pair
+         */
+        public long getExaminedReads() {
+            return examinedReads;
+        }
+
+        /**
+         * @return the number of reads marked as duplicates, counting each end
+         * of a pair
+         */
+        public long getDuplicateReads() {
+            return duplicateReads;
+        }
+
+        /**
+         * @return the fraction of examined reads marked as duplicates
+         */
+        public double getDuplicateFraction() {
+            return examinedReads == 0
+                    ? 0
+                    : (double) duplicateReads / examinedReads;
+        }
+
+        @Override
+        public String toString() {
+            return "[examined=" + examinedReads + ", duplicates=" +
+                    duplicateReads + "]";
+        }
+    }
+
+    private static final byte UNDECIDED = 0;
+    private static final byte KEPT = 1;
+    private static final byte DUPLICATE = 2;
+
+    /**
+     * A read waiting to be returned.
+     */
+    private static final class Entry {
+        private final SingleRead read;
+        private boolean examined = false;
+        private byte state = UNDECIDED;
+        private Entry mate;
+
+        // Set while the read waits for its mate
+        private boolean waiting = false;
+        private long end;
+        private long score;
+        private int mateStart;
+
+        private Entry(SingleRead read) {
+            this.read = read;
+        }
+    }
+
+    /**
+     * An iterator over reads with their duplicates marked.
+     */
+    public final class MarkingIterator implements Iterator<SingleRead> {
+
+        private final Iterator<? extends SingleRead> reads;
+        private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+        private final Map<String, Entry> waiting = new HashMap<>();
+
+        // The open sets of duplicates, by key, and a ring of the sets in the
+        // order they were opened, which is also the order they close in
+        private final LongIntHashMap sets = new LongIntHashMap();
+        private long[] setKeys = new long[64];
+        private Entry[] best = new Entry[64];
+        private long[] bestScores = new long[64];
+        private int[] setRefs = new int[64];
+        private int[] setStarts = new int[64];
+        private int head = 0;
+        private int numSets = 0;
+
+        private int currentRef = -1;
+        private int currentStart = 0;
+        private int maxLength = 0;
+        private boolean started = false;
+        private boolean finished = false;
+
+        private long examinedReads = 0;
+        private long duplicateReads = 0;
+        private SingleRead next;
+
+        private MarkingIterator(Iterator<? extends SingleRead> reads) {
+            this.reads = reads;
+        }
+
+        /**
+         * @return the number of reads examined and marked so far
+         */
+        public Metrics getMetrics() {
+            return new Metrics(examinedReads, duplicateReads);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (!pending.isEmpty() && resolve(pending.peekFirst())) {
+                    next = emit(pending.pollFirst());
+                } else if (reads.hasNext()) {
+                    add(reads.next());
+                } else if (!pending.isEmpty()) {
+                    finished = true;
+                    closeSets(true);
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public SingleRead next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SingleRead rtrn = next;
+            next = null;
+            return rtrn;
+        }
+
+        /**
+         * Returns whether the fate of a read is known. A read whose mate can
+         * no longer arrive is kept.
+         */
+        private boolean resolve(Entry e) {
+            if (e.state != UNDECIDED) {
+                return true;
+            }
+            if (e.waiting && (finished ||
+                    e.read.samRecord.getReferenceIndex() != currentRef ||
+                    e.mateStart < currentStart)) {
+                waiting.remove(e.read.getName());
+                e.waiting = false;
+                e.state = KEPT;
+                return true;
+            }
+            return false;
+        }
+
+        private SingleRead emit(Entry e) {
+            if (!e.examined) {
+                return e.read;
+            }
+            boolean duplicate = e.state == DUPLICATE;
+            e.read.samRecord.setDuplicateReadFlag(duplicate);
+            examinedReads++;
+            if (duplicate) {
+                duplicateReads++;
+                if (removeDuplicates) {
+                    return null;
+                }
+            }
+            return e.read;
+        }
+
+        private void add(SingleRead read) {
+            SAMRecord record = read.samRecord;
+            Entry e = new Entry(read);
+            pending.addLast(e);
+            boolean examined = !record.getReadUnmappedFlag() &&
+                    !record.isSecondaryOrSupplementary();
+            if (examined) {
+                maxLength = Math.max(maxLength, record.getUnclippedEnd() -
+                        record.getUnclippedStart() + 1);
+            }
+            advance(record.getReferenceIndex(), record.getAlignmentStart());
+            if (!examined) {
+                e.state = KEPT;
+                return;
+            }
+            e.examined = true;
+
+            int ref = record.getReferenceIndex();
+            boolean negative = record.getReadNegativeStrandFlag();
+            long fivePrime = end(ref, negative
+                    ? record.getUnclippedEnd()
+                    : record.getUnclippedStart(), negative);
+            String name = record.getReadName();
+            long umi = umi(name);
+
+            if (!record.getReadPairedFlag() || record.getMateUnmappedFlag()) {
+                offer(key(SINGLE, fivePrime, fivePrime, umi), e,
+                        score(record));
+                return;
+            }
+
+            int mateRef = record.getMateReferenceIndex();
+            int mateStart = record.getMateAlignmentStart();
+            if (mateRef != ref || Math.abs((long) mateStart -
+                    record.getAlignmentStart()) > maxFragmentSpan) {
+                long own = end(ref, record.getAlignmentStart(), negative);
+                long mate = end(mateRef, mateStart,
+                        record.getMateNegativeStrandFlag());
+                // Both ends must choose the same pair without seeing each
+                // other, so the pair whose name hashes lowest wins
+                long nameKey = LongIntHashMap.mix(LongIntHashMap.hash(name, 0));
+                offer(key(DISTANT_PAIR, own, mate, umi), e, -(nameKey >>> 1));
+                return;
+            }
+
+            Entry first = waiting.remove(name);
+            if (first != null) {
+                first.waiting = false;
+                first.mate = e;
+                e.mate = first;
+                offer(key(NEAR_PAIR, first.end, fivePrime, umi), e,
+                        first.score + score(record));
+            } else if (mateStart < record.getAlignmentStart()) {
+                // The mate should already have arrived, so it is missing
+                e.state = KEPT;
+            } else {
+                e.waiting = true;
+                e.end = fivePrime;
+                e.score = score(record);
+                e.mateStart = mateStart;
+                waiting.put(name, e);
+            }
+        }
+
+        /**
+         * Moves the stream to a position and closes the sets that no more
+         * reads can join.
+         */
+        private void advance(int ref, int start) {
+            // Reads without a position come last
+            int order = ref < 0 ? Integer.MAX_VALUE : ref;
+            int currentOrder = currentRef < 0 ? Integer.MAX_VALUE : currentRef;
+            if (started && (order < currentOrder || ref == currentRef &&
+                    ref >= 0 && start < currentStart)) {
+                throw new IllegalArgumentException("Attempted to mark " +
+                        "duplicates in reads not sorted by coordinate: " +
+                        pending.peekLast().read.getName());
+            }
+            started = true;
+            if (ref != currentRef) {
+                currentRef = ref;
+                currentStart = start;
+                closeSets(true);
+            } else {
+                currentStart = start;
+                closeSets(false);
+            }
+        }
+
+        /**
+         * Keeps the best member of each set that can no longer grow, or of
+         * every set.
+         */
+        private void closeSets(boolean all) {
+            while (numSets > 0 && (all ||
+                    setRefs[head] != currentRef ||
+                    setStarts[head] + maxLength <= currentStart)) {
+                decide(best[head], KEPT);
+                best[head] = null;
+                sets.remove(setKeys[head]);
+                head = (head + 1) & (setKeys.length - 1);
+                numSets--;
+            }
+        }
+
+        private void offer(long key, Entry e, long score) {
+            int slot = sets.get(key) - 1;
+            if (slot < 0) {
+                slot = openSet(key);
+                best[slot] = e;
+                bestScores[slot] = score;
+            } else if (score > bestScores[slot]) {
+                decide(best[slot], DUPLICATE);
+                best[slot] = e;
+                bestScores[slot] = score;
+            } else {
+                decide(e, DUPLICATE);
+            }
+        }
+
+        private int openSet(long key) {
+            if (numSets == setKeys.length) {
+                growSets();
+            }
+            int slot = (head + numSets) & (setKeys.length - 1);
+            numSets++;
+            setKeys[slot] = key;
+            setRefs[slot] = currentRef;
+            setStarts[slot] = currentStart;
+            sets.put(key, slot + 1);
+            return slot;
+        }
+
+        private void growSets() {
+            int n = setKeys.length;
+            long[] keys = new long[2 * n];
+            Entry[] entries = new Entry[2 * n];
+            long[] scores = new long[2 * n];
+            int[] refs = new int[2 * n];
+            int[] starts = new int[2 * n];
+            for (int i = 0; i < numSets; i++) {
+                int j = (head + i) & (n - 1);
+                keys[i] = setKeys[j];
+                entries[i] = best[j];
+                scores[i] = bestScores[j];
+                refs[i] = setRefs[j];
+                starts[i] = setStarts[j];
+                sets.put(keys[i], i + 1);
+            }
+            setKeys = keys;
+            best = entries;
+            bestScores = scores;
+            setRefs = refs;
+            setStarts = starts;
+            head = 0;
+        }
+
+        private void decide(Entry e, byte state) {
+            e.state = state;
+            if (e.mate != null) {
+                e.mate.state = state;
+            }
+        }
+    }
+
+    /**
+     * A builder class for {@link DuplicateMarker} objects.
+     */
+    public static final class Builder {
+
+        private String umiDelimiter = null;
+        private int maxFragmentSpan = 10000;
+        private boolean removeDuplicates = false;
+
+        private Builder() { }
+
+        /**
+         * @param delimiter - the delimiter that precedes the UMI at the end
+         * of a read name, e.g., "_" for "read1_ACGTAC". Reads without the
+         * delimiter have an empty UMI. UMIs are ignored if not set.
+         * @return this builder
+         */
+        public Builder umiDelimiter(String delimiter) {
+            Objects.requireNonNull(delimiter, "Attempted to set a null UMI " +
+                    "delimiter.");
+            if (delimiter.isEmpty()) {
+                throw new IllegalArgumentException("UMI delimiter cannot be " +
+                        "empty.");
+            }
+            this.umiDelimiter = delimiter;
+            return this;
+        }
+
+        /**
+         * @param maxFragmentSpan - the largest distance between the starts
+         * of two mates for the first to be held until the second arrives;
+         * 10,000 by default
+         * @return this builder
+         * @throws IllegalArgumentException if the span is negative
+         */
+        public Builder maxFragmentSpan(int maxFragmentSpan) {
+            if (maxFragmentSpan < 0) {
+                throw new IllegalArgumentException("Maximum fragment span " +
+                        "cannot be negative: " + maxFragmentSpan);
+            }
+            this.maxFragmentSpan = maxFragmentSpan;
+            return this;
+        }
+
+        /**
+         * @param removeDuplicates - whether duplicates should be left out of
+         * the output rather than flagged
+         * @return this builder
+         */
+        public Builder removeDuplicates(boolean removeDuplicates) {
+            this.removeDuplicates = removeDuplicates;
+            return this;
+        }
+
+        public DuplicateMarker build() {
+            return new DuplicateMarker(this);
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package edu.caltech.lncrna.bio.alignment;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Gene;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.GenomeTree;
+import edu.caltech.lncrna.bio.utils.Futures;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+
+/**
+ * This class counts the reads or fragments in BAM files that overlap each of
+ * a set of genes, in the manner of <code>featureCounts</code>.
+ * <p>
+ * BAM files must be coordinate-sorted and indexed. Each reference of each BAM
+ * file is counted as a separate task on a pool of worker threads, each with
+ * its own reader, and each task tallies into a primitive array indexed by
+ * gene. The result is a {@link CountMatrix} with one column per BAM file.
+ * <p>
+ * A read is assigned to a gene if it overlaps the gene and is on a compatible
+ * strand. Paired reads can be counted as fragments, in which case both mates
+ * are overlapped together and counted once. Mates are paired within a
+ * reference; a read whose mate is unmapped is counted alone, and of a pair
+ * whose mates are on different references, only the first read is counted.
+ * <p>
+ * Instances are built with a {@link Builder}, and may be shared between
+ * threads.
+ */
+public final class FeatureCounter {
+
+    /**
+     * The strand-specificity of a library.
+     */
+    public enum Strandedness {
+        /** Reads are counted regardless of strand. */
+        UNSTRANDED,
+        /** The first read of a pair, or a single read, is sense. */
+        FORWARD,
+        /** The first read of a pair, or a single read, is antisense. */
+        REVERSE;
+
+        /**
+         * Returns the strand of the original transcript implied by a read,
+         * or <code>Strand.BOTH</code> if the library is unstranded.
+         *
+         * @param record - the read
+         */
+        Strand strandOf(SAMRecord record) {
+            if (this == UNSTRANDED) {
+                return Strand.BOTH;
+            }
+            // The strand of the first read of the pair, or of a single read
+            boolean reverse = record.getReadNegativeStrandFlag();
+            if (record.getReadPairedFlag() && record.getSecondOfPairFlag()) {
+                reverse = !reverse;
+            }
+            if (this == REVERSE) {
+                reverse = !reverse;
+            }
+            return reverse ? Strand.NEGATIVE : Strand.POSITIVE;
+        }
+    }
+
+    /**
+     * The part of a gene a read must overlap.
+     */
+    public enum OverlapMode {
+        /** A read must overlap an exon (block) of the gene. */
+        EXONS,
+        /** A read may overlap any part of the gene, including introns. */
+        BODY
+    }
+
+    /**
+     * What to do with a read that overlaps more than one gene.
+     */
+    public enum MultiOverlapPolicy {
+        /** The read is not counted. */
+        DISCARD,
+        /** The read is counted once for every gene it overlaps. */
+        COUNT_ALL,
+        /**
+         * The read is counted for the gene it overlaps by the most bases, and
+         * is not counted if there is a tie.
+         */
+        LARGEST_OVERLAP
+    }
+
+    private final List<Gene> genes;
+    private final GenomeTree<Feature> tree;
+    private final int numThreads;
+    private final Strandedness strandedness;
+    private final OverlapMode overlapMode;
+    private final MultiOverlapPolicy multiOverlapPolicy;
+    private final int minMappingQuality;
+    private final boolean countDuplicates;
+    private final boolean primaryOnly;
+    private final boolean countFragments;
+
+    private FeatureCounter(Builder b) {
+        List<Gene> list = new ArrayList<>();
+        tree = new GenomeTree<>();
+        for (Gene gene : b.genes) {
+            tree.add(new Feature(gene, list.size()));
+            list.add(gene);
+        }
+        genes = Collections.unmodifiableList(list);
+        numThreads = b.numThreads;
+        strandedness = b.strandedness;
+        overlapMode = b.overlapMode;
+        multiOverlapPolicy = b.multiOverlapPolicy;
+        minMappingQuality = b.minMappingQuality;
+        countDuplicates = b.countDuplicates;
+        primaryOnly = b.primaryOnly;
+        countFragments = b.countFragments;
+    }
+
+    /**
+     * Returns a builder for a counter over a set of genes.
+     *
+     * @param genes - the genes to count reads for
+     * @throws NullPointerException if the genes are <code>null</code>
+     */
+    public static Builder builder(GenomeTree<Gene> genes) {
+        return new Builder(genes);
+    }
+
+    /**
+     * @return the genes this counter counts reads for, in the row order of
+     * its count matrices
+     */
+    public List<Gene> getGenes() {
+        return genes;
+    }
+
+    /**
+     * Counts the reads in an indexed BAM file.
+     *
+     * @param bam - the path to the BAM file
+     * @return a count matrix with a single column
+     * @throws IllegalArgumentException if the BAM file is not indexed
+     */
+    public CountMatrix count(Path bam) {
+        return count(Collections.singletonList(bam));
+    }
+
+    /**
+     * Counts the reads in several indexed BAM files.
+     * <p>
+     * The columns of the returned matrix are named after the files, and are
+     * in the same order.
+     *
+     * @param bams - the paths to the BAM files
+     * @return a count matrix with one column per BAM file
+     * @throws IllegalArgumentException if a BAM file is not indexed
+     */
+    public CountMatrix count(List<Path> bams) {
+        Objects.requireNonNull(bams, "Attempted to count reads in a null " +
+                "list of BAM files.");
+        long[][] counts = new long[bams.size()][genes.size()];
+        long[][] summary = new long[bams.size()][Summary.values().length];
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<TaskResult>> futures = new ArrayList<>();
+            List<Integer> samples = new ArrayList<>();
+            for (int s = 0; s < bams.size(); s++) {
+                Path bam = bams.get(s);
+                for (String ref : BamReaders.getIndexedReferences(bam,
+                        "count reads in")) {
+                    futures.add(pool.submit(() -> countReference(bam, ref)));
+                    samples.add(s);
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                TaskResult result = Futures.get(futures.get(i));
+                int s = samples.get(i);
+                if (result.counts != null) {
+                    for (int g = 0; g < genes.size(); g++) {
+                        counts[s][g] += result.counts[g];
+                    }
+                }
+                for (int j = 0; j < summary[s].length; j++) {
+                    summary[s][j] += result.summary[j];
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<String> names = new ArrayList<>();
+        for (Path bam : bams) {
+            names.add(bam.getFileName().toString());
+        }
+        return new CountMatrix(genes, names, counts, summary);
+    }
+
+    /**
+     * Counts the reads aligned to one reference of a BAM file.
+     */
+    private TaskResult countReference(Path bam, String ref)
+            throws IOException {
+        TaskResult result = new TaskResult();
+        // Mates waiting for their partner, by read name
+        Map<String, SAMRecord> unpaired = new HashMap<>();
+        try (SamReader reader = BamReaders.open(bam);
+             SAMRecordIterator records = reader.query(ref, 0, 0, false)) {
+            while (records.hasNext()) {
+                SAMRecord record = records.next();
+                if (!passesFilters(record)) {
+                    result.summary[Summary.FILTERED.ordinal()]++;
+                    continue;
+                }
+                if (!countFragments || !record.getReadPairedFlag() ||
+                        record.getMateUnmappedFlag()) {
+                    assign(toAnnotation(record, null), strandedness.strandOf(record),
+                            result);
+                } else if (!record.getMateReferenceName().equals(ref)) {
+                    if (record.getFirstOfPairFlag()) {
+                        assign(toAnnotation(record, null), strandedness.strandOf(record),
+                                result);
+                    }
+                } else {
+                    SAMRecord mate = unpaired.remove(record.getReadName());
+                    if (mate == null) {
+                        unpaired.put(record.getReadName(), record);
+                    } else {
+                        SAMRecord read1 = record.getFirstOfPairFlag()
+                                ? record
+                                : mate;
+                        assign(toAnnotation(record, mate), strandedness.strandOf(read1),
+                                result);
+                    }
+                }
+            }
+        }
+        // Mates that were filtered out or never found
+        for (SAMRecord record : unpaired.values()) {
+            assign(toAnnotation(record, null), strandedness.strandOf(record), result);
+        }
+        return result;
+    }
+
+    private boolean passesFilters(SAMRecord record) {
+        if (record.getReadUnmappedFlag() ||
+                record.getReadFailsVendorQualityCheckFlag()) {
+            return false;
+        }
+        if (primaryOnly && (record.getNotPrimaryAlignmentFlag() ||
+                record.getSupplementaryAlignmentFlag())) {
+            return false;
+        }
+        if (!countDuplicates && record.getDuplicateReadFlag()) {
+            return false;
+        }
+        return record.getMappingQuality() >= minMappingQuality;
+    }
+
+    /**
+     * Returns the blocks of a read, or of both reads of a pair, as an
+     * annotation. Coordinates follow {@link SingleReadAlignment}.
+     */
+    private static Annotation toAnnotation(SAMRecord record, SAMRecord mate) {
+        Annotation.AnnotationBuilder builder = Annotation.builder()
+                .addAnnotationFromCigar(record.getCigar(),
+                        record.getReferenceName(),
+                        record.getAlignmentStart(), Strand.BOTH);
+        if (mate != null) {
+            builder.addAnnotationFromCigar(mate.getCigar(),
+                    mate.getReferenceName(), mate.getAlignmentStart(),
+                    Strand.BOTH);
+        }
+        return builder.build();
+    }
+
+    private void assign(Annotation read, Strand strand, TaskResult result) {
+        Iterator<Feature> overlappers = overlapMode == OverlapMode.EXONS
+                ? tree.overlappers(read)
+                : tree.bodyOverlappers(read);
+
+        Feature assigned = null;
+        int numAssigned = 0;
+        int bestOverlap = 0;
+        boolean tied = false;
+        while (overlappers.hasNext()) {
+            Feature feature = overlappers.next();
+            if (!strand.contains(feature.getStrand()) &&
+                    feature.getStrand() != Strand.BOTH) {
+                continue;
+            }
+            if (overlapMode == OverlapMode.BODY &&
+                    !feature.getBody().overlaps(read)) {
+                continue;
+            }
+            numAssigned++;
+            switch (multiOverlapPolicy) {
+            case COUNT_ALL:
+                result.count(feature.index, genes.size());
+                break;
+            case LARGEST_OVERLAP:
+                int overlap = overlapLength(read, overlapMode == OverlapMode.BODY
+                        ? feature.getBody()
+                        : feature);
+                if (overlap > bestOverlap) {
+                    assigned = feature;
+                    bestOverlap = overlap;
+                    tied = false;
+                } else if (overlap == bestOverlap) {
+                    tied = true;
+                }
+                break;
+            default:
+                assigned = feature;
+                break;
+            }
+        }
+
+        if (numAssigned == 0) {
+            result.summary[Summary.NO_FEATURE.ordinal()]++;
+        } else if (multiOverlapPolicy == MultiOverlapPolicy.COUNT_ALL) {
+            result.summary[Summary.ASSIGNED.ordinal()]++;
+        } else if (numAssigned > 1 &&
+                (multiOverlapPolicy == MultiOverlapPolicy.DISCARD || tied)) {
+            result.summary[Summary.AMBIGUOUS.ordinal()]++;
+        } else {
+            result.count(assigned.index, genes.size());
+            result.summary[Summary.ASSIGNED.ordinal()]++;
+        }
+    }
+
+    private static int overlapLength(Annotated a, Annotated b) {
+        return a.intersect(b).map(Annotated::getSize).orElse(0);
+    }
+
+    /**
+     * A gene, tagged with its row in the count matrix.
+     */
+    private static final class Feature extends Annotation {
+        private final int index;
+
+        private Feature(Gene gene, int index) {
+            super(gene);
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Feature && ((Feature) o).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+    }
+
+    /**
+     * The counts of one reference of one BAM file.
+     */
+    private static final class TaskResult {
+        // Allocated on the first assignment, since most references in a
+        // typical assembly have no reads on any gene
+        private long[] counts;
+        private final long[] summary = new long[Summary.values().length];
+
+        private void count(int index, int numGenes) {
+            if (counts == null) {
+                counts = new long[numGenes];
+            }
+            counts[index]++;
+        }
+    }
+
+    /**
+     * The categories of reads, or fragments, in the summary of a count.
+     */
+    public enum Summary {
+        /** Reads that were counted for a gene. */
+        ASSIGNED,
+        /** Reads that overlapped no gene on a compatible strand. */
+        NO_FEATURE,
+        /** Reads that overlapped more than one gene and were not counted. */
+        AMBIGUOUS,
+        /**
+         * Reads removed by the mapping-quality, duplicate, or
+         * primary-alignment filters, or that failed quality checks.
+         */
+        FILTERED
+    }
+
+    /**
+     * This class represents the counts of reads per gene in one or more
+     * samples.
+     */
+    public static final class CountMatrix {
+
+        private final List<Gene> genes;
+        private final List<String> samples;
+        private final long[][] counts;
+        private final long[][] summary;
+
+        private CountMatrix(List<Gene> genes, List<String> samples,
+                long[][] counts, long[][] summary) {
+            this.genes = genes;
+            this.samples = Collections.unmodifiableList(samples);
+            this.counts = counts;
+            this.summary = summary;
+        }
+
+        /**
+         * @return the genes, in row order
+         */
+        public List<Gene> getGenes() {
+            return genes;
+        }
+
+        /**
+         * @return the sample names, in column order
+         */
+        public List<String> getSampleNames() {
+            return samples;
+        }
+
+        /**
+         * @param gene - the row of the gene
+         * @param sample - the column of the sample
+         * @return the number of reads counted for the gene in the sample
+         */
+        public long getCount(int gene, int sample) {
+            return counts[sample][gene];
+        }
+
+        /**
+         * @param sample - the column of the sample
+         * @return a copy of the counts of every gene in the sample
+         */
+        public long[] getCounts(int sample) {
+            return counts[sample].clone();
+        }
+
+        /**
+         * @param category - the summary category
+         * @param sample - the column of the sample
+         * @return the number of reads in the category in the sample
+         */
+        public long getSummary(Summary category, int sample) {
+            return summary[sample][category.ordinal()];
+        }
+
+        /**
+         * Writes this matrix as a tab-separated table, with a header line,
+         * one line per gene giving its name, reference, start, end and strand
+         * followed by its counts, and a final line per summary category.
+         *
+         * @param p - the path to write to
+         */
+        public void write(Path p) {
+            try (BufferedWriter writer = Files.newBufferedWriter(p)) {
+                writer.write("Geneid\tChr\tStart\tEnd\tStrand");
+                for (String sample : samples) {
+                    writer.write("\t" + sample);
+                }
+                writer.newLine();
+                for (int g = 0; g < genes.size(); g++) {
+                    Gene gene = genes.get(g);
+                    writer.write(gene.getName() + "\t" +
+                            gene.getReferenceName() + "\t" +
+                            gene.getStart() + "\t" + gene.getEnd() + "\t" +
+                            gene.getStrand());
+                    for (int s = 0; s < samples.size(); s++) {
+                        writer.write("\t" + counts[s][g]);
+                    }
+                    writer.newLine();
+                }
+                for (Summary category : Summary.values()) {
+                    writer.write("__" + category.name().toLowerCase() +
+                            "\t.\t.\t.\t.");
+                    for (int s = 0; s < samples.size(); s++) {
+                        writer.write("\t" + summary[s][category.ordinal()]);
+                    }
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A builder class for {@link FeatureCounter} objects.
+     * <p>
+     * By default, reads are counted individually on one thread, regardless
+     * of strand, against the exons of genes, ambiguous reads are discarded,
+     * and only secondary and supplementary alignments are filtered out.
+     */
+    public static final class Builder {
+
+        private final GenomeTree<Gene> genes;
+        private int numThreads = 1;
+        private Strandedness strandedness = Strandedness.UNSTRANDED;
+        private OverlapMode overlapMode = OverlapMode.EXONS;
+        private MultiOverlapPolicy multiOverlapPolicy =
+                MultiOverlapPolicy.DISCARD;
+        private int minMappingQuality = 0;
+        private boolean countDuplicates = true;
+        private boolean primaryOnly = true;
+        private boolean countFragments = false;
+
+        private Builder(GenomeTree<Gene> genes) {
+            this.genes = Objects.requireNonNull(genes, "Attempted to count " +
+                    "reads for a null set of genes.");
+        }
+
+        /**
+         * @param numThreads - the number of worker threads
+         * @return this builder
+         * @throws IllegalArgumentException if the number is not positive
+         */
+        public Builder numThreads(int numThreads) {
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("Number of threads must " +
+                        "be positive: " + numThreads);
+            }
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * @param strandedness - the strand-specificity of the library
+         * @return this builder
+         */
+        public Builder strandedness(Strandedness strandedness) {
+            this.strandedness = Objects.requireNonNull(strandedness,
+                    "Attempted to set a null strandedness.");
+            return this;
+        }
+
+        /**
+         * @param overlapMode - the part of a gene a read must overlap
+         * @return this builder
+         */
+        public Builder overlapMode(OverlapMode overlapMode) {
+            this.overlapMode = Objects.requireNonNull(overlapMode,
+                    "Attempted to set a null overlap mode.");
+            return this;
+        }
+
+        /**
+         * @param policy - what to do with reads that overlap more than one
+         * gene
+         * @return this builder
+         */
+        public Builder multiOverlapPolicy(MultiOverlapPolicy policy) {
+            this.multiOverlapPolicy = Objects.requireNonNull(policy,
+                    "Attempted to set a null multi-overlap policy.");
+            return this;
+        }
+
+        /**
+         * @param minMappingQuality - the lowest mapping quality a read may
+         * have to be counted
+         * @return this builder
+         */
+        public Builder minMappingQuality(int minMappingQuality) {
+            this.minMappingQuality = minMappingQuality;
+            return this;
+        }
+
+        /**
+         * @param countDuplicates - whether reads flagged as duplicates should
+         * be counted
+         * @return this builder
+         */
+        public Builder countDuplicates(boolean countDuplicates) {
+            this.countDuplicates = countDuplicates;
+            return this;
+        }
+
+        /**
+         * @param primaryOnly - whether secondary and supplementary
+         * alignments should be filtered out
+         * @return this builder
+         */
+        public Builder primaryOnly(boolean primaryOnly) {
+            this.primaryOnly = primaryOnly;
+            return this;
+        }
+
+        /**
+         * @param countFragments - whether paired reads should be counted
+         * once per pair rather than once per read
+         * @return this builder
+         */
+        public Builder countFragments(boolean countFragments) {
+            this.countFragments = countFragments;
+            return this;
+        }
+
+        /**
+         * @return a new <code>FeatureCounter</code>
+         */
+        public FeatureCounter build() {
+            return new FeatureCounter(this);
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package edu.caltech.lncrna.bio.alignment;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.caltech.lncrna.bio.alignment.FeatureCounter.Strandedness;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.LongIntHashMap;
+import edu.caltech.lncrna.bio.utils.Futures;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+
+/**
+ * This class counts the splice junctions supported by the reads in BAM
+ * files.
+ * <p>
+ * Junctions are read directly from the <code>N</code> operations of each
+ * CIGAR string, without building an annotation per read or per intron. Each
+ * junction is identified by its reference, the first and last positions of
+ * its intron, and its strand, and is tallied in a {@link LongIntHashMap} that
+ * indexes primitive arrays of counts. Intron coordinates are those that
+ * {@link Alignment#getIntronStream()} returns for the same reads.
+ * <p>
+ * For each junction, the number of uniquely and multiply mapped reads that
+ * span it is counted, along with the maximum overhang of those reads. The
+ * overhang of a read is the smaller of the number of aligned bases between
+ * the junction and the neighboring junctions or ends of the read. A read is
+ * multiply mapped if its <code>NH</code> tag is greater than one, or if it
+ * has no <code>NH</code> tag and is a secondary alignment or has a mapping
+ * quality of zero.
+ * <p>
+ * The strand of a junction is taken from the <code>XS</code> tag of the read
+ * if it has one, and otherwise from the strandedness of the library. In an
+ * unstranded library, junctions without an <code>XS</code> tag are
+ * unstranded.
+ * <p>
+ * BAM files must be indexed. Each reference of each BAM file is counted as a
+ * separate task on a pool of worker threads, and the tables of each reference
+ * are merged once every file has been counted.
+ * <p>
+ * Instances are built with a {@link Builder}, and may be shared between
+ * threads.
+ *
+ * @see FeatureCounter
+ */
+public final class JunctionCounter {
+
+    private static final Strand[] STRANDS = {Strand.POSITIVE, Strand.NEGATIVE,
+            Strand.BOTH};
+
+    private final int numThreads;
+    private final Strandedness strandedness;
+    private final boolean countDuplicates;
+    private final int minOverhang;
+
+    private JunctionCounter(Builder b) {
+        numThreads = b.numThreads;
+        strandedness = b.strandedness;
+        countDuplicates = b.countDuplicates;
+        minOverhang = b.minOverhang;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Counts the junctions in an indexed BAM file.
+     *
+     * @param bam - the path to the BAM file
+     * @return the junctions and their counts
+     * @throws IllegalArgumentException if the BAM file is not indexed
+     */
+    public Junctions count(Path bam) {
+        return count(Collections.singletonList(bam));
+    }
+
+    /**
+     * Counts the junctions in several indexed BAM files together.
+     * <p>
+     * References are ordered as in the sequence dictionary of the first file
+     * that contains them.
+     *
+     * @param bams - the paths to the BAM files
+     * @return the junctions and their counts, summed over the files
+     * @throws IllegalArgumentException if a BAM file is not indexed
+     */
+    public Junctions count(List<Path> bams) {
+        Objects.requireNonNull(bams, "Attempted to count junctions in a null " +
+                "list of BAM files.");
+        Map<String, Table> tables = new LinkedHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Table>> futures = new ArrayList<>();
+            List<String> refs = new ArrayList<>();
+            for (Path bam : bams) {
+                for (String ref : BamReaders.getIndexedReferences(bam,
+                        "count junctions in")) {
+                    futures.add(pool.submit(() -> countReference(bam, ref)));
+                    refs.add(ref);
+                    tables.putIfAbsent(ref, null);
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Table table = Futures.get(futures.get(i));
+                Table merged = tables.get(refs.get(i));
+                if (merged == null) {
+                    tables.put(refs.get(i), table);
+                } else {
+                    merged.addAll(table);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Junctions(tables);
+    }
+
+    /**
+     * Counts the junctions of the reads aligned to one reference of a BAM
+     * file.
+     */
+    private Table countReference(Path bam, String ref) throws IOException {
+        Table table = new Table();
+        // Reused for every read: the intron boundaries of the read, and the
+        // aligned bases before, between and after them
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        int[] anchors = new int[9];
+        try (SamReader reader = BamReaders.open(bam);
+             SAMRecordIterator records = reader.query(ref, 0, 0, false)) {
+            while (records.hasNext()) {
+                SAMRecord record = records.next();
+                if (record.getReadUnmappedFlag() ||
+                        record.getReadFailsVendorQualityCheckFlag() ||
+                        (!countDuplicates && record.getDuplicateReadFlag())) {
+                    continue;
+                }
+
+                int numJunctions = 0;
+                int pos = record.getAlignmentStart();
+                int anchor = 0;
+                for (CigarElement element : record.getCigar()
+                        .getCigarElements()) {
+                    int length = element.getLength();
+                    switch (element.getOperator()) {
+                    case M:
+                    case EQ:
+                    case X:
+                        anchor += length;
+                        pos += length;
+                        break;
+                    case D:
+                        pos += length;
+                        break;
+                    case N:
+                        if (numJunctions == starts.length) {
+                            starts = Arrays.copyOf(starts, 2 * numJunctions);
+                            ends = Arrays.copyOf(ends, 2 * numJunctions);
+                            anchors = Arrays.copyOf(anchors,
+                                    2 * numJunctions + 1);
+                        }
+                        starts[numJunctions] = pos;
+                        ends[numJunctions] = pos + length;
+                        anchors[numJunctions] = anchor;
+                        numJunctions++;
+                        anchor = 0;
+                        pos += length;
+                        break;
+                    default:
+                        break;
+                    }
+                }
+                if (numJunctions == 0) {
+                    continue;
+                }
+                anchors[numJunctions] = anchor;
+
+                Strand strand = strandOf(record);
+                boolean multi = isMultiMapped(record);
+                for (int i = 0; i < numJunctions; i++) {
+                    int overhang = Math.min(anchors[i], anchors[i + 1]);
+                    if (overhang >= minOverhang) {
+                        table.add(starts[i], ends[i], strand, multi ? 0 : 1,
+                                multi ? 1 : 0, overhang);
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    private Strand strandOf(SAMRecord record) {
+        Object xs = record.getAttribute("XS");
+        if (xs instanceof Character) {
+            xs = xs.toString();
+        }
+        if ("+".equals(xs)) {
+            return Strand.POSITIVE;
+        }
+        if ("-".equals(xs)) {
+            return Strand.NEGATIVE;
+        }
+        return strandedness.strandOf(record);
+    }
+
+    private static boolean isMultiMapped(SAMRecord record) {
+        Integer nh = record.getIntegerAttribute("NH");
+        if (nh != null) {
+            return nh > 1;
+        }
+        return record.getNotPrimaryAlignmentFlag() ||
+                record.getMappingQuality() == 0;
+    }
+
+    private static int strandIndex(Strand strand) {
+        switch (strand) {
+        case POSITIVE:
+            return 0;
+        case NEGATIVE:
+            return 1;
+        default:
+            return 2;
+        }
+    }
+
+    private static long key(int start, int end) {
+        return ((long) start << 32) | (end & 0xffffffffL);
+    }
+
+    /**
+     * The junctions of one reference.
+     * <p>
+     * Each strand has its own map from the packed intron boundaries of a
+     * junction to one more than its slot in the parallel count arrays, since
+     * a <code>LongIntHashMap</code> returns zero for absent keys.
+     */
+    private static final class Table {
+        private final LongIntHashMap[] slots = {new LongIntHashMap(),
+                new LongIntHashMap(), new LongIntHashMap()};
+        private long[] keys = new long[16];
+        private byte[] strands = new byte[16];
+        private int[] unique = new int[16];
+        private int[] multi = new int[16];
+        private int[] overhang = new int[16];
+        private int size;
+
+        private void add(int start, int end, Strand strand, int numUnique,
+                int numMulti, int maxOverhang) {
+            add(key(start, end), strandIndex(strand), numUnique, numMulti,
+                    maxOverhang);
+        }
+
+        private void add(long key, int strand, int numUnique, int numMulti,
+                int maxOverhang) {
+            int slot = slots[strand].get(key) - 1;
+            if (slot < 0) {
+                if (size == keys.length) {
+                    int capacity = 2 * size;
+                    keys = Arrays.copyOf(keys, capacity);
+                    strands = Arrays.copyOf(strands, capacity);
+                    unique = Arrays.copyOf(unique, capacity);
+                    multi = Arrays.copyOf(multi, capacity);
+                    overhang = Arrays.copyOf(overhang, capacity);
+                }
+                slot = size++;
+                slots[strand].put(key, slot + 1);
+                keys[slot] = key;
+                strands[slot] = (byte) strand;
+            }
+            unique[slot] += numUnique;
+            multi[slot] += numMulti;
+            overhang[slot] = Math.max(overhang[slot], maxOverhang);
+        }
+
+        private void addAll(Table other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.keys[i], other.strands[i], other.unique[i],
+                        other.multi[i], other.overhang[i]);
+            }
+        }
+
+        private int slotOf(int start, int end, Strand strand) {
+            return slots[strandIndex(strand)].get(key(start, end)) - 1;
+        }
+
+        /**
+         * Returns the distinct packed intron boundaries of this table, in
+         * ascending order, which is the order of their start and then end
+         * positions.
+         */
+        private long[] sortedKeys() {
+            long[] sorted = Arrays.copyOf(keys, size);
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (n == 0 || sorted[i] != sorted[n - 1]) {
+                    sorted[n++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, n);
+        }
+    }
+
+    /**
+     * Represents an operation that accepts a single junction and its counts.
+     */
+    @FunctionalInterface
+    public interface JunctionConsumer {
+        public void accept(String ref, int start, int end, Strand strand,
+                int uniqueCount, int multiCount, int maxOverhang);
+    }
+
+    /**
+     * This class represents the junctions found by a
+     * <code>JunctionCounter</code>, with their counts.
+     */
+    public static final class Junctions {
+
+        private final Map<String, Table> tables;
+
+        private Junctions(Map<String, Table> tables) {
+            this.tables = tables;
+        }
+
+        /**
+         * @return the number of distinct junctions
+         */
+        public int size() {
+            int size = 0;
+            for (Table table : tables.values()) {
+                size += table.size;
+            }
+            return size;
+        }
+
+        /**
+         * @param ref - the reference of the junction
+         * @param start - the first position of the intron
+         * @param end - the position after the last position of the intron
+         * @param strand - the strand of the junction
+         * @return the number of uniquely mapped reads spanning the junction
+         */
+        public int getUniqueCount(String ref, int start, int end,
+                Strand strand) {
+            Table table = tables.get(ref);
+            int slot = table == null ? -1 : table.slotOf(start, end, strand);
+            return slot < 0 ? 0 : table.unique[slot];
+        }
+
+        /**
+         * @param ref - the reference of the junction
+         * @param start - the first position of the intron
+         * @param end - the position after the last position of the intron
+         * @param strand - the strand of the junction
+         * @return the number of multiply mapped reads spanning the junction
+         */
+        public int getMultiCount(String ref, int start, int end,
+                Strand strand) {
+            Table table = tables.get(ref);
+            int slot = table == null ? -1 : table.slotOf(start, end, strand);
+            return slot < 0 ? 0 : table.multi[slot];
+        }
+
+        /**
+         * @param ref - the reference of the junction
+         * @param start - the first position of the intron
+         * @param end - the position after the last position of the intron
+         * @param strand - the strand of the junction
+         * @return the maximum overhang of the reads spanning the junction, or
+         * zero if there are none
+         */
+        public int getMaxOverhang(String ref, int start, int end,
+                Strand strand) {
+            Table table = tables.get(ref);
+            int slot = table == null ? -1 : table.slotOf(start, end, strand);
+            return slot < 0 ? 0 : table.overhang[slot];
+        }
+
+        /**
+         * Performs an action on every junction, sorted by reference, start
+         * position, end position and strand, with positive-strand junctions
+         * before negative-strand junctions before unstranded junctions.
+         *
+         * @param action - the action to perform
+         */
+        public void forEach(JunctionConsumer action) {
+            for (Map.Entry<String, Table> entry : tables.entrySet()) {
+                Table table = entry.getValue();
+                for (long key : table.sortedKeys()) {
+                    for (int s = 0; s < STRANDS.length; s++) {
+                        int slot = table.slots[s].get(key) - 1;
+                        if (slot >= 0) {
+                            action.accept(entry.getKey(), (int) (key >>> 32),
+                                    (int) key, STRANDS[s], table.unique[slot],
+                                    table.multi[slot], table.overhang[slot]);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes the junctions to a tab-separated file, one line per
+         * junction in the order of {@link #forEach(JunctionConsumer)}, with
+         * the columns reference, intron start, intron end, strand, unique
+         * count, multi count and maximum overhang.
+         *
+         * @param p - the path to write to
+         */
+        public void write(Path p) {
+            try (BufferedWriter writer = Files.newBufferedWriter(p)) {
+                StringBuilder line = new StringBuilder();
+                forEach((ref, start, end, strand, u, m, o) -> {
+                    line.setLength(0);
+                    line.append(ref).append('\t').append(start).append('\t')
+                        .append(end).append('\t').append(strand).append('\t')
+                        .append(u).append('\t').append(m).append('\t')
+                        .append(o).append('\n');
+                    try {
+                        writer.append(line);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A builder class for {@link JunctionCounter} objects.
+     * <p>
+     * By default, junctions are counted on one thread from every read,
+     * including duplicates, with any overhang, and junctions without an
+     * <code>XS</code> tag are unstranded.
+     */
+    public static final class Builder {
+
+        private int numThreads = 1;
+        private Strandedness strandedness = Strandedness.UNSTRANDED;
+        private boolean countDuplicates = true;
+        private int minOverhang = 0;
+
+        private Builder() { }
+
+        /**
+         * @param numThreads - the number of worker threads
+         * @return this builder
+         * @throws IllegalArgumentException if the number is not positive
+         */
+        public Builder numThreads(int numThreads) {
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("Number of threads must " +
+                        "be positive: " + numThreads);
+            }
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * @param strandedness - the strand-specificity of the library, used
+         * for reads without an <code>XS</code> tag
+         * @return this builder
+         */
+        public Builder strandedness(Strandedness strandedness) {
+            this.strandedness = Objects.requireNonNull(strandedness,
+                    "Attempted to set a null strandedness.");
+            return this;
+        }
+
+        /**
+         * @param countDuplicates - whether reads flagged as duplicates should
+         * be counted
+         * @return this builder
+         */
+        public Builder countDuplicates(boolean countDuplicates) {
+            this.countDuplicates = countDuplicates;
+            return this;
+        }
+
+        /**
+         * @param minOverhang - the smallest overhang a read must have on a
+         * junction to be counted for it
+         * @return this builder
+         */
+        public Builder minOverhang(int minOverhang) {
+            this.minOverhang = minOverhang;
+            return this;
+        }
+
+        /**
+         * @return a new <code>JunctionCounter</code>
+         */
+        public JunctionCounter build() {
+            return new JunctionCounter(this);
+        }
+    }
+}
@@ -33,7 +33,7 @@ extends Annotation implements Alignment, PairedSamRecord {
 
         String ref1 = read1.getReferenceName();
         String ref2 = read2.getReferenceName();
-        if (!ref1.equals(ref2)) {
+        if (read1.getReferenceId() != read2.getReferenceId()) {
             throw new IllegalArgumentException("Attemped to construct a " +
                     "PairedEndAlignment with reads that align to different " +
                     "references: " + ref1 + ", " + ref2);
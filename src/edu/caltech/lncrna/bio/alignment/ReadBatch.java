@@ -0,0 +1,765 @@
+package edu.caltech.lncrna.bio.alignment;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.ReferenceNames;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.io.PairedEndBamParser;
+import edu.caltech.lncrna.bio.io.SingleReadBamParser;
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * This class represents a batch of alignments stored column-wise.
+ * <p>
+ * A <code>SingleRead</code> wraps an entire htsjdk <code>SAMRecord</code>,
+ * and a <code>SingleReadAlignment</code> adds an <code>Annotation</code> on
+ * top of that. When a chromosome's worth of alignments is held in memory, most
+ * of the heap goes to object headers. A <code>ReadBatch</code> instead keeps
+ * one primitive array per field:
+ * <ul>
+ * <li>the reference, as an index into a per-batch table of reference names
+ * <li>the start and end coordinates
+ * <li>the SAM flags
+ * <li>the mapping quality
+ * <li>the block boundaries, packed into one shared <code>int[]</code> and
+ * addressed through an offset array
+ * <li>the read names, packed into one shared <code>byte[]</code> and
+ * addressed through an offset array
+ * </ul>
+ * Only mapped records are stored. Coordinates follow the same convention as
+ * {@link SingleReadAlignment}.
+ * <p>
+ * Records are accessed through lightweight {@link Record} views that
+ * implement {@link Annotated}, so a batch can be passed directly to a
+ * <code>GenomeTree</code> or a <code>WindowIterator</code>:
+ * <pre>
+ * <code>
+ * ReadBatch batch = new ReadBatch();
+ * try (SingleReadBamParser parser = new SingleReadBamParser(bam)) {
+ *     batch.fill(parser, 1000000);
+ * }
+ * GenomeTree&lt;ReadBatch.Record&gt; tree = new GenomeTree&lt;&gt;();
+ * batch.forEach(tree::add);
+ * </code>
+ * </pre>
+ */
+public final class ReadBatch implements Iterable<ReadBatch.Record> {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int AVERAGE_NAME_LENGTH = 32;
+
+    private final List<String> refNames;
+    private final List<Integer> refGlobalIds;
+    private final Map<String, Integer> refIds;
+
+    private int size;
+    private int[] refs;
+    private int[] starts;
+    private int[] ends;
+    private int[] flags;
+    private byte[] mapqs;
+
+    private int[] blockOffsets;
+    private int[] blocks;
+
+    private int[] nameOffsets;
+    private byte[] names;
+
+    /**
+     * Constructs an empty batch with a default initial capacity.
+     */
+    public ReadBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty batch with room for the given number of records.
+     * <p>
+     * The batch grows as needed. The capacity only avoids reallocations.
+     *
+     * @param capacity - the initial number of records
+     * @throws IllegalArgumentException if <code>capacity</code> is not
+     * positive
+     */
+    public ReadBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Attempted to construct a " +
+                    "ReadBatch with non-positive capacity: " + capacity);
+        }
+        refNames = new ArrayList<>();
+        refGlobalIds = new ArrayList<>();
+        refIds = new HashMap<>();
+        refs = new int[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        flags = new int[capacity];
+        mapqs = new byte[capacity];
+        blockOffsets = new int[capacity + 1];
+        blocks = new int[capacity * 2];
+        nameOffsets = new int[capacity + 1];
+        names = new byte[capacity * AVERAGE_NAME_LENGTH];
+    }
+
+    /**
+     * Returns the number of records in this batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns <code>true</code> if this batch contains no records.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all records from this batch.
+     * <p>
+     * The backing arrays and the table of reference names are kept, so a
+     * batch can be cleared and refilled without reallocating. Any
+     * {@link Record} views into this batch are invalid after this call.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    ////////////////////
+    // Filling method //
+    ////////////////////
+
+    /**
+     * Adds up to <code>max</code> reads from a <code>SingleReadBamParser</code>
+     * to this batch.
+     * <p>
+     * Unmapped reads are consumed from the parser but are not stored.
+     *
+     * @param parser - the parser to read from
+     * @param max - the maximum number of reads to consume
+     * @return the number of records added to this batch
+     */
+    public int fill(SingleReadBamParser parser, int max) {
+        int added = 0;
+        for (int i = 0; i < max && parser.hasNext(); i++) {
+            if (add(parser.next())) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds up to <code>max</code> pairs from a <code>PairedEndBamParser</code>
+     * to this batch.
+     * <p>
+     * Each concordant pair is stored as a single fragment. Pairs without a
+     * valid alignment are consumed from the parser but are not stored.
+     *
+     * @param parser - the parser to read from
+     * @param max - the maximum number of pairs to consume
+     * @return the number of records added to this batch
+     */
+    public int fill(PairedEndBamParser parser, int max) {
+        int added = 0;
+        for (int i = 0; i < max && parser.hasNext(); i++) {
+            if (add(parser.next())) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds a single read to this batch.
+     * <p>
+     * The read's blocks are computed directly from its CIGAR, without
+     * constructing intermediate <code>Annotation</code> objects.
+     *
+     * @param read - the read to add
+     * @return <code>true</code> if the read was mapped and was added;
+     * otherwise <code>false</code>
+     */
+    public boolean add(SingleRead read) {
+        return add(read.samRecord);
+    }
+
+    /**
+     * Adds an htsjdk <code>SAMRecord</code> to this batch.
+     *
+     * @param record - the record to add
+     * @return <code>true</code> if the record was mapped and was added;
+     * otherwise <code>false</code>
+     */
+    public boolean add(SAMRecord record) {
+        if (record.getReadUnmappedFlag()) {
+            return false;
+        }
+
+        ensureCapacity(size + 1);
+        int blockStart = blockOffsets[size];
+        int blockEnd = appendCigarBlocks(record.getCigar(),
+                record.getAlignmentStart(), blockStart);
+
+        if (blockEnd == blockStart) {
+            return false;
+        }
+
+        refs[size] = refId(record.getReferenceName());
+        starts[size] = blocks[blockStart];
+        ends[size] = blocks[blockEnd - 1];
+        flags[size] = record.getFlags();
+        mapqs[size] = (byte) Math.min(record.getMappingQuality(), 255);
+        blockOffsets[size + 1] = blockEnd;
+        appendName(record.getReadName());
+        size++;
+        return true;
+    }
+
+    /**
+     * Adds a read pair to this batch as a single fragment.
+     * <p>
+     * The fragment has the blocks, strand and span of the pair's
+     * {@link PairedEndAlignment}. The stored flags are those of the first
+     * read in the pair, and the stored mapping quality is the lesser of the
+     * two reads' mapping qualities.
+     *
+     * @param pair - the pair to add
+     * @return <code>true</code> if the pair had a valid alignment and was
+     * added; otherwise <code>false</code>
+     */
+    public boolean add(ReadPair pair) {
+        Optional<PairedEndAlignment> alignment = pair.getAlignment();
+        if (!alignment.isPresent()) {
+            return false;
+        }
+
+        PairedEndAlignment fragment = alignment.get();
+        int[] boundaries = fragment.getBlockBoundaries();
+        ensureCapacity(size + 1);
+        ensureBlockCapacity(blockOffsets[size] + boundaries.length);
+
+        int blockStart = blockOffsets[size];
+        System.arraycopy(boundaries, 0, blocks, blockStart, boundaries.length);
+
+        SAMRecord read1 = pair.getFirstReadInPair().samRecord;
+        SAMRecord read2 = pair.getSecondReadInPair().samRecord;
+
+        // The pair orientation, and not the read flags, determines the
+        // fragment's strand. Store it in the reverse-strand bit.
+        int f = read1.getFlags();
+        f = fragment.getStrand() == Strand.NEGATIVE ? f | 0x10 : f & ~0x10;
+
+        refs[size] = refId(fragment.getReferenceName());
+        starts[size] = fragment.getStart();
+        ends[size] = fragment.getEnd();
+        flags[size] = f;
+        mapqs[size] = (byte) Math.min(Math.min(read1.getMappingQuality(),
+                read2.getMappingQuality()), 255);
+        blockOffsets[size + 1] = blockStart + boundaries.length;
+        appendName(read1.getReadName());
+        size++;
+        return true;
+    }
+
+    /*
+     * Writes the reference blocks of a CIGAR into the shared block array,
+     * starting at the given offset, and returns the offset one past the last
+     * boundary written. Adjacent blocks (for example, either side of a
+     * deletion or an insertion) are merged, matching the behavior of
+     * AnnotationBuilder.
+     */
+    private int appendCigarBlocks(Cigar cigar, int start, int offset) {
+        int pos = start;
+        int idx = offset;
+        for (CigarElement element : cigar.getCigarElements()) {
+            int length = element.getLength();
+            switch (element.getOperator()) {
+            case D:
+            case EQ:
+            case M:
+            case X:
+                if (idx > offset && blocks[idx - 1] == pos) {
+                    blocks[idx - 1] = pos + length;
+                } else {
+                    ensureBlockCapacity(idx + 2);
+                    blocks[idx] = pos;
+                    blocks[idx + 1] = pos + length;
+                    idx += 2;
+                }
+                pos += length;
+                break;
+            case N:
+                pos += length;
+                break;
+            default:
+                // Skip H, I, P and S.
+                break;
+            }
+        }
+        return idx;
+    }
+
+    private void appendName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        int offset = nameOffsets[size];
+        if (offset + bytes.length > names.length) {
+            names = Arrays.copyOf(names,
+                    Math.max(names.length * 2, offset + bytes.length));
+        }
+        System.arraycopy(bytes, 0, names, offset, bytes.length);
+        nameOffsets[size + 1] = offset + bytes.length;
+    }
+
+    private int refId(String ref) {
+        Integer id = refIds.get(ref);
+        if (id == null) {
+            int globalId = ReferenceNames.getId(ref);
+            id = refNames.size();
+            refNames.add(ReferenceNames.getName(globalId));
+            refGlobalIds.add(globalId);
+            refIds.put(ref, id);
+        }
+        return id;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= refs.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, refs.length * 2);
+        refs = Arrays.copyOf(refs, newCapacity);
+        starts = Arrays.copyOf(starts, newCapacity);
+        ends = Arrays.copyOf(ends, newCapacity);
+        flags = Arrays.copyOf(flags, newCapacity);
+        mapqs = Arrays.copyOf(mapqs, newCapacity);
+        blockOffsets = Arrays.copyOf(blockOffsets, newCapacity + 1);
+        nameOffsets = Arrays.copyOf(nameOffsets, newCapacity + 1);
+    }
+
+    private void ensureBlockCapacity(int capacity) {
+        if (capacity > blocks.length) {
+            blocks = Arrays.copyOf(blocks, Math.max(capacity, blocks.length * 2));
+        }
+    }
+
+    //////////////////////
+    // Column accessors //
+    //////////////////////
+
+    /**
+     * Returns the reference name of the record at the given index.
+     * <p>
+     * Every record on the same reference returns the same
+     * <code>String</code> instance.
+     *
+     * @param i - the index of the record
+     */
+    public String getReferenceName(int i) {
+        return refNames.get(refs[checkIndex(i)]);
+    }
+
+    /**
+     * Returns the index of the reference of the record at the given index
+     * into this batch's table of reference names.
+     * <p>
+     * Reference indices are assigned in order of first appearance and are
+     * only meaningful within this batch.
+     *
+     * @param i - the index of the record
+     */
+    public int getReferenceIndex(int i) {
+        return refs[checkIndex(i)];
+    }
+
+    /**
+     * Returns the start coordinate of the record at the given index.
+     *
+     * @param i - the index of the record
+     */
+    public int getStart(int i) {
+        return starts[checkIndex(i)];
+    }
+
+    /**
+     * Returns the end coordinate of the record at the given index.
+     *
+     * @param i - the index of the record
+     */
+    public int getEnd(int i) {
+        return ends[checkIndex(i)];
+    }
+
+    /**
+     * Returns the SAM flags of the record at the given index.
+     *
+     * @param i - the index of the record
+     */
+    public int getFlags(int i) {
+        return flags[checkIndex(i)];
+    }
+
+    /**
+     * Returns the mapping quality of the record at the given index.
+     *
+     * @param i - the index of the record
+     */
+    public int getMappingQuality(int i) {
+        return mapqs[checkIndex(i)] & 0xFF;
+    }
+
+    /**
+     * Returns the strand of the record at the given index.
+     *
+     * @param i - the index of the record
+     */
+    public Strand getStrand(int i) {
+        return (flags[checkIndex(i)] & 0x10) != 0
+                ? Strand.NEGATIVE
+                : Strand.POSITIVE;
+    }
+
+    /**
+     * Returns the number of blocks of the record at the given index.
+     *
+     * @param i - the index of the record
+     */
+    public int getNumberOfBlocks(int i) {
+        checkIndex(i);
+        return (blockOffsets[i + 1] - blockOffsets[i]) / 2;
+    }
+
+    /**
+     * Returns a copy of the block boundaries of the record at the given
+     * index.
+     *
+     * @param i - the index of the record
+     */
+    public int[] getBlockBoundaries(int i) {
+        checkIndex(i);
+        return Arrays.copyOfRange(blocks, blockOffsets[i], blockOffsets[i + 1]);
+    }
+
+    /**
+     * Returns the read name of the record at the given index.
+     * <p>
+     * The name is decoded from the batch's name arena on every call.
+     *
+     * @param i - the index of the record
+     */
+    public String getName(int i) {
+        checkIndex(i);
+        return new String(names, nameOffsets[i], nameOffsets[i + 1] -
+                nameOffsets[i], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns a view of the record at the given index.
+     *
+     * @param i - the index of the record
+     * @throws IndexOutOfBoundsException if <code>i</code> is not a valid index
+     */
+    public Record get(int i) {
+        return new Record(checkIndex(i));
+    }
+
+    private int checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " +
+                    size);
+        }
+        return i;
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return new Iterator<Record>() {
+
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return new Record(next++);
+            }
+        };
+    }
+
+    /**
+     * Returns a sequential <code>Stream</code> of views over the records in
+     * this batch.
+     */
+    public Stream<Record> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * A flyweight view of a single record in a {@link ReadBatch}.
+     * <p>
+     * A view holds only a reference to its batch and an index, and reads all
+     * of its values from the batch's columns. Simple coordinate queries are
+     * answered directly from the columns. Operations that produce new
+     * annotations, such as {@link #intersect(Annotated)}, first copy this
+     * record into an {@link Annotation}.
+     * <p>
+     * A view is invalidated if its batch is cleared.
+     */
+    public final class Record implements Annotated {
+
+        private final int index;
+
+        private Record(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Returns the index of this record in its batch.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the read name of this record.
+         */
+        public String getName() {
+            return ReadBatch.this.getName(index);
+        }
+
+        /**
+         * Returns the SAM flags of this record.
+         */
+        public int getFlags() {
+            return flags[index];
+        }
+
+        /**
+         * Returns the mapping quality of this record.
+         */
+        public int getMappingQuality() {
+            return mapqs[index] & 0xFF;
+        }
+
+        @Override
+        public String getReferenceName() {
+            return refNames.get(refs[index]);
+        }
+
+        @Override
+        public int getReferenceId() {
+            return refGlobalIds.get(refs[index]);
+        }
+
+        @Override
+        public int getStart() {
+            return starts[index];
+        }
+
+        @Override
+        public int getEnd() {
+            return ends[index];
+        }
+
+        @Override
+        public Strand getStrand() {
+            return (flags[index] & 0x10) != 0
+                    ? Strand.NEGATIVE
+                    : Strand.POSITIVE;
+        }
+
+        @Override
+        public int getFivePrimePosition() {
+            return getStrand() == Strand.NEGATIVE ? getEnd() : getStart();
+        }
+
+        @Override
+        public int getThreePrimePosition() {
+            return getStrand() == Strand.NEGATIVE ? getStart() : getEnd();
+        }
+
+        @Override
+        public int getSize() {
+            int total = 0;
+            for (int i = blockOffsets[index]; i < blockOffsets[index + 1]; i += 2) {
+                total += blocks[i + 1] - blocks[i];
+            }
+            return total;
+        }
+
+        @Override
+        public int getSpan() {
+            return getEnd() - getStart();
+        }
+
+        @Override
+        public int getNumberOfBlocks() {
+            return (blockOffsets[index + 1] - blockOffsets[index]) / 2;
+        }
+
+        @Override
+        public int[] getBlockBoundaries() {
+            return Arrays.copyOfRange(blocks, blockOffsets[index],
+                    blockOffsets[index + 1]);
+        }
+
+        @Override
+        public Iterator<Annotated> iterator() {
+            return getBlockIterator();
+        }
+
+        @Override
+        public Iterator<Annotated> getBlockIterator() {
+            return toAnnotation().getBlockIterator();
+        }
+
+        @Override
+        public Stream<Annotated> getBlockStream() {
+            return toAnnotation().getBlockStream();
+        }
+
+        @Override
+        public boolean overlaps(Annotated other) {
+            if (getNumberOfBlocks() == 1 && other.getNumberOfBlocks() == 1) {
+                return getReferenceId() == other.getReferenceId() &&
+                       getStrand().intersect(other.getStrand()) != Strand.INVALID &&
+                       getStart() < other.getEnd() && other.getStart() < getEnd();
+            }
+            return toAnnotation().overlaps(other);
+        }
+
+        @Override
+        public boolean isAdjacentTo(Annotated other) {
+            return getReferenceId() == other.getReferenceId() &&
+                   (getStart() == other.getEnd() || getEnd() == other.getStart());
+        }
+
+        @Override
+        public Annotated getBody() {
+            return new Annotation(getReferenceName(), getStart(), getEnd(),
+                    getStrand());
+        }
+
+        @Override
+        public Optional<Annotated> minus(Annotated other) {
+            return toAnnotation().minus(other);
+        }
+
+        @Override
+        public Optional<Annotated> intersect(Annotated other) {
+            return toAnnotation().intersect(other);
+        }
+
+        @Override
+        public boolean contains(Annotated other) {
+            return toAnnotation().contains(other);
+        }
+
+        @Override
+        public Optional<Annotated> getIntrons() {
+            return toAnnotation().getIntrons();
+        }
+
+        @Override
+        public Iterator<Annotated> getIntronIterator() {
+            return toAnnotation().getIntronIterator();
+        }
+
+        @Override
+        public Stream<Annotated> getIntronStream() {
+            return toAnnotation().getIntronStream();
+        }
+
+        @Override
+        public boolean isUpstreamOf(Annotated other) {
+            return toAnnotation().isUpstreamOf(other);
+        }
+
+        @Override
+        public boolean isDownstreamOf(Annotated other) {
+            return toAnnotation().isDownstreamOf(other);
+        }
+
+        @Override
+        public String toFormattedString() {
+            return toFormattedBedString();
+        }
+
+        @Override
+        public String toFormattedString(int numFields) {
+            return toFormattedBedString(numFields);
+        }
+
+        @Override
+        public String toFormattedBedString() {
+            return toAnnotation().toFormattedBedString();
+        }
+
+        @Override
+        public String toFormattedBedString(int numFields) {
+            return toAnnotation().toFormattedBedString(numFields);
+        }
+
+        /**
+         * Copies this record into a new, independent <code>Annotation</code>.
+         * <p>
+         * The returned annotation remains valid after this record's batch is
+         * cleared.
+         */
+        public Annotation toAnnotation() {
+            return new Annotation(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Record)) {
+                return false;
+            }
+
+            Record other = (Record) o;
+
+            return index == other.index && batch() == other.batch();
+        }
+
+        @Override
+        public int hashCode() {
+            int hashCode = 17;
+            hashCode = 37 * hashCode + System.identityHashCode(batch());
+            hashCode = 37 * hashCode + index;
+            return hashCode;
+        }
+
+        @Override
+        public String toString() {
+            return toAnnotation().toString();
+        }
+
+        private ReadBatch batch() {
+            return ReadBatch.this;
+        }
+    }
+}
@@ -66,8 +66,8 @@ public class ReadPair implements PairedSamRecord, Aligned<PairedEndAlignment> {
         if (align1.isPresent() && align2.isPresent()) {
             SingleReadAlignment a1 = align1.get();
             SingleReadAlignment a2 = align2.get();
-            boolean onSameReference = a1.getReferenceName()
-                    .equals(a2.getReferenceName());
+            boolean onSameReference =
+                    a1.getReferenceId() == a2.getReferenceId();
             boolean isConcordant = PairOrientation.getPairOrientation(a1, a2)
                     .isConcordant();
             return onSameReference && isConcordant;
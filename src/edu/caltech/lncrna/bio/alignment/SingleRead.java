@@ -16,7 +16,7 @@ import htsjdk.samtools.SAMRecord;
 public final class SingleRead
 implements Aligned<SingleReadAlignment>, SingleSamRecord {
 
-    private final SAMRecord samRecord;
+    final SAMRecord samRecord;
     
     /**
      * Constructs a <code>SingleRead</code> object from an htsjdk
@@ -126,6 +126,26 @@ implements Aligned<SingleReadAlignment>, SingleSamRecord {
         return samRecord.getMappingQuality();
     }
     
+    /**
+     * Returns the index of this read's reference in the sequence dictionary
+     * of its header, or -1 if it has none.
+     * <p>
+     * Coordinate-sorted BAM files are sorted by this index, then by
+     * {@link #getAlignmentStart()}. Unmapped reads placed with their mate
+     * take the mate's reference and start.
+     */
+    public int getReferenceIndex() {
+        return samRecord.getReferenceIndex();
+    }
+
+    /**
+     * Returns the one-based start of this read's alignment, as recorded in
+     * the BAM file, or 0 if it has none.
+     */
+    public int getAlignmentStart() {
+        return samRecord.getAlignmentStart();
+    }
+
     @Override
     public Cigar getCigar() {
         return samRecord.getCigar();
@@ -0,0 +1,585 @@
+package edu.caltech.lncrna.bio.alignment;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.caltech.lncrna.bio.datastructures.LongIntHashMap;
+import edu.caltech.lncrna.bio.io.BamWriter;
+import edu.caltech.lncrna.bio.io.SingleReadBamParser;
+import edu.caltech.lncrna.bio.utils.Futures;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+
+/**
+ * This class removes PCR duplicates from a coordinate-sorted, indexed BAM
+ * file using the unique molecular identifiers (UMIs) in its read names, with
+ * the directional method of <code>UMI-tools</code>.
+ * <p>
+ * Fragments are grouped by the unclipped 5' end and strand of their first
+ * read and, for pairs, the start and strand of the mate. Within a group, UMI
+ * <code>a</code> absorbs UMI <code>b</code> if they differ at one base and
+ * <code>count(a) &gt;= 2 count(b) - 1</code>. Starting from the most common
+ * UMI, each UMI collects the UMIs it absorbs, transitively, into one
+ * molecule. Of each molecule, one fragment with its most common UMI is kept:
+ * the one with the highest mapping quality, or the first seen if tied.
+ * <p>
+ * UMIs are encoded two bits per base in a <code>long</code>, behind a
+ * sentinel bit that records their length, so they may be at most 31 bases
+ * long. The Hamming distance between two UMIs is found with a few bitwise
+ * operations. In large groups, the neighbors of a UMI are instead found by
+ * looking up each of its single-base substitutions. Fragments whose UMI is
+ * missing or contains a base other than A, C, G or T are kept.
+ * <p>
+ * Each reference is processed as a separate task on a pool of worker
+ * threads. A task streams the reads of its reference and holds a group only
+ * while it is within one read length of the current read, after which no
+ * more fragments can join it. The tasks record a 64-bit hash of the name of
+ * every duplicate fragment. The file is then copied in a single pass, leaving
+ * out every record with a duplicate's name, so that mates on other
+ * references and unmapped mates go with their fragment.
+ * <p>
+ * Instances are built with a {@link Builder}, and may be shared between
+ * threads.
+ */
+public final class UmiDeduplicator {
+
+    /**
+     * The longest UMI that can be encoded.
+     */
+    public static final int MAX_UMI_LENGTH = 31;
+
+    // Groups with more distinct UMIs than this find neighbors by lookup
+    private static final int PAIRWISE_LIMIT = 32;
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    private final String umiDelimiter;
+    private final int numThreads;
+    private final boolean removeDuplicates;
+
+    private UmiDeduplicator(Builder b) {
+        umiDelimiter = b.umiDelimiter;
+        numThreads = b.numThreads;
+        removeDuplicates = b.removeDuplicates;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Deduplicates the fragments of an indexed BAM file.
+     *
+     * @param input - the path to the BAM file
+     * @param output - the path to write the deduplicated BAM file to
+     * @return the numbers of fragments examined and found to be duplicates
+     * @throws IllegalArgumentException if the BAM file is not indexed
+     */
+    public Metrics deduplicate(Path input, Path output) {
+        Objects.requireNonNull(input, "Attempted to deduplicate a null path.");
+        Objects.requireNonNull(output, "Attempted to write deduplicated " +
+                "reads to a null path.");
+        SAMFileHeader header;
+        try (SamReader reader = BamReaders.open(input)) {
+            if (!reader.hasIndex()) {
+                throw new IllegalArgumentException("Attempted to " +
+                        "deduplicate a BAM file without an index: " + input);
+            }
+            header = reader.getFileHeader();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        List<TaskResult> results = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<TaskResult>> futures = new ArrayList<>();
+            for (SAMSequenceRecord seq :
+                    header.getSequenceDictionary().getSequences()) {
+                String ref = seq.getSequenceName();
+                futures.add(pool.submit(() -> processReference(input, ref)));
+            }
+            for (Future<TaskResult> future : futures) {
+                results.add(Futures.get(future));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        int numDuplicates = 0;
+        for (TaskResult result : results) {
+            numDuplicates += result.numDuplicates;
+        }
+        long[] duplicates = new long[numDuplicates];
+        int n = 0;
+        for (TaskResult result : results) {
+            System.arraycopy(result.duplicates, 0, duplicates, n,
+                    result.numDuplicates);
+            n += result.numDuplicates;
+        }
+        Arrays.sort(duplicates);
+
+        try (SingleReadBamParser parser = new SingleReadBamParser(input);
+                BamWriter writer = new BamWriter(output, header)) {
+            while (parser.hasNext()) {
+                SingleRead read = parser.next();
+                if (Arrays.binarySearch(duplicates,
+                        nameHash(read.getName())) >= 0) {
+                    if (removeDuplicates) {
+                        continue;
+                    }
+                    read.samRecord.setDuplicateReadFlag(true);
+                }
+                writer.writeSamRecord(read);
+            }
+        }
+
+        Metrics rtrn = new Metrics();
+        for (TaskResult result : results) {
+            rtrn.add(result);
+        }
+        return rtrn;
+    }
+
+    /**
+     * Encodes a UMI two bits per base (A=0, C=1, G=2, T=3) behind a sentinel
+     * bit.
+     *
+     * @param s - the string containing the UMI
+     * @param from - the index of the first base of the UMI
+     * @return the encoded UMI, or -1 if it is empty, too long, or contains a
+     * base other than A, C, G or T
+     */
+    private static long encodeUmi(String s, int from) {
+        int length = s.length() - from;
+        if (length < 1 || length > MAX_UMI_LENGTH) {
+            return -1;
+        }
+        long code = 1;
+        for (int i = from; i < s.length(); i++) {
+            int base;
+            switch (s.charAt(i)) {
+            case 'A': case 'a': base = 0; break;
+            case 'C': case 'c': base = 1; break;
+            case 'G': case 'g': base = 2; break;
+            case 'T': case 't': base = 3; break;
+            default: return -1;
+            }
+            code = (code << 2) | base;
+        }
+        return code;
+    }
+
+    /**
+     * Returns whether two encoded UMIs of the same length differ at exactly
+     * one base.
+     */
+    private static boolean areNeighbors(long a, long b) {
+        long x = a ^ b;
+        // A differing base sets one or both bits of its pair; fold each pair
+        // onto its low bit and count. Different lengths differ in the
+        // sentinel, which is caught first.
+        return Long.numberOfLeadingZeros(a) == Long.numberOfLeadingZeros(b)
+                && Long.bitCount((x | (x >>> 1)) & LOW_BITS) == 1;
+    }
+
+    private static long nameHash(String name) {
+        return LongIntHashMap.mix(LongIntHashMap.hash(name, 0));
+    }
+
+    /**
+     * Finds the duplicate fragments whose first reads are aligned to one
+     * reference of a BAM file.
+     */
+    private TaskResult processReference(Path bam, String ref)
+            throws IOException {
+        ReferenceWindow window = new ReferenceWindow();
+        try (SamReader reader = BamReaders.open(bam);
+             SAMRecordIterator records = reader.query(ref, 0, 0, false)) {
+            while (records.hasNext()) {
+                window.add(records.next());
+            }
+        }
+        window.closeGroups(Integer.MAX_VALUE);
+        return window.result;
+    }
+
+    /**
+     * The fragments at one position, with the UMI, name hash and mapping
+     * quality of each.
+     */
+    private static final class Group {
+        private long key;
+        private int start;
+        private int size = 0;
+        private long[] umis = new long[4];
+        private long[] names = new long[4];
+        private int[] mappingQualities = new int[4];
+
+        private void add(long umi, long name, int mappingQuality) {
+            if (size == umis.length) {
+                umis = Arrays.copyOf(umis, 2 * size);
+                names = Arrays.copyOf(names, 2 * size);
+                mappingQualities = Arrays.copyOf(mappingQualities, 2 * size);
+            }
+            umis[size] = umi;
+            names[size] = name;
+            mappingQualities[size++] = mappingQuality;
+        }
+    }
+
+    /**
+     * The duplicates found on one reference, and its share of the metrics.
+     */
+    private static final class TaskResult {
+        private long[] duplicates = new long[16];
+        private int numDuplicates = 0;
+        private long fragments = 0;
+        private long unencodable = 0;
+        private long positions = 0;
+        private long umis = 0;
+
+        private void addDuplicate(long name) {
+            if (numDuplicates == duplicates.length) {
+                duplicates = Arrays.copyOf(duplicates, 2 * numDuplicates);
+            }
+            duplicates[numDuplicates++] = name;
+        }
+    }
+
+    /**
+     * The groups open on one reference. Groups are opened in order of the
+     * start of their first fragment, which is also the order they close in.
+     */
+    private final class ReferenceWindow {
+        private final TaskResult result = new TaskResult();
+        private final LongIntHashMap open = new LongIntHashMap();
+        private final ArrayDeque<Group> queue = new ArrayDeque<>();
+        private final ArrayDeque<Group> free = new ArrayDeque<>();
+        // Open groups by slot; slots are reused as groups close
+        private Group[] groups = new Group[64];
+        private int[] freeSlots = new int[64];
+        private int numFreeSlots = 0;
+        private int numSlots = 0;
+        private int maxLength = 0;
+
+        private void add(SAMRecord record) {
+            if (record.getReadUnmappedFlag() ||
+                    record.isSecondaryOrSupplementary()) {
+                return;
+            }
+            boolean paired = record.getReadPairedFlag() &&
+                    !record.getMateUnmappedFlag();
+            if (paired && !record.getFirstOfPairFlag()) {
+                return;
+            }
+            maxLength = Math.max(maxLength, record.getUnclippedEnd() -
+                    record.getUnclippedStart() + 1);
+            closeGroups(record.getAlignmentStart());
+            result.fragments++;
+
+            String name = record.getReadName();
+            int from = name.lastIndexOf(umiDelimiter);
+            long umi = from < 0
+                    ? -1
+                    : encodeUmi(name, from + umiDelimiter.length());
+            if (umi < 0) {
+                result.unencodable++;
+                return;
+            }
+
+            boolean negative = record.getReadNegativeStrandFlag();
+            long key = LongIntHashMap.mix(((long) (negative
+                    ? record.getUnclippedEnd()
+                    : record.getUnclippedStart()) << 1) | (negative ? 1 : 0));
+            if (paired) {
+                key = LongIntHashMap.mix(key ^ record.getMateReferenceIndex());
+                key = LongIntHashMap.mix(key ^
+                        (((long) record.getMateAlignmentStart() << 1) |
+                        (record.getMateNegativeStrandFlag() ? 1 : 0)));
+            }
+
+            int slot = open.get(key) - 1;
+            Group group = slot < 0
+                    ? openGroup(key, record.getAlignmentStart())
+                    : groups[slot];
+            group.add(umi, nameHash(name), record.getMappingQuality());
+        }
+
+        private Group openGroup(long key, int start) {
+            Group group = free.isEmpty() ? new Group() : free.pop();
+            group.key = key;
+            group.start = start;
+            group.size = 0;
+            int slot;
+            if (numFreeSlots > 0) {
+                slot = freeSlots[--numFreeSlots];
+            } else {
+                if (numSlots == groups.length) {
+                    groups = Arrays.copyOf(groups, 2 * numSlots);
+                    freeSlots = Arrays.copyOf(freeSlots, 2 * numSlots);
+                }
+                slot = numSlots++;
+            }
+            groups[slot] = group;
+            open.put(key, slot + 1);
+            queue.addLast(group);
+            return group;
+        }
+
+        /**
+         * Closes the groups that no fragment starting at a position, or
+         * later, can join.
+         */
+        private void closeGroups(int start) {
+            while (!queue.isEmpty() &&
+                    (long) queue.peekFirst().start + maxLength <= start) {
+                Group group = queue.pollFirst();
+                int slot = open.remove(group.key) - 1;
+                groups[slot] = null;
+                freeSlots[numFreeSlots++] = slot;
+                deduplicate(group);
+                free.push(group);
+            }
+        }
+
+        private void deduplicate(Group g) {
+            result.positions++;
+            int n = g.size;
+            if (n == 1) {
+                result.umis++;
+                return;
+            }
+
+            // Distinct UMIs, their counts, and the UMI of each fragment
+            long[] distinct = Arrays.copyOf(g.umis, n);
+            Arrays.sort(distinct);
+            int d = 0;
+            for (int i = 0; i < n; i++) {
+                if (d == 0 || distinct[i] != distinct[d - 1]) {
+                    distinct[d++] = distinct[i];
+                }
+            }
+            result.umis += d;
+            int[] counts = new int[d];
+            int[] umiOf = new int[n];
+            for (int i = 0; i < n; i++) {
+                umiOf[i] = Arrays.binarySearch(distinct, 0, d, g.umis[i]);
+                counts[umiOf[i]]++;
+            }
+
+            int[] molecule = cluster(distinct, counts, d);
+
+            // Keep the best fragment with the UMI that founded each molecule
+            int[] kept = new int[d];
+            Arrays.fill(kept, -1);
+            for (int i = 0; i < n; i++) {
+                int u = umiOf[i];
+                if (molecule[u] == u && (kept[u] < 0 ||
+                        g.mappingQualities[i] >
+                        g.mappingQualities[kept[u]])) {
+                    kept[u] = i;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (kept[molecule[umiOf[i]]] != i) {
+                    result.addDuplicate(g.names[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Clusters distinct UMIs with the directional method.
+     *
+     * @param umis - the distinct encoded UMIs, sorted
+     * @param counts - the number of fragments with each UMI
+     * @param d - the number of distinct UMIs
+     * @return the index of the UMI that founded the molecule of each UMI
+     */
+    private static int[] cluster(long[] umis, int[] counts, int d) {
+        // Most common first; ties in order of encoding
+        long[] order = new long[d];
+        for (int u = 0; u < d; u++) {
+            order[u] = ((long) (Integer.MAX_VALUE - counts[u]) << 32) | u;
+        }
+        Arrays.sort(order);
+
+        int[] molecule = new int[d];
+        Arrays.fill(molecule, -1);
+        int[] stack = new int[d];
+        for (long o : order) {
+            int root = (int) o;
+            if (molecule[root] >= 0) {
+                continue;
+            }
+            molecule[root] = root;
+            int top = 0;
+            stack[top++] = root;
+            while (top > 0) {
+                int x = stack[--top];
+                int threshold = (counts[x] + 1) / 2;
+                if (d <= PAIRWISE_LIMIT) {
+                    for (int y = 0; y < d; y++) {
+                        if (molecule[y] < 0 && counts[y] <= threshold &&
+                                areNeighbors(umis[x], umis[y])) {
+                            molecule[y] = root;
+                            stack[top++] = y;
+                        }
+                    }
+                } else {
+                    long code = umis[x];
+                    int length = (63 - Long.numberOfLeadingZeros(code)) / 2;
+                    for (int i = 0; i < length; i++) {
+                        long base = (code >>> (2 * i)) & 3;
+                        for (long b = 0; b < 4; b++) {
+                            if (b == base) {
+                                continue;
+                            }
+                            int y = Arrays.binarySearch(umis, 0, d,
+                                    code ^ ((base ^ b) << (2 * i)));
+                            if (y >= 0 && molecule[y] < 0 &&
+                                    counts[y] <= threshold) {
+                                molecule[y] = root;
+                                stack[top++] = y;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return molecule;
+    }
+
+    /**
+     * The numbers of fragments examined and found to be duplicates by a
+     * {@link UmiDeduplicator}.
+     */
+    public static final class Metrics {
+
+        private long fragments = 0;
+        private long duplicates = 0;
+        private long unencodable = 0;
+        private long positions = 0;
+        private long umis = 0;
+
+        private Metrics() { }
+
+        private void add(TaskResult result) {
+            fragments += result.fragments;
+            duplicates += result.numDuplicates;
+            unencodable += result.unencodable;
+            positions += result.positions;
+            umis += result.umis;
+        }
+
+        /**
+         * @return the number of fragments examined, counting a pair once
+         */
+        public long getExaminedFragments() {
+            return fragments;
+        }
+
+        /**
+         * @return the number of fragments found to be duplicates
+         */
+        public long getDuplicateFragments() {
+            return duplicates;
+        }
+
+        /**
+         * @return the number of fragments kept because their UMI could not
+         * be encoded
+         */
+        public long getUnencodableFragments() {
+            return unencodable;
+        }
+
+        /**
+         * @return the number of distinct fragment positions
+         */
+        public long getNumberOfPositions() {
+            return positions;
+        }
+
+        /**
+         * @return the number of distinct UMIs, summed over positions
+         */
+        public long getNumberOfUmis() {
+            return umis;
+        }
+
+        @Override
+        public String toString() {
+            return "[examined=" + fragments + ", duplicates=" + duplicates +
+                    ", unencodable=" + unencodable + ", positions=" +
+                    positions + ", umis=" + umis + "]";
+        }
+    }
+
+    /**
+     * A builder class for {@link UmiDeduplicator} objects.
+     */
+    public static final class Builder {
+
+        private String umiDelimiter = "_";
+        private int numThreads = 1;
+        private boolean removeDuplicates = true;
+
+        private Builder() { }
+
+        /**
+         * @param delimiter - the delimiter that precedes the UMI at the end
+         * of a read name; "_" by default, as in "read1_ACGTAC"
+         * @return this builder
+         */
+        public Builder umiDelimiter(String delimiter) {
+            Objects.requireNonNull(delimiter, "Attempted to set a null UMI " +
+                    "delimiter.");
+            if (delimiter.isEmpty()) {
+                throw new IllegalArgumentException("UMI delimiter cannot be " +
+                        "empty.");
+            }
+            this.umiDelimiter = delimiter;
+            return this;
+        }
+
+        /**
+         * @param numThreads - the number of worker threads
+         * @return this builder
+         * @throws IllegalArgumentException if the number is not positive
+         */
+        public Builder numThreads(int numThreads) {
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("Number of threads must " +
+                        "be positive: " + numThreads);
+            }
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * @param removeDuplicates - whether duplicates should be left out of
+         * the output rather than flagged; <code>true</code> by default
+         * @return this builder
+         */
+        public Builder removeDuplicates(boolean removeDuplicates) {
+            this.removeDuplicates = removeDuplicates;
+            return this;
+        }
+
+        public UmiDeduplicator build() {
+            return new UmiDeduplicator(this);
+        }
+    }
+}
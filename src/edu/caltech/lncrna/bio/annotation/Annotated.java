@@ -31,6 +31,20 @@ Iterable<Annotated> {
      */
     public String getReferenceName();
     
+    /**
+     * Returns the identifier of the reference that this annotation belongs
+     * to, as assigned by {@link ReferenceNames}. Two annotations are on the
+     * same reference if and only if their identifiers are equal.
+     * <p>
+     * The default implementation looks up the reference name.
+     * {@link Annotation} stores the identifier instead.
+     * 
+     * @return the reference identifier of this annotation
+     */
+    public default int getReferenceId() {
+        return ReferenceNames.getId(getReferenceName());
+    }
+    
     /**
      * The start coordinate of an annotation corresponds to the end of this
      * annotation closest to the start of the reference. To get the 5'-end or
@@ -32,11 +32,13 @@ import htsjdk.samtools.TextCigarCodec;
 public class Annotation implements Annotated {
     
     protected final String ref;
+    protected final int refId;
     protected final Strand strand;
     protected final int[] blockBoundaries;
     
     protected Annotation(AnnotationBuilder b) {
-        this.ref = b.ref;
+        this.refId = ReferenceNames.getId(b.ref);
+        this.ref = ReferenceNames.getName(refId);
         this.strand = b.strand;
         this.blockBoundaries = b.blockBoundaries;
     }
@@ -53,7 +55,8 @@ public class Annotation implements Annotated {
      */
     public Annotation(Annotated a) {
         Objects.requireNonNull(a, "Null annotation passed to constructor");
-        this.ref = a.getReferenceName();
+        this.refId = a.getReferenceId();
+        this.ref = ReferenceNames.getName(refId);
         this.strand = a.getStrand();
         this.blockBoundaries = a.getBlockBoundaries();
     }
@@ -70,7 +73,7 @@ public class Annotation implements Annotated {
      * @throws NullPointerException if passed a null argument.
      */
     public Annotation(Annotated a, Strand s) {
-        this(Objects.requireNonNull(a).getReferenceName(),
+        this(Objects.requireNonNull(a).getReferenceId(),
              Objects.requireNonNull(a).getBlockBoundaries(),
              s);
     }
@@ -108,8 +111,19 @@ public class Annotation implements Annotated {
     }
     
     protected Annotation(String ref, int[] blockBoundaries, Strand strand) {
-        this.ref = Objects.requireNonNull(ref,
-                "Null reference name passed to Annotation constructor.");
+        this(ReferenceNames.getId(Objects.requireNonNull(ref,
+                "Null reference name passed to Annotation constructor.")),
+                blockBoundaries, strand);
+    }
+    
+    /*
+     * Constructs an annotation on the reference with the given identifier
+     * from ReferenceNames. Annotations derived from this one use this
+     * constructor to skip the name lookup.
+     */
+    private Annotation(int refId, int[] blockBoundaries, Strand strand) {
+        this.refId = refId;
+        this.ref = ReferenceNames.getName(refId);
         
         this.blockBoundaries = Objects.requireNonNull(blockBoundaries,
                 "Null boundaries array passed to Annotation constructor.");
@@ -127,6 +141,11 @@ public class Annotation implements Annotated {
         return ref;
     }
     
+    @Override
+    public int getReferenceId() {
+        return refId;
+    }
+    
     @Override
     public Strand getStrand() {
         return strand;
@@ -209,7 +228,7 @@ public class Annotation implements Annotated {
      */
     @Override
     public boolean isUpstreamOf(Annotated other) {
-        if (!getReferenceName().equals(other.getReferenceName())) {
+        if (refId != other.getReferenceId()) {
             return false;
         }
         
@@ -233,7 +252,7 @@ public class Annotation implements Annotated {
      */
     @Override
     public boolean isDownstreamOf(Annotated other) {
-        if (!getReferenceName().equals(other.getReferenceName())) {
+        if (refId != other.getReferenceId()) {
             return false;
         }
         
@@ -252,7 +271,7 @@ public class Annotation implements Annotated {
     
     @Override
     public Annotated getBody() {
-        return new Annotation(ref, getStart(), getEnd() , strand);
+        return new Annotation(refId, new int[] {getStart(), getEnd()}, strand);
     }
     
     @Override
@@ -296,7 +315,7 @@ public class Annotation implements Annotated {
 
     @Override
     public boolean isAdjacentTo(Annotated other) {
-        return ref.equals(other.getReferenceName()) &&
+        return refId == other.getReferenceId() &&
                (getStart() == other.getEnd() || getEnd() == other.getStart());
     }
     
@@ -344,7 +363,7 @@ public class Annotation implements Annotated {
         
         Annotation other = (Annotation) o;
         
-        return ref.equals(other.ref) &&
+        return refId == other.refId &&
                strand.equals(other.strand) &&
                Arrays.equals(blockBoundaries, other.getBlockBoundaries());
     }
@@ -384,9 +403,9 @@ public class Annotation implements Annotated {
         Strand newStrand = strand.intersect(other.getStrand());
         
         if (getNumberOfBlocks() == 1 && other.getNumberOfBlocks() == 1) {
-            return Optional.of(new Annotation(ref,
+            return Optional.of(new Annotation(refId, new int[] {
                     Math.max(getStart(), other.getStart()),
-                    Math.min(getEnd(), other.getEnd()),
+                    Math.min(getEnd(), other.getEnd())},
                     newStrand));
         }
         
@@ -410,12 +429,12 @@ public class Annotation implements Annotated {
         }
         
         if (getNumberOfBlocks() == 1) {
-            return ref.equals(other.getReferenceName()) &&
+            return refId == other.getReferenceId() &&
                    getStart() <= other.getStart() &&
                    getEnd() >= other.getEnd();
         }
         
-        return ref.equals(other.getReferenceName()) &&
+        return refId == other.getReferenceId() &&
                !other.minus(this).isPresent();
     }
     
@@ -424,7 +443,7 @@ public class Annotation implements Annotated {
             return false;
         }
         
-        if (!ref.equals(other.getReferenceName())) {
+        if (refId != other.getReferenceId()) {
             return false;
         }
         
@@ -444,7 +463,7 @@ public class Annotation implements Annotated {
         if (newBlockBoundaries.length == 0) {
             return Optional.empty();
         } else {
-            return Optional.of(new Annotation(other.getReferenceName(),
+            return Optional.of(new Annotation(other.getReferenceId(),
                     newBlockBoundaries, strand));
         }
     }
@@ -751,8 +770,8 @@ public class Annotation implements Annotated {
             int start = annot.getBlockBoundaries()[blockNum * 2];
             int end = annot.getBlockBoundaries()[blockNum * 2 + 1];
             blockNum++;
-            return new Annotation(annot.getReferenceName(), start, end,
-                                  annot.getStrand());
+            return new Annotation(annot.getReferenceId(),
+                                  new int[] {start, end}, annot.getStrand());
         }
         
     }
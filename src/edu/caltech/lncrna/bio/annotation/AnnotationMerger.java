@@ -0,0 +1,320 @@
+package edu.caltech.lncrna.bio.annotation;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+/**
+ * This class represents an <code>Iterator</code> that collapses overlapping
+ * or nearby annotations from a sorted stream into merged annotations, in the
+ * manner of <code>bedtools merge</code>.
+ * <p>
+ * The underlying iterator must be sorted by reference and start position. An
+ * annotation is merged into the current run if its start is no more than the
+ * maximum distance past the end of the run, so with the default distance of
+ * zero, overlapping and book-ended annotations are merged. Annotations are
+ * merged by their spans; the blocks of spliced annotations are not kept.
+ * <p>
+ * In strand-specific mode, annotations on different strands are never merged
+ * and each merged annotation keeps the strand of its members. Otherwise,
+ * merged annotations are unstranded. Merged annotations on the same strand
+ * are returned in order, but merged annotations on different strands are
+ * returned in the order they are closed.
+ * <p>
+ * Each merged annotation records how many annotations were merged into it,
+ * and can optionally carry an aggregate of its members computed by a
+ * {@link Collector}, for example the sum of their scores. Only the runs that
+ * are still open are held in memory, so a merger uses constant memory if the
+ * collector does.
+ * <p>
+ * Instances are built with a {@link Builder}.
+ *
+ * @param <T> - the type of annotation to merge
+ * @param <R> - the type of the aggregate of each merged annotation
+ */
+public final class AnnotationMerger<T extends Annotated, R>
+implements Iterator<AnnotationMerger.Merged<R>> {
+
+    private final Iterator<? extends T> underlyingIterator;
+    private final Supplier<Object> supplier;
+    private final BiConsumer<Object, ? super T> accumulator;
+    private final Function<Object, R> finisher;
+    private final boolean strandSpecific;
+    private final int maxDistance;
+
+    // Open runs, indexed by strand ordinal. In strand-agnostic mode, only
+    // the slot for Strand.BOTH is used.
+    private final Run[] open = new Run[Strand.values().length];
+    private final Deque<Merged<R>> closed = new ArrayDeque<>();
+    private int currentRefId = -1;
+    private int lastStart;
+
+    @SuppressWarnings("unchecked")
+    private AnnotationMerger(Builder b, Iterator<? extends T> iter,
+            Collector<? super T, ?, R> collector) {
+        this.underlyingIterator = iter;
+        Collector<? super T, Object, R> c =
+                (Collector<? super T, Object, R>) collector;
+        this.supplier = c == null ? null : c.supplier();
+        this.accumulator = c == null ? null : c.accumulator();
+        this.finisher = c == null ? null : c.finisher();
+        this.strandSpecific = b.strandSpecific;
+        this.maxDistance = b.maxDistance;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (closed.isEmpty() && underlyingIterator.hasNext()) {
+            add(underlyingIterator.next());
+        }
+        if (closed.isEmpty()) {
+            closeAll();
+        }
+        return !closed.isEmpty();
+    }
+
+    @Override
+    public Merged<R> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("AnnotationMerger.next() " +
+                    "called with no next element.");
+        }
+        return closed.poll();
+    }
+
+    private void add(T annotation) {
+        int refId = annotation.getReferenceId();
+        int start = annotation.getStart();
+        if (refId != currentRefId) {
+            closeAll();
+            currentRefId = refId;
+        } else if (start < lastStart) {
+            throw new IllegalStateException("Annotations are not sorted by " +
+                    "start position: " + annotation);
+        }
+        lastStart = start;
+
+        Strand strand = strandSpecific ? annotation.getStrand() : Strand.BOTH;
+        Run run = open[strand.ordinal()];
+        if (run != null && start - run.end <= maxDistance) {
+            run.end = Math.max(run.end, annotation.getEnd());
+        } else {
+            if (run != null) {
+                close(run);
+            }
+            run = new Run(annotation.getReferenceName(), start,
+                    annotation.getEnd(), strand,
+                    supplier == null ? null : supplier.get());
+            open[strand.ordinal()] = run;
+        }
+        run.count++;
+        if (accumulator != null) {
+            accumulator.accept(run.container, annotation);
+        }
+    }
+
+    /**
+     * Closes every open run, in order of start position.
+     */
+    private void closeAll() {
+        while (true) {
+            Run first = null;
+            for (Run run : open) {
+                if (run != null && (first == null || run.start < first.start)) {
+                    first = run;
+                }
+            }
+            if (first == null) {
+                return;
+            }
+            close(first);
+        }
+    }
+
+    private void close(Run run) {
+        open[run.strand.ordinal()] = null;
+        R aggregate = finisher == null ? null : finisher.apply(run.container);
+        closed.add(new Merged<>(run.ref, run.start, run.end, run.strand,
+                run.count, aggregate));
+    }
+
+    /**
+     * A merged annotation that is still being extended.
+     */
+    private static final class Run {
+        private final String ref;
+        private final int start;
+        private int end;
+        private final Strand strand;
+        private int count;
+        private final Object container;
+
+        private Run(String ref, int start, int end, Strand strand,
+                Object container) {
+            this.ref = ref;
+            this.start = start;
+            this.end = end;
+            this.strand = strand;
+            this.container = container;
+        }
+    }
+
+    /**
+     * This class represents an annotation made by merging one or more
+     * annotations.
+     * <p>
+     * The score of a merged annotation is the number of annotations merged
+     * into it.
+     *
+     * @param <R> - the type of the aggregate of the merged annotations
+     */
+    public static final class Merged<R> extends Annotation implements Scored {
+
+        private final int count;
+        private final R aggregate;
+
+        private Merged(String ref, int start, int end, Strand strand,
+                int count, R aggregate) {
+            super(ref, start, end, strand);
+            this.count = count;
+            this.aggregate = aggregate;
+        }
+
+        /**
+         * @return the number of annotations merged into this
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the aggregate of the annotations merged into this, or
+         * <code>null</code> if the merger was built without a collector.
+         */
+        public R getAggregate() {
+            return aggregate;
+        }
+
+        @Override
+        public double getScore() {
+            return count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Merged<?>)) {
+                return false;
+            }
+
+            Merged<?> other = (Merged<?>) o;
+
+            return super.equals(other) &&
+                   count == other.count &&
+                   Objects.equals(aggregate, other.aggregate);
+        }
+
+        @Override
+        public int hashCode() {
+            int hashCode = super.hashCode();
+            hashCode = 37 * hashCode + count;
+            hashCode = 37 * hashCode + Objects.hashCode(aggregate);
+            return hashCode;
+        }
+
+        @Override
+        public String toFormattedBedString(int numFields) {
+            return bedStringBuilder()
+                    .addScore(count)
+                    .build(numFields);
+        }
+    }
+
+    /**
+     * A builder class for {@link AnnotationMerger} objects.
+     * <p>
+     * By default, mergers are strand-agnostic and merge only overlapping and
+     * book-ended annotations.
+     */
+    public static final class Builder {
+
+        private boolean strandSpecific = false;
+        private int maxDistance = 0;
+
+        private Builder() { }
+
+        /**
+         * @param strandSpecific - whether only annotations on the same strand
+         * should be merged
+         * @return this builder
+         */
+        public Builder strandSpecific(boolean strandSpecific) {
+            this.strandSpecific = strandSpecific;
+            return this;
+        }
+
+        /**
+         * Sets the largest gap between annotations that will be merged. The
+         * default is 0, which merges overlapping and book-ended annotations.
+         * A negative distance requires annotations to overlap by at least
+         * that many bases.
+         *
+         * @param maxDistance - the maximum distance
+         * @return this builder
+         */
+        public Builder maxDistance(int maxDistance) {
+            this.maxDistance = maxDistance;
+            return this;
+        }
+
+        /**
+         * Returns a merger over a sorted iterator that counts the annotations
+         * in each merged annotation, but does not aggregate them.
+         *
+         * @param iter - the annotations to merge
+         * @return a new <code>AnnotationMerger</code>
+         * @throws NullPointerException if the iterator is <code>null</code>
+         */
+        public <T extends Annotated> AnnotationMerger<T, Void> build(
+                Iterator<? extends T> iter) {
+            Objects.requireNonNull(iter, "Attempted to merge a null " +
+                    "iterator.");
+            return new AnnotationMerger<>(this, iter, null);
+        }
+
+        /**
+         * Returns a merger over a sorted iterator that aggregates the
+         * annotations in each merged annotation with a collector.
+         *
+         * @param iter - the annotations to merge
+         * @param collector - the collector to aggregate merged annotations
+         * with, e.g.,
+         * <code>Collectors.summingDouble(BedFileRecord::getScore)</code>
+         * @return a new <code>AnnotationMerger</code>
+         * @throws NullPointerException if the iterator or collector is
+         * <code>null</code>
+         */
+        public <T extends Annotated, R> AnnotationMerger<T, R> build(
+                Iterator<? extends T> iter,
+                Collector<? super T, ?, R> collector) {
+            Objects.requireNonNull(iter, "Attempted to merge a null " +
+                    "iterator.");
+            Objects.requireNonNull(collector, "Attempted to merge with a " +
+                    "null collector.");
+            return new AnnotationMerger<>(this, iter, collector);
+        }
+    }
+}
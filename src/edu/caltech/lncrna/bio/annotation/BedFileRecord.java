@@ -3,6 +3,7 @@ package edu.caltech.lncrna.bio.annotation;
 import java.awt.Color;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Objects;
 import java.util.stream.IntStream;
 
 /**
@@ -60,6 +61,23 @@ public final class BedFileRecord extends Gene {
      * @param s - the <code>String</code> to parse
      */
     public static BedFileRecord fromFormattedString(String s) {
+        return parse(s, null);
+    }
+    
+    /**
+     * Parses a BED-formatted <code>String</code> and returns the corresponding
+     * annotation as a <code>BEDFileRecord</code>, with its reference renamed
+     * to the dictionary's name for it, e.g., "1" to "chr1"
+     * @param s - the <code>String</code> to parse
+     * @param dict - the dictionary that resolves reference names
+     */
+    public static BedFileRecord fromFormattedString(String s,
+            ReferenceDictionary dict) {
+        return parse(s, Objects.requireNonNull(dict, "Attempted to parse " +
+                "a BED record with a null reference dictionary."));
+    }
+    
+    private static BedFileRecord parse(String s, ReferenceDictionary dict) {
         BedBuilder bb = new BedBuilder();
         String[] fields = s.trim().split("\\s+");
         int numFields = fields.length;
@@ -71,7 +89,9 @@ public final class BedFileRecord extends Gene {
         }
 
         // Fields 0, 1, and 2 are guaranteed to be present; otherwise this isn't a valid BED file.
-        String chrom = fields[0];
+        String chrom = dict == null
+                ? fields[0]
+                : dict.getCanonicalName(fields[0]);
         int chromStart = Integer.parseInt(fields[1]) + 1;
         int chromEnd = Integer.parseInt(fields[2]) + 1;
 
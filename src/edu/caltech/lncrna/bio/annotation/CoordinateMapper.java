@@ -0,0 +1,245 @@
+package edu.caltech.lncrna.bio.annotation;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * This class converts positions between genome coordinates and the
+ * coordinates of a spliced transcript.
+ * <p>
+ * Transcript coordinates are zero-based positions in the concatenated blocks
+ * of the transcript, counted from its 5'-end, so position 0 is the first base
+ * of the first block on the positive strand and the last base of the last
+ * block on the negative strand. An unstranded transcript is read as if it
+ * were on the positive strand.
+ * <p>
+ * A mapper precomputes the cumulative lengths of the blocks once, and each
+ * conversion is a binary search over them. No objects are allocated per
+ * position, so a mapper should be built once per transcript and reused. The
+ * bulk methods also remember the block of the last position, so sorted
+ * positions are converted without searching at all.
+ * <p>
+ * Instances of this class are immutable and may be shared between threads.
+ */
+public final class CoordinateMapper {
+
+    private final String name;
+    private final int refId;
+    private final boolean reverse;
+    private final int[] starts;
+    private final int[] ends;
+    // offsets[i] is the number of transcript bases before block i, counting
+    // from the start of the reference
+    private final int[] offsets;
+
+    /**
+     * Class constructor.
+     *
+     * @param transcript - the transcript
+     * @param name - the name of the transcript, used as the reference name of
+     * annotations converted to transcript coordinates
+     * @throws NullPointerException if the transcript or name is
+     * <code>null</code>
+     */
+    public CoordinateMapper(Annotated transcript, String name) {
+        Objects.requireNonNull(transcript, "Attempted to map coordinates " +
+                "onto a null transcript.");
+        this.name = Objects.requireNonNull(name, "Attempted to map " +
+                "coordinates onto a transcript with a null name.");
+        this.refId = transcript.getReferenceId();
+        this.reverse = transcript.getStrand() == Strand.NEGATIVE;
+
+        int[] boundaries = transcript.getBlockBoundaries();
+        int numBlocks = boundaries.length / 2;
+        starts = new int[numBlocks];
+        ends = new int[numBlocks];
+        offsets = new int[numBlocks + 1];
+        for (int i = 0; i < numBlocks; i++) {
+            starts[i] = boundaries[2 * i];
+            ends[i] = boundaries[2 * i + 1];
+            offsets[i + 1] = offsets[i] + ends[i] - starts[i];
+        }
+    }
+
+    /**
+     * @return the name of the transcript
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the length of the transcript, which is the total length of its
+     * blocks
+     */
+    public int getTranscriptLength() {
+        return offsets[starts.length];
+    }
+
+    /**
+     * Converts a genome position to a transcript position.
+     *
+     * @param genomePos - the position on the reference of the transcript
+     * @return the transcript position, or -1 if the position is not in a
+     * block of the transcript
+     */
+    public int toTranscript(int genomePos) {
+        return toTranscript(genomePos, blockOf(genomePos));
+    }
+
+    /**
+     * Converts a transcript position to a genome position.
+     *
+     * @param transcriptPos - the position in the transcript
+     * @return the genome position, or -1 if the position is not in the
+     * transcript
+     */
+    public int toGenome(int transcriptPos) {
+        if (transcriptPos < 0 || transcriptPos >= getTranscriptLength()) {
+            return -1;
+        }
+        int forward = forward(transcriptPos);
+        return toGenome(forward, blockOfOffset(forward));
+    }
+
+    /**
+     * Converts many genome positions to transcript positions.
+     *
+     * @param genomePositions - the positions on the reference of the
+     * transcript
+     * @return the transcript positions, with -1 for each position not in a
+     * block of the transcript
+     * @see #toTranscript(int)
+     */
+    public int[] toTranscript(int[] genomePositions) {
+        int[] rtrn = new int[genomePositions.length];
+        int block = 0;
+        for (int i = 0; i < genomePositions.length; i++) {
+            int pos = genomePositions[i];
+            if (pos < starts[block] || pos >= ends[block]) {
+                block = blockOf(pos);
+            }
+            rtrn[i] = toTranscript(pos, block);
+            block = Math.max(block, 0);
+        }
+        return rtrn;
+    }
+
+    /**
+     * Converts many transcript positions to genome positions.
+     *
+     * @param transcriptPositions - the positions in the transcript
+     * @return the genome positions, with -1 for each position not in the
+     * transcript
+     * @see #toGenome(int)
+     */
+    public int[] toGenome(int[] transcriptPositions) {
+        int[] rtrn = new int[transcriptPositions.length];
+        int length = getTranscriptLength();
+        int block = 0;
+        for (int i = 0; i < transcriptPositions.length; i++) {
+            int pos = transcriptPositions[i];
+            if (pos < 0 || pos >= length) {
+                rtrn[i] = -1;
+                continue;
+            }
+            int forward = forward(pos);
+            if (forward < offsets[block] || forward >= offsets[block + 1]) {
+                block = blockOfOffset(forward);
+            }
+            rtrn[i] = toGenome(forward, block);
+        }
+        return rtrn;
+    }
+
+    /**
+     * Converts an annotation, such as an aligned read, to transcript
+     * coordinates.
+     * <p>
+     * Every block of the annotation must lie within a single block of the
+     * transcript. The converted annotation is on the reference named after
+     * the transcript, and its strand is relative to the transcript, so a
+     * read on the same strand as a negative-strand transcript is on the
+     * positive strand of the transcript. Blocks of the annotation that are
+     * adjacent in the transcript, such as those of a read spliced at the
+     * introns of the transcript, are merged.
+     *
+     * @param a - the annotation to convert
+     * @return the converted annotation, or an empty <code>Optional</code> if
+     * the annotation is on another reference or does not lie within the
+     * blocks of the transcript
+     */
+    public Optional<Annotation> toTranscript(Annotated a) {
+        if (a.getReferenceId() != refId) {
+            return Optional.empty();
+        }
+        int[] boundaries = a.getBlockBoundaries();
+        int numBlocks = boundaries.length / 2;
+        int[] converted = new int[boundaries.length];
+        for (int i = 0; i < numBlocks; i++) {
+            int start = boundaries[2 * i];
+            int end = boundaries[2 * i + 1];
+            int block = blockOf(start);
+            if (block < 0 || end > ends[block]) {
+                return Optional.empty();
+            }
+            int first = toTranscript(start, block);
+            int last = toTranscript(end - 1, block);
+            // On the negative strand, the first genome block is the last
+            // transcript block, and its ends swap.
+            int j = reverse ? numBlocks - 1 - i : i;
+            converted[2 * j] = Math.min(first, last);
+            converted[2 * j + 1] = Math.max(first, last) + 1;
+        }
+
+        Strand strand = reverse ? a.getStrand().reverse() : a.getStrand();
+        Annotation.AnnotationBuilder builder = Annotation.builder();
+        for (int j = 0; j < numBlocks; j++) {
+            builder.addAnnotation(new Annotation(name, converted[2 * j],
+                    converted[2 * j + 1], strand));
+        }
+        return Optional.of(builder.build());
+    }
+
+    /**
+     * Returns the index of the block containing a genome position, or -1 if
+     * no block contains it.
+     */
+    private int blockOf(int genomePos) {
+        int i = Arrays.binarySearch(starts, genomePos);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return i >= 0 && genomePos < ends[i] ? i : -1;
+    }
+
+    /**
+     * Returns the index of the block containing an offset counted from the
+     * start of the reference. The offset must be in the transcript.
+     */
+    private int blockOfOffset(int forward) {
+        int i = Arrays.binarySearch(offsets, forward);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private int toTranscript(int genomePos, int block) {
+        if (block < 0) {
+            return -1;
+        }
+        return forward(offsets[block] + genomePos - starts[block]);
+    }
+
+    private int toGenome(int forward, int block) {
+        return starts[block] + forward - offsets[block];
+    }
+
+    /**
+     * Converts between offsets counted from the start of the reference and
+     * transcript positions counted from the 5'-end. The conversion is its own
+     * inverse.
+     */
+    private int forward(int pos) {
+        return reverse ? getTranscriptLength() - 1 - pos : pos;
+    }
+}
@@ -82,6 +82,20 @@ public class Gene extends Annotation {
         return intersect(cds);
     }
 
+    /**
+     * Returns a mapper between genome coordinates and the coordinates of this
+     * gene's spliced transcript. Converted annotations are on a reference
+     * named after this gene.
+     * <p>
+     * Building a mapper does a little work up front, so a mapper should be
+     * kept and reused when converting many positions.
+     * 
+     * @return a coordinate mapper for this gene
+     */
+    public CoordinateMapper getCoordinateMapper() {
+        return new CoordinateMapper(this, name);
+    }
+
     @Override
     public String toFormattedBedString(int numFields) {
         return bedStringBuilder()
@@ -0,0 +1,166 @@
+package edu.caltech.lncrna.bio.annotation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * This class represents the references of a genome assembly, numbered from
+ * zero, with their lengths.
+ * <p>
+ * A dictionary resolves b37 and UCSC names to each other using
+ * {@link ChromosomeName}: a dictionary containing "chr1" maps "1" to the same
+ * reference, and vice versa, unless both names are present. Parsers given a
+ * dictionary use {@link #getCanonicalName(String)} to store every reference
+ * under the dictionary's own name.
+ * <p>
+ * The names in a dictionary are the shared instances from
+ * {@link ReferenceNames}. Instances of this class are immutable.
+ */
+public final class ReferenceDictionary {
+
+    private final List<String> names;
+    private final int[] lengths;
+    private final Map<String, Integer> ids;
+
+    /**
+     * Constructs a dictionary from a mapping of reference names to lengths,
+     * such as those in {@link AssemblySize}. References are numbered in the
+     * iteration order of the mapping.
+     *
+     * @param sizes - a mapping from reference name to length in bp
+     * @throws NullPointerException if the mapping is <code>null</code>
+     */
+    public ReferenceDictionary(Map<String, Integer> sizes) {
+        Objects.requireNonNull(sizes, "Attempted to construct a " +
+                "ReferenceDictionary from a null mapping.");
+        List<String> nameList = new ArrayList<>(sizes.size());
+        lengths = new int[sizes.size()];
+        for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+            lengths[nameList.size()] = entry.getValue();
+            nameList.add(ReferenceNames.intern(entry.getKey()));
+        }
+        names = Collections.unmodifiableList(nameList);
+        ids = buildIds(names);
+    }
+
+    /**
+     * Constructs a dictionary from the sequence dictionary of a SAM header.
+     * References are numbered in header order, so the identifier of a
+     * reference equals the reference index of SAM records using the header.
+     *
+     * @param header - the SAM header
+     * @throws NullPointerException if the header is <code>null</code>
+     */
+    public ReferenceDictionary(SAMFileHeader header) {
+        Objects.requireNonNull(header, "Attempted to construct a " +
+                "ReferenceDictionary from a null header.");
+        List<SAMSequenceRecord> records =
+                header.getSequenceDictionary().getSequences();
+        List<String> nameList = new ArrayList<>(records.size());
+        lengths = new int[records.size()];
+        for (SAMSequenceRecord record : records) {
+            lengths[nameList.size()] = record.getSequenceLength();
+            nameList.add(ReferenceNames.intern(record.getSequenceName()));
+        }
+        names = Collections.unmodifiableList(nameList);
+        ids = buildIds(names);
+    }
+
+    private static Map<String, Integer> buildIds(List<String> names) {
+        Map<String, Integer> rtrn = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (rtrn.put(names.get(i), i) != null) {
+                throw new IllegalArgumentException("Duplicate reference " +
+                        "name in dictionary: " + names.get(i));
+            }
+        }
+        for (int i = 0; i < names.size(); i++) {
+            String alias = ChromosomeName.MAPPING.get(names.get(i));
+            if (alias != null) {
+                rtrn.putIfAbsent(alias, i);
+            }
+        }
+        return rtrn;
+    }
+
+    /**
+     * @return the number of references in this dictionary
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * @return the names of the references in this dictionary, in order
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Returns the identifier of a reference, or -1 if neither the name nor
+     * its alias is in this dictionary.
+     *
+     * @param name - the reference name or its alias
+     */
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param name - the reference name or its alias
+     * @return whether this dictionary contains the reference
+     */
+    public boolean contains(String name) {
+        return ids.containsKey(name);
+    }
+
+    /**
+     * Returns the name of the reference with the given identifier.
+     *
+     * @param id - the identifier
+     * @throws IndexOutOfBoundsException if the identifier is out of range
+     */
+    public String getName(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Returns the length of the reference with the given identifier.
+     *
+     * @param id - the identifier
+     * @throws IndexOutOfBoundsException if the identifier is out of range
+     */
+    public int getLength(int id) {
+        if (id < 0 || id >= lengths.length) {
+            throw new IndexOutOfBoundsException("Reference identifier out " +
+                    "of range: " + id);
+        }
+        return lengths[id];
+    }
+
+    /**
+     * Returns this dictionary's name for a reference, resolving aliases. A
+     * name not in this dictionary is returned as the shared instance from
+     * {@link ReferenceNames}.
+     *
+     * @param name - the reference name or its alias
+     */
+    public String getCanonicalName(String name) {
+        Integer id = ids.get(name);
+        return id == null ? ReferenceNames.intern(name) : names.get(id);
+    }
+
+    @Override
+    public String toString() {
+        return "ReferenceDictionary" + names;
+    }
+}
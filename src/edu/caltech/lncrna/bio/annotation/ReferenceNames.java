@@ -0,0 +1,96 @@
+package edu.caltech.lncrna.bio.annotation;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A process-wide table of reference names, such as "chr1" or "chrX", each
+ * identified by a small integer.
+ * <p>
+ * Every {@link Annotation} looks up its reference name here when it is
+ * constructed, keeps the shared <code>String</code> instance from this table,
+ * and compares references by identifier. Annotations parsed from millions of
+ * lines therefore share a handful of name strings, and reference comparisons
+ * in overlap and containment checks are integer comparisons.
+ * <p>
+ * Identifiers are assigned in order of first appearance and are only
+ * meaningful within one run of a program. Names are never removed, so this
+ * table is meant for reference names, which are few, and not for arbitrary
+ * strings. To resolve aliases such as "1" and "chr1", or to number the
+ * references of a particular assembly, see {@link ReferenceDictionary}.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ReferenceNames {
+
+    private static final ConcurrentHashMap<String, Integer> IDS =
+            new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static int size = 0;
+
+    private ReferenceNames() { }
+
+    /**
+     * Returns the identifier of a reference name, adding the name to the
+     * table if it is not already present.
+     *
+     * @param name - the reference name
+     * @throws NullPointerException if the name is <code>null</code>
+     */
+    public static int getId(String name) {
+        Integer id = IDS.get(Objects.requireNonNull(name, "Attempted to " +
+                "look up a null reference name."));
+        return id != null ? id : add(name);
+    }
+
+    /**
+     * Returns the reference name with the given identifier. Every call with
+     * the same identifier returns the same <code>String</code> instance.
+     *
+     * @param id - the identifier
+     * @throws IllegalArgumentException if no name has this identifier
+     */
+    public static String getName(int id) {
+        String[] current = names;
+        if (id < 0 || id >= current.length || current[id] == null) {
+            throw new IllegalArgumentException("Unknown reference " +
+                    "identifier: " + id);
+        }
+        return current[id];
+    }
+
+    /**
+     * Returns the shared instance of a reference name, adding the name to
+     * the table if it is not already present.
+     *
+     * @param name - the reference name
+     * @throws NullPointerException if the name is <code>null</code>
+     */
+    public static String intern(String name) {
+        return getName(getId(name));
+    }
+
+    /**
+     * @return the number of reference names in the table
+     */
+    public static synchronized int size() {
+        return size;
+    }
+
+    private static synchronized int add(String name) {
+        Integer id = IDS.get(name);
+        if (id != null) {
+            return id;
+        }
+        String[] current = names;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = name;
+        names = current;
+        // Publish the identifier only once the name can be read.
+        IDS.put(name, size);
+        return size++;
+    }
+}
@@ -83,7 +83,7 @@ implements Iterator<Populated<T>> {
         
         Optional<Populated<T>> minWindow = windows.minimum();
         
-        if (!minWindow.get().getReferenceName().equals(fragment.getReferenceName())) {
+        if (minWindow.get().getReferenceId() != fragment.getReferenceId()) {
             Iterator<Populated<T>> rtrn = windows.iterator();
             windows = new SimpleIntervalTree<>();
             return rtrn;
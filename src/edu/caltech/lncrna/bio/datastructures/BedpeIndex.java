@@ -0,0 +1,346 @@
+package edu.caltech.lncrna.bio.datastructures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.BedpeFileRecord;
+
+/**
+ * This class represents a static index of {@link BedpeFileRecord} objects,
+ * such as loop calls or contacts, that answers which records link one
+ * region to another.
+ * <p>
+ * Each record is indexed twice, once anchored on each of its blocks, so
+ * queries do not depend on which block of a record is listed first. Anchors
+ * are partitioned by the pair of references of the anchor and its mate, so
+ * a query for records linking two regions only searches the anchors on the
+ * reference of the first region whose mates are on the reference of the
+ * second. Within a partition, anchors are sorted by start position in
+ * primitive arrays, which double as an implicit interval tree: every element
+ * is a node that also records the largest end position in its subtree. An
+ * overlap query takes time logarithmic in the size of the partition plus the
+ * number of anchors found.
+ * <p>
+ * Blocks overlap a region if they are on the same reference and their spans
+ * overlap. Strand is ignored. Records missing either block are not indexed.
+ * <p>
+ * An index is bulk-loaded once, for example from a
+ * {@link edu.caltech.lncrna.bio.io.BedpeParser}, and cannot be modified.
+ * Instances of this class are immutable and may be shared between threads.
+ */
+public final class BedpeIndex {
+
+    // Subtrees of this height or less are scanned rather than searched
+    private static final int SCAN_LEVEL = 3;
+
+    private final List<BedpeFileRecord> records;
+
+    // The partitions, sorted by key, which packs the reference identifiers
+    // of the anchor and the mate, and the first anchor of each partition and
+    // one past the last
+    private final long[] partitionKeys;
+    private final int[] partitionStarts;
+
+    // The anchors, sorted by partition and start position. Each identifier
+    // is twice the index of the record, plus one if the anchor is the second
+    // block of the record.
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] mateStarts;
+    private final int[] mateEnds;
+    private final int[] ids;
+    // The largest end position in the implicit subtree of each anchor
+    private final int[] maxEnds;
+
+    /**
+     * Class constructor.
+     * <p>
+     * Constructs an index over the records of an iterator.
+     *
+     * @param iter - the records to index
+     * @throws NullPointerException if the iterator is <code>null</code>
+     */
+    public BedpeIndex(Iterator<? extends BedpeFileRecord> iter) {
+        Objects.requireNonNull(iter, "Attempted to index a null iterator.");
+
+        List<BedpeFileRecord> list = new ArrayList<>();
+        while (iter.hasNext()) {
+            BedpeFileRecord record = iter.next();
+            if (record.getBlock1().isPresent() &&
+                    record.getBlock2().isPresent()) {
+                list.add(record);
+            }
+        }
+        records = Collections.unmodifiableList(list);
+        int numAnchors = 2 * list.size();
+
+        // Number the partitions in order of key
+        long[] anchorKeys = new long[numAnchors];
+        LongIntHashMap distinct = new LongIntHashMap();
+        for (int i = 0; i < list.size(); i++) {
+            Annotated block1 = list.get(i).getBlock1().get();
+            Annotated block2 = list.get(i).getBlock2().get();
+            anchorKeys[2 * i] = partitionKey(block1.getReferenceId(),
+                    block2.getReferenceId());
+            anchorKeys[2 * i + 1] = partitionKey(block2.getReferenceId(),
+                    block1.getReferenceId());
+            distinct.put(anchorKeys[2 * i], 0);
+            distinct.put(anchorKeys[2 * i + 1], 0);
+        }
+        partitionKeys = distinct.sortedKeys();
+        for (int p = 0; p < partitionKeys.length; p++) {
+            distinct.put(partitionKeys[p], p);
+        }
+
+        // Counting sort of the anchors by partition
+        partitionStarts = new int[partitionKeys.length + 1];
+        int[] partitionOf = new int[numAnchors];
+        for (int a = 0; a < numAnchors; a++) {
+            partitionOf[a] = distinct.get(anchorKeys[a]);
+            partitionStarts[partitionOf[a] + 1]++;
+        }
+        for (int p = 0; p < partitionKeys.length; p++) {
+            partitionStarts[p + 1] += partitionStarts[p];
+        }
+        int[] next = Arrays.copyOf(partitionStarts, partitionKeys.length);
+        int[] byPartition = new int[numAnchors];
+        for (int a = 0; a < numAnchors; a++) {
+            byPartition[next[partitionOf[a]]++] = a;
+        }
+
+        starts = new int[numAnchors];
+        ends = new int[numAnchors];
+        mateStarts = new int[numAnchors];
+        mateEnds = new int[numAnchors];
+        ids = new int[numAnchors];
+        maxEnds = new int[numAnchors];
+
+        // Within each partition, sort by start position
+        for (int p = 0; p < partitionKeys.length; p++) {
+            int from = partitionStarts[p];
+            int to = partitionStarts[p + 1];
+            long[] sortKeys = new long[to - from];
+            for (int j = from; j < to; j++) {
+                int a = byPartition[j];
+                sortKeys[j - from] = ((long) anchor(list, a).getStart() << 32) |
+                        a;
+            }
+            Arrays.sort(sortKeys);
+            for (int j = from; j < to; j++) {
+                int a = (int) sortKeys[j - from];
+                Annotated anchor = anchor(list, a);
+                Annotated mate = anchor(list, a ^ 1);
+                starts[j] = anchor.getStart();
+                ends[j] = anchor.getEnd();
+                mateStarts[j] = mate.getStart();
+                mateEnds[j] = mate.getEnd();
+                ids[j] = a;
+            }
+            if (to > from) {
+                int level = rootLevel(to - from);
+                augment(from, to - from, level, (1 << level) - 1);
+            }
+        }
+    }
+
+    private static Annotated anchor(List<BedpeFileRecord> list, int id) {
+        BedpeFileRecord record = list.get(id >>> 1);
+        return (id & 1) == 0
+                ? record.getBlock1().get()
+                : record.getBlock2().get();
+    }
+
+    private static long partitionKey(int anchorRefId, int mateRefId) {
+        return ((long) anchorRefId << 32) | mateRefId;
+    }
+
+    /**
+     * Returns the level of the root of the implicit tree over a partition
+     * of the given size.
+     */
+    private static int rootLevel(int size) {
+        return 31 - Integer.numberOfLeadingZeros(size);
+    }
+
+    /**
+     * Computes the largest end position in the subtree of every node of the
+     * implicit tree of a partition, and returns that of the given node, or
+     * <code>Integer.MIN_VALUE</code> if its subtree is empty.
+     *
+     * @param from - the index of the first anchor of the partition
+     * @param size - the number of anchors in the partition
+     * @param level - the level of the node; leaves are at level zero
+     * @param node - the index of the node within the partition
+     */
+    private int augment(int from, int size, int level, int node) {
+        if (level == 0) {
+            if (node >= size) {
+                return Integer.MIN_VALUE;
+            }
+            maxEnds[from + node] = ends[from + node];
+            return ends[from + node];
+        }
+        int half = 1 << (level - 1);
+        int max = Math.max(augment(from, size, level - 1, node - half),
+                augment(from, size, level - 1, node + half));
+        if (node < size) {
+            max = Math.max(max, ends[from + node]);
+            maxEnds[from + node] = max;
+        }
+        return max;
+    }
+
+    /**
+     * @return the number of records in this index
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Returns the records with either block overlapping a region.
+     *
+     * @param a - the region
+     * @return an iterator over the overlapping records, each returned once
+     */
+    public Iterator<BedpeFileRecord> overlappers(Annotated a) {
+        List<BedpeFileRecord> rtrn = new ArrayList<>();
+        int refId = a.getReferenceId();
+        int st = a.getStart();
+        int en = a.getEnd();
+        int p = firstPartition(partitionKey(refId, 0));
+        for (; p < partitionKeys.length &&
+                partitionKeys[p] >>> 32 == refId; p++) {
+            boolean sameRefs = (int) partitionKeys[p] == refId;
+            search(p, st, en, j -> {
+                // A record with both blocks in the region is found from
+                // each block, so keep only the first
+                if ((ids[j] & 1) == 0 || !sameRefs ||
+                        mateStarts[j] >= en || st >= mateEnds[j]) {
+                    rtrn.add(records.get(ids[j] >>> 1));
+                }
+            });
+        }
+        return rtrn.iterator();
+    }
+
+    /**
+     * Returns the records with one block overlapping each of two regions, in
+     * either order.
+     *
+     * @param a - the first region
+     * @param b - the second region
+     * @return an iterator over the overlapping records, each returned once
+     */
+    public Iterator<BedpeFileRecord> overlappers(Annotated a, Annotated b) {
+        List<BedpeFileRecord> rtrn = new ArrayList<>();
+        int p = Arrays.binarySearch(partitionKeys,
+                partitionKey(a.getReferenceId(), b.getReferenceId()));
+        if (p < 0) {
+            return rtrn.iterator();
+        }
+        int st = a.getStart();
+        int en = a.getEnd();
+        int mateSt = b.getStart();
+        int mateEn = b.getEnd();
+        boolean sameRefs = a.getReferenceId() == b.getReferenceId();
+        search(p, st, en, j -> {
+            if (mateStarts[j] >= mateEn || mateSt >= mateEnds[j]) {
+                return;
+            }
+            // A record can match in both orders only if the references of
+            // the regions are the same; if it does, keep the first order
+            if ((ids[j] & 1) == 1 && sameRefs && mateStarts[j] < en &&
+                    st < mateEnds[j] && starts[j] < mateEn &&
+                    mateSt < ends[j]) {
+                return;
+            }
+            rtrn.add(records.get(ids[j] >>> 1));
+        });
+        return rtrn.iterator();
+    }
+
+    /**
+     * Returns the number of records with either block overlapping a region.
+     *
+     * @param a - the region
+     */
+    public int numOverlappers(Annotated a) {
+        int count = 0;
+        for (Iterator<BedpeFileRecord> iter = overlappers(a); iter.hasNext();
+                iter.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of records with one block overlapping each of two
+     * regions, in either order.
+     *
+     * @param a - the first region
+     * @param b - the second region
+     */
+    public int numOverlappers(Annotated a, Annotated b) {
+        int count = 0;
+        for (Iterator<BedpeFileRecord> iter = overlappers(a, b);
+                iter.hasNext(); iter.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private int firstPartition(long key) {
+        int p = Arrays.binarySearch(partitionKeys, key);
+        return p >= 0 ? p : -p - 1;
+    }
+
+    @FunctionalInterface
+    private interface AnchorConsumer {
+        void accept(int anchor);
+    }
+
+    /**
+     * Visits the anchors of a partition that overlap [st, en).
+     */
+    private void search(int p, int st, int en, AnchorConsumer action) {
+        int from = partitionStarts[p];
+        int size = partitionStarts[p + 1] - from;
+        if (size > 0) {
+            int level = rootLevel(size);
+            search(from, size, level, (1 << level) - 1, st, en, action);
+        }
+    }
+
+    private void search(int from, int size, int level, int node, int st,
+            int en, AnchorConsumer action) {
+        if (level <= SCAN_LEVEL) {
+            int first = node >> level << level;
+            int last = Math.min(size, first + (1 << (level + 1)) - 1);
+            for (int i = first; i < last && starts[from + i] < en; i++) {
+                if (st < ends[from + i]) {
+                    action.accept(from + i);
+                }
+            }
+            return;
+        }
+        int half = 1 << (level - 1);
+        int left = node - half;
+        // A left child past the end of the partition has no maximum, but
+        // may have nodes in its subtree
+        if (left >= size || maxEnds[from + left] > st) {
+            search(from, size, level - 1, left, st, en, action);
+        }
+        if (node < size && starts[from + node] < en) {
+            if (st < ends[from + node]) {
+                action.accept(from + node);
+            }
+            search(from, size, level - 1, node + half, st, en, action);
+        }
+    }
+}
@@ -0,0 +1,816 @@
+package edu.caltech.lncrna.bio.datastructures;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.lncrna.bio.alignment.ClusterAssembler;
+import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.BedpeFileRecord;
+import edu.caltech.lncrna.bio.annotation.ReferenceDictionary;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.utils.Futures;
+
+/**
+ * This class represents a sparse, symmetric matrix of contacts between bins
+ * of a genome, such as a Hi-C or SPRITE contact map, at one resolution.
+ * <p>
+ * Each reference of a {@link CoordinateSpace} is divided into bins of a fixed
+ * size, and bins are numbered consecutively across the references in the
+ * order of the coordinate space. A contact between two positions adds a
+ * weight to the entry for their pair of bins. Since the matrix is symmetric,
+ * only entries with a row less than or equal to their column are stored.
+ * <p>
+ * Entries are stored in coordinate (COO) format, sorted by row and then by
+ * column, together with a table giving the first entry of each row, so the
+ * entries between two regions are found with one binary search per row. A
+ * matrix can be written to disk with {@link #write(Path)} and opened again
+ * with {@link #ContactMatrix(Path)}, which memory-maps the file instead of
+ * reading it.
+ * <p>
+ * Matrices are made by a {@link Builder}, which can bin the same contacts at
+ * several resolutions in one pass, for example from a BEDPE file or from
+ * the clusters of a {@link ClusterAssembler}.
+ * <p>
+ * Instances of this class are immutable and may be shared between threads.
+ */
+public final class ContactMatrix {
+
+    private static final int MAGIC = 0x434d5458; // "CMTX"
+
+    private final CoordinateSpace space;
+    private final int resolution;
+    private final int[] binOffsets;
+    private final int numEntries;
+    private final IntBuffer rows;
+    private final IntBuffer cols;
+    private final FloatBuffer values;
+    private final IntBuffer rowIndex;
+
+    /**
+     * Represents an operation that accepts a single entry of a contact
+     * matrix.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        public void accept(int row, int col, float value);
+    }
+
+    private ContactMatrix(CoordinateSpace space, int resolution, int[] rows,
+            int[] cols, float[] values) {
+        this.space = space;
+        this.resolution = resolution;
+        this.binOffsets = computeBinOffsets(space, resolution);
+        this.numEntries = rows.length;
+        this.rows = IntBuffer.wrap(rows);
+        this.cols = IntBuffer.wrap(cols);
+        this.values = FloatBuffer.wrap(values);
+        this.rowIndex = IntBuffer.wrap(computeRowIndex(rows,
+                binOffsets[binOffsets.length - 1]));
+    }
+
+    /**
+     * Opens a contact matrix that was written by {@link #write(Path)}.
+     *
+     * @param p - the path to the matrix
+     * @throws IllegalArgumentException if the file is not a contact matrix
+     * @throws NullPointerException if the path is <code>null</code>
+     */
+    public ContactMatrix(Path p) {
+        Objects.requireNonNull(p, "Attempted to open a ContactMatrix from a " +
+                "null path.");
+        try (FileChannel channel = FileChannel.open(p,
+                StandardOpenOption.READ)) {
+            ByteBuffer prefix = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+            if (prefix.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a contact matrix: " +
+                        p);
+            }
+            int headerLength = prefix.getInt();
+            byte[] headerBytes = new byte[headerLength];
+            channel.map(FileChannel.MapMode.READ_ONLY, 8, headerLength)
+                    .get(headerBytes);
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(headerBytes));
+
+            int numRefs = in.readInt();
+            Map<String, Integer> sizes = new LinkedHashMap<>();
+            for (int i = 0; i < numRefs; i++) {
+                String name = in.readUTF();
+                sizes.put(name, in.readInt());
+            }
+            space = new CoordinateSpace(sizes);
+            resolution = in.readInt();
+            numEntries = in.readInt();
+            binOffsets = computeBinOffsets(space, resolution);
+            int numBins = binOffsets[binOffsets.length - 1];
+
+            long offset = 8L + headerLength;
+            rows = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    4L * numEntries).asIntBuffer();
+            offset += 4L * numEntries;
+            cols = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    4L * numEntries).asIntBuffer();
+            offset += 4L * numEntries;
+            values = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    4L * numEntries).asFloatBuffer();
+            offset += 4L * numEntries;
+            rowIndex = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    4L * (numBins + 1)).asIntBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns a builder for contact matrices over a coordinate space at one
+     * or more resolutions.
+     *
+     * @param space - the coordinate space
+     * @param resolutions - the bin sizes, in bases
+     * @throws IllegalArgumentException if no resolution is given, or if a
+     * resolution is not positive
+     */
+    public static Builder builder(CoordinateSpace space, int... resolutions) {
+        return new Builder(space, resolutions);
+    }
+
+    /**
+     * @return the coordinate space of this matrix
+     */
+    public CoordinateSpace getCoordinateSpace() {
+        return space;
+    }
+
+    /**
+     * @return the bin size of this matrix, in bases
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * @return the number of bins, which is the number of rows and of columns
+     */
+    public int getNumberOfBins() {
+        return binOffsets[binOffsets.length - 1];
+    }
+
+    /**
+     * @return the number of stored entries, which have a row less than or
+     * equal to their column
+     */
+    public int getNumberOfEntries() {
+        return numEntries;
+    }
+
+    /**
+     * Returns the bin containing a position, or -1 if the reference is not in
+     * the coordinate space of this matrix.
+     *
+     * @param ref - the reference name
+     * @param pos - the zero-based position; positions off the ends of the
+     * reference are placed in its first or last bin
+     */
+    public int getBin(String ref, int pos) {
+        int index = space.getReferenceDictionary().getId(ref);
+        return index < 0 ? -1 : bin(binOffsets, resolution,
+                space.getReferenceDictionary().getLength(index), index, pos);
+    }
+
+    /**
+     * Returns the region covered by a bin, as an unstranded annotation.
+     *
+     * @param bin - the bin
+     * @throws IndexOutOfBoundsException if there is no such bin
+     */
+    public Annotated getBinRegion(int bin) {
+        if (bin < 0 || bin >= getNumberOfBins()) {
+            throw new IndexOutOfBoundsException("Bin out of range: " + bin);
+        }
+        int index = Arrays.binarySearch(binOffsets, bin);
+        // Skip references with no bins, which share an offset
+        if (index >= 0) {
+            while (binOffsets[index + 1] == bin) {
+                index++;
+            }
+        } else {
+            index = -index - 2;
+        }
+        ReferenceDictionary dict = space.getReferenceDictionary();
+        int start = (bin - binOffsets[index]) * resolution;
+        int end = (int) Math.min((long) start + resolution,
+                dict.getLength(index));
+        return new Annotation(dict.getName(index), start, end, Strand.BOTH);
+    }
+
+    /**
+     * Returns the value of the entry for a pair of bins, which is zero if no
+     * contact between them was added.
+     *
+     * @param bin1 - the first bin
+     * @param bin2 - the second bin
+     */
+    public float get(int bin1, int bin2) {
+        int row = Math.min(bin1, bin2);
+        int col = Math.max(bin1, bin2);
+        if (row < 0 || col >= getNumberOfBins()) {
+            return 0f;
+        }
+        int i = firstColAtLeast(row, col);
+        return i < rowIndex.get(row + 1) && cols.get(i) == col
+                ? values.get(i)
+                : 0f;
+    }
+
+    /**
+     * Performs an action on every stored entry, in order of row and column.
+     *
+     * @param action - the action to perform
+     */
+    public void forEach(EntryConsumer action) {
+        for (int i = 0; i < numEntries; i++) {
+            action.accept(rows.get(i), cols.get(i), values.get(i));
+        }
+    }
+
+    /**
+     * Performs an action on every stored entry for a pair of bins with one
+     * bin overlapping each of two regions, such as the contacts between two
+     * loci. Each entry is visited once, with its row less than or equal to
+     * its column. Entries are visited in order of row and column if the
+     * regions do not overlap.
+     *
+     * @param region1 - the first region
+     * @param region2 - the second region, which may be the same as the first
+     * @param action - the action to perform
+     */
+    public void forEach(Annotated region1, Annotated region2,
+            EntryConsumer action) {
+        int[] bins1 = binRange(region1);
+        int[] bins2 = binRange(region2);
+        if (bins1 == null || bins2 == null) {
+            return;
+        }
+        visit(bins1, bins2, null, action);
+        // Entries with a row in the second region and a column in the first,
+        // except those already visited
+        visit(bins2, bins1, new int[][] {bins1, bins2}, action);
+    }
+
+    /**
+     * Visits the entries with a row in one range of bins and a column in
+     * another, except those with a row and column in a skipped pair of
+     * ranges.
+     */
+    private void visit(int[] rowBins, int[] colBins, int[][] skip,
+            EntryConsumer action) {
+        for (int row = rowBins[0]; row < rowBins[1]; row++) {
+            int end = rowIndex.get(row + 1);
+            boolean skipRow = skip != null && row >= skip[0][0] &&
+                    row < skip[0][1];
+            for (int i = firstColAtLeast(row, Math.max(row, colBins[0]));
+                    i < end && cols.get(i) < colBins[1]; i++) {
+                int col = cols.get(i);
+                if (skipRow && col >= skip[1][0] && col < skip[1][1]) {
+                    continue;
+                }
+                action.accept(row, col, values.get(i));
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first entry in a row with a column at least as
+     * large as the given column.
+     */
+    private int firstColAtLeast(int row, int col) {
+        int lo = rowIndex.get(row);
+        int hi = rowIndex.get(row + 1);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cols.get(mid) < col) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the first bin and one past the last bin overlapping a region,
+     * or <code>null</code> if its reference is not in the coordinate space.
+     */
+    private int[] binRange(Annotated region) {
+        int index = space.getReferenceIndex(region);
+        if (index < 0) {
+            return null;
+        }
+        int length = space.getReferenceDictionary().getLength(index);
+        int start = Math.max(region.getStart(), 0);
+        int end = Math.min(region.getEnd(), length);
+        if (start >= end) {
+            return null;
+        }
+        return new int[] {binOffsets[index] + start / resolution,
+                binOffsets[index] + (end - 1) / resolution + 1};
+    }
+
+    /**
+     * Writes this matrix to disk in a form that {@link #ContactMatrix(Path)}
+     * can memory-map.
+     * <p>
+     * The file consists of a magic number, the length of the header, the
+     * header (the names and lengths of the references, the resolution and
+     * the number of entries), the rows, columns and values of the entries,
+     * and the index of the first entry of each row, all big-endian.
+     *
+     * @param p - the path to write to
+     */
+    public void write(Path p) {
+        ReferenceDictionary dict = space.getReferenceDictionary();
+        try {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(dict.size());
+            for (int i = 0; i < dict.size(); i++) {
+                header.writeUTF(dict.getName(i));
+                header.writeInt(dict.getLength(i));
+            }
+            header.writeInt(resolution);
+            header.writeInt(numEntries);
+            header.flush();
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(p)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(headerBytes.size());
+                headerBytes.writeTo(out);
+                for (int i = 0; i < numEntries; i++) {
+                    out.writeInt(rows.get(i));
+                }
+                for (int i = 0; i < numEntries; i++) {
+                    out.writeInt(cols.get(i));
+                }
+                for (int i = 0; i < numEntries; i++) {
+                    out.writeFloat(values.get(i));
+                }
+                for (int i = 0; i < rowIndex.limit(); i++) {
+                    out.writeInt(rowIndex.get(i));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns, for each reference and one past the last, the number of the
+     * first bin of the reference.
+     */
+    private static int[] computeBinOffsets(CoordinateSpace space,
+            int resolution) {
+        ReferenceDictionary dict = space.getReferenceDictionary();
+        int[] rtrn = new int[dict.size() + 1];
+        long total = 0;
+        for (int i = 0; i < dict.size(); i++) {
+            rtrn[i] = (int) total;
+            total += (dict.getLength(i) + (long) resolution - 1) / resolution;
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Resolution " +
+                        resolution + " gives too many bins.");
+            }
+        }
+        rtrn[dict.size()] = (int) total;
+        return rtrn;
+    }
+
+    private static int[] computeRowIndex(int[] rows, int numBins) {
+        int[] rtrn = new int[numBins + 1];
+        for (int row : rows) {
+            rtrn[row + 1]++;
+        }
+        for (int i = 0; i < numBins; i++) {
+            rtrn[i + 1] += rtrn[i];
+        }
+        return rtrn;
+    }
+
+    private static int bin(int[] binOffsets, int resolution, int length,
+            int index, int pos) {
+        pos = Math.min(Math.max(pos, 0), Math.max(length - 1, 0));
+        return binOffsets[index] + pos / resolution;
+    }
+
+    private static long key(int bin1, int bin2) {
+        int row = Math.min(bin1, bin2);
+        int col = Math.max(bin1, bin2);
+        return ((long) row << 32) | col;
+    }
+
+    /**
+     * A builder class for {@link ContactMatrix} objects.
+     * <p>
+     * Contacts are binned at every resolution of the builder as they are
+     * added, and accumulated in a number of {@link LongFloatHashMap} shards
+     * per resolution, each guarded by its own lock, so that several threads
+     * can add contacts at once. See {@link #addAll(Path, int)} for a parallel
+     * pipeline over a BEDPE file.
+     * <p>
+     * The position of each end of a contact is the midpoint of its span.
+     * Contacts with an end on a reference not in the coordinate space are
+     * ignored.
+     */
+    public static final class Builder {
+
+        private static final int BATCH_SIZE = 4096;
+        private static final int NUM_SHARDS = 64;
+        private static final int SHARD_BITS = 6;
+
+        private final CoordinateSpace space;
+        private final int[] resolutions;
+        private final int[][] binOffsets;
+        private final LongFloatHashMap[][] shards;
+
+        private Builder(CoordinateSpace space, int[] resolutions) {
+            this.space = Objects.requireNonNull(space, "Attempted to build a " +
+                    "ContactMatrix over a null coordinate space.");
+            Objects.requireNonNull(resolutions, "Attempted to build a " +
+                    "ContactMatrix with null resolutions.");
+            if (resolutions.length == 0) {
+                throw new IllegalArgumentException("Attempted to build a " +
+                        "ContactMatrix with no resolutions.");
+            }
+            this.resolutions = resolutions.clone();
+            this.binOffsets = new int[resolutions.length][];
+            this.shards = new LongFloatHashMap[resolutions.length][NUM_SHARDS];
+            for (int r = 0; r < resolutions.length; r++) {
+                if (resolutions[r] < 1) {
+                    throw new IllegalArgumentException("Resolution must be " +
+                            "positive: " + resolutions[r]);
+                }
+                binOffsets[r] = computeBinOffsets(space, resolutions[r]);
+                for (int s = 0; s < NUM_SHARDS; s++) {
+                    shards[r][s] = new LongFloatHashMap();
+                }
+            }
+        }
+
+        /**
+         * Adds a contact between two regions.
+         * <p>
+         * This method is thread-safe.
+         *
+         * @param a - the first region
+         * @param b - the second region
+         * @param weight - the weight of the contact
+         * @return this builder
+         */
+        public Builder add(Annotated a, Annotated b, float weight) {
+            int indexA = space.getReferenceIndex(a);
+            int indexB = space.getReferenceIndex(b);
+            if (indexA < 0 || indexB < 0) {
+                return this;
+            }
+            int posA = midpoint(a);
+            int posB = midpoint(b);
+            for (int r = 0; r < resolutions.length; r++) {
+                long key = key(r, indexA, posA, indexB, posB);
+                LongFloatHashMap shard = shards[r][shardOf(key)];
+                synchronized (shard) {
+                    shard.addTo(key, weight);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Adds a contact between the two blocks of a BEDPE record with a
+         * weight of one. Records missing either block are ignored.
+         * <p>
+         * This method is thread-safe.
+         *
+         * @param record - the record
+         * @return this builder
+         */
+        public Builder add(BedpeFileRecord record) {
+            Annotated a = record.getBlock1().orElse(null);
+            Annotated b = record.getBlock2().orElse(null);
+            return a != null && b != null ? add(a, b, 1f) : this;
+        }
+
+        /**
+         * Adds a contact, with a weight of one, for every record of a BEDPE
+         * file using a pool of worker threads.
+         * <p>
+         * The calling thread reads lines from the file and hands batches of
+         * them to the workers through a bounded queue. Each worker parses its
+         * batch, bins both ends of each record at every resolution, and then
+         * takes each shard's lock once per batch.
+         *
+         * @param bedpe - the path to the BEDPE file
+         * @param numThreads - the number of worker threads
+         * @return this builder
+         * @throws IllegalArgumentException if <code>numThreads</code> is not
+         * positive
+         */
+        public Builder addAll(Path bedpe, int numThreads) {
+            Objects.requireNonNull(bedpe, "Attempted to add contacts from a " +
+                    "null path.");
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("Attempted to add " +
+                        "contacts with a non-positive number of threads: " +
+                        numThreads);
+            }
+
+            final List<String> poison = new ArrayList<>();
+            final BlockingQueue<List<String>> queue =
+                    new ArrayBlockingQueue<>(2 * numThreads);
+            ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            List<Future<?>> workers = new ArrayList<>();
+
+            for (int i = 0; i < numThreads; i++) {
+                workers.add(pool.submit(() -> {
+                    ContactBuffer buffer =
+                            new ContactBuffer(resolutions.length);
+                    List<String> batch;
+                    while ((batch = queue.take()) != poison) {
+                        for (String line : batch) {
+                            buffer.add(BedpeFileRecord
+                                    .fromFormattedString(line));
+                        }
+                        flush(buffer);
+                    }
+                    return null;
+                }));
+            }
+
+            try (BufferedReader reader = Files.newBufferedReader(bedpe)) {
+                List<String> batch = new ArrayList<>(BATCH_SIZE);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    batch.add(line);
+                    if (batch.size() == BATCH_SIZE) {
+                        put(queue, batch, workers);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    put(queue, batch, workers);
+                }
+                for (int i = 0; i < numThreads; i++) {
+                    put(queue, poison, workers);
+                }
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw Futures.propagate(e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+            return this;
+        }
+
+        /**
+         * Adds the contacts of the remaining clusters of an iterator, weighted
+         * as by {@link ClusterAssembler.Cluster#forEachContact}. Contacts are
+         * binned as they are generated, so the pairs of a cluster are never
+         * held in memory together.
+         *
+         * @param clusters - the clusters
+         * @param maxClusterSize - the size of the largest cluster to add;
+         * larger clusters are skipped
+         * @return this builder
+         * @throws IllegalArgumentException if the clusters were assembled in
+         * an incompatible coordinate space
+         */
+        public Builder addAll(ClusterAssembler.ClusterIterator clusters,
+                int maxClusterSize) {
+            Objects.requireNonNull(clusters, "Attempted to add contacts " +
+                    "from a null cluster iterator.");
+            if (!space.isCompatible(clusters.getCoordinateSpace())) {
+                throw new IllegalArgumentException("Attempted to add " +
+                        "clusters from another coordinate space.");
+            }
+            ContactBuffer buffer = new ContactBuffer(resolutions.length);
+            clusters.forEachContact(maxClusterSize,
+                    (refIndex1, pos1, refIndex2, pos2, weight) -> {
+                        buffer.add(refIndex1, pos1, refIndex2, pos2, weight);
+                        if (buffer.size == BATCH_SIZE) {
+                            flush(buffer);
+                        }
+                    });
+            flush(buffer);
+            return this;
+        }
+
+        /**
+         * Offers a batch to the workers, failing fast if any worker has died
+         * so that the producer does not block forever on a full queue.
+         */
+        private static void put(BlockingQueue<List<String>> queue,
+                List<String> batch, List<Future<?>> workers)
+                throws InterruptedException, ExecutionException {
+            while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                for (Future<?> worker : workers) {
+                    if (worker.isDone()) {
+                        worker.get();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the buffered contacts to the shards, taking each shard's lock
+         * once per resolution.
+         */
+        private void flush(ContactBuffer buffer) {
+            if (buffer.size == 0) {
+                return;
+            }
+            int[] starts = new int[NUM_SHARDS + 1];
+            int[] shardOf = new int[buffer.size];
+            long[] groupedKeys = new long[buffer.size];
+            float[] groupedWeights = new float[buffer.size];
+            for (int r = 0; r < resolutions.length; r++) {
+                long[] keys = buffer.keys[r];
+                Arrays.fill(starts, 0);
+                for (int i = 0; i < buffer.size; i++) {
+                    shardOf[i] = shardOf(keys[i]);
+                    starts[shardOf[i] + 1]++;
+                }
+                for (int s = 0; s < NUM_SHARDS; s++) {
+                    starts[s + 1] += starts[s];
+                }
+                int[] next = starts.clone();
+                for (int i = 0; i < buffer.size; i++) {
+                    int j = next[shardOf[i]]++;
+                    groupedKeys[j] = keys[i];
+                    groupedWeights[j] = buffer.weights[i];
+                }
+                for (int s = 0; s < NUM_SHARDS; s++) {
+                    if (starts[s] == starts[s + 1]) {
+                        continue;
+                    }
+                    LongFloatHashMap shard = shards[r][s];
+                    synchronized (shard) {
+                        for (int i = starts[s]; i < starts[s + 1]; i++) {
+                            shard.addTo(groupedKeys[i], groupedWeights[i]);
+                        }
+                    }
+                }
+            }
+            buffer.size = 0;
+        }
+
+        /**
+         * Returns the packed pair of bins of a contact at one resolution.
+         */
+        private long key(int r, int indexA, int posA, int indexB, int posB) {
+            ReferenceDictionary dict = space.getReferenceDictionary();
+            return ContactMatrix.key(
+                    bin(binOffsets[r], resolutions[r], dict.getLength(indexA),
+                            indexA, posA),
+                    bin(binOffsets[r], resolutions[r], dict.getLength(indexB),
+                            indexB, posB));
+        }
+
+        private static int shardOf(long key) {
+            return (int) (LongIntHashMap.mix(key) >>> (64 - SHARD_BITS));
+        }
+
+        private static int midpoint(Annotated x) {
+            return (int) (((long) x.getStart() + x.getEnd()) / 2);
+        }
+
+        /**
+         * Returns a matrix of the contacts added so far at each resolution,
+         * in the order the resolutions were given. The builder can continue
+         * to be used, but this method should not be called while other
+         * threads are adding contacts.
+         */
+        public List<ContactMatrix> build() {
+            List<ContactMatrix> rtrn = new ArrayList<>();
+            for (int r = 0; r < resolutions.length; r++) {
+                rtrn.add(build(r));
+            }
+            return Collections.unmodifiableList(rtrn);
+        }
+
+        private ContactMatrix build(int r) {
+            int size = 0;
+            for (LongFloatHashMap shard : shards[r]) {
+                synchronized (shard) {
+                    size += shard.size();
+                }
+            }
+            long[] keys = new long[size];
+            int n = 0;
+            for (LongFloatHashMap shard : shards[r]) {
+                synchronized (shard) {
+                    long[] shardKeys = shard.sortedKeys();
+                    System.arraycopy(shardKeys, 0, keys, n, shardKeys.length);
+                    n += shardKeys.length;
+                }
+            }
+            Arrays.sort(keys);
+
+            int[] rows = new int[size];
+            int[] cols = new int[size];
+            float[] values = new float[size];
+            for (int i = 0; i < size; i++) {
+                long key = keys[i];
+                rows[i] = (int) (key >>> 32);
+                cols[i] = (int) key;
+                LongFloatHashMap shard = shards[r][shardOf(key)];
+                synchronized (shard) {
+                    values[i] = shard.get(key);
+                }
+            }
+            return new ContactMatrix(space, resolutions[r], rows, cols,
+                    values);
+        }
+
+        /**
+         * A growable buffer of binned contacts owned by a single thread, with
+         * the packed pair of bins of each contact at each resolution.
+         */
+        private final class ContactBuffer {
+            private final long[][] keys;
+            private float[] weights = new float[BATCH_SIZE];
+            private int size = 0;
+
+            private ContactBuffer(int numResolutions) {
+                keys = new long[numResolutions][BATCH_SIZE];
+            }
+
+            private void add(BedpeFileRecord record) {
+                Annotated a = record.getBlock1().orElse(null);
+                Annotated b = record.getBlock2().orElse(null);
+                if (a != null && b != null) {
+                    add(a, b, 1f);
+                }
+            }
+
+            private void add(Annotated a, Annotated b, float weight) {
+                int indexA = space.getReferenceIndex(a);
+                int indexB = space.getReferenceIndex(b);
+                if (indexA < 0 || indexB < 0) {
+                    return;
+                }
+                add(indexA, midpoint(a), indexB, midpoint(b), weight);
+            }
+
+            private void add(int indexA, int posA, int indexB, int posB,
+                    float weight) {
+                if (size == weights.length) {
+                    weights = Arrays.copyOf(weights, 2 * size);
+                    for (int r = 0; r < keys.length; r++) {
+                        keys[r] = Arrays.copyOf(keys[r], 2 * size);
+                    }
+                }
+                for (int r = 0; r < keys.length; r++) {
+                    keys[r][size] = key(r, indexA, posA, indexB, posB);
+                }
+                weights[size++] = weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package edu.caltech.lncrna.bio.datastructures;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.ReferenceDictionary;
+
+/**
+ * This class represents a set of masked positions across a whole genome, such
+ * as a blacklist, a mappability mask, or the regions already covered by
+ * earlier reads.
+ * <p>
+ * A mask is stored as sorted, disjoint runs of masked positions in the linear
+ * coordinates of a {@link CoordinateSpace}, together with a table giving the
+ * first run in each 64 kb bin of the genome. A membership query looks up the
+ * reference of the annotation in an array, jumps to its bin, and searches only
+ * the runs in that bin, so its cost does not grow with the size of the mask
+ * in practice. Strand is ignored.
+ * <p>
+ * A mask is built with a {@link Builder}, for example from the records of a
+ * {@link edu.caltech.lncrna.bio.io.BedParser}. It can be written to disk with
+ * {@link #write(Path)} and opened again with {@link #GenomeMask(Path)}, which
+ * memory-maps the file instead of reading it.
+ * <p>
+ * Instances of this class are immutable and may be shared between threads.
+ */
+public final class GenomeMask {
+
+    private static final int MAGIC = 0x474d534b; // "GMSK"
+    private static final int BIN_SHIFT = 16;
+
+    private final CoordinateSpace space;
+    private final int numRuns;
+    private final LongBuffer runs;
+    private final IntBuffer bins;
+
+    private GenomeMask(CoordinateSpace space, long[] runs) {
+        this.space = space;
+        this.numRuns = runs.length / 2;
+        this.runs = LongBuffer.wrap(runs);
+        this.bins = IntBuffer.wrap(computeBins(space.getGenomeLength(),
+                runs));
+    }
+
+    /**
+     * Opens a mask that was written by {@link #write(Path)}.
+     *
+     * @param p - the path to the mask
+     * @throws IllegalArgumentException if the file is not a genome mask
+     * @throws NullPointerException if the path is <code>null</code>
+     */
+    public GenomeMask(Path p) {
+        Objects.requireNonNull(p, "Attempted to open a GenomeMask from a " +
+                "null path.");
+        try (FileChannel channel = FileChannel.open(p,
+                StandardOpenOption.READ)) {
+            ByteBuffer prefix = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+            if (prefix.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a genome mask: " + p);
+            }
+            int headerLength = prefix.getInt();
+            byte[] headerBytes = new byte[headerLength];
+            channel.map(FileChannel.MapMode.READ_ONLY, 8, headerLength)
+                    .get(headerBytes);
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(headerBytes));
+
+            int numRefs = in.readInt();
+            Map<String, Integer> sizes = new LinkedHashMap<>();
+            for (int i = 0; i < numRefs; i++) {
+                String name = in.readUTF();
+                sizes.put(name, in.readInt());
+            }
+            space = new CoordinateSpace(sizes);
+            numRuns = in.readInt();
+            int numBins = in.readInt();
+
+            long offset = 8L + headerLength;
+            runs = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    16L * numRuns).asLongBuffer();
+            bins = channel.map(FileChannel.MapMode.READ_ONLY,
+                    offset + 16L * numRuns, 4L * numBins).asIntBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns a builder for a mask over the given coordinate space.
+     *
+     * @param space - the coordinate space
+     */
+    public static Builder builder(CoordinateSpace space) {
+        return new Builder(space);
+    }
+
+    /**
+     * @return the coordinate space of this mask
+     */
+    public CoordinateSpace getCoordinateSpace() {
+        return space;
+    }
+
+    /**
+     * @return the number of disjoint runs of masked positions
+     */
+    public int getNumberOfRuns() {
+        return numRuns;
+    }
+
+    /**
+     * @return the total number of masked positions
+     */
+    public long getMaskedLength() {
+        long rtrn = 0;
+        for (int i = 0; i < numRuns; i++) {
+            rtrn += runEnd(i) - runStart(i);
+        }
+        return rtrn;
+    }
+
+    /**
+     * Returns whether a position is masked.
+     *
+     * @param offset - the linear offset of the position
+     */
+    public boolean contains(long offset) {
+        if (offset < 0 || offset >= space.getGenomeLength()) {
+            return false;
+        }
+        int i = firstRunEndingAfter(offset);
+        return i < numRuns && runStart(i) <= offset;
+    }
+
+    /**
+     * Returns whether a position is masked. A position on a reference not in
+     * the coordinate space of this mask is not masked.
+     *
+     * @param ref - the reference name
+     * @param pos - the zero-based position
+     */
+    public boolean contains(String ref, int pos) {
+        int index = space.getReferenceDictionary().getId(ref);
+        if (index < 0 || pos < 0 ||
+                pos >= space.getReferenceDictionary().getLength(index)) {
+            return false;
+        }
+        return contains(space.getReferenceOffset(index) + pos);
+    }
+
+    /**
+     * Returns whether any position in a range of linear offsets is masked.
+     *
+     * @param start - the linear offset of the first position of the range
+     * @param end - the linear offset after the last position of the range
+     */
+    public boolean overlaps(long start, long end) {
+        start = Math.max(start, 0);
+        end = Math.min(end, space.getGenomeLength());
+        if (start >= end) {
+            return false;
+        }
+        int i = firstRunEndingAfter(start);
+        return i < numRuns && runStart(i) < end;
+    }
+
+    /**
+     * Returns whether any position in the blocks of an annotation is masked.
+     *
+     * @param a - the annotation
+     */
+    public boolean overlaps(Annotated a) {
+        int index = space.getReferenceIndex(a);
+        if (index < 0) {
+            return false;
+        }
+        long base = space.getReferenceOffset(index);
+        int length = space.getReferenceDictionary().getLength(index);
+        int[] blocks = a.getBlockBoundaries();
+        for (int b = 0; b < blocks.length; b += 2) {
+            int start = Math.max(blocks[b], 0);
+            int end = Math.min(blocks[b + 1], length);
+            if (start < end) {
+                int i = firstRunEndingAfter(base + start);
+                if (i < numRuns && runStart(i) < base + end) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether every position in the blocks of an annotation is
+     * masked.
+     *
+     * @param a - the annotation
+     */
+    public boolean contains(Annotated a) {
+        return countMasked(a) == a.getSize();
+    }
+
+    /**
+     * Returns the number of positions in the blocks of an annotation that are
+     * masked.
+     *
+     * @param a - the annotation
+     */
+    public int countMasked(Annotated a) {
+        int index = space.getReferenceIndex(a);
+        if (index < 0) {
+            return 0;
+        }
+        long base = space.getReferenceOffset(index);
+        int length = space.getReferenceDictionary().getLength(index);
+        int[] blocks = a.getBlockBoundaries();
+        int count = 0;
+        for (int b = 0; b < blocks.length; b += 2) {
+            int start = Math.max(blocks[b], 0);
+            int end = Math.min(blocks[b + 1], length);
+            if (start >= end) {
+                continue;
+            }
+            long from = base + start;
+            long to = base + end;
+            for (int i = firstRunEndingAfter(from);
+                    i < numRuns && runStart(i) < to; i++) {
+                count += Math.min(runEnd(i), to) - Math.max(runStart(i), from);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes this mask to disk in a form that {@link #GenomeMask(Path)} can
+     * memory-map.
+     * <p>
+     * The file consists of a magic number, the length of the header, the
+     * header (the names and lengths of the references, the number of runs
+     * and the number of bins), the runs as pairs of <code>long</code>
+     * offsets, and the bin table, all big-endian.
+     *
+     * @param p - the path to write to
+     */
+    public void write(Path p) {
+        ReferenceDictionary dict = space.getReferenceDictionary();
+        try {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(dict.size());
+            for (int i = 0; i < dict.size(); i++) {
+                header.writeUTF(dict.getName(i));
+                header.writeInt(dict.getLength(i));
+            }
+            header.writeInt(numRuns);
+            header.writeInt(bins.limit());
+            header.flush();
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(p)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(headerBytes.size());
+                headerBytes.writeTo(out);
+                for (int i = 0; i < 2 * numRuns; i++) {
+                    out.writeLong(runs.get(i));
+                }
+                for (int i = 0; i < bins.limit(); i++) {
+                    out.writeInt(bins.get(i));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private long runStart(int i) {
+        return runs.get(2 * i);
+    }
+
+    private long runEnd(int i) {
+        return runs.get(2 * i + 1);
+    }
+
+    /**
+     * Returns the index of the first run that ends after an offset, or the
+     * number of runs if there is none. The offset must be in the genome.
+     */
+    private int firstRunEndingAfter(long offset) {
+        int bin = (int) (offset >>> BIN_SHIFT);
+        // The answer is at least the first run ending after the start of this
+        // bin, and at most the first run ending after the start of the next.
+        int lo = bins.get(bin);
+        int hi = bins.get(bin + 1);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (runEnd(mid) > offset) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns, for each bin and one past the last, the index of the first run
+     * that ends after the start of the bin.
+     */
+    private static int[] computeBins(long genomeLength, long[] runs) {
+        int numBins = (int) (genomeLength >>> BIN_SHIFT) + 2;
+        int[] rtrn = new int[numBins];
+        int run = 0;
+        int numRuns = runs.length / 2;
+        for (int b = 0; b < numBins; b++) {
+            long binStart = (long) b << BIN_SHIFT;
+            while (run < numRuns && runs[2 * run + 1] <= binStart) {
+                run++;
+            }
+            rtrn[b] = run;
+        }
+        return rtrn;
+    }
+
+    /**
+     * A builder class for {@link GenomeMask} objects.
+     * <p>
+     * Intervals may be added in any order and may overlap. Intervals on
+     * references not in the coordinate space are ignored, and intervals are
+     * clipped to the ends of their references.
+     */
+    public static final class Builder {
+
+        private final CoordinateSpace space;
+        private long[] starts = new long[64];
+        private long[] ends = new long[64];
+        private int size = 0;
+
+        private Builder(CoordinateSpace space) {
+            this.space = Objects.requireNonNull(space, "Attempted to build " +
+                    "a GenomeMask with a null coordinate space.");
+        }
+
+        /**
+         * Masks every position in the blocks of an annotation.
+         *
+         * @param a - the annotation
+         * @return this builder
+         */
+        public Builder add(Annotated a) {
+            int index = space.getReferenceIndex(a);
+            if (index < 0) {
+                return this;
+            }
+            long base = space.getReferenceOffset(index);
+            int length = space.getReferenceDictionary().getLength(index);
+            int[] blocks = a.getBlockBoundaries();
+            for (int b = 0; b < blocks.length; b += 2) {
+                int start = Math.max(blocks[b], 0);
+                int end = Math.min(blocks[b + 1], length);
+                if (start < end) {
+                    addInterval(base + start, base + end);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Masks every position in the blocks of every annotation from an
+         * iterator, e.g., a {@link edu.caltech.lncrna.bio.io.BedParser}.
+         * <p>
+         * The iterator is not closed by this method.
+         *
+         * @param annotations - the annotations
+         * @return this builder
+         */
+        public Builder addAll(Iterator<? extends Annotated> annotations) {
+            while (annotations.hasNext()) {
+                add(annotations.next());
+            }
+            return this;
+        }
+
+        private void addInterval(long start, long end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        /**
+         * @return a new <code>GenomeMask</code>
+         */
+        public GenomeMask build() {
+            // Sweep over the sorted starts and ends, tracking how many
+            // intervals cover the current position. Starts are taken before
+            // ends at the same offset, so adjacent intervals merge.
+            long[] sortedStarts = Arrays.copyOf(starts, size);
+            long[] sortedEnds = Arrays.copyOf(ends, size);
+            Arrays.sort(sortedStarts);
+            Arrays.sort(sortedEnds);
+
+            long[] runs = new long[2 * size];
+            int numRuns = 0;
+            int depth = 0;
+            int i = 0;
+            int j = 0;
+            while (i < size || j < size) {
+                if (i < size && sortedStarts[i] <= sortedEnds[j]) {
+                    if (depth++ == 0) {
+                        runs[2 * numRuns] = sortedStarts[i];
+                    }
+                    i++;
+                } else {
+                    if (--depth == 0) {
+                        runs[2 * numRuns + 1] = sortedEnds[j];
+                        numRuns++;
+                    }
+                    j++;
+                }
+            }
+            return new GenomeMask(space, Arrays.copyOf(runs, 2 * numRuns));
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package edu.caltech.lncrna.bio.datastructures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.ReferenceDictionary;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.utils.Futures;
+
+/**
+ * This class performs set operations (union, intersection, subtraction and
+ * complement) on whole collections of annotations, relative to a
+ * {@link CoordinateSpace}.
+ * <p>
+ * Each input is first reduced, in a single pass, to the sorted, disjoint runs
+ * of positions covered by the blocks of its annotations. Introns are not
+ * covered, strand is ignored, and positions beyond the end of a reference or
+ * on references not in the coordinate space are dropped. Each operation then
+ * makes one linear pass over the runs of each reference, with references
+ * processed in parallel.
+ * <p>
+ * Inputs may be any iterator of annotations whose starts are sorted within
+ * each reference, such as a sorted BED or BAM file or a {@link GenomeTree}.
+ * Results are returned as unstranded, single-block annotations, sorted in the
+ * reference order of the coordinate space and then by position. Adjacent
+ * runs are merged, so no two results overlap or touch.
+ * <p>
+ * Instances of this class are immutable and may be shared between threads.
+ */
+public final class GenomeSetOperations {
+
+    private final CoordinateSpace space;
+    private final int numThreads;
+
+    /**
+     * Class constructor.
+     *
+     * @param space - the coordinate space of the operations
+     * @param numThreads - the number of worker threads
+     * @throws IllegalArgumentException if the number of threads is not
+     * positive
+     * @throws NullPointerException if the coordinate space is
+     * <code>null</code>
+     */
+    public GenomeSetOperations(CoordinateSpace space, int numThreads) {
+        this.space = Objects.requireNonNull(space, "Attempted to perform " +
+                "set operations in a null coordinate space.");
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be " +
+                    "positive: " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Returns the positions covered by either of two collections.
+     *
+     * @param a - the first collection, sorted by start within each reference
+     * @param b - the second collection, sorted by start within each reference
+     */
+    public Iterator<Annotation> union(Iterator<? extends Annotated> a,
+            Iterator<? extends Annotated> b) {
+        Objects.requireNonNull(b, "Attempted to perform a set " +
+                "operation on a null iterator.");
+        return apply(a, b, GenomeSetOperations::union);
+    }
+
+    /**
+     * Returns the positions covered by either of two trees.
+     *
+     * @param a - the first tree
+     * @param b - the second tree
+     */
+    public Iterator<Annotation> union(GenomeTree<?> a, GenomeTree<?> b) {
+        return union(a.iterator(), b.iterator());
+    }
+
+    /**
+     * Returns the positions covered by both of two collections.
+     *
+     * @param a - the first collection, sorted by start within each reference
+     * @param b - the second collection, sorted by start within each reference
+     */
+    public Iterator<Annotation> intersect(Iterator<? extends Annotated> a,
+            Iterator<? extends Annotated> b) {
+        Objects.requireNonNull(b, "Attempted to perform a set " +
+                "operation on a null iterator.");
+        return apply(a, b, GenomeSetOperations::intersect);
+    }
+
+    /**
+     * Returns the positions covered by both of two trees.
+     *
+     * @param a - the first tree
+     * @param b - the second tree
+     */
+    public Iterator<Annotation> intersect(GenomeTree<?> a, GenomeTree<?> b) {
+        return intersect(a.iterator(), b.iterator());
+    }
+
+    /**
+     * Returns the positions covered by one collection but not by another,
+     * e.g., all reads minus a blacklist.
+     *
+     * @param a - the collection to subtract from, sorted by start within
+     * each reference
+     * @param b - the collection to subtract, sorted by start within each
+     * reference
+     */
+    public Iterator<Annotation> subtract(Iterator<? extends Annotated> a,
+            Iterator<? extends Annotated> b) {
+        Objects.requireNonNull(b, "Attempted to perform a set " +
+                "operation on a null iterator.");
+        return apply(a, b, GenomeSetOperations::subtract);
+    }
+
+    /**
+     * Returns the positions covered by one tree but not by another.
+     *
+     * @param a - the tree to subtract from
+     * @param b - the tree to subtract
+     */
+    public Iterator<Annotation> subtract(GenomeTree<?> a, GenomeTree<?> b) {
+        return subtract(a.iterator(), b.iterator());
+    }
+
+    /**
+     * Returns the positions of the coordinate space not covered by a
+     * collection, e.g., the intergenic regions given all genes.
+     *
+     * @param a - the collection, sorted by start within each reference
+     */
+    public Iterator<Annotation> complement(Iterator<? extends Annotated> a) {
+        return apply(a, null, (x, y, length) -> complement(x, length));
+    }
+
+    /**
+     * Returns the positions of the coordinate space not covered by a tree.
+     *
+     * @param a - the tree
+     */
+    public Iterator<Annotation> complement(GenomeTree<?> a) {
+        return complement(a.iterator());
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        int[] apply(int[] a, int[] b, int length);
+    }
+
+    private Iterator<Annotation> apply(Iterator<? extends Annotated> a,
+            Iterator<? extends Annotated> b, Operation op) {
+        Objects.requireNonNull(a, "Attempted to perform a set operation " +
+                "on a null iterator.");
+        ReferenceDictionary dict = space.getReferenceDictionary();
+        int numRefs = dict.size();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            Future<int[][]> runsA = pool.submit(() -> toRuns(a));
+            Future<int[][]> runsB = b == null
+                    ? null
+                    : pool.submit(() -> toRuns(b));
+            int[][] x = Futures.get(runsA);
+            int[][] y = runsB == null
+                    ? new int[numRefs][0]
+                    : Futures.get(runsB);
+
+            List<Future<int[]>> results = new ArrayList<>(numRefs);
+            for (int i = 0; i < numRefs; i++) {
+                int[] xi = x[i];
+                int[] yi = y[i];
+                int length = dict.getLength(i);
+                results.add(pool.submit(() -> op.apply(xi, yi, length)));
+            }
+            int[][] rtrn = new int[numRefs][];
+            for (int i = 0; i < numRefs; i++) {
+                rtrn[i] = Futures.get(results.get(i));
+            }
+            return new RunIterator(dict, rtrn);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Reduces annotations to the sorted, disjoint runs of positions covered
+     * by their blocks, as an array of (start, end) pairs for each reference.
+     */
+    private int[][] toRuns(Iterator<? extends Annotated> iter) {
+        ReferenceDictionary dict = space.getReferenceDictionary();
+        RunBuilder[] builders = new RunBuilder[dict.size()];
+        while (iter.hasNext()) {
+            Annotated annotation = iter.next();
+            int index = space.getReferenceIndex(annotation);
+            if (index < 0) {
+                continue;
+            }
+            if (builders[index] == null) {
+                builders[index] = new RunBuilder(dict.getLength(index));
+            }
+            builders[index].add(annotation);
+        }
+        int[][] rtrn = new int[builders.length][];
+        for (int i = 0; i < builders.length; i++) {
+            rtrn[i] = builders[i] == null ? new int[0] : builders[i].build();
+        }
+        return rtrn;
+    }
+
+    private static int[] union(int[] a, int[] b, int length) {
+        RunList rtrn = new RunList();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] <= b[j])) {
+                rtrn.append(a[i], a[i + 1]);
+                i += 2;
+            } else {
+                rtrn.append(b[j], b[j + 1]);
+                j += 2;
+            }
+        }
+        return rtrn.toArray();
+    }
+
+    private static int[] intersect(int[] a, int[] b, int length) {
+        RunList rtrn = new RunList();
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            int start = Math.max(a[i], b[j]);
+            int end = Math.min(a[i + 1], b[j + 1]);
+            if (start < end) {
+                rtrn.append(start, end);
+            }
+            if (a[i + 1] < b[j + 1]) {
+                i += 2;
+            } else {
+                j += 2;
+            }
+        }
+        return rtrn.toArray();
+    }
+
+    private static int[] subtract(int[] a, int[] b, int length) {
+        RunList rtrn = new RunList();
+        int j = 0;
+        for (int i = 0; i < a.length; i += 2) {
+            int start = a[i];
+            int end = a[i + 1];
+            while (j < b.length && b[j + 1] <= start) {
+                j += 2;
+            }
+            // Runs of b are disjoint, so each one that starts before the end
+            // of this run cuts a piece out of it.
+            int k = j;
+            while (k < b.length && b[k] < end) {
+                if (b[k] > start) {
+                    rtrn.append(start, b[k]);
+                }
+                start = Math.max(start, b[k + 1]);
+                k += 2;
+            }
+            if (start < end) {
+                rtrn.append(start, end);
+            }
+        }
+        return rtrn.toArray();
+    }
+
+    private static int[] complement(int[] a, int length) {
+        RunList rtrn = new RunList();
+        int start = 0;
+        for (int i = 0; i < a.length; i += 2) {
+            if (a[i] > start) {
+                rtrn.append(start, a[i]);
+            }
+            start = a[i + 1];
+        }
+        if (start < length) {
+            rtrn.append(start, length);
+        }
+        return rtrn.toArray();
+    }
+
+    /**
+     * A growable list of sorted runs that merges each appended run into the
+     * last one if they overlap or touch. Runs must be appended in order of
+     * start position.
+     */
+    private static class RunList {
+        private int[] data = new int[16];
+        private int size = 0;
+
+        void append(int start, int end) {
+            if (size > 0 && start <= data[size - 1]) {
+                data[size - 1] = Math.max(data[size - 1], end);
+                return;
+            }
+            if (size == data.length) {
+                data = Arrays.copyOf(data, 2 * size);
+            }
+            data[size++] = start;
+            data[size++] = end;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    /**
+     * Builds the runs of one reference from annotations sorted by start.
+     * <p>
+     * The first block of an annotation starts where the annotation does, so
+     * it can be appended at once. Later blocks of spliced annotations are
+     * held in a queue until no annotation still to come can start before
+     * them.
+     */
+    private static final class RunBuilder extends RunList {
+        private final int length;
+        private final PriorityQueue<Long> pending = new PriorityQueue<>();
+        private int lastStart = 0;
+
+        private RunBuilder(int length) {
+            this.length = length;
+        }
+
+        private void add(Annotated annotation) {
+            int start = annotation.getStart();
+            if (start < lastStart) {
+                throw new IllegalStateException("Annotations are not " +
+                        "sorted by start position: " + annotation);
+            }
+            lastStart = start;
+            flush(start);
+
+            Iterator<Annotated> blocks = annotation.getBlockIterator();
+            boolean first = true;
+            while (blocks.hasNext()) {
+                Annotated block = blocks.next();
+                int blockStart = block.getStart();
+                int blockEnd = Math.min(block.getEnd(), length);
+                if (blockStart >= blockEnd) {
+                    break;
+                }
+                if (first) {
+                    append(blockStart, blockEnd);
+                    first = false;
+                } else {
+                    pending.add(((long) blockStart << 32) | blockEnd);
+                }
+            }
+        }
+
+        /**
+         * Appends every pending block that starts at or before a position.
+         */
+        private void flush(int pos) {
+            while (!pending.isEmpty() && (pending.peek() >>> 32) <= pos) {
+                long block = pending.poll();
+                append((int) (block >>> 32), (int) block);
+            }
+        }
+
+        private int[] build() {
+            flush(Integer.MAX_VALUE);
+            return toArray();
+        }
+    }
+
+    /**
+     * An iterator over the runs of every reference, as annotations.
+     */
+    private static final class RunIterator implements Iterator<Annotation> {
+        private final ReferenceDictionary dict;
+        private final int[][] runs;
+        private int ref = 0;
+        private int i = 0;
+
+        private RunIterator(ReferenceDictionary dict, int[][] runs) {
+            this.dict = dict;
+            this.runs = runs;
+            skipEmpty();
+        }
+
+        private void skipEmpty() {
+            while (ref < runs.length && i == runs[ref].length) {
+                ref++;
+                i = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return ref < runs.length;
+        }
+
+        @Override
+        public Annotation next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Annotation rtrn = new Annotation(dict.getName(ref), runs[ref][i],
+                    runs[ref][i + 1], Strand.BOTH);
+            i += 2;
+            skipEmpty();
+            return rtrn;
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package edu.caltech.lncrna.bio.datastructures;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import edu.caltech.lncrna.bio.annotation.Annotated;
@@ -14,10 +14,15 @@ import edu.caltech.lncrna.bio.utils.FilteredIterator;
  * This class represents a tree structure suitable for storing annotations
  * ({@link Annotated} objects) across an entire genome, e.g., the annotations
  * from a BED file or a collection of reads from a BAM file.
+ * <p>
+ * Each reference has its own interval tree, found by the reference's
+ * identifier from {@link edu.caltech.lncrna.bio.annotation.ReferenceNames}
+ * rather than by its name.
  */
 public final class GenomeTree<T extends Annotated> implements Collection<T> {
 
-    private final Map<String, IntervalTree<T>> chroms;
+    // Indexed by reference identifier; null for references with no tree
+    private final List<IntervalTree<T>> chroms;
     
     /**
      * Class constructor.
@@ -25,27 +30,29 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
      * Constructs an empty tree.
      */
     public GenomeTree() {
-        chroms = new HashMap<>();
+        chroms = new ArrayList<>();
     }
     
     @Override
     public boolean isEmpty() {
-        return chroms.isEmpty() || size() == 0;
+        return size() == 0;
     }
     
     @Override
     public int size() {
-        return chroms.values()
-                     .stream()
-                     .mapToInt(IntervalTree::size)
-                     .sum();
+        int size = 0;
+        for (IntervalTree<T> tree : chroms) {
+            if (tree != null) {
+                size += tree.size();
+            }
+        }
+        return size;
     }
     
     @Override
     public boolean contains(Object o) {
         if (o instanceof Annotated) {
-            String ref = ((Annotated) o).getReferenceName();
-            IntervalTree<T> chromTree = chroms.get(ref);
+            IntervalTree<T> chromTree = getTree((Annotated) o);
             if (chromTree == null) {
                 return false;
             } else {
@@ -67,15 +74,23 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
     
     @Override
     public boolean add(T a) {
-        return chroms.computeIfAbsent(a.getReferenceName(), 
-                t -> new DegenerateIntervalTree<>()).add(a);
+        int id = a.getReferenceId();
+        while (chroms.size() <= id) {
+            chroms.add(null);
+        }
+        IntervalTree<T> tree = chroms.get(id);
+        if (tree == null) {
+            tree = new DegenerateIntervalTree<>();
+            chroms.set(id, tree);
+        }
+        return tree.add(a);
     }
     
     @Override
     public boolean addAll(Collection<? extends T> elements) {
         boolean rtrn = false;
         for (T element : elements) {
-            rtrn = rtrn || this.add(element);
+            rtrn |= this.add(element);
         }
         return rtrn;
     }
@@ -83,8 +98,7 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
     @Override
     public boolean remove(Object o) {
         if (o instanceof Annotated) {
-            String ref = ((Annotated) o).getReferenceName();
-            IntervalTree<T> chromTree = chroms.get(ref);
+            IntervalTree<T> chromTree = getTree((Annotated) o);
             if (chromTree == null) {
                 return false;
             } else {
@@ -98,7 +112,7 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
     public boolean removeAll(Collection<?> elements) {
         boolean rtrn = false;
         for (Object element : elements) {
-            rtrn = rtrn || this.remove(element);
+            rtrn |= this.remove(element);
         }
         return rtrn;
     }
@@ -131,14 +145,13 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
      * @return an iterator over all overlapping elements
      */
     public Iterator<T> overlappers(Annotated a) {
-        IntervalTree<T> tree = chroms.get(a.getReferenceName());
+        IntervalTree<T> tree = getTree(a);
         
         if (tree == null) {
             return Collections.emptyIterator();
         } else {
             return new FilteredIterator<T>(tree.overlappers(a),
-                    o -> a.getReferenceName().equals(o.getReferenceName())
-                         && o.overlaps(a));
+                    o -> o.overlaps(a));
         }
     }
     
@@ -155,7 +168,7 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
      * @return an iterator over all overlapping elements
      */
     public Iterator<T> bodyOverlappers(Annotated a) {
-        IntervalTree<T> tree = chroms.get(a.getReferenceName());
+        IntervalTree<T> tree = getTree(a);
         
         if (tree == null) {
             return Collections.emptyIterator();
@@ -209,11 +222,181 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
         return bodyOverlappers(a).hasNext();
     }
 
+    /**
+     * Returns an iterator over the <code>k</code> elements of this tree
+     * nearest to an {@link Annotated} object, in order of increasing
+     * distance.
+     * <p>
+     * Distances are measured between annotation bodies, and are the number
+     * of positions between them, so overlapping and adjacent annotations
+     * are at distance zero. Ties are broken arbitrarily. To answer many
+     * queries sorted by position, see {@link #nearestFinder()}.
+     * 
+     * @param a - the annotation to search around
+     * @param k - the maximum number of elements to return
+     * @param maxDistance - the maximum distance of a returned element
+     * @return an iterator over the nearest elements
+     * @throws IllegalArgumentException if <code>k</code> or the maximum
+     * distance is negative
+     */
+    public Iterator<T> nearest(Annotated a, int k, int maxDistance) {
+        return nearestFinder().nearest(a, k, maxDistance);
+    }
+    
+    /**
+     * Returns an iterator over the <code>k</code> nearest elements of this
+     * tree that lie wholly upstream of a stranded {@link Annotated} object,
+     * that is, before its 5'-end, in order of increasing distance.
+     * 
+     * @param a - the annotation to search upstream of
+     * @param k - the maximum number of elements to return
+     * @param maxDistance - the maximum distance of a returned element
+     * @return an iterator over the nearest upstream elements
+     * @throws IllegalArgumentException if the annotation is not on the
+     * positive or negative strand, or if <code>k</code> or the maximum
+     * distance is negative
+     * @see #nearest(Annotated, int, int)
+     */
+    public Iterator<T> nearestUpstream(Annotated a, int k, int maxDistance) {
+        return nearestFinder().nearestUpstream(a, k, maxDistance);
+    }
+    
+    /**
+     * Returns an iterator over the <code>k</code> nearest elements of this
+     * tree that lie wholly downstream of a stranded {@link Annotated} object,
+     * that is, after its 3'-end, in order of increasing distance.
+     * 
+     * @param a - the annotation to search downstream of
+     * @param k - the maximum number of elements to return
+     * @param maxDistance - the maximum distance of a returned element
+     * @return an iterator over the nearest downstream elements
+     * @throws IllegalArgumentException if the annotation is not on the
+     * positive or negative strand, or if <code>k</code> or the maximum
+     * distance is negative
+     * @see #nearest(Annotated, int, int)
+     */
+    public Iterator<T> nearestDownstream(Annotated a, int k,
+            int maxDistance) {
+        return nearestFinder().nearestDownstream(a, k, maxDistance);
+    }
+    
+    /**
+     * Returns a finder for nearest-element queries on this tree.
+     * <p>
+     * A finder answers the same queries as this tree, but keeps a cursor
+     * into the tree of each reference. When queries are sorted by position,
+     * as when finding the nearest gene to each peak of a sorted BED file,
+     * each search continues from where the last one on the same reference
+     * ended. A finder should not be used after this tree is modified.
+     * 
+     * @return a new finder over this tree
+     * @see IntervalTree#nearestCursor()
+     */
+    public NearestFinder nearestFinder() {
+        return new NearestFinder();
+    }
+
     @Override
     public Iterator<T> iterator() {
         return new TreeIterator(chroms);
     }
     
+    private IntervalTree<T> getTree(Annotated a) {
+        int id = a.getReferenceId();
+        return id < chroms.size() ? chroms.get(id) : null;
+    }
+    
+    /**
+     * A finder for nearest-element queries on a {@link GenomeTree}.
+     * 
+     * @see GenomeTree#nearestFinder()
+     */
+    public final class NearestFinder {
+
+        // Indexed by reference identifier, like the trees themselves
+        private final List<IntervalTree.NearestCursor<T>> cursors =
+                new ArrayList<>();
+
+        private NearestFinder() { }
+
+        /**
+         * @see GenomeTree#nearest(Annotated, int, int)
+         */
+        public Iterator<T> nearest(Annotated a, int k, int maxDistance) {
+            IntervalTree.NearestCursor<T> cursor = getCursor(a);
+            return cursor == null
+                    ? emptyNearest(k, maxDistance)
+                    : cursor.nearest(a, k, maxDistance);
+        }
+
+        /**
+         * @see GenomeTree#nearestUpstream(Annotated, int, int)
+         */
+        public Iterator<T> nearestUpstream(Annotated a, int k,
+                int maxDistance) {
+            return nearestStranded(a, k, maxDistance, true);
+        }
+
+        /**
+         * @see GenomeTree#nearestDownstream(Annotated, int, int)
+         */
+        public Iterator<T> nearestDownstream(Annotated a, int k,
+                int maxDistance) {
+            return nearestStranded(a, k, maxDistance, false);
+        }
+
+        private Iterator<T> nearestStranded(Annotated a, int k,
+                int maxDistance, boolean upstream) {
+            // Upstream of the 5'-end is before it on the positive strand and
+            // after it on the negative strand.
+            boolean preceding;
+            switch (a.getStrand()) {
+            case POSITIVE:
+                preceding = upstream;
+                break;
+            case NEGATIVE:
+                preceding = !upstream;
+                break;
+            default:
+                throw new IllegalArgumentException("Upstream and downstream " +
+                        "are not defined for strand " + a.getStrand());
+            }
+            IntervalTree.NearestCursor<T> cursor = getCursor(a);
+            if (cursor == null) {
+                return emptyNearest(k, maxDistance);
+            }
+            return preceding
+                    ? cursor.nearestPreceding(a, k, maxDistance)
+                    : cursor.nearestFollowing(a, k, maxDistance);
+        }
+
+        private IntervalTree.NearestCursor<T> getCursor(Annotated a) {
+            IntervalTree<T> tree = getTree(a);
+            if (tree == null) {
+                return null;
+            }
+            int id = a.getReferenceId();
+            while (cursors.size() <= id) {
+                cursors.add(null);
+            }
+            IntervalTree.NearestCursor<T> cursor = cursors.get(id);
+            if (cursor == null) {
+                cursor = tree.nearestCursor();
+                cursors.set(id, cursor);
+            }
+            return cursor;
+        }
+
+        private Iterator<T> emptyNearest(int k, int maxDistance) {
+            if (k < 0 || maxDistance < 0) {
+                throw new IllegalArgumentException("Number of nearest " +
+                        "elements and maximum distance must be " +
+                        "non-negative: " + k + ", " + maxDistance);
+            }
+            return Collections.emptyIterator();
+        }
+    }
+    
     /**
      * An iterator over the chromosomal interval-trees that make up this
      * genome tree.
@@ -224,10 +407,9 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
         private Iterator<IntervalTree<T>> iter;
         private IntervalTree<T> next;
         
-        private ChromosomeIterator(
-                Map<String, IntervalTree<T>> chromMap) {
+        private ChromosomeIterator(List<IntervalTree<T>> chromList) {
 
-            iter = chromMap.values().iterator();
+            iter = chromList.iterator();
             findNext();
         }
         
@@ -235,7 +417,7 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
             next = null;
             while (next == null && iter.hasNext()) {
                 next = iter.next();
-                if (next.isEmpty()) {
+                if (next != null && next.isEmpty()) {
                     next = null;
                 }
             }
@@ -262,8 +444,8 @@ public final class GenomeTree<T extends Annotated> implements Collection<T> {
         private final ChromosomeIterator chromIter;
         private Iterator<T> chromElements;
         
-        private TreeIterator(Map<String, IntervalTree<T>> chromMap) {
-            chromIter = new ChromosomeIterator(chromMap);
+        private TreeIterator(List<IntervalTree<T>> chromList) {
+            chromIter = new ChromosomeIterator(chromList);
             if (chromIter.hasNext()) {
                 chromElements = chromIter.next().iterator();
             } else {
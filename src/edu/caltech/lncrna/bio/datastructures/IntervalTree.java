@@ -100,6 +100,67 @@ public interface IntervalTree<T extends Interval> extends Collection<T> {
      */
     public Iterator<T> predecessors(Interval i);
     
+    /**
+     * Returns an iterator over the <code>k</code> elements of this tree
+     * nearest to the given interval, in order of increasing distance.
+     * <p>
+     * The distance between two intervals is the number of positions between
+     * them, so overlapping and adjacent intervals are at distance zero.
+     * Elements farther than the maximum distance are not returned, so fewer
+     * than <code>k</code> elements may be returned. Ties are broken
+     * arbitrarily.
+     * 
+     * @param i - the interval to search around
+     * @param k - the maximum number of elements to return
+     * @param maxDistance - the maximum distance of a returned element
+     * @return an iterator over the nearest elements
+     * @throws IllegalArgumentException if <code>k</code> or the maximum
+     * distance is negative
+     */
+    public Iterator<T> nearest(Interval i, int k, int maxDistance);
+    
+    /**
+     * Returns an iterator over the <code>k</code> nearest elements of this
+     * tree that end at or before the start of the given interval, in order of
+     * increasing distance.
+     * 
+     * @param i - the interval to search before
+     * @param k - the maximum number of elements to return
+     * @param maxDistance - the maximum distance of a returned element
+     * @return an iterator over the nearest preceding elements
+     * @throws IllegalArgumentException if <code>k</code> or the maximum
+     * distance is negative
+     * @see #nearest(Interval, int, int)
+     */
+    public Iterator<T> nearestPreceding(Interval i, int k, int maxDistance);
+    
+    /**
+     * Returns an iterator over the <code>k</code> nearest elements of this
+     * tree that start at or after the end of the given interval, in order of
+     * increasing distance.
+     * 
+     * @param i - the interval to search after
+     * @param k - the maximum number of elements to return
+     * @param maxDistance - the maximum distance of a returned element
+     * @return an iterator over the nearest following elements
+     * @throws IllegalArgumentException if <code>k</code> or the maximum
+     * distance is negative
+     * @see #nearest(Interval, int, int)
+     */
+    public Iterator<T> nearestFollowing(Interval i, int k, int maxDistance);
+    
+    /**
+     * Returns a cursor for nearest-element queries on this tree.
+     * <p>
+     * A cursor answers the same queries as this tree, but remembers where
+     * its last search ended. Queries sorted by position can reuse that
+     * position rather than searching from the root each time. A cursor
+     * should not be used after this tree is modified.
+     * 
+     * @return a new cursor over this tree
+     */
+    public NearestCursor<T> nearestCursor();
+    
     /**
      * Removes all of the minimum elements from this tree.
      * <p>
@@ -133,5 +194,31 @@ public interface IntervalTree<T extends Interval> extends Collection<T> {
      * removed
      */
     public boolean removeOverlappers(Interval i);
-    
+
+    /**
+     * This interface defines a cursor for nearest-element queries on an
+     * {@link IntervalTree}.
+     *
+     * @param <T> - the type of interval in the tree
+     * @see IntervalTree#nearestCursor()
+     */
+    public interface NearestCursor<T extends Interval> {
+
+        /**
+         * @see IntervalTree#nearest(Interval, int, int)
+         */
+        public Iterator<T> nearest(Interval i, int k, int maxDistance);
+
+        /**
+         * @see IntervalTree#nearestPreceding(Interval, int, int)
+         */
+        public Iterator<T> nearestPreceding(Interval i, int k,
+                int maxDistance);
+
+        /**
+         * @see IntervalTree#nearestFollowing(Interval, int, int)
+         */
+        public Iterator<T> nearestFollowing(Interval i, int k,
+                int maxDistance);
+    }
 }
@@ -0,0 +1,251 @@
+package edu.caltech.lncrna.bio.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * This class represents a hash map from primitive <code>long</code> keys to
+ * primitive <code>float</code> values.
+ * <p>
+ * This is the <code>float</code>-valued counterpart of {@link LongIntHashMap},
+ * for accumulating weighted counts such as the contacts of a
+ * {@link ContactMatrix}. Keys are stored in a single open-addressing table
+ * with linear probing, and neither keys nor values are boxed.
+ * <p>
+ * Mappings cannot be removed. This class is not thread-safe.
+ */
+public final class LongFloatHashMap {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    // Zero marks an empty slot, so the zero key is stored separately.
+    private long[] keys;
+    private float[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+    private boolean hasZeroKey;
+    private float zeroValue;
+
+    /**
+     * Represents an operation that accepts a single key-value mapping.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        public void accept(long key, float value);
+    }
+
+    /**
+     * Class constructor.
+     * <p>
+     * Constructs an empty map with a small default capacity.
+     */
+    public LongFloatHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Class constructor.
+     * <p>
+     * Constructs an empty map large enough to hold the expected number of
+     * mappings without resizing.
+     *
+     * @param expectedSize - the expected number of mappings
+     * @throws IllegalArgumentException if <code>expectedSize</code> is
+     * negative
+     */
+    public LongFloatHashMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Attempted to create a " +
+                    "LongFloatHashMap with negative size: " + expectedSize);
+        }
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @return the number of mappings in this map
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the value mapped to a key, or zero if the key is absent.
+     *
+     * @param key - the key
+     */
+    public float get(long key) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : 0;
+        }
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Maps a key to a value, replacing any previous value.
+     *
+     * @param key - the key
+     * @param value - the value
+     */
+    public void put(long key, float value) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int slot = findOrInsert(key);
+        values[slot] = value;
+    }
+
+    /**
+     * Adds a delta to the value mapped to a key. Absent keys are treated as
+     * though they were mapped to zero.
+     *
+     * @param key - the key
+     * @param delta - the amount to add
+     * @return the new value mapped to the key
+     */
+    public float addTo(long key, float delta) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue += delta;
+            return zeroValue;
+        }
+        int slot = findOrInsert(key);
+        values[slot] += delta;
+        return values[slot];
+    }
+
+    /**
+     * Performs the given action on every mapping in this map, in no
+     * particular order.
+     *
+     * @param action - the action to perform
+     */
+    public void forEach(EntryConsumer action) {
+        if (hasZeroKey) {
+            action.accept(0, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the keys of this map in ascending order
+     */
+    public long[] sortedKeys() {
+        long[] rtrn = new long[size];
+        int n = 0;
+        if (hasZeroKey) {
+            rtrn[n++] = 0;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                rtrn[n++] = keys[i];
+            }
+        }
+        Arrays.sort(rtrn);
+        return rtrn;
+    }
+
+    /**
+     * Removes all mappings from this map. The capacity is kept.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        hasZeroKey = false;
+        zeroValue = 0f;
+        size = 0;
+    }
+
+    private int findOrInsert(long key) {
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size + 1 > resizeThreshold) {
+            rehash(keys.length << 1);
+            return findOrInsert(key);
+        }
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        float[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int slot = slot(key);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new float[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int slot(long key) {
+        return (int) LongIntHashMap.mix(key) & mask;
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        long needed = (long) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR);
+        if (needed > (1 << 30)) {
+            throw new IllegalArgumentException("LongFloatHashMap cannot hold " +
+                    expectedSize + " mappings.");
+        }
+        int capacity = Integer.highestOneBit((int) needed);
+        return Math.max(capacity < needed ? capacity << 1 : capacity,
+                DEFAULT_CAPACITY);
+    }
+}
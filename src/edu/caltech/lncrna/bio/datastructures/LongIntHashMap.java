@@ -0,0 +1,334 @@
+package edu.caltech.lncrna.bio.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * This class represents a hash map from primitive <code>long</code> keys to
+ * primitive <code>int</code> values.
+ * <p>
+ * Unlike a <code>HashMap&lt;Long, Integer&gt;</code>, this map does not box
+ * its keys or values and does not allocate an entry object per mapping. Keys
+ * are stored in a single open-addressing table with linear probing, which
+ * makes it suitable for counting very large numbers of small keys such as
+ * 2-bit-encoded k-mers.
+ * <p>
+ * Removing a mapping shifts the entries that follow it in its probe sequence
+ * back into place instead of leaving a tombstone, so a map used as a sliding
+ * window over a stream of keys does not degrade. This class is not
+ * thread-safe.
+ */
+public final class LongIntHashMap {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    // Zero marks an empty slot, so the zero key is stored separately.
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    /**
+     * Represents an operation that accepts a single key-value mapping.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        public void accept(long key, int value);
+    }
+
+    /**
+     * Class constructor.
+     * <p>
+     * Constructs an empty map with a small default capacity.
+     */
+    public LongIntHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Class constructor.
+     * <p>
+     * Constructs an empty map large enough to hold the expected number of
+     * mappings without resizing.
+     *
+     * @param expectedSize - the expected number of mappings
+     * @throws IllegalArgumentException if <code>expectedSize</code> is
+     * negative
+     */
+    public LongIntHashMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Attempted to create a " +
+                    "LongIntHashMap with negative size: " + expectedSize);
+        }
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @return the number of mappings in this map
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the value mapped to a key, or zero if the key is absent.
+     *
+     * @param key - the key
+     */
+    public int get(long key) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : 0;
+        }
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Maps a key to a value, replacing any previous value.
+     *
+     * @param key - the key
+     * @param value - the value
+     */
+    public void put(long key, int value) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int slot = findOrInsert(key);
+        values[slot] = value;
+    }
+
+    /**
+     * Adds a delta to the value mapped to a key. Absent keys are treated as
+     * though they were mapped to zero.
+     *
+     * @param key - the key
+     * @param delta - the amount to add
+     * @return the new value mapped to the key
+     */
+    public int addTo(long key, int delta) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue += delta;
+            return zeroValue;
+        }
+        int slot = findOrInsert(key);
+        values[slot] += delta;
+        return values[slot];
+    }
+
+    /**
+     * Removes the mapping for a key, if present.
+     *
+     * @param key - the key
+     * @return the value that was mapped to the key, or zero if the key was
+     * absent
+     */
+    public int remove(long key) {
+        if (key == 0) {
+            int rtrn = zeroValue;
+            if (hasZeroKey) {
+                hasZeroKey = false;
+                zeroValue = 0;
+                size--;
+            }
+            return rtrn;
+        }
+        int slot = slot(key);
+        while (keys[slot] != key) {
+            if (keys[slot] == 0) {
+                return 0;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int rtrn = values[slot];
+        // An entry can fill the gap if the gap lies between its home slot and
+        // its current slot
+        int gap = slot;
+        for (int i = (gap + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            int home = slot(keys[i]);
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+        size--;
+        return rtrn;
+    }
+
+    /**
+     * Performs the given action on every mapping in this map, in no
+     * particular order.
+     *
+     * @param action - the action to perform
+     */
+    public void forEach(EntryConsumer action) {
+        if (hasZeroKey) {
+            action.accept(0, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the keys of this map in ascending order
+     */
+    public long[] sortedKeys() {
+        long[] rtrn = new long[size];
+        int n = 0;
+        if (hasZeroKey) {
+            rtrn[n++] = 0;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                rtrn[n++] = keys[i];
+            }
+        }
+        Arrays.sort(rtrn);
+        return rtrn;
+    }
+
+    /**
+     * Removes all mappings from this map. The capacity is kept.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        hasZeroKey = false;
+        zeroValue = 0;
+        size = 0;
+    }
+
+    private int findOrInsert(long key) {
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size + 1 > resizeThreshold) {
+            rehash(keys.length << 1);
+            return findOrInsert(key);
+        }
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int slot = slot(key);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int slot(long key) {
+        return (int) mix(key) & mask;
+    }
+
+    /**
+     * Scrambles the bits of a key so that structured keys, such as k-mers
+     * that share a prefix, spread evenly over the table.
+     * <p>
+     * This is the 64-bit finalizer from MurmurHash3.
+     *
+     * @param key - the key to scramble
+     */
+    public static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Hashes a string to a 64-bit key, for strings such as read names and
+     * barcodes that are looked up by key rather than stored.
+     * <p>
+     * This is 64-bit FNV-1a over the string's characters. Its low bits are
+     * poorly spread, so pass the result through {@link #mix(long)} before
+     * using it to order or partition keys.
+     *
+     * @param s - the string to hash
+     * @param from - the index of the first character to hash
+     */
+    public static long hash(CharSequence s, int from) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = from; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        long needed = (long) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR);
+        if (needed > (1 << 30)) {
+            throw new IllegalArgumentException("LongIntHashMap cannot hold " +
+                    expectedSize + " mappings.");
+        }
+        int capacity = Integer.highestOneBit((int) needed);
+        return Math.max(capacity < needed ? capacity << 1 : capacity,
+                DEFAULT_CAPACITY);
+    }
+}
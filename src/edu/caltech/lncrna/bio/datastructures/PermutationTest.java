@@ -0,0 +1,403 @@
+package edu.caltech.lncrna.bio.datastructures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.utils.Futures;
+
+/**
+ * This class tests whether a set of annotations, such as peaks, overlaps a
+ * set of features more often than expected by chance.
+ * <p>
+ * The statistic is the number of query annotations that overlap at least one
+ * feature. Its null distribution is found by shuffling the query annotations
+ * to random positions in a {@link CoordinateSpace} many times and recounting.
+ * Each annotation keeps its length when shuffled, and spliced annotations are
+ * shuffled as their spans. Shuffled annotations can optionally be kept on
+ * their original references, and can be kept out of excluded regions, such
+ * as assembly gaps, given as a {@link GenomeMask}. Annotations on references
+ * not in the coordinate space are ignored.
+ * <p>
+ * The features are indexed once as a <code>GenomeMask</code>, and each
+ * shuffled annotation is only a linear offset in a primitive array, so no
+ * objects are allocated per annotation per permutation. Permutations are run
+ * in parallel, and each permutation draws from its own generator seeded from
+ * the seed of the test and the index of the permutation, so results depend
+ * only on the seed and not on the number of threads.
+ * <p>
+ * Instances are built with a {@link Builder}, and may be shared between
+ * threads.
+ */
+public final class PermutationTest {
+
+    // The number of random positions tried for each annotation before giving
+    // up, when positions are rejected for running off the end of a reference
+    // or into an excluded region
+    private static final int MAX_ATTEMPTS = 100000;
+
+    private final CoordinateSpace space;
+    private final GenomeMask exclude;
+    private final boolean preserveReferences;
+    private final int numThreads;
+    private final long seed;
+
+    // The linear offset at which each reference starts, and one past the end
+    private final long[] refOffsets;
+
+    private PermutationTest(Builder b) {
+        space = b.space;
+        exclude = b.exclude;
+        preserveReferences = b.preserveReferences;
+        numThreads = b.numThreads;
+        seed = b.seed;
+
+        int numRefs = space.getReferenceDictionary().size();
+        refOffsets = new long[numRefs + 1];
+        for (int i = 0; i < numRefs; i++) {
+            refOffsets[i] = space.getReferenceOffset(i);
+        }
+        refOffsets[numRefs] = space.getGenomeLength();
+    }
+
+    /**
+     * Returns a builder for permutation tests within a coordinate space.
+     *
+     * @param space - the coordinate space to shuffle annotations within
+     * @throws NullPointerException if the coordinate space is
+     * <code>null</code>
+     */
+    public static Builder builder(CoordinateSpace space) {
+        return new Builder(space);
+    }
+
+    /**
+     * Tests whether annotations overlap a set of features more often than
+     * expected by chance.
+     *
+     * @param query - the annotations to shuffle
+     * @param features - the features
+     * @param numPermutations - the number of times to shuffle
+     * @return the observed statistic and its null distribution
+     * @throws IllegalArgumentException if the number of permutations is not
+     * positive
+     * @throws IllegalStateException if an annotation cannot be placed outside
+     * of the excluded regions
+     */
+    public Result test(Iterator<? extends Annotated> query,
+            Iterator<? extends Annotated> features, int numPermutations) {
+        Objects.requireNonNull(features, "Attempted to test against null " +
+                "features.");
+        return test(query, GenomeMask.builder(space).addAll(features).build(),
+                numPermutations);
+    }
+
+    /**
+     * Tests whether annotations overlap a set of features, indexed as a
+     * <code>GenomeMask</code>, more often than expected by chance.
+     * <p>
+     * A mask of features can be built once and reused for many tests.
+     *
+     * @param query - the annotations to shuffle
+     * @param features - the features, in the coordinate space of this test
+     * @param numPermutations - the number of times to shuffle
+     * @return the observed statistic and its null distribution
+     * @throws IllegalArgumentException if the number of permutations is not
+     * positive, or if the mask is in another coordinate space
+     * @throws IllegalStateException if an annotation cannot be placed outside
+     * of the excluded regions
+     */
+    public Result test(Iterator<? extends Annotated> query,
+            GenomeMask features, int numPermutations) {
+        Objects.requireNonNull(query, "Attempted to shuffle a null iterator.");
+        Objects.requireNonNull(features, "Attempted to test against null " +
+                "features.");
+        if (numPermutations < 1) {
+            throw new IllegalArgumentException("Number of permutations must " +
+                    "be positive: " + numPermutations);
+        }
+        if (!space.isCompatible(features.getCoordinateSpace())) {
+            throw new IllegalArgumentException("Attempted to test against " +
+                    "features in another coordinate space.");
+        }
+
+        Query q = new Query(query);
+        int observed = 0;
+        for (int i = 0; i < q.size; i++) {
+            if (features.overlaps(q.starts[i], q.starts[i] + q.lengths[i])) {
+                observed++;
+            }
+        }
+
+        int[] nulls = new int[numPermutations];
+        int numTasks = Math.min(numThreads, numPermutations);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < numTasks; t++) {
+                int from = (int) ((long) numPermutations * t / numTasks);
+                int to = (int) ((long) numPermutations * (t + 1) / numTasks);
+                futures.add(pool.submit(() -> {
+                    long[] shuffled = new long[q.size];
+                    for (int p = from; p < to; p++) {
+                        shuffle(q, shuffled, p);
+                        nulls[p] = count(q, shuffled, features);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                Futures.get(future);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Result(observed, nulls);
+    }
+
+    /**
+     * Fills an array with the shuffled linear start offsets of the query
+     * annotations for one permutation.
+     */
+    private void shuffle(Query q, long[] shuffled, int permutation) {
+        SplittableRandom random = new SplittableRandom(
+                LongIntHashMap.mix(seed + permutation));
+        for (int i = 0; i < q.size; i++) {
+            shuffled[i] = place(q.refIndices[i], q.lengths[i], random);
+        }
+    }
+
+    private long place(int refIndex, int length, SplittableRandom random) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long start;
+            if (preserveReferences) {
+                long refStart = refOffsets[refIndex];
+                start = refStart + random.nextLong(
+                        refOffsets[refIndex + 1] - refStart - length + 1);
+            } else {
+                start = random.nextLong(refOffsets[refOffsets.length - 1]);
+                int r = Arrays.binarySearch(refOffsets, start);
+                r = r >= 0 ? r : -r - 2;
+                if (start + length > refOffsets[r + 1]) {
+                    continue;
+                }
+            }
+            if (exclude == null || !exclude.overlaps(start, start + length)) {
+                return start;
+            }
+        }
+        throw new IllegalStateException("Could not place an annotation of " +
+                "length " + length + " outside of the excluded regions.");
+    }
+
+    private static int count(Query q, long[] shuffled, GenomeMask features) {
+        int count = 0;
+        for (int i = 0; i < q.size; i++) {
+            if (features.overlaps(shuffled[i], shuffled[i] + q.lengths[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The query annotations, as the reference index, linear start offset and
+     * span length of each.
+     */
+    private final class Query {
+        private int[] refIndices = new int[16];
+        private long[] starts = new long[16];
+        private int[] lengths = new int[16];
+        private int size;
+
+        private Query(Iterator<? extends Annotated> annotations) {
+            while (annotations.hasNext()) {
+                Annotated a = annotations.next();
+                int index = space.getReferenceIndex(a);
+                if (index < 0) {
+                    continue;
+                }
+                int length = a.getEnd() - a.getStart();
+                if (length > refOffsets[index + 1] - refOffsets[index]) {
+                    throw new IllegalArgumentException("Attempted to shuffle " +
+                            "an annotation longer than its reference: " + a);
+                }
+                if (size == starts.length) {
+                    refIndices = Arrays.copyOf(refIndices, 2 * size);
+                    starts = Arrays.copyOf(starts, 2 * size);
+                    lengths = Arrays.copyOf(lengths, 2 * size);
+                }
+                refIndices[size] = index;
+                starts[size] = refOffsets[index] + a.getStart();
+                lengths[size] = length;
+                size++;
+            }
+        }
+    }
+
+    /**
+     * This class represents the result of a permutation test: the observed
+     * number of annotations overlapping features, and the numbers in each
+     * permutation.
+     */
+    public static final class Result {
+
+        private final int observed;
+        private final int[] nulls;
+
+        private Result(int observed, int[] nulls) {
+            this.observed = observed;
+            this.nulls = nulls;
+        }
+
+        /**
+         * @return the number of unshuffled annotations that overlap a feature
+         */
+        public int getObserved() {
+            return observed;
+        }
+
+        /**
+         * @return a copy of the number of shuffled annotations that overlap a
+         * feature in each permutation, in order of permutation
+         */
+        public int[] getNullDistribution() {
+            return nulls.clone();
+        }
+
+        /**
+         * @return the mean of the null distribution
+         */
+        public double getExpected() {
+            long sum = 0;
+            for (int n : nulls) {
+                sum += n;
+            }
+            return (double) sum / nulls.length;
+        }
+
+        /**
+         * @return the ratio of the observed number to the mean of the null
+         * distribution
+         */
+        public double getFoldEnrichment() {
+            return observed / getExpected();
+        }
+
+        /**
+         * Returns the empirical p-value of enrichment: the fraction of
+         * permutations, counting the observed data as one, with at least as
+         * many overlaps as observed.
+         */
+        public double getPValue() {
+            int atLeast = 0;
+            for (int n : nulls) {
+                if (n >= observed) {
+                    atLeast++;
+                }
+            }
+            return (atLeast + 1.0) / (nulls.length + 1.0);
+        }
+
+        /**
+         * Returns the empirical p-value of depletion: the fraction of
+         * permutations, counting the observed data as one, with at most as
+         * many overlaps as observed.
+         */
+        public double getDepletionPValue() {
+            int atMost = 0;
+            for (int n : nulls) {
+                if (n <= observed) {
+                    atMost++;
+                }
+            }
+            return (atMost + 1.0) / (nulls.length + 1.0);
+        }
+    }
+
+    /**
+     * A builder class for {@link PermutationTest} objects.
+     * <p>
+     * By default, annotations are shuffled anywhere in the coordinate space
+     * on one thread, with a seed of zero.
+     */
+    public static final class Builder {
+
+        private final CoordinateSpace space;
+        private GenomeMask exclude = null;
+        private boolean preserveReferences = false;
+        private int numThreads = 1;
+        private long seed = 0;
+
+        private Builder(CoordinateSpace space) {
+            this.space = Objects.requireNonNull(space, "Attempted to shuffle " +
+                    "annotations within a null coordinate space.");
+        }
+
+        /**
+         * @param exclude - the regions shuffled annotations may not overlap,
+         * in the coordinate space of this builder
+         * @return this builder
+         * @throws IllegalArgumentException if the mask is in another
+         * coordinate space
+         */
+        public Builder exclude(GenomeMask exclude) {
+            Objects.requireNonNull(exclude, "Attempted to exclude a null " +
+                    "mask.");
+            if (!space.isCompatible(exclude.getCoordinateSpace())) {
+                throw new IllegalArgumentException("Attempted to exclude a " +
+                        "mask in another coordinate space.");
+            }
+            this.exclude = exclude;
+            return this;
+        }
+
+        /**
+         * @param preserveReferences - whether shuffled annotations should
+         * stay on their original references
+         * @return this builder
+         */
+        public Builder preserveReferences(boolean preserveReferences) {
+            this.preserveReferences = preserveReferences;
+            return this;
+        }
+
+        /**
+         * @param numThreads - the number of worker threads
+         * @return this builder
+         * @throws IllegalArgumentException if the number is not positive
+         */
+        public Builder numThreads(int numThreads) {
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("Number of threads must " +
+                        "be positive: " + numThreads);
+            }
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * @param seed - the seed of the random shuffles
+         * @return this builder
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @return a new <code>PermutationTest</code>
+         */
+        public PermutationTest build() {
+            return new PermutationTest(this);
+        }
+    }
+}
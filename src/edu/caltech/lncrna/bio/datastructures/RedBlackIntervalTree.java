@@ -1,9 +1,12 @@
 package edu.caltech.lncrna.bio.datastructures;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 /**
  * A self-balancing binary-search tree that contains {@link Interval} objects.
@@ -188,6 +191,26 @@ implements IntervalTree<T> {
         return n.iterator();
     }
 
+    @Override
+    public Iterator<T> nearest(Interval i, int k, int maxDistance) {
+        return nearestCursor().nearest(i, k, maxDistance);
+    }
+
+    @Override
+    public Iterator<T> nearestPreceding(Interval i, int k, int maxDistance) {
+        return nearestCursor().nearestPreceding(i, k, maxDistance);
+    }
+
+    @Override
+    public Iterator<T> nearestFollowing(Interval i, int k, int maxDistance) {
+        return nearestCursor().nearestFollowing(i, k, maxDistance);
+    }
+
+    @Override
+    public NearestCursor<T> nearestCursor() {
+        return new TreeNearestCursor();
+    }
+
     ///////////////////////
     // Insertion methods //
     ///////////////////////
@@ -196,7 +219,7 @@ implements IntervalTree<T> {
     public boolean addAll(Collection<? extends T> elements) {
         boolean rtrn = false;
         for (T element : elements) {
-            rtrn = rtrn || add(element);
+            rtrn |= add(element);
         }
         return rtrn;
     }
@@ -305,7 +328,7 @@ implements IntervalTree<T> {
     public boolean removeAll(Collection<?> c) {
         boolean rtrn = false;
         for (Object element : c) {
-            rtrn = rtrn || remove(element);
+            rtrn |= remove(element);
         }
         return rtrn;
     }
@@ -614,6 +637,198 @@ implements IntervalTree<T> {
 
 
     
+    /**
+     * A cursor for nearest-node queries.
+     * <p>
+     * Nodes that start at or after the end of the query are visited in
+     * order, starting from the first of them. The cursor remembers this node,
+     * and advances it rather than searching the tree again when the next
+     * query ends at or after the last one.
+     * <p>
+     * All other candidate nodes start before the end of the query. They are
+     * visited with a best-first search, in which a subtree is bounded by the
+     * <code>maxEnd</code> of its root: if it is at or before the start of the
+     * query, no node in the subtree can be closer than the gap between them.
+     * A subtree that holds only nodes starting at or after the end of the
+     * query is skipped, since those nodes are visited in order instead.
+     */
+    private final class TreeNearestCursor implements NearestCursor<T> {
+
+        private RedBlackNode<T, U> following = null;
+        private int lastEnd;
+
+        @Override
+        public Iterator<T> nearest(Interval i, int k, int maxDistance) {
+            return search(i, k, maxDistance, true, true);
+        }
+
+        @Override
+        public Iterator<T> nearestPreceding(Interval i, int k,
+                int maxDistance) {
+            return search(i, k, maxDistance, true, false);
+        }
+
+        @Override
+        public Iterator<T> nearestFollowing(Interval i, int k,
+                int maxDistance) {
+            return search(i, k, maxDistance, false, true);
+        }
+
+        private Iterator<T> search(Interval i, int k, int maxDistance,
+                boolean before, boolean after) {
+            if (k < 0) {
+                throw new IllegalArgumentException("Number of nearest " +
+                        "elements must be non-negative: " + k);
+            }
+            if (maxDistance < 0) {
+                throw new IllegalArgumentException("Maximum distance must " +
+                        "be non-negative: " + maxDistance);
+            }
+
+            List<T> rtrn = new ArrayList<>(Math.min(k, size));
+            if (k == 0) {
+                return rtrn.iterator();
+            }
+
+            RedBlackNode<T, U> right = after ? firstFollowing(i.getEnd()) : nil;
+            PriorityQueue<SearchEntry> left = new PriorityQueue<>();
+            if (before) {
+                pushSubtree(left, root, Integer.MIN_VALUE, i, maxDistance);
+            }
+
+            while (rtrn.size() < k) {
+                RedBlackNode<T, U> leftNode = nextLeftNode(left, i,
+                        maxDistance, after);
+                int leftDistance = leftNode.isNil()
+                        ? Integer.MAX_VALUE
+                        : left.peek().key;
+                int rightDistance = right.isNil()
+                        ? Integer.MAX_VALUE
+                        : right.getStart() - i.getEnd();
+                if (rightDistance > maxDistance) {
+                    rightDistance = Integer.MAX_VALUE;
+                }
+                if (leftDistance == Integer.MAX_VALUE &&
+                        rightDistance == Integer.MAX_VALUE) {
+                    break;
+                }
+
+                RedBlackNode<T, U> n;
+                if (leftDistance <= rightDistance) {
+                    n = leftNode;
+                    left.poll();
+                } else {
+                    n = right;
+                    right = right.successor();
+                }
+                Iterator<T> elements = n.iterator();
+                while (elements.hasNext() && rtrn.size() < k) {
+                    rtrn.add(elements.next());
+                }
+            }
+            return rtrn.iterator();
+        }
+
+        /**
+         * Returns the first node that starts at or after a position.
+         */
+        private RedBlackNode<T, U> firstFollowing(int pos) {
+            if (following == null || pos < lastEnd) {
+                following = nil;
+                RedBlackNode<T, U> x = root;
+                while (!x.isNil()) {
+                    if (x.getStart() >= pos) {
+                        following = x;
+                        x = x.left;
+                    } else {
+                        x = x.right;
+                    }
+                }
+            } else {
+                while (!following.isNil() && following.getStart() < pos) {
+                    following = following.successor();
+                }
+            }
+            lastEnd = pos;
+            return following;
+        }
+
+        /**
+         * Expands subtrees at the head of the queue until its head is a
+         * single node, and returns that node without removing it, or the
+         * sentinel node if the queue is exhausted.
+         */
+        private RedBlackNode<T, U> nextLeftNode(
+                PriorityQueue<SearchEntry> queue, Interval i,
+                int maxDistance, boolean includeOverlaps) {
+            while (!queue.isEmpty()) {
+                SearchEntry head = queue.peek();
+                if (!head.isSubtree) {
+                    return head.node;
+                }
+                queue.poll();
+                RedBlackNode<T, U> n = head.node;
+                if (n.getStart() < i.getEnd()) {
+                    int distance = n.getEnd() <= i.getStart()
+                            ? i.getStart() - n.getEnd()
+                            : 0;
+                    boolean overlaps = n.getEnd() > i.getStart();
+                    if (distance <= maxDistance &&
+                            (includeOverlaps || !overlaps)) {
+                        queue.add(new SearchEntry(n, distance, false, 0));
+                    }
+                }
+                pushSubtree(queue, n.left, head.minStart, i, maxDistance);
+                pushSubtree(queue, n.right, n.getStart(), i, maxDistance);
+            }
+            return nil;
+        }
+
+        private void pushSubtree(PriorityQueue<SearchEntry> queue,
+                RedBlackNode<T, U> n, int minStart, Interval i,
+                int maxDistance) {
+            if (n.isNil() || minStart >= i.getEnd()) {
+                return;
+            }
+            int bound = n.maxEnd <= i.getStart()
+                    ? i.getStart() - n.maxEnd
+                    : 0;
+            if (bound <= maxDistance) {
+                queue.add(new SearchEntry(n, bound, true, minStart));
+            }
+        }
+    }
+
+    /**
+     * An entry in the queue of a best-first nearest-node search: either a
+     * node at a known distance, or a subtree whose nodes are all at least
+     * some distance away. Subtrees are expanded before nodes at the same
+     * distance.
+     */
+    private final class SearchEntry implements Comparable<SearchEntry> {
+
+        private final RedBlackNode<T, U> node;
+        private final int key;
+        private final boolean isSubtree;
+        private final int minStart;
+
+        private SearchEntry(RedBlackNode<T, U> node, int key,
+                boolean isSubtree, int minStart) {
+            this.node = node;
+            this.key = key;
+            this.isSubtree = isSubtree;
+            this.minStart = minStart;
+        }
+
+        @Override
+        public int compareTo(SearchEntry o) {
+            if (key != o.key) {
+                return Integer.compare(key, o.key);
+            }
+            return Boolean.compare(o.isSubtree, isSubtree);
+        }
+    }
+
     ///////////////////////////////
     // Tree -- Debugging methods //
     ///////////////////////////////
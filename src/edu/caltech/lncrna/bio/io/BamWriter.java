@@ -5,6 +5,7 @@ import java.util.Objects;
 
 import edu.caltech.lncrna.bio.alignment.SamRecord;
 import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
 
@@ -28,6 +29,23 @@ public class BamWriter implements AutoCloseable {
                         outputPath.toFile());
     }
     
+    /**
+     * Constructs a writer that writes records with the given header, such as
+     * the header of the file they were read from. Records must be added in
+     * the sort order of the header, which is kept in the output.
+     *
+     * @param p - the path to write to
+     * @param header - the header of the output
+     */
+    public BamWriter(Path p, SAMFileHeader header) {
+        Path outputPath = Objects.requireNonNull(p, "Attempted to create "
+                + "BamWriter with null Path");
+        SAMFileHeader h = Objects.requireNonNull(header, "Attempted to "
+                + "create BamWriter with null SAMFileHeader");
+        writer = new SAMFileWriterFactory()
+                .makeSAMOrBAMWriter(h, true, outputPath.toFile());
+    }
+
     /**
      * Add a {@link SamRecord} to this BAM writer.
      * <p>
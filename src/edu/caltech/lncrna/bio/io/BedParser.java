@@ -3,8 +3,10 @@ package edu.caltech.lncrna.bio.io;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Iterator;
+import java.util.Objects;
 
 import edu.caltech.lncrna.bio.annotation.BedFileRecord;
+import edu.caltech.lncrna.bio.annotation.ReferenceDictionary;
 
 /**
  * This class represents objects which can parse BED files.
@@ -16,6 +18,8 @@ import edu.caltech.lncrna.bio.annotation.BedFileRecord;
  */
 public final class BedParser extends TextFileParser<BedFileRecord> {
 
+    private final ReferenceDictionary dict;
+
     /**
      * Constructs a <code>BedParser</code> to parse the the BED file at the
      * specified path.
@@ -25,6 +29,24 @@ public final class BedParser extends TextFileParser<BedFileRecord> {
      */
     public BedParser(Path p) {
         super(p);
+        dict = null;
+        findNext();
+    }
+
+    /**
+     * Constructs a <code>BedParser</code> to parse the the BED file at the
+     * specified path, renaming each record's reference to the dictionary's
+     * name for it. This lets a BED file with b37 names be used with a BAM
+     * file with UCSC names, or vice versa.
+     * 
+     * @param p - the specified path
+     * @param dict - the dictionary that resolves reference names
+     * @throws NullPointerException if either argument is <code>null</code>.
+     */
+    public BedParser(Path p, ReferenceDictionary dict) {
+        super(p);
+        this.dict = Objects.requireNonNull(dict, "Attempted to construct " +
+                "a BedParser with a null reference dictionary.");
         findNext();
     }
 
@@ -32,7 +54,11 @@ public final class BedParser extends TextFileParser<BedFileRecord> {
     protected void findNext() {
         try {
             String line = br.readLine();
-            next = line == null ? null : BedFileRecord.fromFormattedString(line);
+            next = line == null
+                    ? null
+                    : dict == null
+                            ? BedFileRecord.fromFormattedString(line)
+                            : BedFileRecord.fromFormattedString(line, dict);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
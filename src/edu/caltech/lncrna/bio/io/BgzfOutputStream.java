@@ -0,0 +1,237 @@
+package edu.caltech.lncrna.bio.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This class represents an output stream that compresses its data in the
+ * BGZF format.
+ * <p>
+ * BGZF splits the data into blocks of at most 64 KB, and compresses each block
+ * as an independent gzip member. The output is therefore valid gzip and can be
+ * read by <code>GZIPInputStream</code>, <code>zcat</code>, or any of the
+ * parsers in this package, as well as by BGZF-aware tools.
+ * <p>
+ * Because blocks are independent, they can be compressed in parallel. If this
+ * stream is given more than one thread, filled blocks are handed to a pool of
+ * compressors and written to the underlying stream in order as they finish.
+ * <p>
+ * This stream is not thread-safe.
+ */
+public final class BgzfOutputStream extends OutputStream {
+
+    // Leaves room for the compressed block to fit in 64 KB even if the data
+    // does not compress.
+    private static final int BLOCK_SIZE = 65280;
+    private static final int MAX_COMPRESSED_SIZE = 65536;
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+    private static final byte[] EMPTY_BLOCK = {
+        31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 6, 0, 66, 67, 2, 0,
+        27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final ExecutorService pool;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int count = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructs a <code>BgzfOutputStream</code> that compresses on the
+     * calling thread at the default compression level.
+     *
+     * @param out - the underlying output stream
+     */
+    public BgzfOutputStream(OutputStream out) {
+        this(out, Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    /**
+     * Constructs a <code>BgzfOutputStream</code>.
+     *
+     * @param out - the underlying output stream
+     * @param compressionLevel - the deflate compression level, from 0 to 9,
+     * or -1 for the default
+     * @param numThreads - the number of compression threads. If this is one,
+     * blocks are compressed on the calling thread.
+     * @throws IllegalArgumentException if <code>numThreads</code> is not
+     * positive or the compression level is invalid
+     */
+    public BgzfOutputStream(OutputStream out, int compressionLevel,
+            int numThreads) {
+        this.out = Objects.requireNonNull(out, "Attempted to create a " +
+                "BgzfOutputStream with a null output stream.");
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Invalid compression level: " +
+                    compressionLevel);
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Attempted to create a " +
+                    "BgzfOutputStream with a non-positive number of threads: " +
+                    numThreads);
+        }
+        this.compressionLevel = compressionLevel;
+        this.pool = numThreads > 1
+                ? Executors.newFixedThreadPool(numThreads)
+                : null;
+        this.maxPending = 2 * numThreads;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == BLOCK_SIZE) {
+            flushBlock();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == BLOCK_SIZE) {
+                flushBlock();
+            }
+            int n = Math.min(len, BLOCK_SIZE - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compresses any buffered data into a block, waits for all pending
+     * blocks, and flushes the underlying stream.
+     * <p>
+     * Flushing ends the current block early, so frequent flushes make the
+     * output larger.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            flushBlock();
+        }
+        while (!pending.isEmpty()) {
+            writePending();
+        }
+        out.flush();
+    }
+
+    /**
+     * Flushes this stream, writes the BGZF end-of-file marker, and closes the
+     * underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            out.write(EMPTY_BLOCK);
+            out.close();
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        final byte[] data = buffer;
+        final int length = count;
+        if (pool == null) {
+            out.write(compress(data, length, compressionLevel));
+        } else {
+            if (pending.size() == maxPending) {
+                writePending();
+            }
+            pending.addLast(pool.submit(() ->
+                    compress(data, length, compressionLevel)));
+            buffer = new byte[BLOCK_SIZE];
+        }
+        count = 0;
+    }
+
+    private void writePending() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Compresses data into a complete BGZF block.
+     */
+    private static byte[] compress(byte[] data, int length, int level) {
+        Deflater deflater = new Deflater(level, true);
+        byte[] block = new byte[MAX_COMPRESSED_SIZE];
+        int compressedSize;
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            compressedSize = deflater.deflate(block, HEADER_SIZE,
+                    MAX_COMPRESSED_SIZE - HEADER_SIZE - FOOTER_SIZE);
+            if (!deflater.finished()) {
+                // Incompressible data; store it instead.
+                deflater.reset();
+                deflater.setLevel(Deflater.NO_COMPRESSION);
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                compressedSize = deflater.deflate(block, HEADER_SIZE,
+                        MAX_COMPRESSED_SIZE - HEADER_SIZE - FOOTER_SIZE);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        int blockSize = HEADER_SIZE + compressedSize + FOOTER_SIZE;
+        block[0] = 31;
+        block[1] = (byte) 139;
+        block[2] = 8;
+        block[3] = 4;
+        // Bytes 4-8 are the modification time and extra flags, all zero.
+        block[9] = (byte) 255;
+        putShort(block, 10, 6);
+        block[12] = 66;
+        block[13] = 67;
+        putShort(block, 14, 2);
+        putShort(block, 16, blockSize - 1);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        int footer = HEADER_SIZE + compressedSize;
+        putInt(block, footer, (int) crc.getValue());
+        putInt(block, footer + 4, length);
+        return Arrays.copyOf(block, blockSize);
+    }
+
+    private static void putShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        putShort(b, offset, value);
+        putShort(b, offset + 2, value >>> 16);
+    }
+}
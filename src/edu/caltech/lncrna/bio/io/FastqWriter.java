@@ -0,0 +1,171 @@
+package edu.caltech.lncrna.bio.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Objects;
+import java.util.zip.Deflater;
+
+import edu.caltech.lncrna.bio.sequence.FastqSequence;
+import edu.caltech.lncrna.bio.sequence.PhredEncoding;
+
+/**
+ * This class represents objects which can write FASTQ files.
+ * <p>
+ * A <code>FastqWriter</code> is {@link AutoCloseable}, and is meant to be used
+ * in a try-with-resources block.
+ * <p>
+ * Records are encoded straight into a byte buffer, so writing a record does
+ * not build an intermediate <code>String</code> for the record or its quality
+ * scores. Lines are terminated with "\n".
+ * <p>
+ * If the path ends with ".gz", the output is compressed as BGZF, which is
+ * also valid gzip; see {@link BgzfOutputStream}. Compression may be spread
+ * over several threads.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class FastqWriter implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream out;
+    private final byte phredOffset;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int count = 0;
+
+    /**
+     * Constructs a <code>FastqWriter</code> that writes Sanger-encoded
+     * quality scores to the specified path.
+     *
+     * @param p - the specified path
+     * @throws NullPointerException if the path is <code>null</code>
+     */
+    public FastqWriter(Path p) {
+        this(p, FastqSequence.DEFAULT_PHRED_ENCODING, 1);
+    }
+
+    /**
+     * Constructs a <code>FastqWriter</code> to write to the specified path.
+     *
+     * @param p - the specified path
+     * @param pe - the Phred encoding of the written quality scores
+     * @param numCompressionThreads - the number of threads used to compress
+     * gzipped output; ignored if the output is not gzipped
+     * @throws NullPointerException if the path or encoding is
+     * <code>null</code>
+     */
+    public FastqWriter(Path p, PhredEncoding pe, int numCompressionThreads) {
+        Objects.requireNonNull(p, "Attempted to create FastqWriter with null " +
+                "path");
+        Objects.requireNonNull(pe, "Attempted to create FastqWriter with " +
+                "null Phred encoding");
+        this.phredOffset = (byte) pe.offset();
+        try {
+            PathMatcher matcher =
+                    FileSystems.getDefault().getPathMatcher("glob:**.gz");
+            OutputStream os = Files.newOutputStream(p);
+            out = matcher.matches(p)
+                    ? new BgzfOutputStream(os, Deflater.DEFAULT_COMPRESSION,
+                            numCompressionThreads)
+                    : os;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Constructs a <code>FastqWriter</code> that writes to an output stream.
+     * <p>
+     * The stream is closed when this writer is closed.
+     *
+     * @param out - the output stream
+     * @param pe - the Phred encoding of the written quality scores
+     */
+    public FastqWriter(OutputStream out, PhredEncoding pe) {
+        this.out = Objects.requireNonNull(out, "Attempted to create " +
+                "FastqWriter with null output stream");
+        this.phredOffset = (byte) Objects.requireNonNull(pe, "Attempted to " +
+                "create FastqWriter with null Phred encoding").offset();
+    }
+
+    /**
+     * Writes a FASTQ record.
+     *
+     * @param seq - the record to write
+     */
+    public void write(FastqSequence seq) {
+        String name = seq.getName();
+        String bases = seq.getBases();
+        int length = bases.length();
+        ensureCapacity(name.length() + 2 * length + 6);
+
+        byte[] b = buffer;
+        int n = count;
+        b[n++] = '@';
+        n = putChars(name, b, n);
+        b[n++] = '\n';
+        n = putChars(bases, b, n);
+        b[n++] = '\n';
+        b[n++] = '+';
+        b[n++] = '\n';
+        for (int i = 0; i < length; i++) {
+            b[n++] = (byte) (seq.getQuality(i) + phredOffset);
+        }
+        b[n++] = '\n';
+        count = n;
+    }
+
+    /**
+     * Writes any buffered records to the underlying stream.
+     */
+    public void flush() {
+        try {
+            flushBuffer();
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            flushBuffer();
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void ensureCapacity(int needed) {
+        if (count + needed <= buffer.length) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (needed > buffer.length) {
+            buffer = new byte[needed];
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private static int putChars(String s, byte[] b, int n) {
+        for (int i = 0; i < s.length(); i++) {
+            b[n++] = (byte) s.charAt(i);
+        }
+        return n;
+    }
+}
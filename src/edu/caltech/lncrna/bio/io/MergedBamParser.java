@@ -0,0 +1,386 @@
+package edu.caltech.lncrna.bio.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+import edu.caltech.lncrna.bio.alignment.Aligned;
+import edu.caltech.lncrna.bio.alignment.Alignment;
+import edu.caltech.lncrna.bio.alignment.ReadPair;
+import edu.caltech.lncrna.bio.alignment.SingleRead;
+import edu.caltech.lncrna.bio.utils.Futures;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+
+/**
+ * This class parses several coordinate-sorted BAM files as one, returning
+ * their records merged in coordinate order.
+ * <p>
+ * Records are ordered by the index of their reference in the sequence
+ * dictionary, then by their start, as in each file; records without a
+ * reference come last. Records with equal positions are returned in the
+ * order of their files. After each call to {@link #next()},
+ * {@link #getSourceIndex()} returns the index of the file the record came
+ * from.
+ * <p>
+ * Each file is parsed by its own {@link SingleReadBamParser} or
+ * {@link PairedEndBamParser} on a background thread, which reads ahead in
+ * batches, so that a slow file does not hold up the others. A read pair is
+ * ordered by the later of its two reads, since that is where its parser
+ * returns it. The merge itself is a binary heap of primitive keys.
+ * <p>
+ * All files must have the same sequence dictionary. A
+ * <code>MergedBamParser</code> should be closed to stop its background
+ * threads.
+ *
+ * @param <T> - the type of record to iterate over, either a
+ * {@link SingleRead} or {@link ReadPair}
+ */
+public final class MergedBamParser<T extends Aligned<? extends Alignment>>
+extends BamParser<T> {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int BATCHES_AHEAD = 4;
+
+    private final List<Path> paths;
+    private final Function<Path, BamParser<T>> opener;
+    private final ToLongFunction<T> keyFunction;
+    private final List<BlockingQueue<Batch<T>>> queues;
+    private final ExecutorService pool;
+
+    // The current batch and position in it of each file
+    private final List<Batch<T>> batches;
+    private final int[] positions;
+
+    // A binary heap of files, by the key of their current record, then index
+    private final long[] heapKeys;
+    private final int[] heapSources;
+    private int heapSize = 0;
+
+    private int sourceIndex = -1;
+    private boolean started = false;
+
+    private MergedBamParser(List<Path> paths,
+            Function<Path, BamParser<T>> opener,
+            ToLongFunction<T> keyFunction) {
+        super(checkPaths(paths));
+        this.paths = new ArrayList<>(paths);
+        this.opener = opener;
+        this.keyFunction = keyFunction;
+        checkDictionaries(this.paths);
+
+        int n = this.paths.size();
+        queues = new ArrayList<>(n);
+        batches = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            queues.add(new ArrayBlockingQueue<>(BATCHES_AHEAD));
+            batches.add(null);
+        }
+        positions = new int[n];
+        heapKeys = new long[n];
+        heapSources = new int[n];
+
+        pool = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "MergedBamParser-reader");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < n; i++) {
+            int source = i;
+            pool.execute(() -> read(source));
+        }
+    }
+
+    /**
+     * Constructs a <code>MergedBamParser</code> over the single reads of
+     * several coordinate-sorted BAM files.
+     *
+     * @param paths - the paths to the BAM files
+     * @throws IllegalArgumentException if no paths are given, or the files
+     * do not have the same sequence dictionary
+     */
+    public static MergedBamParser<SingleRead> ofSingleReads(List<Path> paths) {
+        return new MergedBamParser<>(paths, SingleReadBamParser::new,
+                MergedBamParser::key);
+    }
+
+    /**
+     * Constructs a <code>MergedBamParser</code> over the read pairs of
+     * several coordinate-sorted BAM files.
+     *
+     * @param paths - the paths to the BAM files
+     * @throws IllegalArgumentException if no paths are given, or the files
+     * do not have the same sequence dictionary
+     */
+    public static MergedBamParser<ReadPair> ofReadPairs(List<Path> paths) {
+        return new MergedBamParser<>(paths, PairedEndBamParser::new,
+                x -> Math.max(key(x.getFirstReadInPair()),
+                        key(x.getSecondReadInPair())));
+    }
+
+    private static Path checkPaths(List<Path> paths) {
+        Objects.requireNonNull(paths, "Attempted to merge a null list of " +
+                "BAM files.");
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("Attempted to merge an " +
+                    "empty list of BAM files.");
+        }
+        for (Path path : paths) {
+            Objects.requireNonNull(path, "Attempted to merge a null path.");
+        }
+        return paths.get(0);
+    }
+
+    private static void checkDictionaries(List<Path> paths) {
+        SAMSequenceDictionary first = null;
+        for (Path path : paths) {
+            try (SamReader reader = getSamReaderFromPath(path)) {
+                SAMSequenceDictionary dict =
+                        reader.getFileHeader().getSequenceDictionary();
+                if (first == null) {
+                    first = dict;
+                } else if (!first.equals(dict)) {
+                    throw new IllegalArgumentException("Attempted to merge " +
+                            "BAM files with different sequence dictionaries: "
+                            + paths.get(0) + ", " + path);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static long key(SingleRead read) {
+        int index = read.getReferenceIndex();
+        return index < 0
+                ? Long.MAX_VALUE
+                : ((long) index << 32) | read.getAlignmentStart();
+    }
+
+    /**
+     * Returns the index, in the list of paths this parser was constructed
+     * with, of the file that the last record returned by {@link #next()}
+     * came from, or -1 if no record has been returned.
+     */
+    public int getSourceIndex() {
+        return sourceIndex;
+    }
+
+    /**
+     * Returns the number of files this parser merges.
+     */
+    public int getNumberOfSources() {
+        return paths.size();
+    }
+
+    /**
+     * Returns the path to one of the files this parser merges.
+     *
+     * @param index - the index of the file
+     * @throws IndexOutOfBoundsException if the index is out of range
+     */
+    public Path getSourcePath(int index) {
+        return paths.get(index);
+    }
+
+    @Override
+    public boolean hasNext() {
+        start();
+        return heapSize > 0;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("MergedBamParser.next() called " +
+                    "with no next element.");
+        }
+        int source = heapSources[0];
+        Batch<T> batch = batches.get(source);
+        T rtrn = batch.records.get(positions[source]++);
+        sourceIndex = source;
+
+        if (positions[source] == batch.records.size()) {
+            batch = take(source);
+        }
+        if (batch == null) {
+            heapSize--;
+            heapKeys[0] = heapKeys[heapSize];
+            heapSources[0] = heapSources[heapSize];
+        } else {
+            heapKeys[0] = batch.keys[positions[source]];
+        }
+        siftDown(0);
+        return rtrn;
+    }
+
+    /**
+     * Stops the background threads and waits for them to close their files.
+     */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public Stream<? extends Alignment> getAlignmentStream() {
+        return stream().map(x -> x.getAlignment())
+                .filter(Optional::isPresent)
+                .map(x -> (Alignment) x.get());
+    }
+
+    @Override
+    public Iterator<? extends Alignment> getAlignmentIterator() {
+        return getAlignmentStream().iterator();
+    }
+
+    /**
+     * Waits for the first batch of every file, and fills the heap.
+     */
+    private void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        for (int i = 0; i < paths.size(); i++) {
+            Batch<T> batch = take(i);
+            if (batch != null) {
+                heapKeys[heapSize] = batch.keys[0];
+                heapSources[heapSize++] = i;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Takes the next batch of a file, waiting for it if necessary.
+     *
+     * @return the batch, or <code>null</code> if the file is exhausted
+     */
+    private Batch<T> take(int source) {
+        Batch<T> batch;
+        try {
+            batch = queues.get(source).take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (batch.failure != null) {
+            throw Futures.propagate(batch.failure);
+        }
+        if (batch.records.isEmpty()) {
+            batches.set(source, null);
+            return null;
+        }
+        batches.set(source, batch);
+        positions[source] = 0;
+        return batch;
+    }
+
+    private void siftDown(int i) {
+        long key = heapKeys[i];
+        int source = heapSources[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize &&
+                    precedes(heapKeys[child + 1], heapSources[child + 1],
+                            heapKeys[child], heapSources[child])) {
+                child++;
+            }
+            if (!precedes(heapKeys[child], heapSources[child], key, source)) {
+                break;
+            }
+            heapKeys[i] = heapKeys[child];
+            heapSources[i] = heapSources[child];
+            i = child;
+        }
+        heapKeys[i] = key;
+        heapSources[i] = source;
+    }
+
+    private static boolean precedes(long key1, int source1, long key2,
+            int source2) {
+        return key1 < key2 || (key1 == key2 && source1 < source2);
+    }
+
+    /**
+     * Parses one file on a background thread, passing batches of records
+     * and their keys to the merge, followed by an empty batch.
+     */
+    private void read(int source) {
+        BlockingQueue<Batch<T>> queue = queues.get(source);
+        Path path = paths.get(source);
+        try {
+            try (BamParser<T> parser = opener.apply(path)) {
+                Batch<T> batch = new Batch<>();
+                long previous = Long.MIN_VALUE;
+                while (parser.hasNext()) {
+                    T record = parser.next();
+                    long key = keyFunction.applyAsLong(record);
+                    if (key < previous) {
+                        throw new IllegalArgumentException("Attempted to " +
+                                "merge a BAM file that is not sorted by " +
+                                "coordinate: " + path);
+                    }
+                    previous = key;
+                    batch.add(record, key);
+                    if (batch.records.size() == BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new Batch<>();
+                    }
+                }
+                if (!batch.records.isEmpty()) {
+                    queue.put(batch);
+                }
+            }
+            queue.put(new Batch<>());
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (RuntimeException | Error e) {
+            Batch<T> failure = new Batch<>();
+            failure.failure = e;
+            try {
+                queue.put(failure);
+            } catch (InterruptedException closed) {
+                // Closed
+            }
+        }
+    }
+
+    /**
+     * Consecutive records of one file, with their keys.
+     */
+    private static final class Batch<T> {
+        private final List<T> records = new ArrayList<>(BATCH_SIZE);
+        private final long[] keys = new long[BATCH_SIZE];
+        private Throwable failure = null;
+
+        private void add(T record, long key) {
+            keys[records.size()] = key;
+            records.add(record);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package edu.caltech.lncrna.bio.io;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import edu.caltech.lncrna.bio.sequence.FastqPair;
+import edu.caltech.lncrna.bio.sequence.FastqSequence;
+import edu.caltech.lncrna.bio.sequence.PhredEncoding;
+import edu.caltech.lncrna.bio.utils.CloseableIterator;
+
+/**
+ * This class represents objects which can parse a pair of FASTQ files
+ * containing the first and second mates of paired-end reads.
+ * <p>
+ * A <code>PairedFastqParser</code> is {@link AutoCloseable}, and is meant to
+ * be used in a try-with-resources block. A <code>PairedFastqParser</code> is
+ * also an {@link java.util.Iterator} over {@link FastqPair} objects, and is
+ * meant to be used as such.
+ * <p>
+ * Each file is parsed on its own background thread, which reads ahead into a
+ * bounded queue of batches. Decompression and parsing of the two files
+ * therefore overlap, and the pair is produced at the speed of the slower file
+ * rather than the sum of the two. Records can be consumed one pair at a time
+ * or a batch at a time with {@link #nextBatch()}.
+ * <p>
+ * The names of the two mates are checked for agreement. Names are compared up
+ * to the first whitespace character, ignoring a trailing "/1" or "/2".
+ */
+public final class PairedFastqParser implements CloseableIterator<FastqPair> {
+
+    private static final int DEFAULT_BATCH_SIZE = 1024;
+    private static final int READ_AHEAD = 4;
+
+    private final Path p1;
+    private final Path p2;
+    private final Reader reader1;
+    private final Reader reader2;
+    private List<FastqSequence> batch1 = Collections.emptyList();
+    private List<FastqSequence> batch2 = Collections.emptyList();
+    private int index = 0;
+    private long recordNum = 0;
+    private boolean finished = false;
+
+    /**
+     * Constructs a <code>PairedFastqParser</code> to parse the FASTQ files at
+     * the specified paths, interpreting the Phred quality scores as though
+     * they were Sanger-encoded.
+     *
+     * @param p1 - the path to the first-mate FASTQ file
+     * @param p2 - the path to the second-mate FASTQ file
+     * @throws NullPointerException if either path is <code>null</code>
+     */
+    public PairedFastqParser(Path p1, Path p2) {
+        this(p1, p2, PhredEncoding.SANGER);
+    }
+
+    /**
+     * Constructs a <code>PairedFastqParser</code> to parse the FASTQ files at
+     * the specified paths.
+     *
+     * @param p1 - the path to the first-mate FASTQ file
+     * @param p2 - the path to the second-mate FASTQ file
+     * @param pe - the Phred encoding of both files
+     * @throws NullPointerException if any argument is <code>null</code>
+     */
+    public PairedFastqParser(Path p1, Path p2, PhredEncoding pe) {
+        this.p1 = Objects.requireNonNull(p1, "Attempted to construct a " +
+                "PairedFastqParser with a null first path.");
+        this.p2 = Objects.requireNonNull(p2, "Attempted to construct a " +
+                "PairedFastqParser with a null second path.");
+        Objects.requireNonNull(pe, "Attempted to construct a " +
+                "PairedFastqParser with a null Phred encoding.");
+        FastqParser parser1 = new FastqParser(p1, pe);
+        FastqParser parser2;
+        try {
+            parser2 = new FastqParser(p2, pe);
+        } catch (RuntimeException e) {
+            parser1.close();
+            throw e;
+        }
+        reader1 = new Reader(parser1, "R1 " + p1);
+        reader2 = new Reader(parser2, "R2 " + p2);
+        reader1.start();
+        reader2.start();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (index < batch1.size()) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        batch1 = reader1.take();
+        batch2 = reader2.take();
+        index = 0;
+        if (batch1.size() != batch2.size()) {
+            finished = true;
+            throw new IncompleteFileException("FASTQ files " + p1 + " and " +
+                    p2 + " contain different numbers of records.");
+        }
+        if (batch1.isEmpty()) {
+            finished = true;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public FastqPair next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        FastqSequence read1 = batch1.get(index);
+        FastqSequence read2 = batch2.get(index);
+        index++;
+        recordNum++;
+        if (!namesAgree(read1.getName(), read2.getName())) {
+            throw new MalformedRecordException("FASTQ files " + p1 + " and " +
+                    p2 + " have mismatched mate names " + read1.getName() +
+                    " and " + read2.getName() + ".",
+                    (int) (4 * (recordNum - 1) + 1));
+        }
+        return new FastqPair(read1, read2);
+    }
+
+    /**
+     * Returns the next pairs as a batch.
+     * <p>
+     * Batches are typically a thousand or so pairs, but may be smaller. The
+     * returned list is empty only when there are no more pairs.
+     *
+     * @return the next batch of pairs
+     */
+    public List<FastqPair> nextBatch() {
+        List<FastqPair> rtrn = new ArrayList<>();
+        if (hasNext()) {
+            while (index < batch1.size()) {
+                rtrn.add(next());
+            }
+        }
+        return rtrn;
+    }
+
+    /**
+     * Stops the background threads and closes both files.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        reader1.stop();
+        reader2.stop();
+    }
+
+    /**
+     * Returns <code>true</code> if two mate names agree. Names are compared
+     * character by character up to the first whitespace, and a trailing
+     * "/1" or "/2" is ignored.
+     *
+     * @param name1 - the name of the first mate
+     * @param name2 - the name of the second mate
+     */
+    public static boolean namesAgree(String name1, String name2) {
+        int end1 = trimmedNameLength(name1);
+        int end2 = trimmedNameLength(name2);
+        return end1 == end2 && name1.regionMatches(0, name2, 0, end1);
+    }
+
+    private static int trimmedNameLength(String name) {
+        int end = 0;
+        while (end < name.length() && !Character.isWhitespace(name.charAt(end))) {
+            end++;
+        }
+        if (end >= 2 && name.charAt(end - 2) == '/' &&
+                (name.charAt(end - 1) == '1' || name.charAt(end - 1) == '2')) {
+            end -= 2;
+        }
+        return end;
+    }
+
+    /**
+     * Drives a single <code>FastqParser</code> on a background thread,
+     * handing batches of records to the consumer through a bounded queue. An
+     * empty batch marks the end of the file.
+     */
+    private static final class Reader implements Runnable {
+
+        private final FastqParser parser;
+        private final Thread thread;
+        private final BlockingQueue<List<FastqSequence>> queue =
+                new ArrayBlockingQueue<>(READ_AHEAD);
+        private volatile RuntimeException error;
+
+        private Reader(FastqParser parser, String name) {
+            this.parser = parser;
+            this.thread = new Thread(this, "PairedFastqParser " + name);
+            this.thread.setDaemon(true);
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<FastqSequence> batch = new ArrayList<>(DEFAULT_BATCH_SIZE);
+                while (parser.hasNext()) {
+                    batch.add(parser.next());
+                    if (batch.size() == DEFAULT_BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new ArrayList<>(DEFAULT_BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    queue.put(batch);
+                }
+                queue.put(Collections.emptyList());
+            } catch (InterruptedException e) {
+                // Stopped by close().
+            } catch (RuntimeException e) {
+                error = e;
+                queue.clear();
+                queue.offer(Collections.emptyList());
+            } finally {
+                parser.close();
+            }
+        }
+
+        private List<FastqSequence> take() {
+            List<FastqSequence> batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            if (batch.isEmpty()) {
+                // Leave the end marker in place for any later call.
+                queue.offer(batch);
+                if (error != null) {
+                    throw error;
+                }
+            }
+            return batch;
+        }
+
+        private void stop() {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package edu.caltech.lncrna.bio.sequence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+import edu.caltech.lncrna.bio.io.FastqWriter;
+import edu.caltech.lncrna.bio.utils.BatchProcessor;
+
+/**
+ * This class removes 3' adapters and primers from reads.
+ * <p>
+ * An adapter is found if it occurs anywhere in the read, or if a prefix of
+ * the adapter at least the minimum overlap long occurs at the 3'-end of the
+ * read. Matches are approximate. The number of errors (substitutions,
+ * insertions and deletions) allowed is the error rate times the length of the
+ * matched part of the adapter, rounded down. The read is cut at the start of
+ * the leftmost match found among all adapters.
+ * <p>
+ * Matching uses Myers' bit-parallel edit-distance algorithm, with one
+ * <code>long</code> per adapter, so adapters may be at most 64 bases long. A
+ * single pass over the read gives the edit distance of every prefix of the
+ * adapter to the read at every position, which covers both full and partial
+ * matches. Only when a match is found is a small dynamic program run to
+ * locate its start.
+ * <p>
+ * N in an adapter matches any base. N in a read matches only N in an
+ * adapter. Case is ignored.
+ * <p>
+ * Instances of this class are immutable and may be shared between threads.
+ * Instances are built with a {@link Builder}.
+ */
+public final class AdapterTrimmer {
+
+    public static final int MAX_ADAPTER_LENGTH = 64;
+
+    private static final int ALPHABET_SIZE = 5;
+    private static final int N = 4;
+
+    private final List<Adapter> adapters;
+    private final double errorRate;
+    private final int minimumOverlap;
+
+    private AdapterTrimmer(Builder b) {
+        List<Adapter> list = new ArrayList<>();
+        for (String seq : b.adapters) {
+            list.add(new Adapter(seq));
+        }
+        this.adapters = Collections.unmodifiableList(list);
+        this.errorRate = b.errorRate;
+        this.minimumOverlap = b.minimumOverlap;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the position at which a read should be cut to remove any
+     * adapter, or the length of the read if no adapter is found.
+     *
+     * @param bases - the bases of the read
+     */
+    public int findAdapterStart(CharSequence bases) {
+        int length = bases.length();
+        byte[] codes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            codes[i] = codeOf(bases.charAt(i));
+        }
+        int cut = length;
+        for (Adapter adapter : adapters) {
+            cut = Math.min(cut, adapter.find(codes, errorRate, minimumOverlap));
+        }
+        return cut;
+    }
+
+    /**
+     * Removes any adapter from a read.
+     * <p>
+     * The quality scores of the trimmed read are copied from the original,
+     * not re-encoded.
+     *
+     * @param read - the read to trim
+     * @return the trimmed read, or the read itself if no adapter was found
+     */
+    public FastqSequence trim(FastqSequence read) {
+        int cut = findAdapterStart(read.getBases());
+        return cut == read.length() ? read : read.subsequence(0, cut);
+    }
+
+    /**
+     * Removes any adapters from every read from an iterator using a pool of
+     * worker threads, and writes the trimmed reads.
+     * <p>
+     * The iterator is not closed by this method, and neither is the writer.
+     *
+     * @param reads - the reads to trim, e.g., a
+     * {@link edu.caltech.lncrna.bio.io.FastqParser}
+     * @param writer - the writer to write trimmed reads to
+     * @param numThreads - the number of worker threads
+     * @param preserveOrder - whether the reads should be written in input
+     * order. Allowing any order gives higher throughput.
+     * @return the number of reads that had an adapter removed
+     */
+    public long trimAll(Iterator<? extends FastqSequence> reads,
+            FastqWriter writer, int numThreads, boolean preserveOrder) {
+        Objects.requireNonNull(writer, "Attempted to write trimmed reads " +
+                "to a null writer.");
+        long[] trimmed = {0};
+        new BatchProcessor(numThreads, BatchProcessor.DEFAULT_BATCH_SIZE,
+                preserveOrder).process(reads,
+                read -> {
+                    FastqSequence rtrn = trim(read);
+                    return new Trimmed(rtrn, rtrn != read);
+                },
+                result -> {
+                    writer.write(result.read);
+                    if (result.wasTrimmed) {
+                        trimmed[0]++;
+                    }
+                });
+        return trimmed[0];
+    }
+
+    private static byte codeOf(char c) {
+        switch (c) {
+        case 'A': case 'a': return 0;
+        case 'C': case 'c': return 1;
+        case 'G': case 'g': return 2;
+        case 'T': case 't': return 3;
+        default: return N;
+        }
+    }
+
+    /**
+     * A single adapter with its precomputed match masks.
+     */
+    private static final class Adapter {
+
+        private final byte[] codes;
+        private final long[] peq = new long[ALPHABET_SIZE];
+        private final long mask;
+
+        private Adapter(String seq) {
+            int m = seq.length();
+            codes = new byte[m];
+            for (int i = 0; i < m; i++) {
+                codes[i] = codeOf(seq.charAt(i));
+                if (codes[i] == N) {
+                    for (int c = 0; c < ALPHABET_SIZE; c++) {
+                        peq[c] |= 1L << i;
+                    }
+                } else {
+                    peq[codes[i]] |= 1L << i;
+                }
+            }
+            mask = m == 64 ? -1L : (1L << m) - 1;
+        }
+
+        /**
+         * Returns the start of the leftmost acceptable match of this adapter
+         * in a read, or the read length if there is none.
+         */
+        private int find(byte[] read, double errorRate, int minimumOverlap) {
+            int m = codes.length;
+            int n = read.length;
+            int maxErrors = (int) (errorRate * m);
+            long highBit = 1L << (m - 1);
+
+            // Vertical deltas of the current column: a set bit i in pv (mv)
+            // means D[i + 1][j] - D[i][j] is +1 (-1). Row 0 is all zeros, so
+            // any read position may start a match.
+            long pv = mask;
+            long mv = 0;
+            int score = m;
+
+            for (int j = 0; j < n; j++) {
+                long eq = peq[read[j]];
+                long xv = eq | mv;
+                long xh = (((eq & pv) + pv) ^ pv) | eq;
+                long ph = mv | ~(xh | pv);
+                long mh = pv & xh;
+                if ((ph & highBit) != 0) {
+                    score++;
+                } else if ((mh & highBit) != 0) {
+                    score--;
+                }
+                ph <<= 1;
+                mh <<= 1;
+                pv = (mh | ~(xv | ph)) & mask;
+                mv = ph & xv & mask;
+
+                if (score <= maxErrors) {
+                    return matchStart(read, j + 1, m, score);
+                }
+            }
+
+            // No full match; look for the longest adapter prefix that
+            // matches at the 3'-end of the read.
+            int distance = 0;
+            int best = -1;
+            int bestDistance = 0;
+            for (int i = 1; i < m; i++) {
+                long bit = 1L << (i - 1);
+                if ((pv & bit) != 0) {
+                    distance++;
+                } else if ((mv & bit) != 0) {
+                    distance--;
+                }
+                if (i >= minimumOverlap && distance <= (int) (errorRate * i)) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+            return best < 0 ? n : matchStart(read, n, best, bestDistance);
+        }
+
+        /**
+         * Finds where an alignment of the first <code>length</code> adapter
+         * bases to the read, ending at <code>end</code> with the given
+         * distance, starts. This runs the alignment backward from the end,
+         * and prefers the longest read segment among equally good starts.
+         */
+        private int matchStart(byte[] read, int end, int length,
+                int distance) {
+            int span = Math.min(end, length + distance);
+            int[] prev = new int[span + 1];
+            int[] curr = new int[span + 1];
+            for (int t = 0; t <= span; t++) {
+                prev[t] = t;
+            }
+            for (int i = 1; i <= length; i++) {
+                byte a = codes[length - i];
+                curr[0] = i;
+                for (int t = 1; t <= span; t++) {
+                    byte r = read[end - t];
+                    boolean match = a == N || a == r;
+                    curr[t] = Math.min(prev[t - 1] + (match ? 0 : 1),
+                            Math.min(prev[t], curr[t - 1]) + 1);
+                }
+                int[] tmp = prev;
+                prev = curr;
+                curr = tmp;
+            }
+            int bestT = 0;
+            for (int t = 0; t <= span; t++) {
+                if (prev[t] <= prev[bestT]) {
+                    bestT = t;
+                }
+            }
+            return end - bestT;
+        }
+    }
+
+    private static final class Trimmed {
+        private final FastqSequence read;
+        private final boolean wasTrimmed;
+
+        private Trimmed(FastqSequence read, boolean wasTrimmed) {
+            this.read = read;
+            this.wasTrimmed = wasTrimmed;
+        }
+    }
+
+    /**
+     * A builder class for {@link AdapterTrimmer} objects.
+     */
+    public static final class Builder {
+
+        private final List<String> adapters = new ArrayList<>();
+        private double errorRate = 0.1;
+        private int minimumOverlap = 3;
+
+        private Builder() { }
+
+        /**
+         * Adds an adapter to search for.
+         *
+         * @param adapter - the adapter sequence
+         * @return this builder
+         * @throws IllegalArgumentException if the adapter is empty or longer
+         * than {@link AdapterTrimmer#MAX_ADAPTER_LENGTH}
+         */
+        public Builder addAdapter(String adapter) {
+            Objects.requireNonNull(adapter, "Attempted to add a null adapter.");
+            if (adapter.isEmpty() || adapter.length() > MAX_ADAPTER_LENGTH) {
+                throw new IllegalArgumentException("Adapters must have " +
+                        "between 1 and " + MAX_ADAPTER_LENGTH + " bases: " +
+                        adapter);
+            }
+            adapters.add(adapter);
+            return this;
+        }
+
+        /**
+         * Sets the maximum fraction of errors in a match. The default is 0.1.
+         *
+         * @param errorRate - the maximum error rate, from 0 to 1
+         * @return this builder
+         * @throws IllegalArgumentException if the error rate is out of range
+         */
+        public Builder errorRate(double errorRate) {
+            if (errorRate < 0 || errorRate >= 1) {
+                throw new IllegalArgumentException("Error rate must be at " +
+                        "least 0 and less than 1: " + errorRate);
+            }
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * Sets the shortest adapter prefix that will be trimmed from the
+         * 3'-end of a read. The default is 3.
+         *
+         * @param minimumOverlap - the minimum overlap
+         * @return this builder
+         * @throws IllegalArgumentException if the overlap is not positive
+         */
+        public Builder minimumOverlap(int minimumOverlap) {
+            if (minimumOverlap < 1) {
+                throw new IllegalArgumentException("Minimum overlap must be " +
+                        "positive: " + minimumOverlap);
+            }
+            this.minimumOverlap = minimumOverlap;
+            return this;
+        }
+
+        /**
+         * @return a new <code>AdapterTrimmer</code>
+         * @throws IllegalArgumentException if no adapters have been added
+         */
+        public AdapterTrimmer build() {
+            if (adapters.isEmpty()) {
+                throw new IllegalArgumentException("Attempted to build an " +
+                        "AdapterTrimmer with no adapters.");
+            }
+            return new AdapterTrimmer(this);
+        }
+    }
+}
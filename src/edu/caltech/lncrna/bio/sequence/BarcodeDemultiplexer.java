@@ -0,0 +1,363 @@
+package edu.caltech.lncrna.bio.sequence;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import edu.caltech.lncrna.bio.datastructures.LongIntHashMap;
+import edu.caltech.lncrna.bio.io.FastqWriter;
+import edu.caltech.lncrna.bio.utils.BatchProcessor;
+
+/**
+ * This class identifies the barcodes in reads according to a
+ * {@link BarcodeLayout}.
+ * <p>
+ * When a demultiplexer is constructed, every tag is expanded into all of the
+ * sequences within its position's allowed number of mismatches. Each of these
+ * neighbors is 2-bit encoded and stored in a primitive hash table mapping it
+ * to its tag. Resolving a position is then a single encode and lookup, so a
+ * read is resolved in time proportional to the number of positions rather
+ * than the number of tags.
+ * <p>
+ * If a neighbor is equally close to two different tags, it is considered
+ * ambiguous and matches neither. A neighbor always resolves to the closest
+ * tag when one is strictly closer. A barcode window containing an N, or
+ * running off the end of the read, does not match any tag.
+ * <p>
+ * Instances of this class are immutable and may be shared between threads.
+ */
+public final class BarcodeDemultiplexer {
+
+    /**
+     * The tag name reported for a position that could not be resolved.
+     */
+    public static final String NOT_FOUND = "NOT_FOUND";
+
+    /**
+     * The separator between a read name and its barcode in annotated output.
+     */
+    public static final String NAME_DELIMITER = "::";
+
+    private static final int TAG_MASK = 0xffffff;
+    private static final int AMBIGUOUS = TAG_MASK;
+
+    private final BarcodeLayout layout;
+    private final LongIntHashMap[] tables;
+
+    /**
+     * Class constructor.
+     * <p>
+     * Constructs a demultiplexer for the given layout.
+     *
+     * @param layout - the barcode layout
+     * @throws IllegalArgumentException if two tags at the same position have
+     * the same sequence
+     */
+    public BarcodeDemultiplexer(BarcodeLayout layout) {
+        this.layout = Objects.requireNonNull(layout, "Attempted to create a " +
+                "BarcodeDemultiplexer with a null layout.");
+        tables = new LongIntHashMap[layout.getNumberOfPositions()];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = expand(layout.getPositions().get(i));
+        }
+    }
+
+    public BarcodeLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Resolves the barcode of a read.
+     *
+     * @param read - the read
+     * @return the barcode of the read
+     */
+    public Barcode resolve(Sequence read) {
+        return resolve(read.getBases());
+    }
+
+    /**
+     * Resolves the barcode of a string of bases.
+     *
+     * @param bases - the bases of the read
+     * @return the barcode of the read
+     */
+    public Barcode resolve(CharSequence bases) {
+        int[] tags = new int[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            BarcodeLayout.Position position = layout.getPositions().get(i);
+            long code = encodeWindow(bases, position.getOffset(),
+                    position.getTagLength());
+            int tag = code < 0 ? 0 : tables[i].get(code) & TAG_MASK;
+            tags[i] = tag == 0 || tag == AMBIGUOUS ? -1 : tag - 1;
+        }
+        return new Barcode(tags);
+    }
+
+    /**
+     * Returns a copy of a read with its barcode appended to its name, e.g.,
+     * "read1::[A1][B7][NOT_FOUND]".
+     *
+     * @param read - the read
+     */
+    public FastqSequence annotate(FastqSequence read) {
+        return read.changeName(read.getName() + NAME_DELIMITER +
+                resolve(read).toString());
+    }
+
+    /**
+     * Writes every read to a single FASTQ file with its barcode appended to
+     * its name. Reads are written in input order.
+     * <p>
+     * If the output path ends with ".gz", the output is compressed; see
+     * {@link FastqWriter}. The iterator is not closed by this method.
+     *
+     * @param reads - the reads to demultiplex, e.g., a
+     * {@link edu.caltech.lncrna.bio.io.FastqParser}
+     * @param output - the path of the output file
+     * @param numThreads - the number of worker threads
+     * @return the number of reads whose positions were all resolved
+     */
+    public long annotateAll(Iterator<? extends FastqSequence> reads,
+            Path output, int numThreads) {
+        long[] complete = {0};
+        try (FastqWriter writer = new FastqWriter(output)) {
+            new BatchProcessor(numThreads).process(reads,
+                    read -> {
+                        Barcode barcode = resolve(read);
+                        return new Resolved(read.changeName(read.getName() +
+                                NAME_DELIMITER + barcode.toString()), barcode);
+                    },
+                    resolved -> {
+                        writer.write(resolved.read);
+                        if (resolved.barcode.isComplete()) {
+                            complete[0]++;
+                        }
+                    });
+        }
+        return complete[0];
+    }
+
+    /**
+     * Writes every read to a FASTQ file named after its barcode, e.g.,
+     * "A1_B7.fastq", in the given directory. Reads whose positions are not
+     * all resolved are written to "unassigned.fastq".
+     * <p>
+     * This is intended for layouts with a modest number of barcode
+     * combinations, since one file is kept open per combination seen. The
+     * iterator is not closed by this method.
+     *
+     * @param reads - the reads to demultiplex
+     * @param directory - the output directory, which must exist
+     * @param numThreads - the number of worker threads
+     * @return the number of reads whose positions were all resolved
+     * @throws IllegalArgumentException if a tag name is empty, is "." or
+     * "..", or contains a path separator, since it could not be used safely
+     * as part of a file name
+     */
+    public long splitAll(Iterator<? extends FastqSequence> reads,
+            Path directory, int numThreads) {
+        for (BarcodeLayout.Position position : layout.getPositions()) {
+            for (int tag = 0; tag < position.getNumberOfTags(); tag++) {
+                checkFileName(position.getTagName(tag));
+            }
+        }
+        Map<String, FastqWriter> writers = new HashMap<>();
+        long[] complete = {0};
+        try {
+            new BatchProcessor(numThreads, BatchProcessor.DEFAULT_BATCH_SIZE,
+                    false).process(reads,
+                    read -> new Resolved(read, resolve(read)),
+                    resolved -> {
+                        String key = "unassigned";
+                        if (resolved.barcode.isComplete()) {
+                            key = String.join("_", resolved.barcode.getTagNames());
+                            complete[0]++;
+                        }
+                        writers.computeIfAbsent(key, k -> new FastqWriter(
+                                directory.resolve(k + ".fastq")))
+                               .write(resolved.read);
+                    });
+        } finally {
+            writers.values().forEach(FastqWriter::close);
+        }
+        return complete[0];
+    }
+
+    private static void checkFileName(String tagName) {
+        if (tagName.isEmpty() || tagName.equals(".") || tagName.equals("..") ||
+                tagName.indexOf('/') >= 0 || tagName.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("Attempted to split reads " +
+                    "into files by a barcode tag name that is not a valid " +
+                    "file name: " + tagName);
+        }
+    }
+
+    /**
+     * Builds the neighbor table for a position. Values pack the mismatch
+     * distance into the high byte and the tag index plus one into the low
+     * three bytes. A tag field of {@link #AMBIGUOUS} marks a neighbor that is
+     * equally close to more than one tag.
+     */
+    private static LongIntHashMap expand(BarcodeLayout.Position position) {
+        Set<String> seen = new HashSet<>();
+        LongIntHashMap table = new LongIntHashMap(position.getNumberOfTags());
+        for (int tag = 0; tag < position.getNumberOfTags(); tag++) {
+            String seq = position.getTagSequence(tag);
+            if (!seen.add(seq)) {
+                throw new IllegalArgumentException("Barcode position " +
+                        position.getName() + " has two tags with sequence " +
+                        seq);
+            }
+            expand(table, KmerCounter.encode(seq), seq.length(), 0, 0,
+                    position.getMaxMismatches(), tag);
+        }
+        return table;
+    }
+
+    /**
+     * Records a sequence and, recursively, every substitution of it at or
+     * after position <code>from</code>, so that each neighbor of a tag is
+     * visited exactly once.
+     */
+    private static void expand(LongIntHashMap table, long code, int length,
+            int from, int distance, int maxMismatches, int tag) {
+        record(table, code, distance, tag);
+        if (distance == maxMismatches) {
+            return;
+        }
+        for (int i = from; i < length; i++) {
+            int shift = 2 * (length - 1 - i);
+            long original = (code >>> shift) & 3;
+            for (long base = 0; base < 4; base++) {
+                if (base != original) {
+                    long neighbor = (code & ~(3L << shift)) | (base << shift);
+                    expand(table, neighbor, length, i + 1, distance + 1,
+                            maxMismatches, tag);
+                }
+            }
+        }
+    }
+
+    private static void record(LongIntHashMap table, long code, int distance,
+            int tag) {
+        int value = (distance << 24) | (tag + 1);
+        if (!table.containsKey(code)) {
+            table.put(code, value);
+            return;
+        }
+        int existing = table.get(code);
+        int existingDistance = existing >>> 24;
+        if (distance < existingDistance) {
+            table.put(code, value);
+        } else if (distance == existingDistance &&
+                (existing & TAG_MASK) != tag + 1) {
+            table.put(code, (distance << 24) | AMBIGUOUS);
+        }
+    }
+
+    private static long encodeWindow(CharSequence bases, int offset,
+            int length) {
+        if (offset + length > bases.length()) {
+            return -1;
+        }
+        long code = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int base;
+            switch (bases.charAt(i)) {
+            case 'A': case 'a': base = 0; break;
+            case 'C': case 'c': base = 1; break;
+            case 'G': case 'g': base = 2; break;
+            case 'T': case 't': base = 3; break;
+            default: return -1;
+            }
+            code = (code << 2) | base;
+        }
+        return code;
+    }
+
+    /**
+     * The tags resolved for a single read, one per layout position.
+     */
+    public final class Barcode {
+
+        private final int[] tags;
+
+        private Barcode(int[] tags) {
+            this.tags = tags;
+        }
+
+        /**
+         * @return <code>true</code> if every position was resolved to a tag
+         */
+        public boolean isComplete() {
+            for (int tag : tags) {
+                if (tag < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the index of the tag resolved at a position within that
+         * position's tag list, or -1 if the position was not resolved.
+         *
+         * @param position - the index of the position in the layout
+         */
+        public int getTagIndex(int position) {
+            return tags[position];
+        }
+
+        /**
+         * Returns the name of the tag resolved at a position, or
+         * {@link BarcodeDemultiplexer#NOT_FOUND} if the position was not
+         * resolved.
+         *
+         * @param position - the index of the position in the layout
+         */
+        public String getTagName(int position) {
+            return tags[position] < 0
+                    ? NOT_FOUND
+                    : layout.getPositions().get(position).getTagName(
+                            tags[position]);
+        }
+
+        /**
+         * @return the names of the resolved tags, in layout order
+         */
+        public String[] getTagNames() {
+            String[] rtrn = new String[tags.length];
+            for (int i = 0; i < tags.length; i++) {
+                rtrn[i] = getTagName(i);
+            }
+            return rtrn;
+        }
+
+        /**
+         * Returns this barcode in the form "[A1][B7][NOT_FOUND]".
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < tags.length; i++) {
+                sb.append('[').append(getTagName(i)).append(']');
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final class Resolved {
+        private final FastqSequence read;
+        private final Barcode barcode;
+
+        private Resolved(FastqSequence read, Barcode barcode) {
+            this.read = read;
+            this.barcode = barcode;
+        }
+    }
+}
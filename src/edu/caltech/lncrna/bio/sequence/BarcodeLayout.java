@@ -0,0 +1,244 @@
+package edu.caltech.lncrna.bio.sequence;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import edu.caltech.lncrna.bio.io.MalformedRecordException;
+
+/**
+ * This class describes where barcodes are found in a read, and which tags may
+ * appear at each barcode position.
+ * <p>
+ * A layout is an ordered list of positions. Each position has a fixed offset
+ * into the read, a set of named tags that all share the same length, and a
+ * maximum number of mismatches (substitutions) allowed when matching a tag.
+ * <p>
+ * Layouts are built with a {@link Builder} or read from a tab-delimited file
+ * with {@link #parse(Path)}.
+ */
+public final class BarcodeLayout {
+
+    private final List<Position> positions;
+
+    private BarcodeLayout(List<Position> positions) {
+        this.positions = Collections.unmodifiableList(positions);
+    }
+
+    /**
+     * @return the positions of this layout, in order
+     */
+    public List<Position> getPositions() {
+        return positions;
+    }
+
+    public int getNumberOfPositions() {
+        return positions.size();
+    }
+
+    /**
+     * Reads a layout from a tab-delimited file.
+     * <p>
+     * Each line describes one tag with five fields: position name, offset
+     * into the read, allowed mismatches, tag name and tag sequence. Positions
+     * are ordered by their first appearance in the file. Blank lines and
+     * lines beginning with "#" are ignored.
+     *
+     * @param path - the path to the layout file
+     * @throws MalformedRecordException if a line is malformed or disagrees
+     * with an earlier line for the same position
+     */
+    public static BarcodeLayout parse(Path path) {
+        Builder builder = builder();
+        int lineNum = 0;
+        try (BufferedReader br = Files.newBufferedReader(path,
+                StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                lineNum++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length != 5) {
+                    throw new MalformedRecordException("Barcode layout line " +
+                            "does not have five fields.", lineNum);
+                }
+                try {
+                    builder.addTag(fields[0], Integer.parseInt(fields[1]),
+                            Integer.parseInt(fields[2]), fields[3], fields[4]);
+                } catch (IllegalArgumentException e) {
+                    throw new MalformedRecordException(e.getMessage(), lineNum);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return builder.build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A single barcode position within a layout.
+     */
+    public static final class Position {
+
+        private final String name;
+        private final int offset;
+        private final int maxMismatches;
+        private final List<String> tagNames;
+        private final List<String> tagSequences;
+
+        private Position(String name, int offset, int maxMismatches,
+                List<String> tagNames, List<String> tagSequences) {
+            this.name = name;
+            this.offset = offset;
+            this.maxMismatches = maxMismatches;
+            this.tagNames = Collections.unmodifiableList(tagNames);
+            this.tagSequences = Collections.unmodifiableList(tagSequences);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the zero-based offset of this position into the read
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getMaxMismatches() {
+            return maxMismatches;
+        }
+
+        /**
+         * @return the length shared by every tag at this position
+         */
+        public int getTagLength() {
+            return tagSequences.get(0).length();
+        }
+
+        public int getNumberOfTags() {
+            return tagNames.size();
+        }
+
+        public String getTagName(int index) {
+            return tagNames.get(index);
+        }
+
+        public String getTagSequence(int index) {
+            return tagSequences.get(index);
+        }
+    }
+
+    /**
+     * A builder class for {@link BarcodeLayout} objects.
+     */
+    public static final class Builder {
+
+        private final Map<String, PositionBuilder> positions =
+                new LinkedHashMap<>();
+
+        private Builder() { }
+
+        /**
+         * Adds a tag to a position, creating the position if necessary.
+         *
+         * @param position - the name of the position
+         * @param offset - the zero-based offset of the position into the read
+         * @param maxMismatches - the number of mismatches allowed at this
+         * position
+         * @param tagName - the name of the tag
+         * @param tagSequence - the bases of the tag
+         * @return this builder
+         * @throws IllegalArgumentException if the offset or mismatches differ
+         * from those already given for this position, if the tag's length
+         * differs from other tags at this position, or if the tag sequence
+         * contains a base other than A, C, G or T
+         */
+        public Builder addTag(String position, int offset, int maxMismatches,
+                String tagName, String tagSequence) {
+            Objects.requireNonNull(position, "Attempted to add a barcode tag " +
+                    "with a null position name.");
+            Objects.requireNonNull(tagName, "Attempted to add a barcode tag " +
+                    "with a null name.");
+            Objects.requireNonNull(tagSequence, "Attempted to add a barcode " +
+                    "tag with a null sequence.");
+            if (offset < 0) {
+                throw new IllegalArgumentException("Barcode position " +
+                        position + " has a negative offset: " + offset);
+            }
+            if (maxMismatches < 0) {
+                throw new IllegalArgumentException("Barcode position " +
+                        position + " allows a negative number of mismatches: "
+                        + maxMismatches);
+            }
+            if (tagSequence.isEmpty() ||
+                    tagSequence.length() > KmerCounter.MAX_K) {
+                throw new IllegalArgumentException("Barcode tag " + tagName +
+                        " must have between 1 and " + KmerCounter.MAX_K +
+                        " bases.");
+            }
+            KmerCounter.encode(tagSequence);
+
+            PositionBuilder pb = positions.computeIfAbsent(position,
+                    k -> new PositionBuilder(offset, maxMismatches));
+            if (pb.offset != offset || pb.maxMismatches != maxMismatches) {
+                throw new IllegalArgumentException("Barcode position " +
+                        position + " given inconsistent offsets or mismatches.");
+            }
+            if (!pb.sequences.isEmpty() &&
+                    pb.sequences.get(0).length() != tagSequence.length()) {
+                throw new IllegalArgumentException("Barcode tags at position "
+                        + position + " have different lengths.");
+            }
+            pb.names.add(tagName);
+            pb.sequences.add(tagSequence.toUpperCase());
+            return this;
+        }
+
+        /**
+         * @return a new <code>BarcodeLayout</code>
+         * @throws IllegalArgumentException if no tags have been added
+         */
+        public BarcodeLayout build() {
+            if (positions.isEmpty()) {
+                throw new IllegalArgumentException("Attempted to build a " +
+                        "BarcodeLayout with no positions.");
+            }
+            List<Position> rtrn = new ArrayList<>();
+            for (Map.Entry<String, PositionBuilder> e : positions.entrySet()) {
+                PositionBuilder pb = e.getValue();
+                rtrn.add(new Position(e.getKey(), pb.offset, pb.maxMismatches,
+                        new ArrayList<>(pb.names),
+                        new ArrayList<>(pb.sequences)));
+            }
+            return new BarcodeLayout(rtrn);
+        }
+    }
+
+    private static final class PositionBuilder {
+        private final int offset;
+        private final int maxMismatches;
+        private final List<String> names = new ArrayList<>();
+        private final List<String> sequences = new ArrayList<>();
+
+        private PositionBuilder(int offset, int maxMismatches) {
+            this.offset = offset;
+            this.maxMismatches = maxMismatches;
+        }
+    }
+}
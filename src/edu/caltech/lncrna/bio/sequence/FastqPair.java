@@ -0,0 +1,57 @@
+package edu.caltech.lncrna.bio.sequence;
+
+import java.util.Objects;
+
+/**
+ * This class represents the two mates of a paired-end read, as read from a
+ * pair of FASTQ files.
+ */
+public final class FastqPair {
+
+    private final FastqSequence read1;
+    private final FastqSequence read2;
+
+    /**
+     * Constructs a new instance of a <code>FastqPair</code> from two mates.
+     *
+     * @param read1 - the first mate
+     * @param read2 - the second mate
+     * @throws NullPointerException if either mate is <code>null</code>
+     */
+    public FastqPair(FastqSequence read1, FastqSequence read2) {
+        this.read1 = Objects.requireNonNull(read1, "Attempted to create a " +
+                "FASTQ pair with a null first mate.");
+        this.read2 = Objects.requireNonNull(read2, "Attempted to create a " +
+                "FASTQ pair with a null second mate.");
+    }
+
+    public FastqSequence getRead1() {
+        return read1;
+    }
+
+    public FastqSequence getRead2() {
+        return read2;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (!(other instanceof FastqPair)) {
+            return false;
+        }
+
+        FastqPair o = (FastqPair) other;
+        return read1.equals(o.read1) && read2.equals(o.read2);
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 17;
+        hashCode = 37 * hashCode + read1.hashCode();
+        hashCode = 37 * hashCode + read2.hashCode();
+        return hashCode;
+    }
+}
@@ -146,10 +146,7 @@ public final class FastqSequence extends FastaSequence {
     @Override
     public FastqSequence subsequence(String name, int start, int end) {
         String subseq = sequence.substring(start, end);
-        byte[] subqual = new byte[end - start];
-        for (int i = start; i < end; i++) {
-            subqual[i - start] = quality[i];
-        }
+        byte[] subqual = Arrays.copyOfRange(quality, start, end);
         return new FastqSequence(name, subseq, subqual);
     }
     
@@ -163,6 +160,16 @@ public final class FastqSequence extends FastaSequence {
                 pe.phredToString(quality) + nl;
     }
     
+    /**
+     * Returns the Phred quality score of the base at the specified index.
+     * 
+     * @param index - the index of the base
+     * @throws IndexOutOfBoundsException if the index is out of range
+     */
+    public byte getQuality(int index) {
+        return quality[index];
+    }
+    
     public boolean hasAnyBaseWithQualityLessThan(byte minimumAllowedQuality) {
         for (int i = 0; i < quality.length; i++) {
             if (quality[i] < minimumAllowedQuality) {
@@ -172,6 +179,19 @@ public final class FastqSequence extends FastaSequence {
         return false;
     }
     
+    /**
+     * Returns the lowest Phred quality score of any base in this sequence.
+     * <p>
+     * If this sequence is empty, returns <code>Byte.MAX_VALUE</code>.
+     */
+    public byte getMinimumQuality() {
+        int min = Byte.MAX_VALUE;
+        for (int i = 0; i < quality.length; i++) {
+            min = Math.min(min, quality[i]);
+        }
+        return (byte) min;
+    }
+    
     @Override
     public boolean equals(Object other) {
 
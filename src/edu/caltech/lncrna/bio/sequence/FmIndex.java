@@ -0,0 +1,863 @@
+package edu.caltech.lncrna.bio.sequence;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.utils.Futures;
+
+/**
+ * This class represents an FM-index over a collection of sequences, such as
+ * the chromosomes of a reference genome or a transcriptome. It answers
+ * whether, how often and where a short query occurs, exactly or with a few
+ * mismatches, without scanning the sequences.
+ * <p>
+ * An index is built once with {@link #build(Iterator, Path, int)} and written
+ * to disk. Opening the index memory-maps the file, so opening is fast and the
+ * operating system pages in only the parts that queries touch. An open index
+ * may be shared between threads.
+ * <p>
+ * Sequences are grouped into shards of at most a fixed number of bases, and
+ * each shard has its own Burrows-Wheeler transform, occurrence checkpoints and
+ * sampled suffix array. Shards are built in parallel, and each shard's suffix
+ * array is built with the linear-time SA-IS algorithm. Queries search every
+ * shard.
+ * <p>
+ * Bases other than A, C, G and T, in either the sequences or a query, never
+ * match. Case is ignored. Results are reported as {@link Annotation}s with
+ * zero-based coordinates on the original sequences.
+ */
+public final class FmIndex implements AutoCloseable {
+
+    /**
+     * The default maximum number of bases in a shard.
+     */
+    public static final int DEFAULT_SHARD_SIZE = 1 << 26;
+
+    /**
+     * The default interval between suffix-array samples.
+     */
+    public static final int DEFAULT_SAMPLE_RATE = 32;
+
+    /**
+     * The largest shard allowed, and so the longest sequence that can be
+     * indexed. One is subtracted for the sentinel at the end of a shard.
+     */
+    public static final int MAX_SHARD_SIZE = (1 << 29) - 1;
+
+    private static final int MAGIC = 0x464d4958; // "FMIX"
+
+    // Symbol codes. A separator follows every sequence, non-ACGT bases are
+    // also encoded as separators, and a single sentinel ends each shard.
+    private static final byte SENTINEL = 0;
+    private static final byte SEPARATOR = 1;
+    private static final byte FIRST_BASE = 2;
+    private static final byte LAST_BASE = 5;
+    private static final int ALPHABET_SIZE = 6;
+    private static final int OCC_SYMBOLS = ALPHABET_SIZE - 1;
+    private static final int OCC_SHIFT = 6;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final List<String> names;
+    private final List<Shard> shards;
+    private final int sampleRate;
+
+    /**
+     * Opens an index that was written by {@link #build(Iterator, Path, int)}.
+     *
+     * @param p - the path to the index
+     * @throws IllegalArgumentException if the file is not an FM-index
+     * @throws NullPointerException if the path is <code>null</code>
+     */
+    public FmIndex(Path p) {
+        path = Objects.requireNonNull(p, "Attempted to open an FM-index " +
+                "from a null path.");
+        try {
+            channel = FileChannel.open(p, StandardOpenOption.READ);
+            ByteBuffer prefix = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+            if (prefix.getInt() != MAGIC) {
+                channel.close();
+                throw new IllegalArgumentException("Not an FM-index: " + p);
+            }
+            int headerLength = prefix.getInt();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 8,
+                    headerLength);
+            byte[] headerBytes = new byte[headerLength];
+            header.get(headerBytes);
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(headerBytes));
+
+            sampleRate = in.readInt();
+            int numSequences = in.readInt();
+            List<String> nameList = new ArrayList<>(numSequences);
+            int[] lengths = new int[numSequences];
+            for (int i = 0; i < numSequences; i++) {
+                nameList.add(in.readUTF());
+                lengths[i] = in.readInt();
+            }
+            names = Collections.unmodifiableList(nameList);
+
+            int numShards = in.readInt();
+            List<Shard> shardList = new ArrayList<>(numShards);
+            long offset = 8L + headerLength;
+            for (int i = 0; i < numShards; i++) {
+                int first = in.readInt();
+                int count = in.readInt();
+                int[] c = new int[ALPHABET_SIZE + 1];
+                for (int j = 0; j < c.length; j++) {
+                    c[j] = in.readInt();
+                }
+                Shard shard = new Shard(first, Arrays.copyOfRange(lengths,
+                        first, first + count), c, offset);
+                shardList.add(shard);
+                offset += shard.dataSize();
+            }
+            shards = Collections.unmodifiableList(shardList);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Builds an index over every sequence from an iterator and writes it to
+     * disk, using the default shard size and sample rate.
+     *
+     * @see #build(Iterator, Path, int, int, int)
+     */
+    public static void build(Iterator<? extends Sequence> sequences,
+            Path output, int numThreads) {
+        build(sequences, output, numThreads, DEFAULT_SHARD_SIZE,
+                DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * Builds an index over every sequence from an iterator and writes it to
+     * disk.
+     * <p>
+     * Sequences are read on the calling thread and grouped into shards, and
+     * shards are built on a pool of worker threads. At most
+     * <code>numThreads</code> shards are held in memory at a time, each
+     * taking about ten bytes per base while it is built.
+     * <p>
+     * The iterator is not closed by this method.
+     *
+     * @param sequences - the sequences to index, e.g., a
+     * {@link edu.caltech.lncrna.bio.io.FastaParser}
+     * @param output - the path to write the index to
+     * @param numThreads - the number of worker threads
+     * @param shardSize - the maximum number of bases in a shard. A sequence
+     * longer than this is put in a shard of its own.
+     * @param sampleRate - the interval between suffix-array samples. Larger
+     * values give a smaller index and slower {@link #locate} calls.
+     * @throws IllegalArgumentException if <code>numThreads</code>,
+     * <code>shardSize</code> or <code>sampleRate</code> is not positive, or if
+     * a sequence is longer than {@link #MAX_SHARD_SIZE}
+     */
+    public static void build(Iterator<? extends Sequence> sequences,
+            Path output, int numThreads, int shardSize, int sampleRate) {
+        Objects.requireNonNull(sequences, "Attempted to index a null " +
+                "iterator.");
+        Objects.requireNonNull(output, "Attempted to write an FM-index to a " +
+                "null path.");
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be " +
+                    "positive: " + numThreads);
+        }
+        if (shardSize < 1) {
+            throw new IllegalArgumentException("Shard size must be " +
+                    "positive: " + shardSize);
+        }
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be " +
+                    "positive: " + sampleRate);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        Semaphore inFlight = new Semaphore(numThreads);
+        List<Future<BuiltShard>> futures = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        try {
+            ShardText text = new ShardText(names.size());
+            while (sequences.hasNext()) {
+                Sequence seq = sequences.next();
+                String bases = seq.getBases();
+                if (bases.length() > MAX_SHARD_SIZE - 2) {
+                    throw new IllegalArgumentException("Sequence " +
+                            seq.getName() + " is too long to index: " +
+                            bases.length());
+                }
+                long newLength = (long) text.length + bases.length() + 2;
+                if (text.numSequences > 0 &&
+                        (newLength > shardSize || newLength > MAX_SHARD_SIZE)) {
+                    futures.add(submit(pool, inFlight, text, sampleRate));
+                    text = new ShardText(names.size());
+                }
+                text.add(bases);
+                names.add(seq.getName());
+                lengths.add(bases.length());
+            }
+            if (text.numSequences > 0) {
+                futures.add(submit(pool, inFlight, text, sampleRate));
+            }
+
+            List<BuiltShard> built = new ArrayList<>();
+            for (Future<BuiltShard> future : futures) {
+                built.add(Futures.get(future));
+            }
+            writeIndex(output, names, lengths, built, sampleRate);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // Shards that never started are dropped by shutdownNow() without
+            // completing their futures, so only finished shards are read.
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Future<BuiltShard> future : futures) {
+                if (!future.isDone() || future.isCancelled()) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(future.get().path);
+                } catch (InterruptedException | ExecutionException |
+                        CancellationException | IOException e) {
+                    // Already reported, or never created.
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the names of the indexed sequences, in input order
+     */
+    public List<String> getSequenceNames() {
+        return names;
+    }
+
+    /**
+     * Returns the number of exact occurrences of a query on the positive
+     * strand.
+     *
+     * @param query - the query bases
+     * @throws IllegalArgumentException if the query is empty
+     */
+    public long count(CharSequence query) {
+        return count(query, 0, Strand.POSITIVE);
+    }
+
+    /**
+     * Returns the number of occurrences of a query with at most the given
+     * number of mismatches on the positive strand.
+     *
+     * @param query - the query bases
+     * @param maxMismatches - the maximum number of substitutions
+     * @throws IllegalArgumentException if the query is empty or
+     * <code>maxMismatches</code> is negative
+     */
+    public long count(CharSequence query, int maxMismatches) {
+        return count(query, maxMismatches, Strand.POSITIVE);
+    }
+
+    /**
+     * Returns the number of occurrences of a query with at most the given
+     * number of mismatches.
+     *
+     * @param query - the query bases
+     * @param maxMismatches - the maximum number of substitutions
+     * @param strand - the strand to search: <code>POSITIVE</code>,
+     * <code>NEGATIVE</code>, or <code>BOTH</code>
+     * @throws IllegalArgumentException if the query is empty,
+     * <code>maxMismatches</code> is negative, or the strand is invalid
+     */
+    public long count(CharSequence query, int maxMismatches, Strand strand) {
+        long count = 0;
+        for (Search search : searches(query, maxMismatches, strand)) {
+            for (Shard shard : shards) {
+                for (int[] range : shard.search(search.pattern, maxMismatches)) {
+                    count += range[1] - range[0];
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns every exact occurrence of a query on the positive strand.
+     *
+     * @param query - the query bases
+     * @throws IllegalArgumentException if the query is empty
+     */
+    public List<Annotation> locate(CharSequence query) {
+        return locate(query, 0, Strand.POSITIVE);
+    }
+
+    /**
+     * Returns every occurrence of a query with at most the given number of
+     * mismatches on the positive strand.
+     *
+     * @param query - the query bases
+     * @param maxMismatches - the maximum number of substitutions
+     * @throws IllegalArgumentException if the query is empty or
+     * <code>maxMismatches</code> is negative
+     */
+    public List<Annotation> locate(CharSequence query, int maxMismatches) {
+        return locate(query, maxMismatches, Strand.POSITIVE);
+    }
+
+    /**
+     * Returns every occurrence of a query with at most the given number of
+     * mismatches.
+     * <p>
+     * Occurrences are ordered by sequence, in input order, then by position.
+     * An occurrence of the reverse-complement of the query is reported on the
+     * negative strand.
+     *
+     * @param query - the query bases
+     * @param maxMismatches - the maximum number of substitutions
+     * @param strand - the strand to search: <code>POSITIVE</code>,
+     * <code>NEGATIVE</code>, or <code>BOTH</code>
+     * @throws IllegalArgumentException if the query is empty,
+     * <code>maxMismatches</code> is negative, or the strand is invalid
+     */
+    public List<Annotation> locate(CharSequence query, int maxMismatches,
+            Strand strand) {
+        // Each hit is packed as (sequence index, start, strand) so that
+        // sorting the keys sorts the hits.
+        long[] keys = new long[16];
+        int numKeys = 0;
+        for (Search search : searches(query, maxMismatches, strand)) {
+            for (Shard shard : shards) {
+                for (int[] range : shard.search(search.pattern, maxMismatches)) {
+                    for (int row = range[0]; row < range[1]; row++) {
+                        int pos = shard.locate(row);
+                        int local = Arrays.binarySearch(shard.starts, pos);
+                        local = local >= 0 ? local : -local - 2;
+                        long key = ((long) (shard.firstSequence + local) << 32) |
+                                ((long) (pos - shard.starts[local]) << 1) |
+                                (search.negative ? 1 : 0);
+                        if (numKeys == keys.length) {
+                            keys = Arrays.copyOf(keys, numKeys * 2);
+                        }
+                        keys[numKeys++] = key;
+                    }
+                }
+            }
+        }
+        Arrays.sort(keys, 0, numKeys);
+
+        int length = query.length();
+        List<Annotation> rtrn = new ArrayList<>(numKeys);
+        for (int i = 0; i < numKeys; i++) {
+            long key = keys[i];
+            int start = (int) (key & 0xffffffffL) >>> 1;
+            rtrn.add(new Annotation(names.get((int) (key >>> 32)), start,
+                    start + length, (key & 1) == 0
+                            ? Strand.POSITIVE
+                            : Strand.NEGATIVE));
+        }
+        return rtrn;
+    }
+
+    /**
+     * Closes the underlying file. Memory already mapped is released when the
+     * index is garbage-collected.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FmIndex(" + path + ")";
+    }
+
+    private static List<Search> searches(CharSequence query, int maxMismatches,
+            Strand strand) {
+        Objects.requireNonNull(query, "Attempted to search for a null query.");
+        if (query.length() == 0) {
+            throw new IllegalArgumentException("Attempted to search for an " +
+                    "empty query.");
+        }
+        if (maxMismatches < 0) {
+            throw new IllegalArgumentException("Maximum number of " +
+                    "mismatches must be non-negative: " + maxMismatches);
+        }
+        List<Search> rtrn = new ArrayList<>(2);
+        if (strand == Strand.POSITIVE || strand == Strand.BOTH) {
+            rtrn.add(new Search(encode(query), false));
+        }
+        if (strand == Strand.NEGATIVE || strand == Strand.BOTH) {
+            rtrn.add(new Search(encode(Sequences.reverseComplement(
+                    query.toString())), true));
+        }
+        if (rtrn.isEmpty()) {
+            throw new IllegalArgumentException("Attempted to search an " +
+                    "invalid strand: " + strand);
+        }
+        return rtrn;
+    }
+
+    private static byte[] encode(CharSequence bases) {
+        byte[] rtrn = new byte[bases.length()];
+        for (int i = 0; i < rtrn.length; i++) {
+            rtrn[i] = codeOf(bases.charAt(i));
+        }
+        return rtrn;
+    }
+
+    private static byte codeOf(char c) {
+        switch (c) {
+        case 'A': case 'a': return 2;
+        case 'C': case 'c': return 3;
+        case 'G': case 'g': return 4;
+        case 'T': case 't': return 5;
+        default: return SEPARATOR;
+        }
+    }
+
+    private static Future<BuiltShard> submit(ExecutorService pool,
+            Semaphore inFlight, ShardText text, int sampleRate) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        return pool.submit(() -> {
+            try {
+                return buildShard(text, sampleRate);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Builds one shard and writes its BWT, occurrence checkpoints and suffix
+     * array samples to a temporary file.
+     */
+    private static BuiltShard buildShard(ShardText text, int sampleRate)
+            throws IOException {
+        int n = text.length + 1;
+        int[] t = new int[n];
+        for (int i = 0; i < text.length; i++) {
+            t[i] = text.codes[i];
+        }
+        t[n - 1] = SENTINEL;
+        text.codes = null;
+
+        int[] sa = new int[n];
+        sais(t, sa, n, ALPHABET_SIZE);
+
+        int[] c = new int[ALPHABET_SIZE + 1];
+        for (int i = 0; i < n; i++) {
+            c[t[i] + 1]++;
+        }
+        for (int i = 1; i < c.length; i++) {
+            c[i] += c[i - 1];
+        }
+
+        Path tmp = Files.createTempFile("fmindex", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            for (int i = 0; i < n; i++) {
+                out.writeByte(sa[i] == 0 ? t[n - 1] : t[sa[i] - 1]);
+            }
+            int[] counts = new int[ALPHABET_SIZE];
+            for (int i = 0; i < n; i++) {
+                if ((i & ((1 << OCC_SHIFT) - 1)) == 0) {
+                    for (int s = 1; s < ALPHABET_SIZE; s++) {
+                        out.writeInt(counts[s]);
+                    }
+                }
+                counts[sa[i] == 0 ? t[n - 1] : t[sa[i] - 1]]++;
+            }
+            if ((n & ((1 << OCC_SHIFT) - 1)) == 0) {
+                for (int s = 1; s < ALPHABET_SIZE; s++) {
+                    out.writeInt(counts[s]);
+                }
+            }
+            for (int i = 0; i < n; i += sampleRate) {
+                out.writeInt(sa[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return new BuiltShard(text.firstSequence, text.numSequences, c, tmp);
+    }
+
+    private static void writeIndex(Path output, List<String> names,
+            List<Integer> lengths, List<BuiltShard> shards, int sampleRate)
+            throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(sampleRate);
+        header.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            header.writeUTF(names.get(i));
+            header.writeInt(lengths.get(i));
+        }
+        header.writeInt(shards.size());
+        for (BuiltShard shard : shards) {
+            header.writeInt(shard.firstSequence);
+            header.writeInt(shard.numSequences);
+            for (int count : shard.c) {
+                header.writeInt(count);
+            }
+        }
+        header.flush();
+
+        try (OutputStream stream = Files.newOutputStream(output);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeInt(headerBytes.size());
+            headerBytes.writeTo(out);
+            for (BuiltShard shard : shards) {
+                Files.copy(shard.path, out);
+            }
+        }
+    }
+
+    /**
+     * Constructs the suffix array of <code>t</code> with the SA-IS algorithm
+     * of Nong, Zhang and Chan. The last symbol of <code>t</code> must be a
+     * unique 0, and all symbols must be less than <code>k</code>.
+     */
+    static void sais(int[] t, int[] sa, int n, int k) {
+        boolean[] stype = new boolean[n];
+        stype[n - 1] = true;
+        for (int i = n - 2; i >= 0; i--) {
+            stype[i] = t[i] < t[i + 1] || (t[i] == t[i + 1] && stype[i + 1]);
+        }
+        int[] bucket = new int[k];
+
+        // Sort the LMS substrings by placing them at their bucket ends and
+        // inducing.
+        bucketEnds(t, bucket, n, k);
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLms(stype, i)) {
+                sa[--bucket[t[i]]] = i;
+            }
+        }
+        induce(t, sa, stype, bucket, n, k);
+
+        // Move the sorted LMS substrings to the front and name them.
+        int n1 = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLms(stype, sa[i])) {
+                sa[n1++] = sa[i];
+            }
+        }
+        Arrays.fill(sa, n1, n, -1);
+        int name = 0;
+        int prev = -1;
+        for (int i = 0; i < n1; i++) {
+            int pos = sa[i];
+            boolean diff = false;
+            for (int d = 0; ; d++) {
+                if (prev == -1 || t[pos + d] != t[prev + d] ||
+                        stype[pos + d] != stype[prev + d]) {
+                    diff = true;
+                    break;
+                } else if (d > 0 && (isLms(stype, pos + d) ||
+                        isLms(stype, prev + d))) {
+                    break;
+                }
+            }
+            if (diff) {
+                name++;
+                prev = pos;
+            }
+            sa[n1 + pos / 2] = name - 1;
+        }
+        for (int i = n - 1, j = n - 1; i >= n1; i--) {
+            if (sa[i] >= 0) {
+                sa[j--] = sa[i];
+            }
+        }
+
+        // Sort the reduced string, recursing if names are not unique.
+        int[] s1 = Arrays.copyOfRange(sa, n - n1, n);
+        int[] sa1 = new int[n1];
+        if (name < n1) {
+            sais(s1, sa1, n1, name);
+        } else {
+            for (int i = 0; i < n1; i++) {
+                sa1[s1[i]] = i;
+            }
+        }
+
+        // Induce the full suffix array from the sorted LMS suffixes.
+        for (int i = 1, j = 0; i < n; i++) {
+            if (isLms(stype, i)) {
+                s1[j++] = i;
+            }
+        }
+        for (int i = 0; i < n1; i++) {
+            sa1[i] = s1[sa1[i]];
+        }
+        Arrays.fill(sa, 0, n, -1);
+        bucketEnds(t, bucket, n, k);
+        for (int i = n1 - 1; i >= 0; i--) {
+            int j = sa1[i];
+            sa[--bucket[t[j]]] = j;
+        }
+        induce(t, sa, stype, bucket, n, k);
+    }
+
+    private static boolean isLms(boolean[] stype, int i) {
+        return i > 0 && stype[i] && !stype[i - 1];
+    }
+
+    private static void induce(int[] t, int[] sa, boolean[] stype,
+            int[] bucket, int n, int k) {
+        bucketStarts(t, bucket, n, k);
+        for (int i = 0; i < n; i++) {
+            int j = sa[i] - 1;
+            if (j >= 0 && !stype[j]) {
+                sa[bucket[t[j]]++] = j;
+            }
+        }
+        bucketEnds(t, bucket, n, k);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = sa[i] - 1;
+            if (j >= 0 && stype[j]) {
+                sa[--bucket[t[j]]] = j;
+            }
+        }
+    }
+
+    private static void bucketStarts(int[] t, int[] bucket, int n, int k) {
+        countSymbols(t, bucket, n, k);
+        int sum = 0;
+        for (int i = 0; i < k; i++) {
+            int count = bucket[i];
+            bucket[i] = sum;
+            sum += count;
+        }
+    }
+
+    private static void bucketEnds(int[] t, int[] bucket, int n, int k) {
+        countSymbols(t, bucket, n, k);
+        int sum = 0;
+        for (int i = 0; i < k; i++) {
+            sum += bucket[i];
+            bucket[i] = sum;
+        }
+    }
+
+    private static void countSymbols(int[] t, int[] bucket, int n, int k) {
+        Arrays.fill(bucket, 0, k, 0);
+        for (int i = 0; i < n; i++) {
+            bucket[t[i]]++;
+        }
+    }
+
+    /**
+     * A memory-mapped shard of an open index.
+     */
+    private final class Shard {
+        private final int firstSequence;
+        private final int[] starts;
+        private final int length;
+        private final int[] c;
+        private final long offset;
+        private final ByteBuffer bwt;
+        private final IntBuffer occ;
+        private final IntBuffer samples;
+
+        private Shard(int firstSequence, int[] lengths, int[] c, long offset)
+                throws IOException {
+            this.firstSequence = firstSequence;
+            this.starts = new int[lengths.length];
+            int pos = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                starts[i] = pos;
+                pos += lengths[i] + 1;
+            }
+            this.length = pos + 1;
+            this.c = c;
+            this.offset = offset;
+
+            long occOffset = offset + length;
+            long samplesOffset = occOffset + occSize();
+            bwt = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            occ = channel.map(FileChannel.MapMode.READ_ONLY, occOffset,
+                    occSize()).asIntBuffer();
+            samples = channel.map(FileChannel.MapMode.READ_ONLY, samplesOffset,
+                    samplesSize()).asIntBuffer();
+        }
+
+        private long occSize() {
+            return 4L * OCC_SYMBOLS * ((length >>> OCC_SHIFT) + 1);
+        }
+
+        private long samplesSize() {
+            return 4L * ((length + sampleRate - 1) / sampleRate);
+        }
+
+        private long dataSize() {
+            return length + occSize() + samplesSize();
+        }
+
+        /**
+         * Returns the number of occurrences of a symbol in
+         * <code>bwt[0, i)</code>.
+         */
+        private int occ(int symbol, int i) {
+            int block = i >>> OCC_SHIFT;
+            int count = occ.get(block * OCC_SYMBOLS + symbol - 1);
+            for (int j = block << OCC_SHIFT; j < i; j++) {
+                if (bwt.get(j) == symbol) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private int lf(int symbol, int i) {
+            return c[symbol] + occ(symbol, i);
+        }
+
+        /**
+         * Returns the suffix-array ranges of every string within
+         * <code>maxMismatches</code> substitutions of the pattern.
+         */
+        private List<int[]> search(byte[] pattern, int maxMismatches) {
+            List<int[]> ranges = new ArrayList<>();
+            search(pattern, pattern.length - 1, 0, length, maxMismatches,
+                    ranges);
+            return ranges;
+        }
+
+        private void search(byte[] pattern, int i, int lo, int hi,
+                int mismatches, List<int[]> ranges) {
+            if (i < 0) {
+                ranges.add(new int[] {lo, hi});
+                return;
+            }
+            for (int symbol = FIRST_BASE; symbol <= LAST_BASE; symbol++) {
+                int cost = pattern[i] == symbol ? 0 : 1;
+                if (cost > mismatches) {
+                    continue;
+                }
+                int newLo = lf(symbol, lo);
+                int newHi = lf(symbol, hi);
+                if (newLo < newHi) {
+                    search(pattern, i - 1, newLo, newHi, mismatches - cost,
+                            ranges);
+                }
+            }
+        }
+
+        /**
+         * Returns the text position of the suffix at a row, walking backward
+         * through the text until a sampled row is reached.
+         */
+        private int locate(int row) {
+            int steps = 0;
+            while (row % sampleRate != 0) {
+                int symbol = bwt.get(row);
+                if (symbol == SENTINEL) {
+                    return steps;
+                }
+                row = lf(symbol, row);
+                steps++;
+            }
+            return samples.get(row / sampleRate) + steps;
+        }
+    }
+
+    private static final class Search {
+        private final byte[] pattern;
+        private final boolean negative;
+
+        private Search(byte[] pattern, boolean negative) {
+            this.pattern = pattern;
+            this.negative = negative;
+        }
+    }
+
+    /**
+     * The encoded text of a shard being accumulated for building.
+     */
+    private static final class ShardText {
+        private final int firstSequence;
+        private int numSequences = 0;
+        private byte[] codes = new byte[1024];
+        private int length = 0;
+
+        private ShardText(int firstSequence) {
+            this.firstSequence = firstSequence;
+        }
+
+        private void add(String bases) {
+            int needed = length + bases.length() + 1;
+            if (needed > codes.length) {
+                codes = Arrays.copyOf(codes, Math.max(needed,
+                        (int) Math.min(2L * codes.length, MAX_SHARD_SIZE)));
+            }
+            for (int i = 0; i < bases.length(); i++) {
+                codes[length++] = codeOf(bases.charAt(i));
+            }
+            codes[length++] = SEPARATOR;
+            numSequences++;
+        }
+    }
+
+    /**
+     * A shard that has been built and written to a temporary file.
+     */
+    private static final class BuiltShard {
+        private final int firstSequence;
+        private final int numSequences;
+        private final int[] c;
+        private final Path path;
+
+        private BuiltShard(int firstSequence, int numSequences, int[] c,
+                Path path) {
+            this.firstSequence = firstSequence;
+            this.numSequences = numSequences;
+            this.c = c;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,618 @@
+package edu.caltech.lncrna.bio.sequence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import edu.caltech.lncrna.bio.datastructures.LongIntHashMap;
+import edu.caltech.lncrna.bio.utils.Futures;
+
+/**
+ * This class counts the k-mers in a collection of sequences.
+ * <p>
+ * Each k-mer is encoded into a <code>long</code> two bits per base (A=0, C=1,
+ * G=2, T=3), with the first base in the most significant position, so
+ * <code>k</code> may be at most 31. Encodings are updated incrementally as
+ * the window slides along a sequence, and any k-mer containing an N is
+ * skipped. Case is ignored.
+ * <p>
+ * If this counter is canonical, a k-mer and its reverse-complement are
+ * counted together under whichever of the two encodings is smaller. The
+ * reverse-complement encoding is also maintained incrementally.
+ * <p>
+ * Counts are held in a number of {@link LongIntHashMap} shards, each guarded
+ * by its own lock, so that several threads can add sequences at once. See
+ * {@link #addAll(Iterator, int)} for a parallel pipeline fed from a parser.
+ * <p>
+ * Counts can be written to a binary table sorted by k-mer with
+ * {@link #writeTable(Path)}. Sorted tables from several runs can be combined
+ * with {@link #mergeTables(List, Path)} without loading them into memory.
+ */
+public final class KmerCounter {
+
+    public static final int MAX_K = 31;
+
+    private static final int TABLE_MAGIC = 0x4b4d4552; // "KMER"
+    private static final int BATCH_SIZE = 1024;
+    private static final int FLUSH_SIZE = 1 << 16;
+    private static final byte[] CODES = new byte[128];
+
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        CODES['A'] = CODES['a'] = 0;
+        CODES['C'] = CODES['c'] = 1;
+        CODES['G'] = CODES['g'] = 2;
+        CODES['T'] = CODES['t'] = 3;
+    }
+
+    private final int k;
+    private final boolean canonical;
+    private final long mask;
+    private final int shift;
+    private final LongIntHashMap[] shards;
+    private final int shardBits;
+
+    /**
+     * Class constructor.
+     * <p>
+     * Constructs a canonical counter with a single shard, suitable for use
+     * from one thread.
+     *
+     * @param k - the k-mer length
+     * @throws IllegalArgumentException if <code>k</code> is not between 1 and
+     * {@link #MAX_K}
+     */
+    public KmerCounter(int k) {
+        this(k, true, 1);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param k - the k-mer length
+     * @param canonical - whether to count a k-mer and its reverse-complement
+     * together
+     * @param numShards - the number of independently locked tables; rounded
+     * up to a power of two
+     * @throws IllegalArgumentException if <code>k</code> is not between 1 and
+     * {@link #MAX_K}, or if <code>numShards</code> is not positive
+     */
+    public KmerCounter(int k, boolean canonical, int numShards) {
+        if (k < 1 || k > MAX_K) {
+            throw new IllegalArgumentException("k-mer length must be between" +
+                    " 1 and " + MAX_K + ": " + k);
+        }
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Attempted to create a " +
+                    "KmerCounter with a non-positive number of shards: " +
+                    numShards);
+        }
+        this.k = k;
+        this.canonical = canonical;
+        this.mask = (1L << (2 * k)) - 1;
+        this.shift = 2 * (k - 1);
+        this.shardBits = 32 - Integer.numberOfLeadingZeros(numShards - 1);
+        this.shards = new LongIntHashMap[1 << shardBits];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new LongIntHashMap();
+        }
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    /**
+     * Counts the k-mers of a sequence.
+     * <p>
+     * This method is thread-safe.
+     *
+     * @param seq - the sequence to count
+     */
+    public void add(Sequence seq) {
+        add(seq.getBases());
+    }
+
+    /**
+     * Counts the k-mers of a string of bases.
+     * <p>
+     * This method is thread-safe.
+     *
+     * @param bases - the bases to count
+     */
+    public void add(CharSequence bases) {
+        // A single read needs a buffer no larger than its own k-mers
+        KmerBuffer buffer = new KmerBuffer(Math.min(FLUSH_SIZE,
+                Math.max(1, bases.length() - k + 1)));
+        encode(bases, buffer);
+        flush(buffer);
+    }
+
+    /**
+     * Counts the k-mers of every sequence from an iterator using a pool of
+     * worker threads.
+     * <p>
+     * The calling thread reads from the iterator and hands batches of
+     * sequences to the workers through a bounded queue, so the iterator need
+     * not be thread-safe and only a few batches are held in memory at once.
+     * Each worker encodes its batch, groups the k-mers by shard, and then
+     * takes each shard's lock once per batch, or more often for batches
+     * with more k-mers than fit in its buffer.
+     * <p>
+     * The iterator is not closed by this method.
+     *
+     * @param sequences - the sequences to count, e.g., a {@link
+     * edu.caltech.lncrna.bio.io.FastqParser}
+     * @param numThreads - the number of worker threads
+     * @throws IllegalArgumentException if <code>numThreads</code> is not
+     * positive
+     */
+    public void addAll(Iterator<? extends Sequence> sequences, int numThreads) {
+        Objects.requireNonNull(sequences, "Attempted to count k-mers from a " +
+                "null iterator.");
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Attempted to count k-mers " +
+                    "with a non-positive number of threads: " + numThreads);
+        }
+
+        final List<Sequence> poison = new ArrayList<>();
+        final BlockingQueue<List<Sequence>> queue =
+                new ArrayBlockingQueue<>(2 * numThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> workers = new ArrayList<>();
+
+        for (int i = 0; i < numThreads; i++) {
+            workers.add(pool.submit(() -> {
+                KmerBuffer buffer = new KmerBuffer(FLUSH_SIZE);
+                List<Sequence> batch;
+                while ((batch = queue.take()) != poison) {
+                    for (Sequence seq : batch) {
+                        encode(seq.getBases(), buffer);
+                    }
+                    flush(buffer);
+                }
+                return null;
+            }));
+        }
+
+        try {
+            List<Sequence> batch = new ArrayList<>(BATCH_SIZE);
+            while (sequences.hasNext()) {
+                batch.add(sequences.next());
+                if (batch.size() == BATCH_SIZE) {
+                    put(queue, batch, workers);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                put(queue, batch, workers);
+            }
+            for (int i = 0; i < numThreads; i++) {
+                put(queue, poison, workers);
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Futures.propagate(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Offers a batch to the workers, failing fast if any worker has died so
+     * that the producer does not block forever on a full queue.
+     */
+    private static void put(BlockingQueue<List<Sequence>> queue,
+            List<Sequence> batch, List<Future<?>> workers)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            for (Future<?> worker : workers) {
+                if (worker.isDone()) {
+                    worker.get();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the count of a k-mer. If this counter is canonical, the count
+     * includes occurrences of the k-mer's reverse-complement.
+     *
+     * @param kmer - the k-mer
+     * @throws IllegalArgumentException if the k-mer is the wrong length or
+     * contains a base other than A, C, G or T
+     */
+    public int getCount(String kmer) {
+        if (kmer.length() != k) {
+            throw new IllegalArgumentException("Expected a k-mer of length " +
+                    k + ": " + kmer);
+        }
+        long code = encode(kmer);
+        if (canonical) {
+            code = Math.min(code, reverseComplement(code, k));
+        }
+        return getCount(code);
+    }
+
+    /**
+     * Returns the count of an encoded k-mer. If this counter is canonical,
+     * the encoding should be canonical as well.
+     *
+     * @param code - the encoded k-mer
+     */
+    public int getCount(long code) {
+        LongIntHashMap shard = shards[shardOf(code)];
+        synchronized (shard) {
+            return shard.get(code);
+        }
+    }
+
+    /**
+     * @return the number of distinct k-mers counted
+     */
+    public long size() {
+        long size = 0;
+        for (LongIntHashMap shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Performs the given action on every k-mer and its count, in no
+     * particular order.
+     *
+     * @param action - the action to perform
+     */
+    public void forEach(LongIntHashMap.EntryConsumer action) {
+        for (LongIntHashMap shard : shards) {
+            synchronized (shard) {
+                shard.forEach(action);
+            }
+        }
+    }
+
+    /**
+     * Writes every k-mer and its count to a binary table sorted by encoded
+     * k-mer.
+     * <p>
+     * The table consists of a header (a magic number, <code>k</code>,
+     * whether the counts are canonical, and the number of entries) followed
+     * by one (<code>long</code> k-mer, <code>int</code> count) pair per entry,
+     * all big-endian.
+     *
+     * @param path - the path to write to
+     */
+    public void writeTable(Path path) {
+        // One sorted snapshot per shard, taken under a single hold of its
+        // lock; shards hold disjoint k-mers, so they are merged as written
+        long[][] codes = new long[shards.length][];
+        int[][] counts = new int[shards.length][];
+        long numEntries = 0;
+        for (int s = 0; s < shards.length; s++) {
+            LongIntHashMap shard = shards[s];
+            synchronized (shard) {
+                codes[s] = shard.sortedKeys();
+                counts[s] = new int[codes[s].length];
+                for (int i = 0; i < codes[s].length; i++) {
+                    counts[s][i] = shard.get(codes[s][i]);
+                }
+            }
+            numEntries += codes[s].length;
+        }
+
+        int[] next = new int[shards.length];
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path)))) {
+            writeHeader(out, k, canonical, numEntries);
+            for (long n = 0; n < numEntries; n++) {
+                int min = -1;
+                for (int s = 0; s < shards.length; s++) {
+                    if (next[s] < codes[s].length && (min < 0 ||
+                            codes[s][next[s]] < codes[min][next[min]])) {
+                        min = s;
+                    }
+                }
+                out.writeLong(codes[min][next[min]]);
+                out.writeInt(counts[min][next[min]++]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merges several sorted k-mer tables into one, summing the counts of
+     * k-mers that appear in more than one table.
+     * <p>
+     * The inputs are streamed, so only one entry per input is held in memory
+     * at a time.
+     *
+     * @param inputs - the tables to merge, as written by
+     * {@link #writeTable(Path)}
+     * @param output - the path to write the merged table to
+     * @throws IllegalArgumentException if the inputs do not share the same
+     * <code>k</code> and canonicity, or if an input is not a k-mer table
+     */
+    public static void mergeTables(List<Path> inputs, Path output) {
+        List<TableReader> readers = new ArrayList<>();
+        try {
+            for (Path input : inputs) {
+                readers.add(new TableReader(input));
+            }
+            int k = readers.isEmpty() ? 1 : readers.get(0).k;
+            boolean canonical = readers.isEmpty() || readers.get(0).canonical;
+            for (TableReader reader : readers) {
+                if (reader.k != k || reader.canonical != canonical) {
+                    throw new IllegalArgumentException("Attempted to merge " +
+                            "k-mer tables with different parameters: " +
+                            reader.path);
+                }
+            }
+
+            PriorityQueue<TableReader> heap = new PriorityQueue<>(
+                    Math.max(readers.size(), 1),
+                    (a, b) -> Long.compare(a.code, b.code));
+            for (TableReader reader : readers) {
+                if (reader.advance()) {
+                    heap.add(reader);
+                }
+            }
+
+            // The number of entries is not known until the merge finishes, so
+            // the entries go to a temporary file first.
+            Path body = Files.createTempFile("kmers", ".tmp");
+            long numEntries = 0;
+            try {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(body)))) {
+                    while (!heap.isEmpty()) {
+                        long code = heap.peek().code;
+                        long count = 0;
+                        while (!heap.isEmpty() && heap.peek().code == code) {
+                            TableReader reader = heap.poll();
+                            count += reader.count;
+                            if (reader.advance()) {
+                                heap.add(reader);
+                            }
+                        }
+                        out.writeLong(code);
+                        out.writeInt((int) Math.min(count, Integer.MAX_VALUE));
+                        numEntries++;
+                    }
+                }
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(output)))) {
+                    writeHeader(out, k, canonical, numEntries);
+                    Files.copy(body, out);
+                }
+            } finally {
+                Files.deleteIfExists(body);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (TableReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Encodes a k-mer into a <code>long</code>, two bits per base.
+     *
+     * @param kmer - the k-mer to encode
+     * @throws IllegalArgumentException if the k-mer is longer than
+     * {@link #MAX_K} or contains a base other than A, C, G or T
+     */
+    public static long encode(CharSequence kmer) {
+        if (kmer.length() > MAX_K) {
+            throw new IllegalArgumentException("k-mer length must be at most "
+                    + MAX_K + ": " + kmer);
+        }
+        long code = 0;
+        for (int i = 0; i < kmer.length(); i++) {
+            int base = codeOf(kmer.charAt(i));
+            if (base < 0) {
+                throw new IllegalArgumentException("Unsupported base: " +
+                        kmer.charAt(i));
+            }
+            code = (code << 2) | base;
+        }
+        return code;
+    }
+
+    /**
+     * Decodes a k-mer encoded by {@link #encode(CharSequence)}.
+     *
+     * @param code - the encoded k-mer
+     * @param k - the k-mer length
+     * @return the k-mer as an uppercase <code>String</code>
+     */
+    public static String decode(long code, int k) {
+        char[] cs = new char[k];
+        for (int i = k - 1; i >= 0; i--) {
+            cs[i] = "ACGT".charAt((int) (code & 3));
+            code >>>= 2;
+        }
+        return String.valueOf(cs);
+    }
+
+    /**
+     * Returns the encoding of the reverse-complement of an encoded k-mer.
+     *
+     * @param code - the encoded k-mer
+     * @param k - the k-mer length
+     */
+    public static long reverseComplement(long code, int k) {
+        long rc = PackedSequence.reverseCodes(~code);
+        return rc >>> (64 - 2 * k);
+    }
+
+    private void encode(CharSequence bases, KmerBuffer buffer) {
+        long fwd = 0;
+        long rev = 0;
+        int valid = 0;
+        for (int i = 0; i < bases.length(); i++) {
+            int base = codeOf(bases.charAt(i));
+            if (base < 0) {
+                valid = 0;
+                continue;
+            }
+            fwd = ((fwd << 2) | base) & mask;
+            rev = (rev >>> 2) | ((long) (3 - base) << shift);
+            if (++valid >= k) {
+                buffer.codes[buffer.size++] = canonical
+                        ? Math.min(fwd, rev)
+                        : fwd;
+                if (buffer.size == buffer.codes.length) {
+                    flush(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the buffered k-mers to the shards, taking each shard's lock once.
+     */
+    private void flush(KmerBuffer buffer) {
+        if (buffer.size == 0) {
+            return;
+        }
+        int[] starts = new int[shards.length + 1];
+        int[] shardOf = buffer.shards;
+        for (int i = 0; i < buffer.size; i++) {
+            shardOf[i] = shardOf(buffer.codes[i]);
+            starts[shardOf[i] + 1]++;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            starts[i + 1] += starts[i];
+        }
+        long[] grouped = buffer.grouped;
+        int[] next = starts.clone();
+        for (int i = 0; i < buffer.size; i++) {
+            grouped[next[shardOf[i]]++] = buffer.codes[i];
+        }
+        for (int s = 0; s < shards.length; s++) {
+            if (starts[s] == starts[s + 1]) {
+                continue;
+            }
+            LongIntHashMap shard = shards[s];
+            synchronized (shard) {
+                for (int i = starts[s]; i < starts[s + 1]; i++) {
+                    shard.addTo(grouped[i], 1);
+                }
+            }
+        }
+        buffer.size = 0;
+    }
+
+    private int shardOf(long code) {
+        return shardBits == 0
+                ? 0
+                : (int) (LongIntHashMap.mix(code) >>> (64 - shardBits));
+    }
+
+    private static int codeOf(char c) {
+        return c < CODES.length ? CODES[c] : -1;
+    }
+
+    private static void writeHeader(DataOutputStream out, int k,
+            boolean canonical, long numEntries) throws IOException {
+        out.writeInt(TABLE_MAGIC);
+        out.writeInt(k);
+        out.writeBoolean(canonical);
+        out.writeLong(numEntries);
+    }
+
+    /**
+     * A fixed-size buffer of encoded k-mers owned by a single thread, with
+     * scratch space for grouping them by shard. It is flushed whenever it
+     * fills, so memory does not grow with the length of a sequence.
+     */
+    private static final class KmerBuffer {
+        private final long[] codes;
+        private final long[] grouped;
+        private final int[] shards;
+        private int size = 0;
+
+        private KmerBuffer(int capacity) {
+            codes = new long[capacity];
+            grouped = new long[capacity];
+            shards = new int[capacity];
+        }
+    }
+
+    /**
+     * Streams the entries of a sorted k-mer table.
+     */
+    private static final class TableReader {
+        private final Path path;
+        private final DataInputStream in;
+        private final int k;
+        private final boolean canonical;
+        private long code;
+        private int count;
+
+        private TableReader(Path path) throws IOException {
+            this.path = path;
+            this.in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(path)));
+            if (in.readInt() != TABLE_MAGIC) {
+                in.close();
+                throw new IllegalArgumentException("Not a k-mer table: " +
+                        path);
+            }
+            this.k = in.readInt();
+            this.canonical = in.readBoolean();
+            in.readLong();
+        }
+
+        private boolean advance() throws IOException {
+            try {
+                code = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            count = in.readInt();
+            return true;
+        }
+
+        private void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package edu.caltech.lncrna.bio.sequence;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.utils.BatchProcessor;
+
+/**
+ * This class finds every occurrence of a set of motifs in a collection of
+ * sequences, such as the chromosomes of a reference genome.
+ * <p>
+ * All motifs are compiled into a single Aho-Corasick automaton, so a sequence
+ * is scanned once regardless of how many motifs there are. By default the
+ * reverse-complement of each motif is added to the automaton as well, so
+ * both strands are scanned in the same pass. A palindromic motif is reported
+ * once on each strand.
+ * <p>
+ * Motifs may optionally contain IUPAC degenerate bases, which are expanded
+ * into all of the concrete sequences they represent. Case is ignored. A base
+ * other than A, C, G or T in a scanned sequence never matches.
+ * <p>
+ * Hits are reported as {@link Hit} objects, which are {@link Annotation}s
+ * with the motif's name, zero-based coordinates on the scanned sequence, and
+ * the strand the motif was found on. They can be added directly to a
+ * {@link edu.caltech.lncrna.bio.datastructures.GenomeTree}.
+ * <p>
+ * Instances of this class are immutable and may be shared between threads.
+ * Instances are built with a {@link Builder}.
+ */
+public final class MotifScanner {
+
+    /**
+     * The default length of the chunks that sequences are split into for
+     * parallel scanning.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private static final int ALPHABET_SIZE = 4;
+    private static final int MAX_EXPANSIONS = 1 << 16;
+
+    private final List<String> motifNames;
+
+    // Automaton, one entry (or ALPHABET_SIZE entries) per state
+    private final int[] transitions;
+    private final int[] firstPattern;
+    private final int[] dictionaryLink;
+
+    // Patterns, i.e., concrete motif sequences on one strand
+    private final int[] nextPattern;
+    private final int[] patternMotif;
+    private final int[] patternLength;
+    private final boolean[] patternNegative;
+    private final int maxPatternLength;
+
+    private MotifScanner(Builder b) {
+        motifNames = Collections.unmodifiableList(new ArrayList<>(b.names));
+
+        List<String> patterns = new ArrayList<>();
+        List<Integer> motifs = new ArrayList<>();
+        List<Boolean> negatives = new ArrayList<>();
+        for (int i = 0; i < b.motifs.size(); i++) {
+            List<String> expanded = expand(b.motifs.get(i), b.degenerate);
+            for (String pattern : expanded) {
+                patterns.add(pattern);
+                motifs.add(i);
+                negatives.add(false);
+            }
+            if (b.bothStrands) {
+                for (String pattern : expanded) {
+                    patterns.add(Sequences.reverseComplement(pattern));
+                    motifs.add(i);
+                    negatives.add(true);
+                }
+            }
+        }
+
+        int numPatterns = patterns.size();
+        nextPattern = new int[numPatterns];
+        patternMotif = new int[numPatterns];
+        patternLength = new int[numPatterns];
+        patternNegative = new boolean[numPatterns];
+        int maxLength = 0;
+
+        // Build the trie.
+        TrieBuilder trie = new TrieBuilder();
+        for (int p = 0; p < numPatterns; p++) {
+            String pattern = patterns.get(p);
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                state = trie.child(state, codeOf(pattern.charAt(i)));
+            }
+            nextPattern[p] = trie.firstPattern[state];
+            trie.firstPattern[state] = p;
+            patternMotif[p] = motifs.get(p);
+            patternLength[p] = pattern.length();
+            patternNegative[p] = negatives.get(p);
+            maxLength = Math.max(maxLength, pattern.length());
+        }
+        maxPatternLength = maxLength;
+
+        // Add failure transitions breadth-first, turning the trie into a
+        // complete automaton.
+        int numStates = trie.size;
+        transitions = Arrays.copyOf(trie.transitions, numStates * ALPHABET_SIZE);
+        firstPattern = Arrays.copyOf(trie.firstPattern, numStates);
+        dictionaryLink = new int[numStates];
+        int[] fail = new int[numStates];
+        Arrays.fill(dictionaryLink, -1);
+
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET_SIZE; c++) {
+            int child = transitions[c];
+            if (child < 0) {
+                transitions[c] = 0;
+            } else {
+                fail[child] = 0;
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int f = fail[state];
+            dictionaryLink[state] = firstPattern[f] >= 0 ? f : dictionaryLink[f];
+            for (int c = 0; c < ALPHABET_SIZE; c++) {
+                int child = transitions[state * ALPHABET_SIZE + c];
+                int viaFail = transitions[f * ALPHABET_SIZE + c];
+                if (child < 0) {
+                    transitions[state * ALPHABET_SIZE + c] = viaFail;
+                } else {
+                    fail[child] = viaFail;
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the names of the motifs, in the order they were added
+     */
+    public List<String> getMotifNames() {
+        return motifNames;
+    }
+
+    /**
+     * Scans a sequence and returns all hits, ordered by end position.
+     *
+     * @param seq - the sequence to scan; its name is used as the reference
+     * name of the hits
+     */
+    public List<Hit> scan(Sequence seq) {
+        List<Hit> hits = new ArrayList<>();
+        scan(seq.getName(), seq.getBases(), hits::add);
+        return hits;
+    }
+
+    /**
+     * Scans a string of bases and passes every hit to a consumer, in order of
+     * end position.
+     *
+     * @param ref - the reference name to give the hits
+     * @param bases - the bases to scan
+     * @param sink - the consumer of hits
+     */
+    public void scan(String ref, CharSequence bases, Consumer<? super Hit> sink) {
+        scan(ref, bases, 0, 0, bases.length(), sink);
+    }
+
+    /**
+     * Scans every sequence from an iterator using a pool of worker threads,
+     * and passes every hit to a consumer on the calling thread.
+     * <p>
+     * Each sequence is split into chunks that are scanned independently.
+     * Each chunk is scanned from one less than the longest motif before its
+     * start, and a hit is only reported by the chunk it ends in, so hits
+     * spanning a chunk boundary are reported exactly once. Since the scan of
+     * a chunk has reached the same state as a sequential scan by the time it
+     * reaches the chunk's start, hits are passed to the consumer in the same
+     * order that sequential scanning would produce.
+     * <p>
+     * The iterator is not closed by this method.
+     *
+     * @param sequences - the sequences to scan, e.g., a
+     * {@link edu.caltech.lncrna.bio.io.FastaParser}
+     * @param numThreads - the number of worker threads
+     * @param chunkSize - the number of bases per chunk
+     * @param sink - the consumer of hits
+     * @throws IllegalArgumentException if <code>chunkSize</code> is not
+     * positive
+     */
+    public void scanAll(Iterator<? extends Sequence> sequences, int numThreads,
+            int chunkSize, Consumer<? super Hit> sink) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Attempted to scan with a " +
+                    "non-positive chunk size: " + chunkSize);
+        }
+        new BatchProcessor(numThreads, 1, true).process(
+                new ChunkIterator(sequences, chunkSize),
+                chunk -> {
+                    List<Hit> hits = new ArrayList<>();
+                    scan(chunk.ref, chunk.bases,
+                            Math.max(chunk.start - maxPatternLength + 1, 0),
+                            chunk.start, chunk.end, hits::add);
+                    return hits;
+                },
+                hits -> hits.forEach(sink));
+    }
+
+    /**
+     * Scans every sequence from an iterator using a pool of worker threads
+     * and the default chunk size.
+     *
+     * @see #scanAll(Iterator, int, int, Consumer)
+     */
+    public void scanAll(Iterator<? extends Sequence> sequences, int numThreads,
+            Consumer<? super Hit> sink) {
+        scanAll(sequences, numThreads, DEFAULT_CHUNK_SIZE, sink);
+    }
+
+    /**
+     * Scans <code>bases[from, to)</code> and reports hits that end after
+     * <code>reportFrom</code>.
+     */
+    private void scan(String ref, CharSequence bases, int from, int reportFrom,
+            int to, Consumer<? super Hit> sink) {
+        int state = 0;
+        for (int i = from; i < to; i++) {
+            int c = codeOf(bases.charAt(i));
+            if (c < 0) {
+                state = 0;
+                continue;
+            }
+            state = transitions[state * ALPHABET_SIZE + c];
+            if (i < reportFrom) {
+                continue;
+            }
+            int t = firstPattern[state] >= 0 ? state : dictionaryLink[state];
+            for (; t >= 0; t = dictionaryLink[t]) {
+                for (int p = firstPattern[t]; p >= 0; p = nextPattern[p]) {
+                    sink.accept(new Hit(ref, i + 1 - patternLength[p], i + 1,
+                            patternNegative[p]
+                                    ? Strand.NEGATIVE
+                                    : Strand.POSITIVE,
+                            motifNames.get(patternMotif[p])));
+                }
+            }
+        }
+    }
+
+    private static int codeOf(char c) {
+        switch (c) {
+        case 'A': case 'a': return 0;
+        case 'C': case 'c': return 1;
+        case 'G': case 'g': return 2;
+        case 'T': case 't': return 3;
+        default: return -1;
+        }
+    }
+
+    /**
+     * Expands a motif into the concrete sequences it represents.
+     */
+    private static List<String> expand(String motif, boolean degenerate) {
+        List<String> rtrn = new ArrayList<>();
+        rtrn.add("");
+        for (int i = 0; i < motif.length(); i++) {
+            char c = Character.toUpperCase(motif.charAt(i));
+            String bases = degenerate ? iupac(c) : (codeOf(c) < 0 ? null
+                    : String.valueOf(c));
+            if (bases == null) {
+                throw new IllegalArgumentException("Unsupported base in " +
+                        "motif " + motif + ": " + motif.charAt(i));
+            }
+            if (rtrn.size() * bases.length() > MAX_EXPANSIONS) {
+                throw new IllegalArgumentException("Motif " + motif +
+                        " expands to more than " + MAX_EXPANSIONS +
+                        " sequences.");
+            }
+            List<String> next = new ArrayList<>(rtrn.size() * bases.length());
+            for (String prefix : rtrn) {
+                for (int j = 0; j < bases.length(); j++) {
+                    next.add(prefix + bases.charAt(j));
+                }
+            }
+            rtrn = next;
+        }
+        return rtrn;
+    }
+
+    private static String iupac(char c) {
+        switch (c) {
+        case 'A': return "A";
+        case 'C': return "C";
+        case 'G': return "G";
+        case 'T': case 'U': return "T";
+        case 'R': return "AG";
+        case 'Y': return "CT";
+        case 'S': return "CG";
+        case 'W': return "AT";
+        case 'K': return "GT";
+        case 'M': return "AC";
+        case 'B': return "CGT";
+        case 'D': return "AGT";
+        case 'H': return "ACT";
+        case 'V': return "ACG";
+        case 'N': return "ACGT";
+        default: return null;
+        }
+    }
+
+    /**
+     * An occurrence of a motif. Two hits are equal only if they are at the
+     * same location and are of the same motif.
+     */
+    public static final class Hit extends Annotation {
+
+        private final String motifName;
+
+        private Hit(String ref, int start, int end, Strand strand,
+                String motifName) {
+            super(ref, start, end, strand);
+            this.motifName = motifName;
+        }
+
+        public String getMotifName() {
+            return motifName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Hit)) {
+                return false;
+            }
+            Hit other = (Hit) o;
+            return motifName.equals(other.motifName) && super.equals(other);
+        }
+
+        @Override
+        public int hashCode() {
+            return 37 * super.hashCode() + motifName.hashCode();
+        }
+    }
+
+    /**
+     * A builder class for {@link MotifScanner} objects.
+     */
+    public static final class Builder {
+
+        private final List<String> names = new ArrayList<>();
+        private final List<String> motifs = new ArrayList<>();
+        private boolean degenerate = false;
+        private boolean bothStrands = true;
+
+        private Builder() { }
+
+        /**
+         * Adds a motif to scan for.
+         *
+         * @param name - the name to give hits of this motif
+         * @param motif - the bases of the motif
+         * @return this builder
+         * @throws IllegalArgumentException if the motif is empty
+         */
+        public Builder addMotif(String name, String motif) {
+            Objects.requireNonNull(name, "Attempted to add a motif with a " +
+                    "null name.");
+            Objects.requireNonNull(motif, "Attempted to add a null motif.");
+            if (motif.isEmpty()) {
+                throw new IllegalArgumentException("Attempted to add an " +
+                        "empty motif: " + name);
+            }
+            names.add(name);
+            motifs.add(motif);
+            return this;
+        }
+
+        /**
+         * Sets whether motifs may contain IUPAC degenerate bases. The default
+         * is <code>false</code>.
+         *
+         * @param degenerate - whether degenerate bases are allowed
+         * @return this builder
+         */
+        public Builder degenerate(boolean degenerate) {
+            this.degenerate = degenerate;
+            return this;
+        }
+
+        /**
+         * Sets whether the negative strand is scanned as well as the
+         * positive strand. The default is <code>true</code>.
+         *
+         * @param bothStrands - whether to scan both strands
+         * @return this builder
+         */
+        public Builder bothStrands(boolean bothStrands) {
+            this.bothStrands = bothStrands;
+            return this;
+        }
+
+        /**
+         * @return a new <code>MotifScanner</code>
+         * @throws IllegalArgumentException if no motifs were added, or if a
+         * motif contains an unsupported base
+         */
+        public MotifScanner build() {
+            if (motifs.isEmpty()) {
+                throw new IllegalArgumentException("Attempted to build a " +
+                        "MotifScanner with no motifs.");
+            }
+            return new MotifScanner(this);
+        }
+    }
+
+    /**
+     * A growable trie with <code>ALPHABET_SIZE</code> children per state.
+     */
+    private static final class TrieBuilder {
+        private int[] transitions = new int[64 * ALPHABET_SIZE];
+        private int[] firstPattern = new int[64];
+        private int size = 0;
+
+        private TrieBuilder() {
+            addState();
+        }
+
+        private int child(int state, int c) {
+            int index = state * ALPHABET_SIZE + c;
+            if (transitions[index] < 0) {
+                int child = addState();
+                transitions[index] = child;
+            }
+            return transitions[index];
+        }
+
+        private int addState() {
+            if (size == firstPattern.length) {
+                transitions = Arrays.copyOf(transitions, transitions.length * 2);
+                firstPattern = Arrays.copyOf(firstPattern, firstPattern.length * 2);
+            }
+            Arrays.fill(transitions, size * ALPHABET_SIZE,
+                    (size + 1) * ALPHABET_SIZE, -1);
+            firstPattern[size] = -1;
+            return size++;
+        }
+    }
+
+    private static final class Chunk {
+        private final String ref;
+        private final String bases;
+        private final int start;
+        private final int end;
+
+        private Chunk(String ref, String bases, int start, int end) {
+            this.ref = ref;
+            this.bases = bases;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Splits each sequence from an iterator into consecutive chunks.
+     */
+    private static final class ChunkIterator implements Iterator<Chunk> {
+        private final Iterator<? extends Sequence> sequences;
+        private final int chunkSize;
+        private String ref;
+        private String bases;
+        private int position;
+
+        private ChunkIterator(Iterator<? extends Sequence> sequences,
+                int chunkSize) {
+            this.sequences = Objects.requireNonNull(sequences, "Attempted " +
+                    "to scan a null iterator.");
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (bases == null || position >= bases.length()) {
+                if (!sequences.hasNext()) {
+                    return false;
+                }
+                Sequence seq = sequences.next();
+                ref = seq.getName();
+                bases = seq.getBases();
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public Chunk next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int end = (int) Math.min((long) position + chunkSize,
+                    bases.length());
+            Chunk rtrn = new Chunk(ref, bases, position, end);
+            position = end;
+            return rtrn;
+        }
+    }
+}
@@ -0,0 +1,538 @@
+package edu.caltech.lncrna.bio.sequence;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Strand;
+
+/**
+ * This class represents a nucleotide sequence packed two bits per base.
+ * <p>
+ * The bases A, C, G and T are stored as the codes 0, 1, 2 and 3, thirty-two
+ * to a <code>long</code>. With this encoding the complement of a code is its
+ * bitwise inverse, so {@link #complement()} and {@link #reverseComplement()}
+ * work on whole words at a time instead of on individual characters.
+ * <p>
+ * Ambiguous bases (N) and lowercase (soft-masked) bases cannot be
+ * represented in two bits. They are instead recorded in two sparse masks,
+ * each a sorted list of non-overlapping runs. Runs of Ns in reference genomes
+ * are long and few, but a soft-masked assembly can have millions of
+ * lowercase runs, so operations on a range of bases, such as
+ * {@link #subsequence(int, int)}, find their first run by binary search and
+ * visit only the runs that overlap the range.
+ * <p>
+ * Like {@link Sequences#complement(String)}, this class only recognizes the
+ * bases A, C, G, T and N, as well as their lowercase counterparts.
+ * Conversion to a <code>String</code> only happens when {@link #getBases()}
+ * is called.
+ */
+public final class PackedSequence implements Sequence {
+
+    private static final int BASES_PER_WORD = 32;
+    private static final int[] NO_RUNS = new int[0];
+    private static final char[] UPPER = {'A', 'C', 'G', 'T'};
+    private static final char[] LOWER = {'a', 'c', 'g', 't'};
+    private static final byte[] CODES = new byte[128];
+
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        CODES['A'] = 0;
+        CODES['a'] = 0;
+        CODES['C'] = 1;
+        CODES['c'] = 1;
+        CODES['G'] = 2;
+        CODES['g'] = 2;
+        CODES['T'] = 3;
+        CODES['t'] = 3;
+        CODES['N'] = 0;
+        CODES['n'] = 0;
+    }
+
+    private final String name;
+    private final int length;
+    private final long[] words;
+    private final int[] ambiguousRuns;
+    private final int[] lowercaseRuns;
+
+    /**
+     * Constructs a <code>PackedSequence</code> from a name and a string of
+     * bases.
+     *
+     * @param name - the name of this sequence
+     * @param bases - the bases of this sequence
+     * @throws NullPointerException if either argument is null
+     * @throws IllegalArgumentException if a character of <code>bases</code>
+     * is not recognized as a base
+     */
+    public PackedSequence(String name, String bases) {
+        this.name = Objects.requireNonNull(name,
+                "Attempted to construct packed sequence with null name");
+        Objects.requireNonNull(bases,
+                "Attempted to construct packed sequence with null bases");
+
+        length = bases.length();
+        words = new long[numWords(length)];
+
+        RunBuilder ambiguous = new RunBuilder();
+        RunBuilder lowercase = new RunBuilder();
+
+        for (int i = 0; i < length; i++) {
+            char c = bases.charAt(i);
+            byte code = c < 128 ? CODES[c] : -1;
+            if (code < 0) {
+                throw new IllegalArgumentException("Unsupported base: " + c);
+            }
+            words[i >>> 5] |= ((long) code) << ((i & 31) << 1);
+            if (c == 'N' || c == 'n') {
+                ambiguous.add(i);
+            }
+            if (c >= 'a') {
+                lowercase.add(i);
+            }
+        }
+
+        ambiguousRuns = ambiguous.build();
+        lowercaseRuns = lowercase.build();
+    }
+
+    /**
+     * Constructs a <code>PackedSequence</code> with the same name and bases as
+     * the given sequence.
+     *
+     * @param seq - the sequence to pack
+     * @throws NullPointerException if passed a null argument
+     */
+    public PackedSequence(Sequence seq) {
+        this(Objects.requireNonNull(seq).getName(), seq.getBases());
+    }
+
+    private PackedSequence(String name, int length, long[] words,
+            int[] ambiguousRuns, int[] lowercaseRuns) {
+        this.name = name;
+        this.length = length;
+        this.words = words;
+        this.ambiguousRuns = ambiguousRuns;
+        this.lowercaseRuns = lowercaseRuns;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the bases of this sequence as a <code>String</code>.
+     * <p>
+     * The string is rebuilt from the packed representation on every call.
+     */
+    @Override
+    public String getBases() {
+        char[] cs = new char[length];
+        for (int i = 0; i < length; i++) {
+            cs[i] = UPPER[code(i)];
+        }
+        for (int r = 0; r < lowercaseRuns.length; r += 2) {
+            for (int i = lowercaseRuns[r]; i < lowercaseRuns[r + 1]; i++) {
+                cs[i] = LOWER[code(i)];
+            }
+        }
+        for (int r = 0; r < ambiguousRuns.length; r += 2) {
+            for (int i = ambiguousRuns[r]; i < ambiguousRuns[r + 1]; i++) {
+                cs[i] = cs[i] == 'a' ? 'n' : 'N';
+            }
+        }
+        return String.valueOf(cs);
+    }
+
+    /**
+     * Returns the base at the given position as a <code>char</code>.
+     *
+     * @param pos - the position of the base
+     * @throws IndexOutOfBoundsException if <code>pos</code> is negative or not
+     * less than the length of this sequence
+     */
+    public char charAt(int pos) {
+        if (pos < 0 || pos >= length) {
+            throw new IndexOutOfBoundsException("Position: " + pos +
+                    ", length: " + length);
+        }
+        boolean lower = inRuns(lowercaseRuns, pos);
+        if (inRuns(ambiguousRuns, pos)) {
+            return lower ? 'n' : 'N';
+        }
+        return lower ? LOWER[code(pos)] : UPPER[code(pos)];
+    }
+
+    /**
+     * Returns the {@link Base} at the given position.
+     *
+     * @param pos - the position of the base
+     * @throws IndexOutOfBoundsException if <code>pos</code> is negative or not
+     * less than the length of this sequence
+     */
+    public Base baseAt(int pos) {
+        return Base.of(charAt(pos));
+    }
+
+    @Override
+    public PackedSequence changeName(String name) {
+        return new PackedSequence(Objects.requireNonNull(name), length, words,
+                ambiguousRuns, lowercaseRuns);
+    }
+
+    @Override
+    public PackedSequence complement() {
+        return complement(name);
+    }
+
+    /**
+     * Returns the complement of this sequence with the given name.
+     * <p>
+     * The complement is computed by inverting each packed word. Case and
+     * ambiguity are preserved, as in {@link Sequences#complement(String)}.
+     */
+    @Override
+    public PackedSequence complement(String name) {
+        long[] rtrn = new long[words.length];
+        for (int i = 0; i < words.length; i++) {
+            rtrn[i] = ~words[i];
+        }
+        clearPadding(rtrn, length);
+        clearAmbiguous(rtrn, ambiguousRuns);
+        return new PackedSequence(name, length, rtrn, ambiguousRuns,
+                lowercaseRuns);
+    }
+
+    @Override
+    public PackedSequence reverseComplement() {
+        return reverseComplement(name);
+    }
+
+    /**
+     * Returns the reverse-complement of this sequence with the given name.
+     * <p>
+     * Each word is inverted and has its thirty-two codes reversed with a
+     * constant number of shifts and masks. The words are then written in
+     * reverse order and shifted to remove the padding at the end of the
+     * original sequence.
+     */
+    @Override
+    public PackedSequence reverseComplement(String name) {
+        int n = words.length;
+        long[] reversed = new long[n];
+        for (int i = 0; i < n; i++) {
+            reversed[n - i - 1] = reverseCodes(~words[i]);
+        }
+
+        int pad = n * BASES_PER_WORD - length;
+        long[] rtrn = shiftDown(reversed, pad, length);
+        int[] reversedAmbiguous = reverseRuns(ambiguousRuns, length);
+        clearAmbiguous(rtrn, reversedAmbiguous);
+        return new PackedSequence(name, length, rtrn, reversedAmbiguous,
+                reverseRuns(lowercaseRuns, length));
+    }
+
+    /**
+     * Returns a subsequence of this with the given start and end.
+     * <p>
+     * Intervals are half-open. The base at the start coordinate will be
+     * included. The base at the end coordinate will not.
+     *
+     * @param start - the start coordinate
+     * @param end - the end coordinate
+     * @return a subsequence from <code>start</code> to <code>end</code>
+     * @throws IndexOutOfBoundsException if the coordinates are not within
+     * this sequence, or if <code>start > end</code>
+     */
+    public PackedSequence subsequence(int start, int end) {
+        return subsequence(name, start, end);
+    }
+
+    public PackedSequence subsequence(String name, int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Invalid subsequence [" +
+                    start + ", " + end + ") of sequence with length " + length);
+        }
+        int len = end - start;
+        return new PackedSequence(name, len, shiftDown(words, start, len),
+                clipRuns(ambiguousRuns, start, end),
+                clipRuns(lowercaseRuns, start, end));
+    }
+
+    /**
+     * Returns the sequence covered by an annotation.
+     * <p>
+     * The bases of the annotation's blocks are concatenated, so introns are
+     * skipped. If the annotation is on the negative strand, the result is
+     * reverse-complemented, so that it reads 5' to 3' along the annotation.
+     * The annotation's coordinates are interpreted as offsets into this
+     * sequence; its reference name is not checked.
+     *
+     * @param annot - the annotation to extract
+     * @return the sequence of the annotation, named after this sequence
+     * @throws IndexOutOfBoundsException if the annotation extends past the
+     * end of this sequence
+     */
+    public PackedSequence subsequence(Annotated annot) {
+        int[] boundaries = annot.getBlockBoundaries();
+        PackedSequence rtrn;
+
+        if (boundaries.length == 2) {
+            rtrn = subsequence(boundaries[0], boundaries[1]);
+        } else {
+            int total = 0;
+            for (int i = 0; i < boundaries.length; i += 2) {
+                total += boundaries[i + 1] - boundaries[i];
+            }
+            long[] spliced = new long[numWords(total)];
+            RunBuilder ambiguous = new RunBuilder();
+            RunBuilder lowercase = new RunBuilder();
+            int pos = 0;
+            for (int i = 0; i < boundaries.length; i += 2) {
+                PackedSequence block = subsequence(boundaries[i],
+                        boundaries[i + 1]);
+                orShifted(spliced, block.words, pos, block.length);
+                ambiguous.addRuns(block.ambiguousRuns, pos);
+                lowercase.addRuns(block.lowercaseRuns, pos);
+                pos += block.length;
+            }
+            rtrn = new PackedSequence(name, total, spliced, ambiguous.build(),
+                    lowercase.build());
+        }
+
+        return annot.getStrand() == Strand.NEGATIVE
+                ? rtrn.reverseComplement()
+                : rtrn;
+    }
+
+    /**
+     * Returns a <code>FastaSequence</code> with the same name and bases as
+     * this.
+     */
+    public FastaSequence toFastaSequence() {
+        return new FastaSequence(name, getBases());
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getBases();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof PackedSequence)) {
+            return false;
+        }
+
+        PackedSequence other = (PackedSequence) o;
+
+        return length == other.length &&
+               name.equals(other.name) &&
+               Arrays.equals(words, other.words) &&
+               Arrays.equals(ambiguousRuns, other.ambiguousRuns) &&
+               Arrays.equals(lowercaseRuns, other.lowercaseRuns);
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 17;
+        hashCode = 37 * hashCode + name.hashCode();
+        hashCode = 37 * hashCode + length;
+        hashCode = 37 * hashCode + Arrays.hashCode(words);
+        hashCode = 37 * hashCode + Arrays.hashCode(ambiguousRuns);
+        hashCode = 37 * hashCode + Arrays.hashCode(lowercaseRuns);
+        return hashCode;
+    }
+
+    //////////////////////
+    // Bit manipulation //
+    //////////////////////
+
+    private int code(int pos) {
+        return (int) (words[pos >>> 5] >>> ((pos & 31) << 1)) & 3;
+    }
+
+    private static int numWords(int numBases) {
+        return (numBases + BASES_PER_WORD - 1) / BASES_PER_WORD;
+    }
+
+    /*
+     * Reverses the order of the thirty-two 2-bit codes in a word: swap
+     * adjacent codes, then adjacent pairs of codes, then reverse the bytes.
+     */
+    static long reverseCodes(long x) {
+        x = ((x >>> 2) & 0x3333333333333333L) | ((x & 0x3333333333333333L) << 2);
+        x = ((x >>> 4) & 0x0F0F0F0F0F0F0F0FL) | ((x & 0x0F0F0F0F0F0F0F0FL) << 4);
+        return Long.reverseBytes(x);
+    }
+
+    /*
+     * Zeroes the bits past the last base so that equal sequences have equal
+     * words.
+     */
+    private static void clearPadding(long[] ws, int numBases) {
+        int used = numBases & 31;
+        if (used != 0) {
+            ws[ws.length - 1] &= (1L << (used << 1)) - 1;
+        }
+    }
+
+    /*
+     * Ambiguous bases are always stored with code 0 so that equal sequences
+     * have equal words. Complementing turns that 0 into a 3, so reset it.
+     */
+    private static void clearAmbiguous(long[] ws, int[] runs) {
+        for (int r = 0; r < runs.length; r += 2) {
+            for (int i = runs[r]; i < runs[r + 1]; i++) {
+                ws[i >>> 5] &= ~(3L << ((i & 31) << 1));
+            }
+        }
+    }
+
+    /*
+     * Returns the len bases of src starting at base offset, packed from the
+     * beginning of a new array.
+     */
+    private static long[] shiftDown(long[] src, int offset, int len) {
+        long[] rtrn = new long[numWords(len)];
+        int wordOffset = offset >>> 5;
+        int bitOffset = (offset & 31) << 1;
+        for (int i = 0; i < rtrn.length; i++) {
+            int j = i + wordOffset;
+            long lo = j < src.length ? src[j] : 0L;
+            if (bitOffset == 0) {
+                rtrn[i] = lo;
+            } else {
+                long hi = j + 1 < src.length ? src[j + 1] : 0L;
+                rtrn[i] = (lo >>> bitOffset) | (hi << (64 - bitOffset));
+            }
+        }
+        clearPadding(rtrn, len);
+        return rtrn;
+    }
+
+    /*
+     * ORs the len bases of src into dest, starting at base offset of dest.
+     */
+    private static void orShifted(long[] dest, long[] src, int offset, int len) {
+        int wordOffset = offset >>> 5;
+        int bitOffset = (offset & 31) << 1;
+        for (int i = 0; i < numWords(len); i++) {
+            dest[i + wordOffset] |= src[i] << bitOffset;
+            if (bitOffset != 0 && i + wordOffset + 1 < dest.length) {
+                dest[i + wordOffset + 1] |= src[i] >>> (64 - bitOffset);
+            }
+        }
+    }
+
+    //////////////////////
+    // Run-mask helpers //
+    //////////////////////
+
+    private static boolean inRuns(int[] runs, int pos) {
+        int run = lastRunAtOrBefore(runs, pos);
+        return run >= 0 && pos < runs[run * 2 + 1];
+    }
+
+    /**
+     * Returns the index of the last run starting at or before a position, or
+     * -1 if every run starts after it. Runs are sorted, so this is a binary
+     * search.
+     */
+    private static int lastRunAtOrBefore(int[] runs, int pos) {
+        int lo = 0;
+        int hi = runs.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (runs[mid * 2] <= pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+
+    private static int[] reverseRuns(int[] runs, int length) {
+        if (runs.length == 0) {
+            return NO_RUNS;
+        }
+        int[] rtrn = new int[runs.length];
+        for (int i = 0; i < runs.length; i += 2) {
+            rtrn[runs.length - i - 2] = length - runs[i + 1];
+            rtrn[runs.length - i - 1] = length - runs[i];
+        }
+        return rtrn;
+    }
+
+    private static int[] clipRuns(int[] runs, int start, int end) {
+        // Runs are sorted and non-overlapping, so their ends are sorted too.
+        // Only the runs overlapping [start, end) are visited.
+        if (start == end) {
+            return NO_RUNS;
+        }
+        int first = Math.max(lastRunAtOrBefore(runs, start), 0);
+        if (first * 2 < runs.length && runs[first * 2 + 1] <= start) {
+            first++;
+        }
+        int last = first;
+        while (last * 2 < runs.length && runs[last * 2] < end) {
+            last++;
+        }
+        if (first == last) {
+            return NO_RUNS;
+        }
+        int[] rtrn = Arrays.copyOfRange(runs, first * 2, last * 2);
+        rtrn[0] = Math.max(rtrn[0], start);
+        rtrn[rtrn.length - 1] = Math.min(rtrn[rtrn.length - 1], end);
+        for (int i = 0; i < rtrn.length; i++) {
+            rtrn[i] -= start;
+        }
+        return rtrn;
+    }
+
+    /**
+     * Accumulates sorted positions or runs into a compact run array.
+     */
+    private static final class RunBuilder {
+
+        private int[] runs = NO_RUNS;
+        private int size = 0;
+
+        private void add(int pos) {
+            addRun(pos, pos + 1);
+        }
+
+        private void addRun(int start, int end) {
+            if (size > 0 && runs[size - 1] == start) {
+                runs[size - 1] = end;
+                return;
+            }
+            if (size + 2 > runs.length) {
+                runs = Arrays.copyOf(runs, Math.max(8, runs.length * 2));
+            }
+            runs[size++] = start;
+            runs[size++] = end;
+        }
+
+        private void addRuns(int[] other, int offset) {
+            for (int i = 0; i < other.length; i += 2) {
+                addRun(other[i] + offset, other[i + 1] + offset);
+            }
+        }
+
+        private int[] build() {
+            return size == 0 ? NO_RUNS : Arrays.copyOf(runs, size);
+        }
+    }
+}
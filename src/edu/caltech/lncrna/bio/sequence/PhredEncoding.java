@@ -1,5 +1,7 @@
 package edu.caltech.lncrna.bio.sequence;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * An enumeration of Phred quality-score encodings.
  */
@@ -34,11 +36,12 @@ public enum PhredEncoding {
      * @return the String resulting from the conversion
      */
     public final String phredToString(byte[] bs) {
-        char[] cs = new char[bs.length];
+        byte[] chars = new byte[bs.length];
+        byte off = (byte) offset;
         for (int i = 0; i < bs.length; i++) {
-            cs[i] = (char) (bs[i] + offset);
+            chars[i] = (byte) (bs[i] + off);
         }
-        return String.valueOf(cs);
+        return new String(chars, StandardCharsets.ISO_8859_1);
     }
     
     /**
@@ -48,11 +51,13 @@ public enum PhredEncoding {
      * @return the resulting byte array
      */
     public final byte[] stringToPhred(String s) {
-        char[] cs = s.toCharArray();
-        byte[] bs = new byte[cs.length];
-        for (int i = 0; i < cs.length; i++) {
-            bs[i] = (byte) (cs[i] - offset);
+        // Quality strings are printable ASCII, so the single-byte charset
+        // preserves every character.
+        byte[] bs = s.getBytes(StandardCharsets.ISO_8859_1);
+        byte off = (byte) offset;
+        for (int i = 0; i < bs.length; i++) {
+            bs[i] = (byte) (bs[i] - off);
         }
         return bs;
     }
-}
\ No newline at end of file
+}
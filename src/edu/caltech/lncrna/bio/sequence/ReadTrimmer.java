@@ -0,0 +1,249 @@
+package edu.caltech.lncrna.bio.sequence;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Optional;
+
+import edu.caltech.lncrna.bio.io.FastqWriter;
+import edu.caltech.lncrna.bio.utils.BatchProcessor;
+
+/**
+ * This class trims low-quality ends from FASTQ reads and filters out reads
+ * that are too short, too long, or have too many Ns.
+ * <p>
+ * Quality trimming uses a sliding window. The window moves from the 5'-end of
+ * the read toward the 3'-end, and the read is cut at the start of the first
+ * window whose average quality falls below the threshold. Reads shorter than
+ * the window are judged by their overall average.
+ * <p>
+ * Filters are applied after trimming. Instances of this class are immutable
+ * and may be shared between threads. Instances are built with a
+ * {@link Builder}.
+ */
+public final class ReadTrimmer {
+
+    private final int windowSize;
+    private final int minimumWindowQuality;
+    private final int minimumLength;
+    private final int maximumLength;
+    private final int maximumNs;
+
+    private ReadTrimmer(Builder b) {
+        this.windowSize = b.windowSize;
+        this.minimumWindowQuality = b.minimumWindowQuality;
+        this.minimumLength = b.minimumLength;
+        this.maximumLength = b.maximumLength;
+        this.maximumNs = b.maximumNs;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Trims a read and applies the filters.
+     *
+     * @param read - the read to trim
+     * @return the trimmed read, wrapped in an <code>Optional</code>, or an
+     * empty <code>Optional</code> if the read was filtered out
+     */
+    public Optional<FastqSequence> trim(FastqSequence read) {
+        int end = trimmedLength(read);
+        if (end < minimumLength || end > maximumLength) {
+            return Optional.empty();
+        }
+        if (countNs(read.getBases(), end) > maximumNs) {
+            return Optional.empty();
+        }
+        return Optional.of(end == read.length() ? read : read.subsequence(0, end));
+    }
+
+    /**
+     * Trims and filters every read from an iterator using a pool of worker
+     * threads, and writes the surviving reads.
+     * <p>
+     * The iterator is not closed by this method, and neither is the writer.
+     *
+     * @param reads - the reads to trim, e.g., a
+     * {@link edu.caltech.lncrna.bio.io.FastqParser}
+     * @param writer - the writer to write surviving reads to
+     * @param numThreads - the number of worker threads
+     * @param preserveOrder - whether the reads should be written in input
+     * order. Allowing any order gives higher throughput.
+     * @return the number of reads written
+     */
+    public long trimAll(Iterator<? extends FastqSequence> reads,
+            FastqWriter writer, int numThreads, boolean preserveOrder) {
+        Objects.requireNonNull(writer, "Attempted to write trimmed reads " +
+                "to a null writer.");
+        long[] written = {0};
+        new BatchProcessor(numThreads, BatchProcessor.DEFAULT_BATCH_SIZE,
+                preserveOrder).process(reads,
+                read -> trim(read).orElse(null),
+                read -> {
+                    writer.write(read);
+                    written[0]++;
+                });
+        return written[0];
+    }
+
+    /**
+     * Trims both mates of a pair and applies the filters to each.
+     *
+     * @param pair - the pair to trim
+     * @return the trimmed pair, wrapped in an <code>Optional</code>, or an
+     * empty <code>Optional</code> if either mate was filtered out
+     */
+    public Optional<FastqPair> trim(FastqPair pair) {
+        Optional<FastqSequence> read1 = trim(pair.getRead1());
+        if (!read1.isPresent()) {
+            return Optional.empty();
+        }
+        return trim(pair.getRead2()).map(r -> new FastqPair(read1.get(), r));
+    }
+
+    /**
+     * Trims and filters every pair from an iterator using a pool of worker
+     * threads, and writes the surviving pairs. A pair survives only if both
+     * mates do.
+     * <p>
+     * The iterator is not closed by this method, and neither are the
+     * writers.
+     *
+     * @param pairs - the pairs to trim, e.g., a
+     * {@link edu.caltech.lncrna.bio.io.PairedFastqParser}
+     * @param writer1 - the writer for first mates
+     * @param writer2 - the writer for second mates
+     * @param numThreads - the number of worker threads
+     * @return the number of pairs written
+     */
+    public long trimAllPairs(Iterator<? extends FastqPair> pairs,
+            FastqWriter writer1, FastqWriter writer2, int numThreads) {
+        Objects.requireNonNull(writer1, "Attempted to write trimmed reads " +
+                "to a null writer.");
+        Objects.requireNonNull(writer2, "Attempted to write trimmed reads " +
+                "to a null writer.");
+        long[] written = {0};
+        new BatchProcessor(numThreads).process(pairs,
+                pair -> trim(pair).orElse(null),
+                pair -> {
+                    writer1.write(pair.getRead1());
+                    writer2.write(pair.getRead2());
+                    written[0]++;
+                });
+        return written[0];
+    }
+
+    /**
+     * Returns the length of the read after sliding-window trimming.
+     */
+    private int trimmedLength(FastqSequence read) {
+        int length = read.length();
+        if (minimumWindowQuality <= 0 || length == 0) {
+            return length;
+        }
+        int window = Math.min(windowSize, length);
+        int threshold = minimumWindowQuality * window;
+        int sum = 0;
+        for (int i = 0; i < window; i++) {
+            sum += read.getQuality(i);
+        }
+        for (int start = 0; ; start++) {
+            if (sum < threshold) {
+                return start;
+            }
+            if (start + window == length) {
+                return length;
+            }
+            sum += read.getQuality(start + window) - read.getQuality(start);
+        }
+    }
+
+    private static int countNs(String bases, int end) {
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            char c = bases.charAt(i);
+            count += (c == 'N' || c == 'n') ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * A builder class for {@link ReadTrimmer} objects.
+     * <p>
+     * By default, no quality trimming is done and no reads are filtered.
+     */
+    public static final class Builder {
+
+        private int windowSize = 4;
+        private int minimumWindowQuality = 0;
+        private int minimumLength = 0;
+        private int maximumLength = Integer.MAX_VALUE;
+        private int maximumNs = Integer.MAX_VALUE;
+
+        private Builder() { }
+
+        /**
+         * Enables sliding-window quality trimming.
+         *
+         * @param windowSize - the number of bases in the window
+         * @param minimumQuality - the lowest average Phred quality a window
+         * may have before the read is cut
+         * @return this builder
+         * @throws IllegalArgumentException if the window size is not positive
+         */
+        public Builder slidingWindow(int windowSize, int minimumQuality) {
+            if (windowSize < 1) {
+                throw new IllegalArgumentException("Window size must be " +
+                        "positive: " + windowSize);
+            }
+            this.windowSize = windowSize;
+            this.minimumWindowQuality = minimumQuality;
+            return this;
+        }
+
+        /**
+         * @param minimumLength - the shortest length a read may have after
+         * trimming
+         * @return this builder
+         */
+        public Builder minimumLength(int minimumLength) {
+            this.minimumLength = minimumLength;
+            return this;
+        }
+
+        /**
+         * @param maximumLength - the longest length a read may have after
+         * trimming
+         * @return this builder
+         */
+        public Builder maximumLength(int maximumLength) {
+            this.maximumLength = maximumLength;
+            return this;
+        }
+
+        /**
+         * @param maximumNs - the largest number of Ns a read may have after
+         * trimming
+         * @return this builder
+         */
+        public Builder maximumNs(int maximumNs) {
+            this.maximumNs = maximumNs;
+            return this;
+        }
+
+        /**
+         * @return a new <code>ReadTrimmer</code>
+         * @throws IllegalArgumentException if the minimum length is greater
+         * than the maximum length
+         */
+        public ReadTrimmer build() {
+            if (minimumLength > maximumLength) {
+                throw new IllegalArgumentException("Minimum read length " +
+                        minimumLength + " is greater than maximum read length "
+                        + maximumLength);
+            }
+            return new ReadTrimmer(this);
+        }
+    }
+}
@@ -2,6 +2,19 @@ package edu.caltech.lncrna.bio.sequence;
 
 public final class Sequences {
     
+    /**
+     * Complements indexed by character. Unsupported characters map to zero.
+     */
+    private static final char[] COMPLEMENTS = new char[128];
+    
+    static {
+        String from = "ACGTNacgtn";
+        String to   = "TGCANtgcan";
+        for (int i = 0; i < from.length(); i++) {
+            COMPLEMENTS[from.charAt(i)] = to.charAt(i);
+        }
+    }
+    
     private Sequences() { }
     
     /**
@@ -20,7 +33,18 @@ public final class Sequences {
      * <code>String</code> is not recognized as a base
      */
     public static String reverseComplement(String s) {
-        return reverse(complement(s));
+        char[] cs = s.toCharArray();
+        int i = 0;
+        int j = cs.length - 1;
+        while (i < j) {
+            char c = lookupComplement(cs[i]);
+            cs[i++] = lookupComplement(cs[j]);
+            cs[j--] = c;
+        }
+        if (i == j) {
+            cs[i] = lookupComplement(cs[i]);
+        }
+        return String.valueOf(cs);
     }
     
     /**
@@ -49,11 +73,53 @@ public final class Sequences {
      */
     public static String complement(String s) {
         char[] cs = s.toCharArray();
-        char[] rtrn = new char[cs.length];
         for (int i = 0; i < cs.length; i++) {
-            rtrn[i] = complement(cs[i]);
+            cs[i] = lookupComplement(cs[i]);
+        }
+        return String.valueOf(cs);
+    }
+    
+    /**
+     * Returns the number of G and C bases in the specified
+     * <code>CharSequence</code>, ignoring case.
+     * <p>
+     * Characters other than G and C, including N, are not counted and are
+     * not checked for validity.
+     * 
+     * @param s - the specified <code>CharSequence</code> of bases
+     * @return the number of G and C bases
+     */
+    public static int countGC(CharSequence s) {
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            // Clearing bit 5 upper-cases ASCII letters without branching.
+            int c = s.charAt(i) & ~0x20;
+            count += (c == 'C' || c == 'G') ? 1 : 0;
+        }
+        return count;
+    }
+    
+    /**
+     * Returns the fraction of bases in the specified <code>CharSequence</code>
+     * that are G or C, ignoring case.
+     * 
+     * @param s - the specified <code>CharSequence</code> of bases
+     * @return the GC-content, or 0 if the sequence is empty
+     */
+    public static double gcContent(CharSequence s) {
+        return s.length() == 0 ? 0 : (double) countGC(s) / s.length();
+    }
+    
+    /**
+     * Table-driven equivalent of {@link #complement(char)}, used by the bulk
+     * <code>String</code> methods.
+     */
+    private static char lookupComplement(char c) {
+        char rtrn = c < COMPLEMENTS.length ? COMPLEMENTS[c] : 0;
+        if (rtrn == 0) {
+            throw new IllegalArgumentException("Unsupported base: " + c);
         }
-        return String.valueOf(rtrn);
+        return rtrn;
     }
     
     /**
@@ -0,0 +1,146 @@
+package edu.caltech.lncrna.bio.testing;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.TextCigarCodec;
+
+/**
+ * This class builds small BAM files for tests that need reads on disk.
+ */
+final class BamFixtures {
+
+    private BamFixtures() { }
+
+    /**
+     * Returns a coordinate-sorted header with references chr1 and chr2, each
+     * 100 kb long.
+     */
+    static SAMFileHeader header() {
+        return header(100000, "chr1", "chr2");
+    }
+
+    /**
+     * Returns a coordinate-sorted header with references of the same length,
+     * in the given order.
+     *
+     * @param length - the length of each reference
+     * @param refs - the reference names
+     */
+    static SAMFileHeader header(int length, String... refs) {
+        SAMFileHeader header = new SAMFileHeader();
+        for (String ref : refs) {
+            header.addSequence(new SAMSequenceRecord(ref, length));
+        }
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        return header;
+    }
+
+    /**
+     * Returns a mapped read with a mapping quality of 60, and with bases of
+     * A and base qualities of I along its CIGAR string.
+     *
+     * @param header - the header of the BAM file the read belongs to
+     * @param name - the read name
+     * @param ref - the reference name
+     * @param start - the one-based alignment start
+     * @param cigar - the CIGAR string
+     */
+    static SAMRecord read(SAMFileHeader header, String name, String ref,
+            int start, String cigar) {
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReferenceName(ref);
+        record.setAlignmentStart(start);
+        record.setCigar(TextCigarCodec.decode(cigar));
+        record.setMappingQuality(60);
+        char[] chars = new char[record.getCigar().getReadLength()];
+        Arrays.fill(chars, 'A');
+        record.setReadString(new String(chars));
+        Arrays.fill(chars, 'I');
+        record.setBaseQualityString(new String(chars));
+        return record;
+    }
+
+    /**
+     * Returns an unmapped read with no reference.
+     *
+     * @param header - the header of the BAM file the read belongs to
+     * @param name - the read name
+     */
+    static SAMRecord unmapped(SAMFileHeader header, String name) {
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReadUnmappedFlag(true);
+        record.setReadString("ACGTACGTAC");
+        record.setBaseQualityString("IIIIIIIIII");
+        return record;
+    }
+
+    /**
+     * Makes two reads a proper pair, copying the position and strand of each
+     * into the mate fields of the other. Strands should be set first.
+     *
+     * @param first - the first read of the pair
+     * @param second - the second read of the pair
+     */
+    static void mate(SAMRecord first, SAMRecord second) {
+        for (SAMRecord[] p : new SAMRecord[][] {{first, second},
+                {second, first}}) {
+            p[0].setReadPairedFlag(true);
+            p[0].setProperPairFlag(true);
+            p[0].setFirstOfPairFlag(p[0] == first);
+            p[0].setSecondOfPairFlag(p[0] == second);
+            p[0].setMateReferenceName(p[1].getReferenceName());
+            p[0].setMateAlignmentStart(p[1].getAlignmentStart());
+            p[0].setMateNegativeStrandFlag(p[1].getReadNegativeStrandFlag());
+        }
+    }
+
+    /**
+     * Writes reads to a new BAM file. The writer sorts the reads if the
+     * header is coordinate-sorted, and otherwise keeps them in order.
+     *
+     * @param folder - the folder to create the file in
+     * @param header - the header of the BAM file
+     * @param records - the reads
+     * @param index - whether to write an index alongside the file
+     * @return the path to the BAM file
+     */
+    static Path write(TemporaryFolder folder, SAMFileHeader header,
+            Collection<SAMRecord> records, boolean index) throws IOException {
+        Path bam = folder.newFolder().toPath().resolve("reads.bam");
+        try (SAMFileWriter writer = new SAMFileWriterFactory()
+                .setCreateIndex(index)
+                .makeBAMWriter(header, false, bam.toFile())) {
+            records.forEach(writer::addAlignment);
+        }
+        return bam;
+    }
+
+    /**
+     * Returns every read of a BAM file, in order.
+     *
+     * @param bam - the path to the BAM file
+     */
+    static List<SAMRecord> readAll(Path bam) throws IOException {
+        List<SAMRecord> rtrn = new ArrayList<>();
+        try (SamReader reader = SamReaderFactory.makeDefault().open(bam)) {
+            reader.forEach(rtrn::add);
+        }
+        return rtrn;
+    }
+}
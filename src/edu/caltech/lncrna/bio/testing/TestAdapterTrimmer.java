@@ -0,0 +1,149 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import edu.caltech.lncrna.bio.io.FastqWriter;
+import edu.caltech.lncrna.bio.sequence.AdapterTrimmer;
+import edu.caltech.lncrna.bio.sequence.FastqSequence;
+import edu.caltech.lncrna.bio.sequence.PhredEncoding;
+
+public class TestAdapterTrimmer {
+
+    private static final String ADAPTER = "AGATCGGAAGAGC";
+    private static final String INSERT = "TTGCATTCCTTGCAGGTCAACCTAG";
+
+    private final AdapterTrimmer trimmer = AdapterTrimmer.builder()
+            .addAdapter(ADAPTER)
+            .build();
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void testNoAdapter() {
+        assertThat(trimmer.findAdapterStart(INSERT), is(INSERT.length()));
+    }
+
+    @Test
+    public void testFullAdapterExact() {
+        String read = INSERT + ADAPTER + "ACGTACGT";
+        assertThat(trimmer.findAdapterStart(read), is(INSERT.length()));
+    }
+
+    @Test
+    public void testFullAdapterWithMismatch() {
+        String read = INSERT + "AGATCGGtAGAGC" + "ACGT";
+        assertThat(trimmer.findAdapterStart(read), is(INSERT.length()));
+    }
+
+    @Test
+    public void testFullAdapterWithDeletion() {
+        String read = INSERT + "AGATCGAAGAGC" + "ACGT";
+        assertThat(trimmer.findAdapterStart(read), is(INSERT.length()));
+    }
+
+    @Test
+    public void testFullAdapterWithInsertion() {
+        String read = INSERT + "AGATCGGcAAGAGC" + "ACGT";
+        assertThat(trimmer.findAdapterStart(read), is(INSERT.length()));
+    }
+
+    @Test
+    public void testTooManyErrors() {
+        String read = INSERT + "AcATCGGtAGAGC";
+        assertThat(trimmer.findAdapterStart(read), is(read.length()));
+    }
+
+    @Test
+    public void testPartialAdapterAtEnd() {
+        String read = INSERT + "AGATCG";
+        assertThat(trimmer.findAdapterStart(read), is(INSERT.length()));
+    }
+
+    @Test
+    public void testPartialAdapterShorterThanMinimumOverlap() {
+        String read = INSERT + "AG";
+        assertThat(trimmer.findAdapterStart(read), is(read.length()));
+    }
+
+    @Test
+    public void testMultipleAdaptersUseLeftmost() {
+        AdapterTrimmer two = AdapterTrimmer.builder()
+                .addAdapter(ADAPTER)
+                .addAdapter("CTGTCTCTTATACACATCT")
+                .build();
+        String read = "ACGTACGTAC" + "CTGTCTCTTATACACATCT" + ADAPTER;
+        assertThat(two.findAdapterStart(read), is(10));
+    }
+
+    @Test
+    public void testAdapterWildcard() {
+        AdapterTrimmer wildcard = AdapterTrimmer.builder()
+                .addAdapter("NNNNAGATCGGAAGAGC")
+                .errorRate(0)
+                .build();
+        String read = INSERT + "ACGT" + ADAPTER;
+        assertThat(wildcard.findAdapterStart(read), is(INSERT.length()));
+    }
+
+    @Test
+    public void testTrimKeepsQualities() {
+        FastqSequence read = new FastqSequence("r", "ACGTAGATCGGAAGAGC",
+                "ABCDEFGHIJKLMNOPQ");
+        FastqSequence trimmed = trimmer.trim(read);
+        assertThat(trimmed.getBases(), is("ACGT"));
+        assertThat(trimmed, is(new FastqSequence("r", "ACGT", "ABCD")));
+    }
+
+    @Test
+    public void testAdapterTooLong() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= AdapterTrimmer.MAX_ADAPTER_LENGTH; i++) {
+            sb.append('A');
+        }
+        thrown.expect(IllegalArgumentException.class);
+        AdapterTrimmer.builder().addAdapter(sb.toString());
+    }
+
+    @Test
+    public void testSixtyFourBaseAdapter() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            sb.append("ACGG");
+        }
+        AdapterTrimmer longTrimmer = AdapterTrimmer.builder()
+                .addAdapter(sb.toString())
+                .errorRate(0)
+                .build();
+        assertThat(longTrimmer.findAdapterStart(INSERT + sb + "TT"),
+                is(INSERT.length()));
+    }
+
+    @Test
+    public void testTrimAll() {
+        List<FastqSequence> reads = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            String bases = i % 3 == 0 ? INSERT + ADAPTER : INSERT;
+            StringBuilder quals = new StringBuilder();
+            for (int j = 0; j < bases.length(); j++) {
+                quals.append('I');
+            }
+            reads.add(new FastqSequence("r" + i, bases, quals.toString()));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long trimmed;
+        try (FastqWriter writer = new FastqWriter(out, PhredEncoding.SANGER)) {
+            trimmed = trimmer.trimAll(reads.iterator(), writer, 4, false);
+        }
+        assertThat(trimmed, is(1000L));
+    }
+}
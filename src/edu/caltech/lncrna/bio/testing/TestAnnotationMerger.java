@@ -0,0 +1,101 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.AnnotationMerger;
+import edu.caltech.lncrna.bio.annotation.AnnotationMerger.Merged;
+import edu.caltech.lncrna.bio.annotation.Strand;
+
+public class TestAnnotationMerger {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private static final List<Annotated> ANNOTATIONS = Arrays.asList(
+            new Annotation("chr1", 100, 200, Strand.POSITIVE),
+            new Annotation("chr1", 150, 300, Strand.NEGATIVE),
+            new Annotation("chr1", 300, 400, Strand.POSITIVE),
+            new Annotation("chr1", 410, 500, Strand.POSITIVE),
+            new Annotation("chr2", 100, 200, Strand.NEGATIVE));
+
+    private static <R> List<Merged<R>> toList(AnnotationMerger<?, R> merger) {
+        List<Merged<R>> rtrn = new ArrayList<>();
+        merger.forEachRemaining(rtrn::add);
+        return rtrn;
+    }
+
+    @Test
+    public void testMergesOverlappingAndBookEnded() {
+        List<Merged<Void>> merged = toList(AnnotationMerger.builder()
+                .build(ANNOTATIONS.iterator()));
+        assertThat(merged.size(), is(3));
+        assertThat(new Annotation(merged.get(0)),
+                is(new Annotation("chr1", 100, 400, Strand.BOTH)));
+        assertThat(merged.get(0).getCount(), is(3));
+        assertThat(merged.get(1).getStart(), is(410));
+        assertThat(merged.get(2).getReferenceName(), is("chr2"));
+    }
+
+    @Test
+    public void testMaxDistance() {
+        List<Merged<Void>> merged = toList(AnnotationMerger.builder()
+                .maxDistance(10)
+                .build(ANNOTATIONS.iterator()));
+        assertThat(merged.size(), is(2));
+        assertThat(merged.get(0).getEnd(), is(500));
+        assertThat(merged.get(0).getCount(), is(4));
+    }
+
+    @Test
+    public void testStrandSpecific() {
+        List<Merged<Void>> merged = toList(AnnotationMerger.builder()
+                .strandSpecific(true)
+                .build(ANNOTATIONS.iterator()));
+        assertThat(merged.size(), is(5));
+        // Runs on different strands are returned in the order they close.
+        assertThat(new Annotation(merged.get(0)),
+                is(new Annotation("chr1", 100, 200, Strand.POSITIVE)));
+        assertThat(new Annotation(merged.get(1)),
+                is(new Annotation("chr1", 300, 400, Strand.POSITIVE)));
+        assertThat(new Annotation(merged.get(2)),
+                is(new Annotation("chr1", 150, 300, Strand.NEGATIVE)));
+        assertThat(new Annotation(merged.get(3)),
+                is(new Annotation("chr1", 410, 500, Strand.POSITIVE)));
+    }
+
+    @Test
+    public void testAggregate() {
+        List<Merged<Integer>> merged = toList(AnnotationMerger.builder()
+                .build(ANNOTATIONS.iterator(),
+                        Collectors.summingInt(Annotated::getSize)));
+        assertThat(merged.get(0).getAggregate(), is(350));
+        assertThat(merged.get(1).getAggregate(), is(90));
+    }
+
+    @Test
+    public void testEmptyIterator() {
+        assertThat(AnnotationMerger.builder()
+                .build(new ArrayList<Annotated>().iterator()).hasNext(),
+                is(false));
+    }
+
+    @Test
+    public void testUnsortedThrowsException() {
+        thrown.expect(IllegalStateException.class);
+        toList(AnnotationMerger.builder().build(Arrays.asList(
+                new Annotation("chr1", 100, 200, Strand.POSITIVE),
+                new Annotation("chr1", 50, 60, Strand.POSITIVE)).iterator()));
+    }
+}
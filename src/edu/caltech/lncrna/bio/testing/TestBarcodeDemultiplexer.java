@@ -0,0 +1,199 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.io.FastqParser;
+import edu.caltech.lncrna.bio.io.MalformedRecordException;
+import edu.caltech.lncrna.bio.sequence.BarcodeDemultiplexer;
+import edu.caltech.lncrna.bio.sequence.BarcodeLayout;
+import edu.caltech.lncrna.bio.sequence.FastqSequence;
+
+public class TestBarcodeDemultiplexer {
+
+    private BarcodeDemultiplexer demux;
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        BarcodeLayout layout = BarcodeLayout.builder()
+                .addTag("DPM", 0, 0, "DPM1", "AAAAAA")
+                .addTag("DPM", 0, 0, "DPM2", "CCCCCC")
+                .addTag("Odd", 8, 1, "A1", "GGGGTTTT")
+                .addTag("Odd", 8, 1, "A2", "GGGGAAAA")
+                .addTag("Even", 16, 1, "B1", "TTTTTTTT")
+                .addTag("Even", 16, 1, "B2", "ACACACAC")
+                .build();
+        demux = new BarcodeDemultiplexer(layout);
+    }
+
+    private static FastqSequence read(String name, String bases) {
+        char[] quals = new char[bases.length()];
+        Arrays.fill(quals, 'I');
+        return new FastqSequence(name, bases, String.valueOf(quals));
+    }
+
+    @Test
+    public void testExactMatch() {
+        BarcodeDemultiplexer.Barcode barcode =
+                demux.resolve("AAAAAAxxGGGGTTTTTTTTTTTTGATTACA");
+        assertThat(barcode.isComplete(), is(true));
+        assertThat(barcode.toString(), is("[DPM1][A1][B1]"));
+    }
+
+    @Test
+    public void testMismatchWithinTolerance() {
+        BarcodeDemultiplexer.Barcode barcode =
+                demux.resolve("ccccccNNGGGcTTTTACcCACAC");
+        assertThat(barcode.toString(), is("[DPM2][A1][B2]"));
+    }
+
+    @Test
+    public void testMismatchOutsideTolerance() {
+        BarcodeDemultiplexer.Barcode barcode =
+                demux.resolve("AAAAAtNNGGGGTTTTTTTTTTTT");
+        assertThat(barcode.isComplete(), is(false));
+        assertThat(barcode.getTagName(0), is(BarcodeDemultiplexer.NOT_FOUND));
+        assertThat(barcode.getTagIndex(0), is(-1));
+    }
+
+    @Test
+    public void testAmbiguousNeighborIsNotFound() {
+        // ACGC is one mismatch from both tags.
+        BarcodeLayout layout = BarcodeLayout.builder()
+                .addTag("P", 0, 1, "X", "ACGT")
+                .addTag("P", 0, 1, "Y", "ACGA")
+                .build();
+        BarcodeDemultiplexer d = new BarcodeDemultiplexer(layout);
+        assertThat(d.resolve("ACGC").getTagIndex(0), is(-1));
+        assertThat(d.resolve("ACGA").getTagName(0), is("Y"));
+        assertThat(d.resolve("TCGA").getTagName(0), is("Y"));
+    }
+
+    @Test
+    public void testWindowWithNOrPastEndIsNotFound() {
+        assertThat(demux.resolve("AAANAA").getTagIndex(0), is(-1));
+        assertThat(demux.resolve("AAAAAAxxGGGG").getTagIndex(1), is(-1));
+    }
+
+    @Test
+    public void testDuplicateTagSequence() {
+        thrown.expect(IllegalArgumentException.class);
+        new BarcodeDemultiplexer(BarcodeLayout.builder()
+                .addTag("P", 0, 0, "X", "ACGT")
+                .addTag("P", 0, 0, "Y", "acgt")
+                .build());
+    }
+
+    @Test
+    public void testParseLayout() throws IOException {
+        Path p = folder.newFile("layout.txt").toPath();
+        Files.write(p, Arrays.asList(
+                "# position\toffset\tmismatches\tname\tsequence",
+                "DPM\t0\t0\tDPM1\tAAAAAA",
+                "Odd\t8\t1\tA1\tGGGGTTTT",
+                "DPM\t0\t0\tDPM2\tCCCCCC"), StandardCharsets.US_ASCII);
+        BarcodeLayout layout = BarcodeLayout.parse(p);
+        assertThat(layout.getNumberOfPositions(), is(2));
+        assertThat(layout.getPositions().get(0).getNumberOfTags(), is(2));
+        assertThat(layout.getPositions().get(1).getOffset(), is(8));
+    }
+
+    @Test
+    public void testParseInconsistentLayout() throws IOException {
+        Path p = folder.newFile("bad.txt").toPath();
+        Files.write(p, Arrays.asList(
+                "DPM\t0\t0\tDPM1\tAAAAAA",
+                "DPM\t1\t0\tDPM2\tCCCCCC"), StandardCharsets.US_ASCII);
+        thrown.expect(MalformedRecordException.class);
+        BarcodeLayout.parse(p);
+    }
+
+    @Test
+    public void testAnnotateAllPreservesOrder() throws IOException {
+        Path in = folder.newFile("in.fastq").toPath();
+        Path out = folder.getRoot().toPath().resolve("out.fastq.gz");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            FastqSequence r = read("r" + i, i % 3 == 0
+                    ? "AAAAAAxxGGGGAAAAACACACAC"
+                    : "GGGGGGxxGGGGAAAAACACACAC");
+            lines.add(r.toFormattedString().trim());
+        }
+        Files.write(in, lines, StandardCharsets.US_ASCII);
+
+        long complete;
+        try (FastqParser parser = new FastqParser(in)) {
+            complete = demux.annotateAll(parser, out, 4);
+        }
+        assertThat(complete, is(1000L));
+
+        try (FastqParser parser = new FastqParser(out)) {
+            List<FastqSequence> reads = parser.toList();
+            assertThat(reads.size(), is(3000));
+            assertThat(reads.get(0).getName(), is("r0::[DPM1][A2][B2]"));
+            assertThat(reads.get(2999).getName(),
+                    is("r2999::[NOT_FOUND][A2][B2]"));
+        }
+    }
+
+    @Test
+    public void testSplitAll() throws IOException {
+        List<FastqSequence> reads = Arrays.asList(
+                read("a", "AAAAAAxxGGGGTTTTTTTTTTTT"),
+                read("b", "CCCCCCxxGGGGTTTTTTTTTTTT"),
+                read("c", "AAAAAAxxGGGGTTTTTTTTTTTT"),
+                read("d", "TTTTTTxxGGGGTTTTTTTTTTTT"));
+        Path dir = folder.newFolder("split").toPath();
+        assertThat(demux.splitAll(reads.iterator(), dir, 2), is(3L));
+        try (FastqParser parser =
+                new FastqParser(dir.resolve("DPM1_A1_B1.fastq"))) {
+            assertThat(parser.toList().size(), is(2));
+        }
+        try (FastqParser parser =
+                new FastqParser(dir.resolve("unassigned.fastq"))) {
+            assertThat(parser.next().getName(), is("d"));
+        }
+    }
+
+    @Test
+    public void testSplitAllRejectsTagNameWithSeparator() throws IOException {
+        BarcodeDemultiplexer unsafe = new BarcodeDemultiplexer(
+                BarcodeLayout.builder()
+                        .addTag("P", 0, 0, "../escape", "AAAAAA")
+                        .build());
+        thrown.expect(IllegalArgumentException.class);
+        unsafe.splitAll(Arrays.asList(read("a", "AAAAAA")).iterator(),
+                folder.newFolder("split").toPath(), 1);
+    }
+
+    @Test
+    public void testSplitAllRejectsDotDotTagName() throws IOException {
+        BarcodeDemultiplexer unsafe = new BarcodeDemultiplexer(
+                BarcodeLayout.builder()
+                        .addTag("P", 0, 0, "..", "AAAAAA")
+                        .build());
+        thrown.expect(IllegalArgumentException.class);
+        unsafe.splitAll(Arrays.asList(read("a", "AAAAAA")).iterator(),
+                folder.newFolder("split").toPath(), 1);
+    }
+}
@@ -0,0 +1,164 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.BedpeFileRecord;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.BedpeIndex;
+import edu.caltech.lncrna.bio.io.BedpeParser;
+
+public class TestBedpeIndex {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String[] REFS = {"chr1", "chr2", "chr3"};
+
+    private static BedpeFileRecord record(String ref1, int start1, int end1,
+            String ref2, int start2, int end2, String name) {
+        return BedpeFileRecord.fromFormattedString(ref1 + "\t" + start1 +
+                "\t" + end1 + "\t" + ref2 + "\t" + start2 + "\t" + end2 +
+                "\t" + name);
+    }
+
+    private static List<BedpeFileRecord> loops() {
+        return Arrays.asList(
+                record("chr1", 100, 200, "chr1", 5000, 5100, "a"),
+                record("chr1", 5000, 5100, "chr1", 100, 200, "b"),
+                record("chr1", 100, 200, "chr2", 300, 400, "c"),
+                record("chr2", 300, 400, "chr1", 150, 250, "d"),
+                record("chr1", 120, 180, "chr1", 130, 170, "e"));
+    }
+
+    private static List<String> names(Iterator<BedpeFileRecord> iter) {
+        List<String> rtrn = new ArrayList<>();
+        iter.forEachRemaining(r -> rtrn.add(r.getName()));
+        Collections.sort(rtrn);
+        return rtrn;
+    }
+
+    private static boolean overlaps(Annotated block, Annotated region) {
+        return block.getReferenceName().equals(region.getReferenceName()) &&
+                block.getStart() < region.getEnd() &&
+                region.getStart() < block.getEnd();
+    }
+
+    @Test
+    public void testPairQuery() {
+        BedpeIndex index = new BedpeIndex(loops().iterator());
+        assertThat(index.size(), is(5));
+        Annotated a = new Annotation("chr1", 0, 300, Strand.BOTH);
+        Annotated b = new Annotation("chr1", 4900, 5200, Strand.BOTH);
+        assertThat(names(index.overlappers(a, b)),
+                is(Arrays.asList("a", "b")));
+        assertThat(names(index.overlappers(b, a)),
+                is(Arrays.asList("a", "b")));
+        // Both blocks of e lie in a, and e is reported once
+        assertThat(names(index.overlappers(a, a)), is(Arrays.asList("e")));
+    }
+
+    @Test
+    public void testTransPairQuery() {
+        BedpeIndex index = new BedpeIndex(loops().iterator());
+        Annotated a = new Annotation("chr1", 190, 260, Strand.BOTH);
+        Annotated b = new Annotation("chr2", 0, 1000, Strand.BOTH);
+        assertThat(names(index.overlappers(a, b)),
+                is(Arrays.asList("c", "d")));
+        assertThat(names(index.overlappers(b, a)),
+                is(Arrays.asList("c", "d")));
+        assertThat(index.numOverlappers(b,
+                new Annotation("chr3", 0, 1000, Strand.BOTH)), is(0));
+    }
+
+    @Test
+    public void testSingleAnchorQuery() {
+        BedpeIndex index = new BedpeIndex(loops().iterator());
+        assertThat(names(index.overlappers(
+                new Annotation("chr1", 0, 300, Strand.BOTH))),
+                is(Arrays.asList("a", "b", "c", "d", "e")));
+        assertThat(names(index.overlappers(
+                new Annotation("chr2", 350, 360, Strand.BOTH))),
+                is(Arrays.asList("c", "d")));
+        assertThat(index.numOverlappers(
+                new Annotation("chr3", 0, 300, Strand.BOTH)), is(0));
+    }
+
+    @Test
+    public void testRandomQueriesMatchBruteForce() {
+        Random rng = new Random(5);
+        List<BedpeFileRecord> records = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            int s1 = rng.nextInt(100000);
+            int s2 = rng.nextInt(100000);
+            records.add(record(REFS[rng.nextInt(3)], s1,
+                    s1 + 1 + rng.nextInt(rng.nextInt(10) == 0 ? 20000 : 500),
+                    REFS[rng.nextInt(3)], s2, s2 + 1 + rng.nextInt(500),
+                    "r" + i));
+        }
+        BedpeIndex index = new BedpeIndex(records.iterator());
+
+        for (int q = 0; q < 300; q++) {
+            int sa = rng.nextInt(100000);
+            int sb = rng.nextInt(100000);
+            Annotated a = new Annotation(REFS[rng.nextInt(3)], sa,
+                    sa + 1 + rng.nextInt(5000), Strand.BOTH);
+            Annotated b = new Annotation(REFS[rng.nextInt(3)], sb,
+                    sb + 1 + rng.nextInt(5000), Strand.BOTH);
+
+            List<String> expectedPair = new ArrayList<>();
+            List<String> expectedSingle = new ArrayList<>();
+            for (BedpeFileRecord r : records) {
+                Annotated b1 = r.getBlock1().get();
+                Annotated b2 = r.getBlock2().get();
+                if (overlaps(b1, a) && overlaps(b2, b) ||
+                        overlaps(b2, a) && overlaps(b1, b)) {
+                    expectedPair.add(r.getName());
+                }
+                if (overlaps(b1, a) || overlaps(b2, a)) {
+                    expectedSingle.add(r.getName());
+                }
+            }
+            Collections.sort(expectedPair);
+            Collections.sort(expectedSingle);
+            assertThat(names(index.overlappers(a, b)), is(expectedPair));
+            assertThat(names(index.overlappers(a)), is(expectedSingle));
+        }
+    }
+
+    @Test
+    public void testBulkLoadFromParser() throws IOException {
+        Path p = folder.newFile().toPath();
+        try (BufferedWriter writer = Files.newBufferedWriter(p)) {
+            for (BedpeFileRecord r : loops()) {
+                writer.write(r.toFormattedString(7));
+                writer.newLine();
+            }
+        }
+        BedpeIndex index;
+        try (BedpeParser parser = new BedpeParser(p)) {
+            index = new BedpeIndex(parser);
+        }
+        assertThat(index.size(), is(5));
+        assertThat(names(index.overlappers(
+                new Annotation("chr2", 0, 1000, Strand.BOTH))),
+                is(Arrays.asList("c", "d")));
+    }
+}
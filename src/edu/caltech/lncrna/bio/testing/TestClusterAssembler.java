@@ -0,0 +1,213 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.alignment.ClusterAssembler;
+import edu.caltech.lncrna.bio.alignment.ClusterAssembler.Cluster;
+import edu.caltech.lncrna.bio.alignment.ClusterAssembler.ClusterIterator;
+import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import edu.caltech.lncrna.bio.alignment.SingleRead;
+import edu.caltech.lncrna.bio.datastructures.ContactMatrix;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+public class TestClusterAssembler {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String[] REFS = {"chr1", "chr2"};
+
+    private static CoordinateSpace space() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("chr1", 10000);
+        sizes.put("chr2", 10000);
+        return new CoordinateSpace(sizes);
+    }
+
+    private static SAMRecord record(SAMFileHeader header, String name,
+            String ref, int start) {
+        return BamFixtures.read(header, name, ref, start, "10M");
+    }
+
+    private static List<SAMRecord> records() {
+        SAMFileHeader header = BamFixtures.header(10000, REFS);
+        List<SAMRecord> rtrn = new ArrayList<>();
+        rtrn.add(record(header, "r1::[A1][B1]", "chr1", 500));
+        rtrn.add(record(header, "r2::[A1][B1]", "chr2", 100));
+        rtrn.add(record(header, "r3::[A1][B1]", "chr1", 100));
+        rtrn.add(record(header, "r4::[A2][B1]", "chr1", 7000));
+        rtrn.add(record(header, "r5::[A2][B1]", "chr1", 9000));
+        rtrn.add(record(header, "r6::[A3][B2]", "chr2", 300));
+        // Skipped: no barcode, an unresolved barcode, a secondary alignment
+        // and an unmapped read
+        rtrn.add(record(header, "r7", "chr1", 100));
+        rtrn.add(record(header, "r8::[A1][NOT_FOUND]", "chr1", 100));
+        SAMRecord secondary = record(header, "r9::[A1][B1]", "chr1", 200);
+        secondary.setNotPrimaryAlignmentFlag(true);
+        rtrn.add(secondary);
+        SAMRecord unmapped = record(header, "r10::[A1][B1]", "chr1", 300);
+        unmapped.setReadUnmappedFlag(true);
+        rtrn.add(unmapped);
+        return rtrn;
+    }
+
+    private static List<String> describe(ClusterIterator clusters) {
+        List<String> rtrn = new ArrayList<>();
+        while (clusters.hasNext()) {
+            Cluster c = clusters.next();
+            StringBuilder sb = new StringBuilder(Long.toString(c.getKey()));
+            for (int i = 0; i < c.size(); i++) {
+                sb.append(' ').append(c.getReferenceIndex(i)).append(':')
+                        .append(c.getPosition(i));
+            }
+            rtrn.add(sb.toString());
+        }
+        clusters.close();
+        return rtrn;
+    }
+
+    @Test
+    public void testClustersFromReads() {
+        ClusterAssembler assembler = ClusterAssembler.builder(space()).build();
+        Map<Long, Cluster> byKey = new LinkedHashMap<>();
+        try (ClusterIterator clusters = assembler.assemble(
+                records().stream().map(SingleRead::new).iterator())) {
+            clusters.forEachRemaining(c -> byKey.put(c.getKey(), c));
+            assertThat(clusters.getNumberOfRuns(), is(0));
+        }
+        assertThat(byKey.size(), is(3));
+
+        Cluster a1 = byKey.get(ClusterAssembler.barcodeKey("[A1][B1]"));
+        assertThat(a1.size(), is(3));
+        assertThat(a1.getReferenceIndex(0), is(0));
+        assertThat(a1.getPosition(0), is(100));
+        assertThat(a1.getReferenceIndex(1), is(0));
+        assertThat(a1.getPosition(1), is(500));
+        assertThat(a1.getReferenceIndex(2), is(1));
+        assertThat(a1.getPosition(2), is(100));
+        assertThat(byKey.get(ClusterAssembler.barcodeKey("[A2][B1]")).size(),
+                is(2));
+        assertThat(byKey.get(ClusterAssembler.barcodeKey("[A3][B2]")).size(),
+                is(1));
+    }
+
+    @Test
+    public void testIncompleteBarcodesCanBeKept() {
+        ClusterAssembler assembler = ClusterAssembler.builder(space())
+                .keepIncompleteBarcodes(true)
+                .build();
+        List<String> clusters = describe(assembler.assemble(
+                records().stream().map(SingleRead::new).iterator()));
+        assertThat(clusters.size(), is(4));
+    }
+
+    @Test
+    public void testSpilledRunsMatchInMemory() throws IOException {
+        Random rng = new Random(7);
+        SAMFileHeader header = BamFixtures.header(10000, REFS);
+        List<SingleRead> reads = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String barcode = "[A" + rng.nextInt(20) + "][B" +
+                    rng.nextInt(20) + "]";
+            reads.add(new SingleRead(record(header, "r" + i + "::" + barcode,
+                    REFS[rng.nextInt(2)], 1 + rng.nextInt(9000))));
+        }
+
+        List<String> expected = describe(ClusterAssembler.builder(space())
+                .build()
+                .assemble(reads.iterator()));
+
+        Path tmp = folder.newFolder().toPath();
+        ClusterIterator spilled = ClusterAssembler.builder(space())
+                .memoryBudget(16 * 300)
+                .tempDirectory(tmp)
+                .build()
+                .assemble(reads.iterator());
+        assertThat(spilled.getNumberOfRuns(), is(16));
+        assertThat(describe(spilled), is(expected));
+        try (Stream<Path> files = Files.list(tmp)) {
+            assertThat(files.count(), is(0L));
+        }
+    }
+
+    @Test
+    public void testContactWeights() {
+        SAMFileHeader header = BamFixtures.header(10000, REFS);
+        List<SingleRead> reads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            reads.add(new SingleRead(record(header, "r" + i + "::[A1]",
+                    "chr1", 1000 * (i + 1))));
+        }
+        Cluster cluster = ClusterAssembler.builder(space()).build()
+                .assemble(reads.iterator()).next();
+        List<String> contacts = new ArrayList<>();
+        cluster.forEachContact((ref1, pos1, ref2, pos2, weight) ->
+                contacts.add(pos1 + "," + pos2 + "," + weight));
+        assertThat(contacts.size(), is(6));
+        assertThat(contacts.get(0), is("1000,2000,0.5"));
+        assertThat(contacts.get(5), is("3000,4000,0.5"));
+    }
+
+    @Test
+    public void testContactMatrixFromClusters() {
+        ClusterAssembler assembler = ClusterAssembler.builder(space()).build();
+        ContactMatrix m = ContactMatrix.builder(space(), 1000)
+                .addAll(assembler.assemble(records().stream()
+                        .map(SingleRead::new).iterator()), 2)
+                .build()
+                .get(0);
+        // Only the two-read cluster is small enough, with a weight of one
+        assertThat(m.getNumberOfEntries(), is(1));
+        assertThat(m.get(7, 9), is(1f));
+
+        m = ContactMatrix.builder(space(), 1000)
+                .addAll(assembler.assemble(records().stream()
+                        .map(SingleRead::new).iterator()), 3)
+                .build()
+                .get(0);
+        // chr1:100, chr1:500 and chr2:100 each pair with weight 2/3
+        assertThat(m.get(0, 0), is(2f / 3));
+        assertThat(m.get(0, 10), is(4f / 3));
+        assertThat(m.get(7, 9), is(1f));
+    }
+
+    @Test
+    public void testBamFile() throws IOException {
+        Path bam = BamFixtures.write(folder,
+                BamFixtures.header(10000, REFS), records(), false);
+        List<String> fromBam = describe(ClusterAssembler.builder(space())
+                .build()
+                .assemble(bam));
+        List<String> fromReads = describe(ClusterAssembler.builder(space())
+                .build()
+                .assemble(records().stream().map(SingleRead::new)
+                        .iterator()));
+        assertThat(fromBam, is(fromReads));
+    }
+
+    @Test
+    public void testTinyMemoryBudgetThrowsException() {
+        thrown.expect(IllegalArgumentException.class);
+        ClusterAssembler.builder(space()).memoryBudget(8);
+    }
+}
@@ -0,0 +1,200 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.BedpeFileRecord;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.ContactMatrix;
+
+public class TestContactMatrix {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static CoordinateSpace space() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("chr1", 10000);
+        sizes.put("chr2", 5000);
+        return new CoordinateSpace(sizes);
+    }
+
+    private static BedpeFileRecord record(String line) {
+        return BedpeFileRecord.fromFormattedString(line);
+    }
+
+    private static List<ContactMatrix> smallMatrices() {
+        return ContactMatrix.builder(space(), 1000, 5000)
+                .add(record("chr1\t100\t200\tchr1\t2100\t2200"))
+                .add(record("chr1\t2100\t2200\tchr1\t100\t200"))
+                .add(record("chr1\t9900\t10000\tchr2\t0\t100"))
+                .add(record("chr1\t5500\t5600\tchr1\t5500\t5600"))
+                .add(record("chrX\t0\t100\tchr1\t0\t100"))
+                .build();
+    }
+
+    @Test
+    public void testBinning() {
+        ContactMatrix m = smallMatrices().get(0);
+        assertThat(m.getResolution(), is(1000));
+        assertThat(m.getNumberOfBins(), is(15));
+        assertThat(m.getNumberOfEntries(), is(3));
+        assertThat(m.getBin("chr1", 2150), is(2));
+        assertThat(m.getBin("chr2", 50), is(10));
+        assertThat(m.getBin("chr3", 50), is(-1));
+        assertThat(m.get(0, 2), is(2f));
+        assertThat(m.get(2, 0), is(2f));
+        assertThat(m.get(9, 10), is(1f));
+        assertThat(m.get(5, 5), is(1f));
+        assertThat(m.get(0, 1), is(0f));
+    }
+
+    @Test
+    public void testMultipleResolutionsInOnePass() {
+        ContactMatrix m = smallMatrices().get(1);
+        assertThat(m.getResolution(), is(5000));
+        assertThat(m.getNumberOfBins(), is(3));
+        assertThat(m.get(0, 0), is(2f));
+        assertThat(m.get(1, 2), is(1f));
+        assertThat(m.get(1, 1), is(1f));
+    }
+
+    @Test
+    public void testBinRegion() {
+        ContactMatrix m = smallMatrices().get(0);
+        assertThat(new Annotation(m.getBinRegion(9)),
+                is(new Annotation("chr1", 9000, 10000, Strand.BOTH)));
+        assertThat(new Annotation(m.getBinRegion(10)),
+                is(new Annotation("chr2", 0, 1000, Strand.BOTH)));
+        assertThat(new Annotation(m.getBinRegion(14)),
+                is(new Annotation("chr2", 4000, 5000, Strand.BOTH)));
+    }
+
+    @Test
+    public void testParallelFileMatchesNaiveCounts() throws IOException {
+        Random rng = new Random(3);
+        Path bedpe = folder.newFile().toPath();
+        Map<String, Integer> expected = new HashMap<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(bedpe)) {
+            writer.write("# comment\n");
+            for (int i = 0; i < 20000; i++) {
+                int pos1 = rng.nextInt(9900);
+                int pos2 = rng.nextInt(4900);
+                writer.write("chr1\t" + pos1 + "\t" + (pos1 + 100) +
+                        "\tchr2\t" + pos2 + "\t" + (pos2 + 100) + "\n");
+                int bin1 = (pos1 + 50) / 1000;
+                int bin2 = 10 + (pos2 + 50) / 1000;
+                expected.merge(bin1 + "," + bin2, 1, Integer::sum);
+            }
+        }
+
+        ContactMatrix m = ContactMatrix.builder(space(), 1000)
+                .addAll(bedpe, 3)
+                .build()
+                .get(0);
+        assertThat(m.getNumberOfEntries(), is(expected.size()));
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            String[] bins = entry.getKey().split(",");
+            assertThat(m.get(Integer.parseInt(bins[0]),
+                    Integer.parseInt(bins[1])),
+                    is((float) entry.getValue()));
+        }
+    }
+
+    @Test
+    public void testWriteAndMemoryMap() throws IOException {
+        ContactMatrix m = smallMatrices().get(0);
+        Path p = folder.newFile().toPath();
+        m.write(p);
+        ContactMatrix mapped = new ContactMatrix(p);
+        assertThat(mapped.getResolution(), is(1000));
+        assertThat(mapped.getNumberOfBins(), is(15));
+        assertThat(mapped.getNumberOfEntries(), is(3));
+        assertThat(mapped.get(2, 0), is(2f));
+        assertThat(mapped.get(9, 10), is(1f));
+
+        List<String> entries = new ArrayList<>();
+        mapped.forEach((row, col, value) ->
+                entries.add(row + "," + col + "," + value));
+        List<String> original = new ArrayList<>();
+        m.forEach((row, col, value) ->
+                original.add(row + "," + col + "," + value));
+        assertThat(entries, is(original));
+    }
+
+    @Test
+    public void testRegionQueryMatchesBruteForce() {
+        Random rng = new Random(11);
+        ContactMatrix.Builder builder = ContactMatrix.builder(space(), 500);
+        String[] refs = {"chr1", "chr2"};
+        int[] lengths = {10000, 5000};
+        for (int i = 0; i < 2000; i++) {
+            int r1 = rng.nextInt(2);
+            int r2 = rng.nextInt(2);
+            int p1 = rng.nextInt(lengths[r1]);
+            int p2 = rng.nextInt(lengths[r2]);
+            builder.add(new Annotation(refs[r1], p1, p1 + 1, Strand.BOTH),
+                    new Annotation(refs[r2], p2, p2 + 1, Strand.BOTH), 0.5f);
+        }
+        ContactMatrix m = builder.build().get(0);
+
+        for (int q = 0; q < 50; q++) {
+            Annotated[] regions = new Annotated[2];
+            int[][] binRanges = new int[2][];
+            for (int k = 0; k < 2; k++) {
+                int r = rng.nextInt(2);
+                int start = rng.nextInt(lengths[r] - 1);
+                int end = start + 1 + rng.nextInt(lengths[r] - start);
+                regions[k] = new Annotation(refs[r], start, end, Strand.BOTH);
+                binRanges[k] = new int[] {m.getBin(refs[r], start),
+                        m.getBin(refs[r], end - 1) + 1};
+            }
+
+            List<String> expected = new ArrayList<>();
+            m.forEach((row, col, value) -> {
+                if (in(row, binRanges[0]) && in(col, binRanges[1]) ||
+                        in(row, binRanges[1]) && in(col, binRanges[0])) {
+                    expected.add(row + "," + col + "," + value);
+                }
+            });
+            List<String> actual = new ArrayList<>();
+            m.forEach(regions[0], regions[1], (row, col, value) ->
+                    actual.add(row + "," + col + "," + value));
+            actual.sort(null);
+            expected.sort(null);
+            assertThat(actual, is(expected));
+        }
+    }
+
+    private static boolean in(int bin, int[] range) {
+        return bin >= range[0] && bin < range[1];
+    }
+
+    @Test
+    public void testNonPositiveResolutionThrowsException() {
+        thrown.expect(IllegalArgumentException.class);
+        ContactMatrix.builder(space(), 1000, 0);
+    }
+}
@@ -0,0 +1,129 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Optional;
+
+import org.junit.Test;
+
+import edu.caltech.lncrna.bio.alignment.SingleReadAlignment;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.CoordinateMapper;
+import edu.caltech.lncrna.bio.annotation.Gene;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class TestCoordinateMapper {
+
+    // Exons [100, 200), [300, 400) and [500, 550)
+    private static Annotated transcript(Strand strand) {
+        return Annotation.builder()
+                .addAnnotation(new Annotation("chr1", 100, 200, strand))
+                .addAnnotation(new Annotation("chr1", 300, 400, strand))
+                .addAnnotation(new Annotation("chr1", 500, 550, strand))
+                .build();
+    }
+
+    @Test
+    public void testPositiveStrand() {
+        CoordinateMapper mapper = new CoordinateMapper(
+                transcript(Strand.POSITIVE), "tx");
+        assertThat(mapper.getTranscriptLength(), is(250));
+        assertThat(mapper.toTranscript(100), is(0));
+        assertThat(mapper.toTranscript(199), is(99));
+        assertThat(mapper.toTranscript(300), is(100));
+        assertThat(mapper.toTranscript(549), is(249));
+        assertThat(mapper.toGenome(100), is(300));
+        assertThat(mapper.toGenome(249), is(549));
+    }
+
+    @Test
+    public void testNegativeStrand() {
+        CoordinateMapper mapper = new CoordinateMapper(
+                transcript(Strand.NEGATIVE), "tx");
+        assertThat(mapper.toTranscript(549), is(0));
+        assertThat(mapper.toTranscript(500), is(49));
+        assertThat(mapper.toTranscript(399), is(50));
+        assertThat(mapper.toTranscript(100), is(249));
+        assertThat(mapper.toGenome(0), is(549));
+        assertThat(mapper.toGenome(50), is(399));
+    }
+
+    @Test
+    public void testPositionsOutsideBlocks() {
+        CoordinateMapper mapper = new CoordinateMapper(
+                transcript(Strand.POSITIVE), "tx");
+        assertThat(mapper.toTranscript(99), is(-1));
+        assertThat(mapper.toTranscript(250), is(-1));
+        assertThat(mapper.toTranscript(550), is(-1));
+        assertThat(mapper.toGenome(-1), is(-1));
+        assertThat(mapper.toGenome(250), is(-1));
+    }
+
+    @Test
+    public void testBulkConversionsRoundTrip() {
+        for (Strand strand : new Strand[] {Strand.POSITIVE, Strand.NEGATIVE}) {
+            CoordinateMapper mapper = new CoordinateMapper(transcript(strand),
+                    "tx");
+            int[] genome = new int[700];
+            for (int i = 0; i < genome.length; i++) {
+                // Out of order, to exercise the block hint
+                genome[i] = (i * 7) % 700;
+            }
+            int[] transcript = mapper.toTranscript(genome);
+            int[] back = mapper.toGenome(transcript);
+            for (int i = 0; i < genome.length; i++) {
+                assertThat(transcript[i], is(mapper.toTranscript(genome[i])));
+                assertThat(back[i], is(transcript[i] < 0 ? -1 : genome[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testSplicedReadOnNegativeStrandTranscript() {
+        CoordinateMapper mapper = new CoordinateMapper(
+                transcript(Strand.NEGATIVE), "tx");
+        Annotated read = Annotation.builder()
+                .addAnnotation(new Annotation("chr1", 150, 200,
+                        Strand.NEGATIVE))
+                .addAnnotation(new Annotation("chr1", 300, 320,
+                        Strand.NEGATIVE))
+                .build();
+        assertThat(mapper.toTranscript(read),
+                is(Optional.of(new Annotation("tx", 130, 200,
+                        Strand.POSITIVE))));
+    }
+
+    @Test
+    public void testIntronicReadIsNotConverted() {
+        CoordinateMapper mapper = new CoordinateMapper(
+                transcript(Strand.POSITIVE), "tx");
+        assertThat(mapper.toTranscript(new Annotation("chr1", 190, 210,
+                Strand.POSITIVE)).isPresent(), is(false));
+        assertThat(mapper.toTranscript(new Annotation("chr2", 100, 110,
+                Strand.POSITIVE)).isPresent(), is(false));
+    }
+
+    @Test
+    public void testSingleReadAlignment() {
+        SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", 100000));
+        SAMRecord rec = new SAMRecord(header);
+        rec.setReadName("read");
+        rec.setReferenceName("chr1");
+        rec.setAlignmentStart(150);
+        rec.setCigarString("50M100N50M");
+        rec.setReadBases(new byte[100]);
+        SingleReadAlignment read = SingleReadAlignment.newInstance(rec);
+
+        Gene gene = new Gene(transcript(Strand.POSITIVE), "geneA", 0, 0);
+        assertThat(gene.getCoordinateMapper().toTranscript(read),
+                is(Optional.of(new Annotation("geneA",
+                        read.getStart() - 100, read.getStart(),
+                        Strand.POSITIVE))));
+    }
+}
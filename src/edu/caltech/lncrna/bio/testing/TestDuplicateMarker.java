@@ -0,0 +1,272 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.alignment.DuplicateMarker;
+import edu.caltech.lncrna.bio.alignment.SingleRead;
+import edu.caltech.lncrna.bio.io.SingleReadBamParser;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+
+public class TestDuplicateMarker {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SAMRecord read(SAMFileHeader header, String name,
+            String ref, int start, String cigar, boolean reverse,
+            char quality) {
+        SAMRecord record = BamFixtures.read(header, name, ref, start, cigar);
+        record.setReadNegativeStrandFlag(reverse);
+        char[] quals = new char[record.getReadLength()];
+        Arrays.fill(quals, quality);
+        record.setBaseQualityString(new String(quals));
+        return record;
+    }
+
+    private static List<SAMRecord> sorted(List<SAMRecord> records) {
+        List<SAMRecord> rtrn = new ArrayList<>(records);
+        rtrn.sort(new SAMRecordCoordinateComparator());
+        return rtrn;
+    }
+
+    private static Map<String, Boolean> marked(DuplicateMarker marker,
+            List<SAMRecord> records) {
+        Map<String, Boolean> rtrn = new HashMap<>();
+        marker.mark(records.stream().map(SingleRead::new).iterator())
+                .forEachRemaining(r -> rtrn.merge(r.getName(),
+                        r.isDuplicate(), (x, y) -> {
+                            assertThat("mates differ: " + r.getName(), x,
+                                    is(y));
+                            return x;
+                        }));
+        return rtrn;
+    }
+
+    @Test
+    public void testSingleReadsByUnclippedFivePrimeEnd() {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = sorted(Arrays.asList(
+                read(header, "a", "chr1", 100, "20M", false, 'I'),
+                // Same unclipped start, better qualities
+                read(header, "b", "chr1", 105, "5S15M", false, 'J'),
+                read(header, "c", "chr1", 100, "20M", false, '5'),
+                // Same start on the other strand
+                read(header, "d", "chr1", 100, "20M", true, 'I'),
+                // Same unclipped end as d
+                read(header, "e", "chr1", 110, "10M", true, 'I'),
+                read(header, "f", "chr1", 101, "20M", false, 'I')));
+        Map<String, Boolean> dups = marked(
+                DuplicateMarker.builder().build(), records);
+        assertThat(dups.get("a"), is(true));
+        assertThat(dups.get("b"), is(false));
+        assertThat(dups.get("c"), is(true));
+        assertThat(dups.get("d"), is(false));
+        assertThat(dups.get("e"), is(true));
+        assertThat(dups.get("f"), is(false));
+    }
+
+    @Test
+    public void testPairsAreMarkedTogether() {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = new ArrayList<>();
+        String[] names = {"p1", "p2", "p3"};
+        char[] quals = {'5', 'I', '5'};
+        int[] mateStarts = {400, 400, 450};
+        for (int i = 0; i < 3; i++) {
+            SAMRecord r1 = read(header, names[i], "chr1", 100, "20M", false,
+                    quals[i]);
+            SAMRecord r2 = read(header, names[i], "chr1", mateStarts[i],
+                    "20M", true, 'I');
+            BamFixtures.mate(r1, r2);
+            records.add(r1);
+            records.add(r2);
+        }
+        // A single read at the same 5' end as the pairs
+        records.add(read(header, "s", "chr1", 100, "20M", false, 'I'));
+        Map<String, Boolean> dups = marked(
+                DuplicateMarker.builder().build(), sorted(records));
+        assertThat(dups.get("p1"), is(true));
+        assertThat(dups.get("p2"), is(false));
+        assertThat(dups.get("p3"), is(false));
+        assertThat(dups.get("s"), is(false));
+    }
+
+    @Test
+    public void testUmisFromReadNames() {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = sorted(Arrays.asList(
+                read(header, "a_ACGT", "chr1", 100, "20M", false, 'I'),
+                read(header, "b_ACGT", "chr1", 100, "20M", false, 'I'),
+                read(header, "c_TTTT", "chr1", 100, "20M", false, 'I')));
+        Map<String, Boolean> dups = marked(
+                DuplicateMarker.builder().umiDelimiter("_").build(), records);
+        assertThat(dups.get("a_ACGT"), is(false));
+        assertThat(dups.get("b_ACGT"), is(true));
+        assertThat(dups.get("c_TTTT"), is(false));
+        dups = marked(DuplicateMarker.builder().build(), records);
+        assertThat(dups.get("c_TTTT"), is(true));
+    }
+
+    @Test
+    public void testDistantPairsAgreeOnBothEnds() {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            SAMRecord r1 = read(header, "t" + i, "chr1", 100, "20M", false,
+                    'I');
+            SAMRecord r2 = read(header, "t" + i, "chr2", 500, "20M", true,
+                    'I');
+            BamFixtures.mate(r1, r2);
+            records.add(r1);
+            records.add(r2);
+        }
+        DuplicateMarker.MarkingIterator iter = DuplicateMarker.builder()
+                .build()
+                .mark(sorted(records).stream().map(SingleRead::new)
+                        .iterator());
+        Map<String, Boolean> dups = new HashMap<>();
+        iter.forEachRemaining(r -> {
+            Boolean other = dups.put(r.getName(), r.isDuplicate());
+            if (other != null) {
+                assertThat(other, is(r.isDuplicate()));
+            }
+        });
+        assertThat(dups.values().stream().filter(x -> !x).count(), is(1L));
+        assertThat(iter.getMetrics().getExaminedReads(), is(10L));
+        assertThat(iter.getMetrics().getDuplicateReads(), is(8L));
+    }
+
+    @Test
+    public void testRandomReadsMatchInMemoryGrouping() {
+        Random rng = new Random(9);
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            String ref = rng.nextBoolean() ? "chr1" : "chr2";
+            int start = 1000 + 10 * rng.nextInt(200);
+            int clip = rng.nextInt(3) == 0 ? 1 + rng.nextInt(10) : 0;
+            String cigar = clip > 0 ? clip + "S" + (30 - clip) + "M" : "30M";
+            SAMRecord r1 = read(header, "r" + i, ref, start, cigar,
+                    rng.nextBoolean(), (char) ('5' + rng.nextInt(20)));
+            if (rng.nextBoolean()) {
+                SAMRecord r2 = read(header, "r" + i, ref,
+                        start + 10 * rng.nextInt(30), "30M",
+                        rng.nextBoolean(), (char) ('5' + rng.nextInt(20)));
+                BamFixtures.mate(r1, r2);
+                records.add(r2);
+            }
+            records.add(r1);
+        }
+        records = sorted(records);
+        Map<String, Boolean> expected = naiveMarks(records);
+        Map<String, Boolean> actual = marked(
+                DuplicateMarker.builder().build(), records);
+        assertThat(actual, is(expected));
+    }
+
+    /**
+     * Groups every read or pair in memory by the positions and strands of
+     * its unclipped 5' ends, keeping the best of each group.
+     */
+    private static Map<String, Boolean> naiveMarks(List<SAMRecord> records) {
+        Map<String, SAMRecord> firstMates = new HashMap<>();
+        Map<String, String> best = new HashMap<>();
+        Map<String, Integer> bestScores = new HashMap<>();
+        Map<String, Boolean> rtrn = new HashMap<>();
+        for (SAMRecord r : records) {
+            String key = fivePrime(r);
+            int score = score(r);
+            if (r.getReadPairedFlag()) {
+                SAMRecord first = firstMates.remove(r.getReadName());
+                if (first == null) {
+                    firstMates.put(r.getReadName(), r);
+                    continue;
+                }
+                String a = fivePrime(first);
+                key = "pair " + (a.compareTo(key) < 0 ? a + " " + key
+                        : key + " " + a);
+                score += score(first);
+            }
+            rtrn.put(r.getReadName(), false);
+            Integer old = bestScores.get(key);
+            if (old == null || score > old) {
+                if (old != null) {
+                    rtrn.put(best.get(key), true);
+                }
+                best.put(key, r.getReadName());
+                bestScores.put(key, score);
+            } else {
+                rtrn.put(r.getReadName(), true);
+            }
+        }
+        return rtrn;
+    }
+
+    private static String fivePrime(SAMRecord r) {
+        return r.getReferenceName() + ":" + (r.getReadNegativeStrandFlag()
+                ? r.getUnclippedEnd() + "-"
+                : r.getUnclippedStart() + "+");
+    }
+
+    private static int score(SAMRecord r) {
+        int rtrn = 0;
+        for (byte q : r.getBaseQualities()) {
+            rtrn += q >= 15 ? q : 0;
+        }
+        return rtrn;
+    }
+
+    @Test
+    public void testRemoveDuplicatesFromBamFile() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = sorted(Arrays.asList(
+                read(header, "a", "chr1", 100, "20M", false, 'I'),
+                read(header, "b", "chr1", 100, "20M", false, '5'),
+                read(header, "c", "chr1", 200, "20M", false, 'I'),
+                read(header, "d", "chr2", 100, "20M", false, 'I')));
+        Path input = BamFixtures.write(folder, header, records, false);
+        Path output = input.resolveSibling("out.bam");
+        DuplicateMarker.Metrics metrics = DuplicateMarker.builder()
+                .removeDuplicates(true)
+                .build()
+                .mark(input, output);
+        assertThat(metrics.getExaminedReads(), is(4L));
+        assertThat(metrics.getDuplicateReads(), is(1L));
+
+        List<String> names = new ArrayList<>();
+        try (SingleReadBamParser parser = new SingleReadBamParser(output)) {
+            parser.forEachRemaining(r -> names.add(r.getName()));
+        }
+        assertThat(names, is(Arrays.asList("a", "c", "d")));
+    }
+
+    @Test
+    public void testUnsortedReadsThrowException() {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = Arrays.asList(
+                read(header, "a", "chr1", 200, "20M", false, 'I'),
+                read(header, "b", "chr1", 100, "20M", false, 'I'));
+        thrown.expect(IllegalArgumentException.class);
+        marked(DuplicateMarker.builder().build(), records);
+    }
+}
@@ -147,4 +147,30 @@ public class TestFastqSequence {
                 PhredEncoding.SANGER);
         assertThat(f1.equals(f2), is(false));
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void testLowQualityBaseInLongRead() {
+        StringBuilder bases = new StringBuilder();
+        StringBuilder quals = new StringBuilder();
+        for (int i = 0; i < 150; i++) {
+            bases.append('A');
+            quals.append(i == 140 ? '#' : 'I');
+        }
+        FastqSequence f = new FastqSequence("fastq", bases.toString(),
+                quals.toString(), PhredEncoding.SANGER);
+        assertThat(f.hasAnyBaseWithQualityLessThan((byte) 20), is(true));
+        assertThat(f.hasAnyBaseWithQualityLessThan((byte) 2), is(false));
+        assertThat(f.getMinimumQuality(), is((byte) 2));
+    }
+    
+    @Test
+    public void testPhredRoundTrip() {
+        String quals = "!#+5?IJ";
+        byte[] phred = PhredEncoding.SANGER.stringToPhred(quals);
+        assertThat(phred[0], is((byte) 0));
+        assertThat(phred[5], is((byte) 40));
+        assertThat(PhredEncoding.SANGER.phredToString(phred), is(quals));
+        assertThat(PhredEncoding.ILLUMINA_13.phredToString(phred),
+                is("@BJT^hi"));
+    }
+}
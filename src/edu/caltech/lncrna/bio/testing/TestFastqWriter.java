@@ -0,0 +1,121 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.io.BgzfOutputStream;
+import edu.caltech.lncrna.bio.io.FastqParser;
+import edu.caltech.lncrna.bio.io.FastqWriter;
+import edu.caltech.lncrna.bio.sequence.FastqSequence;
+import edu.caltech.lncrna.bio.sequence.PhredEncoding;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+public class TestFastqWriter {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<FastqSequence> randomReads(int n) {
+        Random random = new Random(31);
+        List<FastqSequence> reads = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int length = 50 + random.nextInt(100);
+            StringBuilder bases = new StringBuilder();
+            byte[] quals = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bases.append("ACGTN".charAt(random.nextInt(5)));
+                quals[j] = (byte) random.nextInt(42);
+            }
+            reads.add(new FastqSequence("read" + i, bases.toString(), quals));
+        }
+        return reads;
+    }
+
+    @Test
+    public void testMatchesFormattedString() {
+        FastqSequence read = new FastqSequence("r1", "ACGTN", "!#+5I");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FastqWriter writer = new FastqWriter(out, PhredEncoding.SANGER)) {
+            writer.write(read);
+        }
+        assertThat(new String(out.toByteArray(), StandardCharsets.US_ASCII),
+                is("@r1\nACGTN\n+\n!#+5I\n"));
+    }
+
+    @Test
+    public void testIlluminaEncoding() {
+        FastqSequence read = new FastqSequence("r1", "AC", "!I");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FastqWriter writer = new FastqWriter(out,
+                PhredEncoding.ILLUMINA_13)) {
+            writer.write(read);
+        }
+        assertThat(new String(out.toByteArray(), StandardCharsets.US_ASCII),
+                is("@r1\nAC\n+\n@h\n"));
+    }
+
+    @Test
+    public void testRoundTripUncompressed() throws IOException {
+        Path p = folder.getRoot().toPath().resolve("reads.fastq");
+        List<FastqSequence> reads = randomReads(5000);
+        try (FastqWriter writer = new FastqWriter(p)) {
+            reads.forEach(writer::write);
+        }
+        try (FastqParser parser = new FastqParser(p)) {
+            assertThat(parser.toList(), is(reads));
+        }
+    }
+
+    @Test
+    public void testRoundTripParallelBgzf() throws IOException {
+        Path p = folder.getRoot().toPath().resolve("reads.fastq.gz");
+        List<FastqSequence> reads = randomReads(5000);
+        try (FastqWriter writer = new FastqWriter(p, PhredEncoding.SANGER, 4)) {
+            reads.forEach(writer::write);
+        }
+        try (FastqParser parser = new FastqParser(p)) {
+            assertThat(parser.toList(), is(reads));
+        }
+    }
+
+    @Test
+    public void testBgzfReadableByHtsjdk() throws IOException {
+        Path p = folder.getRoot().toPath().resolve("data.bgz");
+        byte[] data = new byte[300000];
+        new Random(3).nextBytes(data);
+        for (int i = 0; i < data.length; i += 2) {
+            data[i] = 'A';
+        }
+        try (BgzfOutputStream out = new BgzfOutputStream(
+                Files.newOutputStream(p), 6, 3)) {
+            out.write(data, 0, 1000);
+            out.write(data[1000]);
+            out.write(data, 1001, data.length - 1001);
+        }
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (InputStream in = new BlockCompressedInputStream(p.toFile())) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                decoded.write(buf, 0, n);
+            }
+        }
+        assertThat(decoded.toByteArray(), is(data));
+        assertThat(BlockCompressedInputStream.checkTermination(p.toFile()),
+                is(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK));
+    }
+}
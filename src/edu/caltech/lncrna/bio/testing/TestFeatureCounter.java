@@ -0,0 +1,208 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.alignment.FeatureCounter;
+import edu.caltech.lncrna.bio.alignment.FeatureCounter.CountMatrix;
+import edu.caltech.lncrna.bio.alignment.FeatureCounter.MultiOverlapPolicy;
+import edu.caltech.lncrna.bio.alignment.FeatureCounter.OverlapMode;
+import edu.caltech.lncrna.bio.alignment.FeatureCounter.Strandedness;
+import edu.caltech.lncrna.bio.alignment.FeatureCounter.Summary;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Gene;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.GenomeTree;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+public class TestFeatureCounter {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int A = 0;
+    private static final int B = 1;
+    private static final int C = 2;
+
+    // A: chr1 + [100,200) and [300,400)
+    // B: chr1 - [350,500)
+    // C: chr2 + [100,300)
+    private static GenomeTree<Gene> genes() {
+        GenomeTree<Gene> rtrn = new GenomeTree<>();
+        rtrn.add(Gene.builder()
+                .addAnnotation(new Annotation("chr1", 100, 200, Strand.POSITIVE))
+                .addAnnotation(new Annotation("chr1", 300, 400, Strand.POSITIVE))
+                .addName("A")
+                .build());
+        rtrn.add(Gene.builder()
+                .addAnnotation(new Annotation("chr1", 350, 500, Strand.NEGATIVE))
+                .addName("B")
+                .build());
+        rtrn.add(Gene.builder()
+                .addAnnotation(new Annotation("chr2", 100, 300, Strand.POSITIVE))
+                .addName("C")
+                .build());
+        return rtrn;
+    }
+
+    private static SAMRecord read(SAMFileHeader header, String name,
+            String ref, int start, boolean reverse) {
+        SAMRecord record = BamFixtures.read(header, name, ref, start, "20M");
+        record.setReadNegativeStrandFlag(reverse);
+        return record;
+    }
+
+    // r1 is in an exon of A, r2 is in the intron of A, r3 overlaps A by 20
+    // bases and B by 15 bases, r4 is in B, and r5 is a low-quality duplicate
+    // in C.
+    private Path singleEndBam() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        SAMRecord r5 = read(header, "r5", "chr2", 150, false);
+        r5.setMappingQuality(5);
+        r5.setDuplicateReadFlag(true);
+        return BamFixtures.write(folder, header, Arrays.asList(
+                read(header, "r1", "chr1", 150, false),
+                read(header, "r2", "chr1", 250, false),
+                read(header, "r3", "chr1", 345, false),
+                read(header, "r4", "chr1", 450, true),
+                r5), true);
+    }
+
+    // One pair with a mate in each exon of A
+    private Path pairedEndBam() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        SAMRecord r1 = read(header, "p", "chr1", 110, false);
+        SAMRecord r2 = read(header, "p", "chr1", 310, true);
+        BamFixtures.mate(r1, r2);
+        return BamFixtures.write(folder, header, Arrays.asList(r1, r2), true);
+    }
+
+    @Test
+    public void testUnstrandedExonCounts() throws IOException {
+        CountMatrix m = FeatureCounter.builder(genes()).numThreads(2).build()
+                .count(singleEndBam());
+        assertThat(m.getGenes().get(A).getName(), is("A"));
+        assertThat(m.getCounts(0), is(new long[] {1, 1, 1}));
+        assertThat(m.getSummary(Summary.ASSIGNED, 0), is(3L));
+        assertThat(m.getSummary(Summary.NO_FEATURE, 0), is(1L));
+        assertThat(m.getSummary(Summary.AMBIGUOUS, 0), is(1L));
+        assertThat(m.getSummary(Summary.FILTERED, 0), is(0L));
+    }
+
+    @Test
+    public void testBodyOverlapCountsIntronicReads() throws IOException {
+        CountMatrix m = FeatureCounter.builder(genes())
+                .overlapMode(OverlapMode.BODY)
+                .build()
+                .count(singleEndBam());
+        assertThat(m.getCounts(0), is(new long[] {2, 1, 1}));
+    }
+
+    @Test
+    public void testStrandedCounts() throws IOException {
+        Path bam = singleEndBam();
+        CountMatrix forward = FeatureCounter.builder(genes())
+                .strandedness(Strandedness.FORWARD)
+                .build()
+                .count(bam);
+        assertThat(forward.getCounts(0), is(new long[] {2, 1, 1}));
+
+        CountMatrix reverse = FeatureCounter.builder(genes())
+                .strandedness(Strandedness.REVERSE)
+                .build()
+                .count(bam);
+        assertThat(reverse.getCounts(0), is(new long[] {0, 1, 0}));
+    }
+
+    @Test
+    public void testMultiOverlapPolicies() throws IOException {
+        Path bam = singleEndBam();
+        CountMatrix all = FeatureCounter.builder(genes())
+                .multiOverlapPolicy(MultiOverlapPolicy.COUNT_ALL)
+                .build()
+                .count(bam);
+        assertThat(all.getCount(A, 0), is(2L));
+        assertThat(all.getCount(B, 0), is(2L));
+
+        CountMatrix largest = FeatureCounter.builder(genes())
+                .multiOverlapPolicy(MultiOverlapPolicy.LARGEST_OVERLAP)
+                .build()
+                .count(bam);
+        assertThat(largest.getCount(A, 0), is(2L));
+        assertThat(largest.getCount(B, 0), is(1L));
+        assertThat(largest.getSummary(Summary.AMBIGUOUS, 0), is(0L));
+    }
+
+    @Test
+    public void testFilters() throws IOException {
+        Path bam = singleEndBam();
+        CountMatrix mapq = FeatureCounter.builder(genes())
+                .minMappingQuality(10)
+                .build()
+                .count(bam);
+        assertThat(mapq.getCount(C, 0), is(0L));
+        assertThat(mapq.getSummary(Summary.FILTERED, 0), is(1L));
+
+        CountMatrix dups = FeatureCounter.builder(genes())
+                .countDuplicates(false)
+                .build()
+                .count(bam);
+        assertThat(dups.getCount(C, 0), is(0L));
+    }
+
+    @Test
+    public void testFragmentsCountedOnce() throws IOException {
+        Path bam = pairedEndBam();
+        CountMatrix reads = FeatureCounter.builder(genes()).build()
+                .count(bam);
+        assertThat(reads.getCount(A, 0), is(2L));
+
+        CountMatrix fragments = FeatureCounter.builder(genes())
+                .countFragments(true)
+                .strandedness(Strandedness.FORWARD)
+                .build()
+                .count(bam);
+        assertThat(fragments.getCount(A, 0), is(1L));
+        assertThat(fragments.getSummary(Summary.ASSIGNED, 0), is(1L));
+    }
+
+    @Test
+    public void testMultipleSamplesAndWrite() throws IOException {
+        CountMatrix m = FeatureCounter.builder(genes()).build()
+                .count(Arrays.asList(singleEndBam(), pairedEndBam()));
+        assertThat(m.getSampleNames().size(), is(2));
+        assertThat(m.getCount(A, 1), is(2L));
+
+        Path out = folder.newFile().toPath();
+        m.write(out);
+        List<String> lines = Files.readAllLines(out);
+        assertThat(lines.get(0), is("Geneid\tChr\tStart\tEnd\tStrand" +
+                "\treads.bam\treads.bam"));
+        assertThat(lines.get(1), is("A\tchr1\t100\t400\t+\t1\t2"));
+        assertThat(lines.size(), is(1 + 3 + Summary.values().length));
+    }
+
+    @Test
+    public void testUnindexedBamThrowsException() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        Path bam = BamFixtures.write(folder, header,
+                Arrays.asList(read(header, "r", "chr1", 1, false)), false);
+        thrown.expect(IllegalArgumentException.class);
+        FeatureCounter.builder(genes()).build().count(bam);
+    }
+}
@@ -0,0 +1,216 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.sequence.FastaSequence;
+import edu.caltech.lncrna.bio.sequence.FmIndex;
+import edu.caltech.lncrna.bio.sequence.Sequences;
+
+public class TestFmIndex {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String randomBases(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append("ACGTACGTacgtN".charAt(random.nextInt(13)));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isBase(char c) {
+        return "ACGT".indexOf(Character.toUpperCase(c)) >= 0;
+    }
+
+    private static List<Annotation> naiveLocate(List<FastaSequence> seqs,
+            String query, int maxMismatches, Strand strand) {
+        List<Annotation> rtrn = new ArrayList<>();
+        for (FastaSequence seq : seqs) {
+            String bases = seq.getBases();
+            for (int i = 0; i + query.length() <= bases.length(); i++) {
+                String window = bases.substring(i, i + query.length());
+                if (!window.chars().allMatch(c -> isBase((char) c))) {
+                    continue;
+                }
+                if (strand != Strand.NEGATIVE &&
+                        mismatches(window, query) <= maxMismatches) {
+                    rtrn.add(new Annotation(seq.getName(), i,
+                            i + query.length(), Strand.POSITIVE));
+                }
+                if (strand != Strand.POSITIVE && mismatches(window,
+                        Sequences.reverseComplement(query)) <= maxMismatches) {
+                    rtrn.add(new Annotation(seq.getName(), i,
+                            i + query.length(), Strand.NEGATIVE));
+                }
+            }
+        }
+        return rtrn;
+    }
+
+    private static int mismatches(String window, String query) {
+        int count = 0;
+        for (int i = 0; i < window.length(); i++) {
+            char q = Character.toUpperCase(query.charAt(i));
+            if (!isBase(q) || Character.toUpperCase(window.charAt(i)) != q) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Path buildIndex(List<FastaSequence> seqs, int shardSize,
+            int sampleRate) throws IOException {
+        Path p = folder.newFile().toPath();
+        FmIndex.build(seqs.iterator(), p, 3, shardSize, sampleRate);
+        return p;
+    }
+
+    @Test
+    public void testCountAndLocateExact() throws IOException {
+        List<FastaSequence> seqs = Arrays.asList(
+                new FastaSequence("chr1", "ACGTACGTNNACGT"),
+                new FastaSequence("chr2", "ttacgtt"));
+        try (FmIndex index = new FmIndex(buildIndex(seqs, 1000, 4))) {
+            assertThat(index.count("ACGT"), is(4L));
+            assertThat(index.count("GTAC"), is(1L));
+            assertThat(index.count("GTNN"), is(0L));
+            assertThat(index.count("TTTT"), is(0L));
+            assertThat(index.locate("ACGT"), is(Arrays.asList(
+                    new Annotation("chr1", 0, 4, Strand.POSITIVE),
+                    new Annotation("chr1", 4, 8, Strand.POSITIVE),
+                    new Annotation("chr1", 10, 14, Strand.POSITIVE),
+                    new Annotation("chr2", 2, 6, Strand.POSITIVE))));
+        }
+    }
+
+    @Test
+    public void testMatchDoesNotSpanSequences() throws IOException {
+        List<FastaSequence> seqs = Arrays.asList(
+                new FastaSequence("chr1", "AAAC"),
+                new FastaSequence("chr2", "GTTT"));
+        try (FmIndex index = new FmIndex(buildIndex(seqs, 1000, 2))) {
+            assertThat(index.count("ACGT"), is(0L));
+            assertThat(index.count("ACGT", 1), is(0L));
+        }
+    }
+
+    @Test
+    public void testNegativeStrand() throws IOException {
+        List<FastaSequence> seqs = Arrays.asList(
+                new FastaSequence("chr1", "GGGAACCCGG"));
+        try (FmIndex index = new FmIndex(buildIndex(seqs, 1000, 3))) {
+            assertThat(index.locate("GGGTT", 0, Strand.NEGATIVE),
+                    is(Arrays.asList(new Annotation("chr1", 3, 8,
+                            Strand.NEGATIVE))));
+            assertThat(index.count("GGGTT", 0, Strand.POSITIVE), is(0L));
+            assertThat(index.count("GGGTT", 0, Strand.BOTH), is(1L));
+        }
+    }
+
+    @Test
+    public void testMatchesNaiveSearchAcrossShards() throws IOException {
+        Random random = new Random(11);
+        List<FastaSequence> seqs = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            seqs.add(new FastaSequence("seq" + i,
+                    randomBases(random, 50 + random.nextInt(400))));
+        }
+        try (FmIndex index = new FmIndex(buildIndex(seqs, 700, 5))) {
+            for (int trial = 0; trial < 200; trial++) {
+                FastaSequence seq = seqs.get(random.nextInt(seqs.size()));
+                int length = 3 + random.nextInt(8);
+                int start = random.nextInt(seq.length() - length);
+                String query = seq.getBases().substring(start, start + length);
+                int maxMismatches = random.nextInt(3);
+                Strand strand = random.nextBoolean()
+                        ? Strand.POSITIVE
+                        : Strand.BOTH;
+                List<Annotation> expected = naiveLocate(seqs, query,
+                        maxMismatches, strand);
+                assertThat(index.locate(query, maxMismatches, strand),
+                        is(expected));
+                assertThat(index.count(query, maxMismatches, strand),
+                        is((long) expected.size()));
+            }
+        }
+    }
+
+    @Test
+    public void testSequenceNames() throws IOException {
+        List<FastaSequence> seqs = Arrays.asList(
+                new FastaSequence("a", "ACGT"),
+                new FastaSequence("b", "CCCC"),
+                new FastaSequence("c", "GGGG"));
+        try (FmIndex index = new FmIndex(buildIndex(seqs, 5, 1))) {
+            assertThat(index.getSequenceNames(),
+                    is(Arrays.asList("a", "b", "c")));
+            assertThat(index.count("CC"), is(3L));
+        }
+    }
+
+    @Test
+    public void testEmptyQueryThrowsException() throws IOException {
+        List<FastaSequence> seqs = Arrays.asList(
+                new FastaSequence("chr1", "ACGT"));
+        try (FmIndex index = new FmIndex(buildIndex(seqs, 1000, 4))) {
+            thrown.expect(IllegalArgumentException.class);
+            index.count("");
+        }
+    }
+
+    @Test
+    public void testFailedInputStopsBuild() throws IOException {
+        // Many small shards, so that some are still queued when input fails
+        List<FastaSequence> seqs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            seqs.add(new FastaSequence("s" + i, "ACGTACGTAC"));
+        }
+        Iterator<FastaSequence> iter = seqs.iterator();
+        Iterator<FastaSequence> failing = new Iterator<FastaSequence>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public FastaSequence next() {
+                if (!iter.hasNext()) {
+                    throw new IllegalStateException("input failed");
+                }
+                return iter.next();
+            }
+        };
+        Path p = folder.getRoot().toPath().resolve("failed.idx");
+        thrown.expect(IllegalStateException.class);
+        FmIndex.build(failing, p, 2, 10, 4);
+    }
+
+    @Test
+    public void testNotAnIndexThrowsException() throws IOException {
+        Path p = folder.newFile("bad.idx").toPath();
+        Files.write(p, new byte[16]);
+        thrown.expect(IllegalArgumentException.class);
+        new FmIndex(p);
+    }
+}
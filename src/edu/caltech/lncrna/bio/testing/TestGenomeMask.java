@@ -0,0 +1,174 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.GenomeMask;
+import edu.caltech.lncrna.bio.io.BedParser;
+
+public class TestGenomeMask {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static CoordinateSpace space() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("chr1", 200000);
+        sizes.put("chr2", 150000);
+        sizes.put("chr3", 1000);
+        return new CoordinateSpace(sizes);
+    }
+
+    @Test
+    public void testLinearOffsets() {
+        CoordinateSpace space = space();
+        assertThat(space.getGenomeLength(), is(351000L));
+        assertThat(space.getOffset("chr1", 0), is(0L));
+        assertThat(space.getOffset("chr2", 10), is(200010L));
+        assertThat(space.getOffset("3", 5), is(350005L));
+    }
+
+    @Test
+    public void testOffsetOfUnknownReferenceThrowsException() {
+        thrown.expect(IllegalArgumentException.class);
+        space().getOffset("chr4", 0);
+    }
+
+    @Test
+    public void testOffsetPastEndOfReferenceThrowsException() {
+        thrown.expect(IllegalArgumentException.class);
+        space().getOffset("chr3", 1001);
+    }
+
+    @Test
+    public void testMergesOverlappingAndAdjacentIntervals() {
+        GenomeMask mask = GenomeMask.builder(space())
+                .add(new Annotation("chr1", 100, 200, Strand.BOTH))
+                .add(new Annotation("chr1", 150, 250, Strand.POSITIVE))
+                .add(new Annotation("chr1", 250, 300, Strand.NEGATIVE))
+                .add(new Annotation("chr2", 0, 10, Strand.BOTH))
+                .build();
+        assertThat(mask.getNumberOfRuns(), is(2));
+        assertThat(mask.getMaskedLength(), is(210L));
+        assertThat(mask.contains("chr1", 99), is(false));
+        assertThat(mask.contains("chr1", 100), is(true));
+        assertThat(mask.contains("chr1", 299), is(true));
+        assertThat(mask.contains("chr1", 300), is(false));
+    }
+
+    @Test
+    public void testUnknownReferencesAreIgnored() {
+        GenomeMask mask = GenomeMask.builder(space())
+                .add(new Annotation("chrUn", 0, 10, Strand.BOTH))
+                .build();
+        assertThat(mask.getNumberOfRuns(), is(0));
+        assertThat(mask.overlaps(new Annotation("chrUn", 0, 10, Strand.BOTH)),
+                is(false));
+    }
+
+    @Test
+    public void testMatchesNaiveMask() {
+        CoordinateSpace space = space();
+        Random random = new Random(5);
+        boolean[] naive = new boolean[(int) space.getGenomeLength()];
+        GenomeMask.Builder builder = GenomeMask.builder(space);
+        String[] refs = {"chr1", "chr2", "chr3"};
+        for (int i = 0; i < 300; i++) {
+            Annotated a = randomAnnotation(random, space, refs);
+            builder.add(a);
+            for (int pos = a.getStart(); pos < a.getEnd(); pos++) {
+                naive[(int) space.getOffset(a.getReferenceName(), pos)] = true;
+            }
+        }
+        GenomeMask mask = builder.build();
+
+        for (int trial = 0; trial < 2000; trial++) {
+            Annotated a = randomAnnotation(random, space, refs);
+            int count = 0;
+            for (int pos = a.getStart(); pos < a.getEnd(); pos++) {
+                count += naive[(int) space.getOffset(a.getReferenceName(), pos)]
+                        ? 1
+                        : 0;
+            }
+            assertThat(mask.countMasked(a), is(count));
+            assertThat(mask.overlaps(a), is(count > 0));
+            assertThat(mask.contains(a), is(count == a.getSize()));
+            assertThat(mask.contains(a.getReferenceName(), a.getStart()),
+                    is(naive[(int) space.getOffset(a.getReferenceName(),
+                            a.getStart())]));
+        }
+    }
+
+    private static Annotated randomAnnotation(Random random,
+            CoordinateSpace space, String[] refs) {
+        String ref = refs[random.nextInt(refs.length)];
+        int length = space.getReferenceDictionary().getLength(
+                space.getReferenceDictionary().getId(ref));
+        int start = random.nextInt(length - 1);
+        int end = Math.min(length, start + 1 + random.nextInt(3000));
+        return new Annotation(ref, start, end, Strand.BOTH);
+    }
+
+    @Test
+    public void testSplicedAnnotation() {
+        GenomeMask mask = GenomeMask.builder(space())
+                .add(new Annotation("chr1", 100, 200, Strand.BOTH))
+                .build();
+        Annotated spliced = Annotation.builder()
+                .addAnnotation(new Annotation("chr1", 50, 60, Strand.POSITIVE))
+                .addAnnotation(new Annotation("chr1", 300, 310, Strand.POSITIVE))
+                .build();
+        assertThat(mask.overlaps(spliced), is(false));
+        assertThat(mask.countMasked(spliced), is(0));
+    }
+
+    @Test
+    public void testBuildFromBedAndReopen() throws IOException {
+        Path bed = folder.newFile("blacklist.bed").toPath();
+        Files.write(bed, Arrays.asList("chr1\t1000\t2000", "2\t500\t600",
+                "chrUn\t0\t100"));
+        GenomeMask mask;
+        try (BedParser parser = new BedParser(bed)) {
+            mask = GenomeMask.builder(space()).addAll(parser).build();
+        }
+        Path p = folder.newFile("blacklist.mask").toPath();
+        mask.write(p);
+        GenomeMask reopened = new GenomeMask(p);
+
+        assertThat(reopened.getNumberOfRuns(), is(2));
+        assertThat(reopened.getMaskedLength(), is(1100L));
+        assertThat(reopened.contains("chr1", 1500), is(true));
+        assertThat(reopened.contains("chr2", 550), is(true));
+        assertThat(reopened.contains("chr2", 700), is(false));
+        assertThat(reopened.overlaps(new Annotation("chr1", 1999, 2100,
+                Strand.POSITIVE)), is(true));
+    }
+
+    @Test
+    public void testNotAMaskThrowsException() throws IOException {
+        Path p = folder.newFile("bad.mask").toPath();
+        Files.write(p, new byte[16]);
+        thrown.expect(IllegalArgumentException.class);
+        new GenomeMask(p);
+    }
+}
@@ -0,0 +1,196 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.GenomeSetOperations;
+import edu.caltech.lncrna.bio.datastructures.GenomeTree;
+
+public class TestGenomeSetOperations {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private static final String[] REFS = {"chr1", "chr2", "chr3"};
+    private static final int[] LENGTHS = {5000, 3000, 100};
+
+    private static CoordinateSpace space() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        for (int i = 0; i < REFS.length; i++) {
+            sizes.put(REFS[i], LENGTHS[i]);
+        }
+        return new CoordinateSpace(sizes);
+    }
+
+    private static List<Annotated> list(Iterator<Annotation> iter) {
+        List<Annotated> rtrn = new ArrayList<>();
+        iter.forEachRemaining(rtrn::add);
+        return rtrn;
+    }
+
+    @Test
+    public void testSubtract() {
+        GenomeSetOperations ops = new GenomeSetOperations(space(), 2);
+        List<Annotated> a = Arrays.asList(
+                new Annotation("chr1", 100, 200, Strand.POSITIVE),
+                new Annotation("chr1", 150, 400, Strand.NEGATIVE));
+        List<Annotated> b = Arrays.asList(
+                new Annotation("chr1", 120, 130, Strand.BOTH),
+                new Annotation("chr1", 300, 500, Strand.BOTH));
+        assertThat(list(ops.subtract(a.iterator(), b.iterator())),
+                is(Arrays.asList(
+                        new Annotation("chr1", 100, 120, Strand.BOTH),
+                        new Annotation("chr1", 130, 300, Strand.BOTH))));
+    }
+
+    @Test
+    public void testComplementOfEmptyIsWholeSpace() {
+        GenomeSetOperations ops = new GenomeSetOperations(space(), 1);
+        assertThat(list(ops.complement(new ArrayList<Annotated>().iterator())),
+                is(Arrays.asList(
+                        new Annotation("chr1", 0, 5000, Strand.BOTH),
+                        new Annotation("chr2", 0, 3000, Strand.BOTH),
+                        new Annotation("chr3", 0, 100, Strand.BOTH))));
+    }
+
+    @Test
+    public void testGenomeTrees() {
+        GenomeSetOperations ops = new GenomeSetOperations(space(), 2);
+        GenomeTree<Annotation> a = new GenomeTree<>();
+        a.add(new Annotation("chr2", 10, 20, Strand.POSITIVE));
+        a.add(new Annotation("chr1", 10, 20, Strand.POSITIVE));
+        GenomeTree<Annotation> b = new GenomeTree<>();
+        b.add(new Annotation("chr1", 15, 30, Strand.NEGATIVE));
+        assertThat(list(ops.intersect(a, b)), is(Arrays.asList(
+                new Annotation("chr1", 15, 20, Strand.BOTH))));
+        assertThat(list(ops.union(a, b)), is(Arrays.asList(
+                new Annotation("chr1", 10, 30, Strand.BOTH),
+                new Annotation("chr2", 10, 20, Strand.BOTH))));
+    }
+
+    @Test
+    public void testUnsortedThrowsException() {
+        GenomeSetOperations ops = new GenomeSetOperations(space(), 1);
+        thrown.expect(IllegalStateException.class);
+        ops.complement(Arrays.asList(
+                new Annotation("chr1", 100, 200, Strand.POSITIVE),
+                new Annotation("chr1", 50, 60, Strand.POSITIVE)).iterator());
+    }
+
+    @Test
+    public void testMatchesNaiveSets() {
+        Random random = new Random(11);
+        GenomeSetOperations ops = new GenomeSetOperations(space(), 3);
+        for (int trial = 0; trial < 20; trial++) {
+            List<Annotated> a = randomAnnotations(random);
+            List<Annotated> b = randomAnnotations(random);
+            boolean[][] x = cover(a);
+            boolean[][] y = cover(b);
+
+            boolean[][] union = new boolean[REFS.length][];
+            boolean[][] intersect = new boolean[REFS.length][];
+            boolean[][] subtract = new boolean[REFS.length][];
+            boolean[][] complement = new boolean[REFS.length][];
+            for (int r = 0; r < REFS.length; r++) {
+                union[r] = new boolean[LENGTHS[r]];
+                intersect[r] = new boolean[LENGTHS[r]];
+                subtract[r] = new boolean[LENGTHS[r]];
+                complement[r] = new boolean[LENGTHS[r]];
+                for (int i = 0; i < LENGTHS[r]; i++) {
+                    union[r][i] = x[r][i] || y[r][i];
+                    intersect[r][i] = x[r][i] && y[r][i];
+                    subtract[r][i] = x[r][i] && !y[r][i];
+                    complement[r][i] = !x[r][i];
+                }
+            }
+            assertThat(list(ops.union(a.iterator(), b.iterator())),
+                    is(runs(union)));
+            assertThat(list(ops.intersect(a.iterator(), b.iterator())),
+                    is(runs(intersect)));
+            assertThat(list(ops.subtract(a.iterator(), b.iterator())),
+                    is(runs(subtract)));
+            assertThat(list(ops.complement(a.iterator())),
+                    is(runs(complement)));
+        }
+    }
+
+    private static List<Annotated> randomAnnotations(Random random) {
+        List<Annotated> rtrn = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            int r = random.nextInt(REFS.length);
+            int start = random.nextInt(LENGTHS[r]);
+            int end = start + 1 + random.nextInt(200);
+            Annotation block = new Annotation(REFS[r], start, end,
+                    Strand.POSITIVE);
+            if (random.nextBoolean()) {
+                int start2 = end + 1 + random.nextInt(300);
+                rtrn.add(Annotation.builder()
+                        .addAnnotation(block)
+                        .addAnnotation(new Annotation(REFS[r], start2,
+                                start2 + 1 + random.nextInt(100),
+                                Strand.POSITIVE))
+                        .build());
+            } else {
+                rtrn.add(block);
+            }
+        }
+        rtrn.sort(Comparator.comparing(Annotated::getReferenceName)
+                .thenComparing(Annotated::getStart));
+        return rtrn;
+    }
+
+    private static boolean[][] cover(List<Annotated> annotations) {
+        boolean[][] rtrn = new boolean[REFS.length][];
+        for (int r = 0; r < REFS.length; r++) {
+            rtrn[r] = new boolean[LENGTHS[r]];
+        }
+        for (Annotated a : annotations) {
+            int r = Arrays.asList(REFS).indexOf(a.getReferenceName());
+            Iterator<Annotated> blocks = a.getBlockIterator();
+            while (blocks.hasNext()) {
+                Annotated block = blocks.next();
+                for (int i = block.getStart();
+                        i < Math.min(block.getEnd(), LENGTHS[r]); i++) {
+                    rtrn[r][i] = true;
+                }
+            }
+        }
+        return rtrn;
+    }
+
+    private static List<Annotated> runs(boolean[][] cover) {
+        List<Annotated> rtrn = new ArrayList<>();
+        for (int r = 0; r < REFS.length; r++) {
+            int i = 0;
+            while (i < cover[r].length) {
+                if (!cover[r][i]) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < cover[r].length && cover[r][i]) {
+                    i++;
+                }
+                rtrn.add(new Annotation(REFS[r], start, i, Strand.BOTH));
+            }
+        }
+        return rtrn;
+    }
+}
@@ -0,0 +1,48 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.GenomeTree;
+
+public class TestGenomeTreeBulkUpdates {
+
+    private static List<Annotated> annotations() {
+        return Arrays.asList(
+                new Annotation("chr1", 100, 200, Strand.POSITIVE),
+                new Annotation("chr1", 300, 400, Strand.NEGATIVE),
+                new Annotation("chr2", 100, 200, Strand.POSITIVE));
+    }
+
+    @Test
+    public void testAddAllAddsEveryElement() {
+        GenomeTree<Annotated> tree = new GenomeTree<>();
+        assertThat(tree.addAll(annotations()), is(true));
+        assertThat(tree.size(), is(3));
+        assertThat(tree.containsAll(annotations()), is(true));
+    }
+
+    @Test
+    public void testAddAllOfPresentElementsReturnsFalse() {
+        GenomeTree<Annotated> tree = new GenomeTree<>();
+        tree.addAll(annotations());
+        assertThat(tree.addAll(annotations()), is(false));
+        assertThat(tree.size(), is(3));
+    }
+
+    @Test
+    public void testRemoveAllRemovesEveryElement() {
+        GenomeTree<Annotated> tree = new GenomeTree<>();
+        tree.addAll(annotations());
+        assertThat(tree.removeAll(annotations()), is(true));
+        assertThat(tree.isEmpty(), is(true));
+    }
+}
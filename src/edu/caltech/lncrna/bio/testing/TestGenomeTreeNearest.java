@@ -0,0 +1,88 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Iterator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.GenomeTree;
+
+public class TestGenomeTreeNearest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    
+    private GenomeTree<Annotated> nearestTree() {
+        GenomeTree<Annotated> tree = new GenomeTree<>();
+        tree.add(new Annotation("chr1", 100, 200, Strand.POSITIVE));
+        tree.add(new Annotation("chr1", 400, 500, Strand.NEGATIVE));
+        tree.add(new Annotation("chr1", 1000, 1100, Strand.POSITIVE));
+        tree.add(new Annotation("chr2", 250, 300, Strand.POSITIVE));
+        return tree;
+    }
+    
+    @Test
+    public void testNearest() {
+        Iterator<Annotated> nearest = nearestTree().nearest(
+                new Annotation("chr1", 250, 300, Strand.POSITIVE), 2, 1000);
+        assertThat(nearest.next(), is(new Annotation("chr1", 100, 200,
+                Strand.POSITIVE)));
+        assertThat(nearest.next(), is(new Annotation("chr1", 400, 500,
+                Strand.NEGATIVE)));
+        assertThat(nearest.hasNext(), is(false));
+    }
+    
+    @Test
+    public void testNearestMaxDistance() {
+        assertThat(nearestTree().nearest(new Annotation("chr1", 700, 800,
+                Strand.POSITIVE), 1, 150).hasNext(), is(false));
+    }
+    
+    @Test
+    public void testNearestOnMissingReference() {
+        assertThat(nearestTree().nearest(new Annotation("chr3", 700, 800,
+                Strand.POSITIVE), 1, 150).hasNext(), is(false));
+    }
+    
+    @Test
+    public void testNearestUpstreamFollowsStrand() {
+        GenomeTree<Annotated> tree = nearestTree();
+        assertThat(tree.nearestUpstream(new Annotation("chr1", 600, 700,
+                Strand.POSITIVE), 1, 10000).next(),
+                is(new Annotation("chr1", 400, 500, Strand.NEGATIVE)));
+        assertThat(tree.nearestUpstream(new Annotation("chr1", 600, 700,
+                Strand.NEGATIVE), 1, 10000).next(),
+                is(new Annotation("chr1", 1000, 1100, Strand.POSITIVE)));
+        assertThat(tree.nearestDownstream(new Annotation("chr1", 600, 700,
+                Strand.NEGATIVE), 1, 10000).next(),
+                is(new Annotation("chr1", 400, 500, Strand.NEGATIVE)));
+    }
+    
+    @Test
+    public void testNearestUpstreamOfUnstrandedThrowsException() {
+        thrown.expect(IllegalArgumentException.class);
+        nearestTree().nearestUpstream(new Annotation("chr1", 600, 700,
+                Strand.BOTH), 1, 10000);
+    }
+    
+    @Test
+    public void testNearestFinderWithSortedQueries() {
+        GenomeTree<Annotated>.NearestFinder finder =
+                nearestTree().nearestFinder();
+        assertThat(finder.nearest(new Annotation("chr1", 0, 10,
+                Strand.POSITIVE), 1, 1000).next().getStart(), is(100));
+        assertThat(finder.nearest(new Annotation("chr1", 600, 610,
+                Strand.POSITIVE), 1, 1000).next().getStart(), is(400));
+        assertThat(finder.nearest(new Annotation("chr2", 0, 10,
+                Strand.POSITIVE), 1, 1000).next().getStart(), is(250));
+        assertThat(finder.nearest(new Annotation("chr1", 950, 960,
+                Strand.POSITIVE), 1, 1000).next().getStart(), is(1000));
+    }
+}
@@ -0,0 +1,160 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.alignment.FeatureCounter.Strandedness;
+import edu.caltech.lncrna.bio.alignment.JunctionCounter;
+import edu.caltech.lncrna.bio.alignment.JunctionCounter.Junctions;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+public class TestJunctionCounter {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SAMRecord read(SAMFileHeader header, String name,
+            String ref, int start, String cigar, String xs, Integer nh) {
+        SAMRecord record = BamFixtures.read(header, name, ref, start, cigar);
+        if (xs != null) {
+            record.setAttribute("XS", xs.charAt(0));
+        }
+        if (nh != null) {
+            record.setAttribute("NH", nh);
+        }
+        return record;
+    }
+
+    private Path bam() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        return BamFixtures.write(folder, header, Arrays.asList(
+                read(header, "r1", "chr1", 100, "10M50N10M", "+", 1),
+                read(header, "r2", "chr1", 100, "10M50N5M", "+", 1),
+                read(header, "r3", "chr1", 100, "10M50N10M", "-", 2),
+                read(header, "r4", "chr1", 100, "5M2D5M50N10M30N8M", null,
+                        null),
+                read(header, "r5", "chr2", 500, "3S12M100N12M", null, null)),
+                true);
+    }
+
+    @Test
+    public void testCounts() throws IOException {
+        Junctions j = JunctionCounter.builder().numThreads(2).build()
+                .count(bam());
+        assertThat(j.size(), is(5));
+        assertThat(j.getUniqueCount("chr1", 110, 160, Strand.POSITIVE),
+                is(2));
+        assertThat(j.getMultiCount("chr1", 110, 160, Strand.POSITIVE), is(0));
+        assertThat(j.getMaxOverhang("chr1", 110, 160, Strand.POSITIVE),
+                is(10));
+        assertThat(j.getUniqueCount("chr1", 110, 160, Strand.NEGATIVE),
+                is(0));
+        assertThat(j.getMultiCount("chr1", 110, 160, Strand.NEGATIVE), is(1));
+        assertThat(j.getUniqueCount("chr1", 112, 162, Strand.BOTH), is(1));
+        assertThat(j.getMaxOverhang("chr1", 112, 162, Strand.BOTH), is(10));
+        assertThat(j.getMaxOverhang("chr1", 172, 202, Strand.BOTH), is(8));
+        assertThat(j.getUniqueCount("chr2", 512, 612, Strand.BOTH), is(1));
+    }
+
+    @Test
+    public void testMatchesIntronStream() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        Random rng = new Random(7);
+        List<SAMRecord> records = new ArrayList<>();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            String cigar = (1 + rng.nextInt(20)) + "M" +
+                    (1 + rng.nextInt(5)) + "N" + (1 + rng.nextInt(20)) + "M" +
+                    (rng.nextBoolean() ? "" : (1 + rng.nextInt(5)) + "N5M");
+            SAMRecord record = read(header, "r" + i, "chr1",
+                    1 + rng.nextInt(100), cigar, null, null);
+            records.add(record);
+            Annotated a = Annotation.builder()
+                    .addAnnotationFromCigar(record.getCigar(), "chr1",
+                            record.getAlignmentStart(), Strand.BOTH)
+                    .build();
+            a.getIntronStream().forEach(intron -> expected.merge(
+                    intron.getStart() + "-" + intron.getEnd(), 1,
+                    Integer::sum));
+        }
+
+        Junctions j = JunctionCounter.builder().build()
+                .count(BamFixtures.write(folder, header, records, true));
+        assertThat(j.size(), is(expected.size()));
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            String[] bounds = entry.getKey().split("-");
+            assertThat(j.getUniqueCount("chr1", Integer.parseInt(bounds[0]),
+                    Integer.parseInt(bounds[1]), Strand.BOTH),
+                    is(entry.getValue()));
+        }
+    }
+
+    @Test
+    public void testStrandednessWithoutXsTag() throws IOException {
+        Junctions j = JunctionCounter.builder()
+                .strandedness(Strandedness.REVERSE)
+                .build()
+                .count(bam());
+        assertThat(j.getUniqueCount("chr2", 512, 612, Strand.NEGATIVE), is(1));
+        assertThat(j.getUniqueCount("chr1", 110, 160, Strand.POSITIVE),
+                is(2));
+    }
+
+    @Test
+    public void testMinOverhang() throws IOException {
+        Junctions j = JunctionCounter.builder().minOverhang(9).build()
+                .count(bam());
+        assertThat(j.getUniqueCount("chr1", 110, 160, Strand.POSITIVE),
+                is(1));
+        assertThat(j.getUniqueCount("chr1", 172, 202, Strand.BOTH), is(0));
+    }
+
+    @Test
+    public void testMergeAndWriteSorted() throws IOException {
+        Junctions j = JunctionCounter.builder().numThreads(2).build()
+                .count(Arrays.asList(bam(), bam()));
+        assertThat(j.size(), is(5));
+        assertThat(j.getUniqueCount("chr1", 110, 160, Strand.POSITIVE),
+                is(4));
+
+        Path out = folder.newFile().toPath();
+        j.write(out);
+        assertThat(Files.readAllLines(out), is(Arrays.asList(
+                "chr1\t110\t160\t+\t4\t0\t10",
+                "chr1\t110\t160\t-\t0\t2\t10",
+                "chr1\t112\t162\t.\t2\t0\t10",
+                "chr1\t172\t202\t.\t2\t0\t8",
+                "chr2\t512\t612\t.\t2\t0\t12")));
+    }
+
+    @Test
+    public void testUnindexedBamThrowsException() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        Path bam = BamFixtures.write(folder, header, Arrays.asList(read(header,
+                "r", "chr1", 1, "5M5N5M", null, null)), false);
+        thrown.expect(IllegalArgumentException.class);
+        JunctionCounter.builder().build().count(bam);
+    }
+}
@@ -0,0 +1,173 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.sequence.FastaSequence;
+import edu.caltech.lncrna.bio.sequence.KmerCounter;
+import edu.caltech.lncrna.bio.sequence.Sequence;
+import edu.caltech.lncrna.bio.sequence.Sequences;
+
+public class TestKmerCounter {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String randomBases(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append("ACGTacgtN".charAt(random.nextInt(9)));
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, Integer> naiveCounts(List<String> seqs, int k) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String seq : seqs) {
+            String upper = seq.toUpperCase();
+            for (int i = 0; i + k <= upper.length(); i++) {
+                String kmer = upper.substring(i, i + k);
+                if (kmer.indexOf('N') >= 0) {
+                    continue;
+                }
+                String rc = Sequences.reverseComplement(kmer);
+                String canonical = kmer.compareTo(rc) <= 0 ? kmer : rc;
+                counts.merge(canonical, 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    @Test
+    public void testInvalidK() {
+        thrown.expect(IllegalArgumentException.class);
+        new KmerCounter(32);
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        long code = KmerCounter.encode("ACGTTGCA");
+        assertThat(KmerCounter.decode(code, 8), is("ACGTTGCA"));
+        assertThat(KmerCounter.decode(KmerCounter.reverseComplement(code, 8), 8),
+                is("TGCAACGT"));
+    }
+
+    @Test
+    public void testNonCanonicalCounts() {
+        KmerCounter counter = new KmerCounter(3, false, 1);
+        counter.add("AAAAcNttt");
+        assertThat(counter.getCount("AAA"), is(2));
+        assertThat(counter.getCount("AAC"), is(1));
+        assertThat(counter.getCount("TTT"), is(1));
+        assertThat(counter.getCount("ACT"), is(0));
+        assertThat(counter.size(), is(3L));
+    }
+
+    @Test
+    public void testCanonicalCountsMatchNaive() {
+        Random random = new Random(17);
+        List<String> seqs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            seqs.add(randomBases(random, 80));
+        }
+        KmerCounter counter = new KmerCounter(5);
+        seqs.forEach(counter::add);
+
+        Map<String, Integer> expected = naiveCounts(seqs, 5);
+        assertThat(counter.size(), is((long) expected.size()));
+        for (Map.Entry<String, Integer> e : expected.entrySet()) {
+            assertThat(counter.getCount(e.getKey()), is(e.getValue()));
+            assertThat(counter.getCount(Sequences.reverseComplement(e.getKey())),
+                    is(e.getValue()));
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerial() {
+        Random random = new Random(23);
+        List<Sequence> seqs = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            seqs.add(new FastaSequence("read" + i, randomBases(random, 100)));
+        }
+        KmerCounter serial = new KmerCounter(31);
+        seqs.forEach(serial::add);
+        KmerCounter parallel = new KmerCounter(31, true, 16);
+        parallel.addAll(seqs.iterator(), 4);
+
+        assertThat(parallel.size(), is(serial.size()));
+        serial.forEach((code, count) ->
+                assertThat(parallel.getCount(code), is(count)));
+    }
+
+    @Test
+    public void testSequenceLongerThanBufferMatchesNaive() {
+        // Longer than the k-mer buffer, so it is flushed mid-sequence
+        String seq = randomBases(new Random(29), 200000);
+        KmerCounter counter = new KmerCounter(7);
+        counter.add(seq);
+
+        Map<String, Integer> expected = naiveCounts(Arrays.asList(seq), 7);
+        assertThat(counter.size(), is((long) expected.size()));
+        for (Map.Entry<String, Integer> e : expected.entrySet()) {
+            assertThat(counter.getCount(e.getKey()), is(e.getValue()));
+        }
+    }
+
+    @Test
+    public void testShardedTableMatchesSingleShard() throws IOException {
+        String seq = randomBases(new Random(31), 20000);
+        KmerCounter single = new KmerCounter(9, true, 1);
+        single.add(seq);
+        KmerCounter sharded = new KmerCounter(9, true, 8);
+        sharded.add(seq);
+
+        Path a = folder.newFile("single.kmers").toPath();
+        Path b = folder.newFile("sharded.kmers").toPath();
+        single.writeTable(a);
+        sharded.writeTable(b);
+        assertThat(Arrays.equals(Files.readAllBytes(a),
+                Files.readAllBytes(b)), is(true));
+    }
+
+    @Test
+    public void testMergeTables() throws IOException {
+        KmerCounter a = new KmerCounter(4);
+        a.add("ACGTACGTAAAA");
+        KmerCounter b = new KmerCounter(4);
+        b.add("ACGTTTTTGGGG");
+
+        Path pa = folder.newFile("a.kmers").toPath();
+        Path pb = folder.newFile("b.kmers").toPath();
+        Path merged = folder.newFile("merged.kmers").toPath();
+        a.writeTable(pa);
+        b.writeTable(pb);
+        KmerCounter.mergeTables(Arrays.asList(pa, pb), merged);
+
+        KmerCounter both = new KmerCounter(4);
+        both.add("ACGTACGTAAAA");
+        both.add("ACGTTTTTGGGG");
+        Path expected = folder.newFile("expected.kmers").toPath();
+        both.writeTable(expected);
+
+        assertThat(Arrays.equals(Files.readAllBytes(merged),
+                Files.readAllBytes(expected)), is(true));
+    }
+}
@@ -0,0 +1,55 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.caltech.lncrna.bio.datastructures.LongIntHashMap;
+
+public class TestLongIntHashMap {
+
+    @Test
+    public void testGrowsAndKeepsZeroKey() {
+        LongIntHashMap map = new LongIntHashMap();
+        for (long key = -500; key < 500; key++) {
+            map.addTo(key, (int) key);
+            map.addTo(key, 1);
+        }
+        assertThat(map.size(), is(1000));
+        assertThat(map.get(0), is(1));
+        assertThat(map.get(-500), is(-499));
+        assertThat(map.get(499), is(500));
+        assertThat(map.containsKey(500), is(false));
+        long[] keys = map.sortedKeys();
+        assertThat(keys[0], is(-500L));
+        assertThat(keys[999], is(499L));
+    }
+
+    @Test
+    public void testRemoveMatchesHashMap() {
+        Random random = new Random(4);
+        LongIntHashMap map = new LongIntHashMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // A small key range keeps the table crowded with probe chains
+            long key = random.nextInt(3000) - 100;
+            if (random.nextInt(3) == 0) {
+                Integer old = expected.remove(key);
+                assertThat(map.remove(key), is(old == null ? 0 : old));
+            } else {
+                map.put(key, i);
+                expected.put(key, i);
+            }
+        }
+        assertThat(map.size(), is(expected.size()));
+        for (long key = -100; key < 2900; key++) {
+            assertThat(map.containsKey(key), is(expected.containsKey(key)));
+            assertThat(map.get(key), is(expected.getOrDefault(key, 0)));
+        }
+    }
+}
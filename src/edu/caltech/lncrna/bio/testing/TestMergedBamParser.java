@@ -0,0 +1,205 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.alignment.ReadPair;
+import edu.caltech.lncrna.bio.alignment.SingleRead;
+import edu.caltech.lncrna.bio.io.MergedBamParser;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+
+public class TestMergedBamParser {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SAMRecord record(SAMFileHeader header, String name,
+            String ref, int start) {
+        return BamFixtures.read(header, name, ref, start, "10M");
+    }
+
+    @Test
+    public void testMergeInCoordinateOrder() throws IOException {
+        SAMFileHeader header = BamFixtures.header(100000, "chr2", "chr1");
+        // chr2 comes first in the dictionary
+        Path a = BamFixtures.write(folder, header, Arrays.asList(
+                record(header, "a1", "chr2", 50),
+                record(header, "a2", "chr1", 10),
+                BamFixtures.unmapped(header, "a3")), false);
+        Path b = BamFixtures.write(folder, header, Arrays.asList(
+                record(header, "b1", "chr2", 20),
+                record(header, "b2", "chr2", 50),
+                record(header, "b3", "chr1", 5)), false);
+        Path c = BamFixtures.write(folder, header, Collections.emptyList(),
+                false);
+
+        List<String> names = new ArrayList<>();
+        List<Integer> sources = new ArrayList<>();
+        try (MergedBamParser<SingleRead> parser =
+                MergedBamParser.ofSingleReads(Arrays.asList(a, b, c))) {
+            assertThat(parser.getSourceIndex(), is(-1));
+            assertThat(parser.getNumberOfSources(), is(3));
+            while (parser.hasNext()) {
+                names.add(parser.next().getName());
+                sources.add(parser.getSourceIndex());
+            }
+        }
+        // Ties go to the earlier file
+        assertThat(names, is(Arrays.asList("b1", "a1", "b2", "b3", "a2",
+                "a3")));
+        assertThat(sources, is(Arrays.asList(1, 0, 1, 1, 0, 0)));
+    }
+
+    @Test
+    public void testMergeManyBatches() throws IOException {
+        Random rng = new Random(5);
+        SAMFileHeader header = BamFixtures.header(100000, "chr2", "chr1");
+        String[] refs = {"chr2", "chr1"};
+        Comparator<SAMRecord> byPosition = Comparator
+                .comparingInt(SAMRecord::getReferenceIndex)
+                .thenComparingInt(SAMRecord::getAlignmentStart);
+        List<Path> paths = new ArrayList<>();
+        List<SAMRecord> all = new ArrayList<>();
+        for (int source = 0; source < 4; source++) {
+            List<SAMRecord> records = new ArrayList<>();
+            int n = 3000 + rng.nextInt(2000);
+            for (int i = 0; i < n; i++) {
+                records.add(record(header, source + ":" + i,
+                        refs[rng.nextInt(2)], 1 + rng.nextInt(500)));
+            }
+            // The writer breaks ties by name, so sort the same way here
+            records.sort(new SAMRecordCoordinateComparator());
+            paths.add(BamFixtures.write(folder, header, records, false));
+            all.addAll(records);
+        }
+        // A stable sort keeps ties in the order of their files
+        all.sort(byPosition);
+        List<String> expected = new ArrayList<>();
+        all.forEach(r -> expected.add(r.getReadName()));
+
+        List<String> merged = new ArrayList<>();
+        try (MergedBamParser<SingleRead> parser =
+                MergedBamParser.ofSingleReads(paths)) {
+            while (parser.hasNext()) {
+                SingleRead read = parser.next();
+                assertThat(read.getName().startsWith(
+                        parser.getSourceIndex() + ":"), is(true));
+                merged.add(read.getName());
+            }
+        }
+        assertThat(merged, is(expected));
+    }
+
+    @Test
+    public void testMergeReadPairs() throws IOException {
+        SAMFileHeader header = BamFixtures.header(100000, "chr2", "chr1");
+        SAMRecord a1 = record(header, "a", "chr2", 100);
+        SAMRecord a2 = record(header, "a", "chr2", 300);
+        SAMRecord b1 = record(header, "b", "chr2", 150);
+        SAMRecord b2 = record(header, "b", "chr2", 200);
+        for (SAMRecord[] pair : new SAMRecord[][] {{a1, a2}, {b1, b2}}) {
+            pair[0].setReadPairedFlag(true);
+            pair[0].setFirstOfPairFlag(true);
+            pair[1].setReadPairedFlag(true);
+            pair[1].setSecondOfPairFlag(true);
+            pair[1].setReadNegativeStrandFlag(true);
+        }
+        Path a = BamFixtures.write(folder, header, Arrays.asList(a1, a2),
+                false);
+        Path b = BamFixtures.write(folder, header, Arrays.asList(b1, b2),
+                false);
+
+        List<String> names = new ArrayList<>();
+        try (MergedBamParser<ReadPair> parser =
+                MergedBamParser.ofReadPairs(Arrays.asList(a, b))) {
+            parser.forEachRemaining(x -> names.add(x.getName()));
+        }
+        // Pairs are ordered by their later read
+        assertThat(names, is(Arrays.asList("b", "a")));
+    }
+
+    @Test
+    public void testUnsortedFileThrowsException() throws IOException {
+        SAMFileHeader header = BamFixtures.header(100000, "chr2", "chr1");
+        header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+        Path a = BamFixtures.write(folder, header, Arrays.asList(
+                record(header, "a1", "chr2", 50),
+                record(header, "a2", "chr2", 10)), false);
+        thrown.expect(IllegalArgumentException.class);
+        try (MergedBamParser<SingleRead> parser =
+                MergedBamParser.ofSingleReads(Arrays.asList(a))) {
+            parser.forEachRemaining(x -> { });
+        }
+    }
+
+    @Test
+    public void testDifferentDictionariesThrowsException()
+            throws IOException {
+        SAMFileHeader header = BamFixtures.header(100000, "chr2", "chr1");
+        SAMFileHeader other = BamFixtures.header(100000, "chr1");
+        Path a = BamFixtures.write(folder, header, Collections.emptyList(),
+                false);
+        Path b = BamFixtures.write(folder, other, Collections.emptyList(),
+                false);
+        thrown.expect(IllegalArgumentException.class);
+        MergedBamParser.ofSingleReads(Arrays.asList(a, b));
+    }
+
+    @Test
+    public void testCloseBeforeExhausted() throws IOException {
+        SAMFileHeader header = BamFixtures.header(100000, "chr2", "chr1");
+        List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            records.add(record(header, "r" + i, "chr2", 1 + i));
+        }
+        Path a = BamFixtures.write(folder, header, records, false);
+        try (MergedBamParser<SingleRead> parser =
+                MergedBamParser.ofSingleReads(Arrays.asList(a, a))) {
+            assertThat(parser.next().getName(), is("r0"));
+            assertThat(parser.getSourceIndex(), is(0));
+            assertThat(parser.next().getName(), is("r0"));
+            assertThat(parser.getSourceIndex(), is(1));
+        }
+    }
+
+    @Test
+    public void testCloseWaitsForReaderThreads() throws IOException {
+        SAMFileHeader header = BamFixtures.header(100000, "chr2", "chr1");
+        List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            records.add(record(header, "r" + i, "chr2", 1 + i));
+        }
+        Path a = BamFixtures.write(folder, header, records, false);
+        try (MergedBamParser<SingleRead> parser =
+                MergedBamParser.ofSingleReads(Arrays.asList(a, a, a))) {
+            parser.next();
+        }
+        // No reader is still parsing, with its file open, once close()
+        // returns. The pool's threads may take a moment longer to exit.
+        boolean reading = Thread.getAllStackTraces().values().stream()
+                .flatMap(Arrays::stream)
+                .anyMatch(f -> f.getClassName().equals(
+                        MergedBamParser.class.getName()) &&
+                        f.getMethodName().equals("read"));
+        assertThat(reading, is(false));
+    }
+}
@@ -0,0 +1,177 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.GenomeTree;
+import edu.caltech.lncrna.bio.sequence.FastaSequence;
+import edu.caltech.lncrna.bio.sequence.MotifScanner;
+import edu.caltech.lncrna.bio.sequence.MotifScanner.Hit;
+
+public class TestMotifScanner {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void testPositiveStrandHit() {
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("ecoRV", "GATATC")
+                .bothStrands(false)
+                .build();
+        List<Hit> hits = scanner.scan(new FastaSequence("chr1", "ccGATATCaa"));
+        assertThat(hits.size(), is(1));
+        assertThat(hits.get(0).getReferenceName(), is("chr1"));
+        assertThat(hits.get(0).getStart(), is(2));
+        assertThat(hits.get(0).getEnd(), is(8));
+        assertThat(hits.get(0).getStrand(), is(Strand.POSITIVE));
+        assertThat(hits.get(0).getMotifName(), is("ecoRV"));
+    }
+
+    @Test
+    public void testNegativeStrandHit() {
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("m", "AACG")
+                .build();
+        List<Hit> hits = scanner.scan(new FastaSequence("chr1", "TTCGTTTT"));
+        assertThat(hits.size(), is(1));
+        assertThat(hits.get(0).getStart(), is(2));
+        assertThat(hits.get(0).getEnd(), is(6));
+        assertThat(hits.get(0).getStrand(), is(Strand.NEGATIVE));
+    }
+
+    @Test
+    public void testPalindromeReportedOnBothStrands() {
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("ecoRI", "GAATTC")
+                .build();
+        List<Hit> hits = scanner.scan(new FastaSequence("chr1", "GAATTC"));
+        assertThat(hits.size(), is(2));
+    }
+
+    @Test
+    public void testOverlappingMotifs() {
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("he", "ACG")
+                .addMotif("she", "TACG")
+                .addMotif("cg", "CG")
+                .bothStrands(false)
+                .build();
+        List<Hit> hits = scanner.scan(new FastaSequence("chr1", "TACGACG"));
+        assertThat(hits.size(), is(5));
+    }
+
+    @Test
+    public void testNonAcgtBreaksMatch() {
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("m", "ACGT")
+                .bothStrands(false)
+                .build();
+        assertThat(scanner.scan(new FastaSequence("chr1", "ACNGT")).size(),
+                is(0));
+    }
+
+    @Test
+    public void testDegenerateMotif() {
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("m", "ARNT")
+                .degenerate(true)
+                .bothStrands(false)
+                .build();
+        List<Hit> hits = scanner.scan(new FastaSequence("chr1", "AACTcAGGTcACCT"));
+        assertThat(hits.size(), is(2));
+        assertThat(hits.get(0).getStart(), is(0));
+        assertThat(hits.get(1).getStart(), is(5));
+    }
+
+    @Test
+    public void testDegenerateBaseRejectedByDefault() {
+        thrown.expect(IllegalArgumentException.class);
+        MotifScanner.builder().addMotif("m", "ARNT").build();
+    }
+
+    @Test
+    public void testNoMotifsThrowsException() {
+        thrown.expect(IllegalArgumentException.class);
+        MotifScanner.builder().build();
+    }
+
+    @Test
+    public void testHitsOfDifferentMotifsAreDistinctInTree() {
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("a", "ACGT")
+                .addMotif("b", "ACGT")
+                .bothStrands(false)
+                .build();
+        GenomeTree<Hit> tree = new GenomeTree<>();
+        tree.addAll(scanner.scan(new FastaSequence("chr1", "ACGT")));
+        assertThat(tree.size(), is(2));
+    }
+
+    @Test
+    public void testParallelScanMatchesSequentialScan() {
+        Random random = new Random(7);
+        List<FastaSequence> seqs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            char[] bases = new char[5000];
+            for (int j = 0; j < bases.length; j++) {
+                bases[j] = "ACGT".charAt(random.nextInt(4));
+            }
+            seqs.add(new FastaSequence("chr" + i, new String(bases)));
+        }
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("a", "GATC")
+                .addMotif("b", "ACGTRY")
+                .addMotif("c", "CCNNGG")
+                .degenerate(true)
+                .build();
+
+        List<Hit> expected = new ArrayList<>();
+        for (FastaSequence seq : seqs) {
+            expected.addAll(scanner.scan(seq));
+        }
+        List<Hit> actual = new ArrayList<>();
+        scanner.scanAll(seqs.iterator(), 4, 97, actual::add);
+        assertThat(actual, is(expected));
+    }
+
+    @Test
+    public void testParallelScanOrderWithHitAcrossChunkBoundary() {
+        // The long hit [6, 14) starts in the first chunk of ten bases, but
+        // ends after hits of the short motif that lie wholly in the second
+        List<FastaSequence> seqs = Arrays.asList(
+                new FastaSequence("chr1", "AAAAAAGGGGTTTTAAAAAA"));
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("long", "GGGGTTTT")
+                .addMotif("short", "TT")
+                .bothStrands(false)
+                .build();
+
+        List<Hit> expected = scanner.scan(seqs.get(0));
+        assertThat(expected.get(0).getStart(), is(10));
+        for (int numThreads : new int[] {1, 3}) {
+            List<Hit> actual = new ArrayList<>();
+            scanner.scanAll(seqs.iterator(), numThreads, 10, actual::add);
+            assertThat(actual, is(expected));
+        }
+    }
+
+    @Test
+    public void testGetMotifNames() {
+        MotifScanner scanner = MotifScanner.builder()
+                .addMotif("a", "ACGT")
+                .addMotif("b", "TTT")
+                .build();
+        assertThat(scanner.getMotifNames(), is(Arrays.asList("a", "b")));
+    }
+}
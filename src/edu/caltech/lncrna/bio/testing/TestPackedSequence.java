@@ -0,0 +1,169 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.sequence.Base;
+import edu.caltech.lncrna.bio.sequence.FastaSequence;
+import edu.caltech.lncrna.bio.sequence.PackedSequence;
+import edu.caltech.lncrna.bio.sequence.Sequences;
+
+public class TestPackedSequence {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private static String randomBases(Random random, int length) {
+        String alphabet = "ACGTNacgtn";
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        PackedSequence seq = new PackedSequence("seq", "ACGTNacgtnNNaaTT");
+        assertThat(seq.getBases(), is("ACGTNacgtnNNaaTT"));
+        assertThat(seq.length(), is(16));
+        assertThat(seq.getName(), is("seq"));
+    }
+
+    @Test
+    public void testEmptySequence() {
+        PackedSequence seq = new PackedSequence("seq", "");
+        assertThat(seq.getBases(), is(""));
+        assertThat(seq.reverseComplement().getBases(), is(""));
+    }
+
+    @Test
+    public void testUnknownCharacter() {
+        thrown.expect(IllegalArgumentException.class);
+        new PackedSequence("seq", "ACGTX");
+    }
+
+    @Test
+    public void testCharAt() {
+        PackedSequence seq = new PackedSequence("seq", "AcGnT");
+        assertThat(seq.charAt(1), is('c'));
+        assertThat(seq.charAt(3), is('n'));
+        assertThat(seq.baseAt(4), is(Base.T));
+    }
+
+    @Test
+    public void testComplementMatchesSequences() {
+        Random random = new Random(7);
+        for (int length = 0; length < 200; length++) {
+            String bases = randomBases(random, length);
+            PackedSequence seq = new PackedSequence("seq", bases);
+            assertThat(seq.complement().getBases(),
+                    is(Sequences.complement(bases)));
+        }
+    }
+
+    @Test
+    public void testReverseComplementMatchesSequences() {
+        Random random = new Random(11);
+        for (int length = 0; length < 200; length++) {
+            String bases = randomBases(random, length);
+            PackedSequence seq = new PackedSequence("seq", bases);
+            assertThat(seq.reverseComplement().getBases(),
+                    is(Sequences.reverseComplement(bases)));
+        }
+    }
+
+    @Test
+    public void testDoubleReverseComplementIsIdentity() {
+        PackedSequence seq = new PackedSequence("seq",
+                randomBases(new Random(3), 1000));
+        assertThat(seq.reverseComplement().reverseComplement(), is(seq));
+    }
+
+    @Test
+    public void testSubsequence() {
+        Random random = new Random(5);
+        String bases = randomBases(random, 300);
+        PackedSequence seq = new PackedSequence("seq", bases);
+        for (int start = 0; start < 100; start += 7) {
+            for (int end = start; end < 300; end += 31) {
+                assertThat(seq.subsequence(start, end).getBases(),
+                        is(bases.substring(start, end)));
+            }
+        }
+    }
+
+    @Test
+    public void testSubsequenceClipsMaskRuns() {
+        // Runs of lowercase bases and Ns longer than the subsequences
+        Random random = new Random(13);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 2000) {
+            String run = randomBases(random, 1 + random.nextInt(60));
+            switch (random.nextInt(3)) {
+            case 0: run = run.toLowerCase(); break;
+            case 1: run = run.replaceAll(".", "N"); break;
+            default: run = run.toUpperCase(); break;
+            }
+            sb.append(run);
+        }
+        String bases = sb.toString();
+        PackedSequence seq = new PackedSequence("seq", bases);
+        for (int start = 0; start < bases.length(); start += 13) {
+            for (int end = start; end <= bases.length(); end += 97) {
+                PackedSequence sub = seq.subsequence(start, end);
+                assertThat(sub.getBases(), is(bases.substring(start, end)));
+                assertThat(sub, is(new PackedSequence("seq",
+                        bases.substring(start, end))));
+            }
+        }
+    }
+
+    @Test
+    public void testSubsequenceOutOfBounds() {
+        thrown.expect(IndexOutOfBoundsException.class);
+        new PackedSequence("seq", "ACGT").subsequence(2, 5);
+    }
+
+    @Test
+    public void testSubsequenceFromSplicedPositiveAnnotation() {
+        PackedSequence seq = new PackedSequence("chr1", "AAAACCCCGGGGTTTT");
+        Annotation annot = Annotation.builder()
+                .addAnnotation(new Annotation("chr1", 2, 6, Strand.POSITIVE))
+                .addAnnotation(new Annotation("chr1", 10, 14, Strand.POSITIVE))
+                .build();
+        assertThat(seq.subsequence(annot).getBases(), is("AACCGGTT"));
+    }
+
+    @Test
+    public void testSubsequenceFromSplicedNegativeAnnotation() {
+        PackedSequence seq = new PackedSequence("chr1", "AAAACCCCGGGGTTTT");
+        Annotation annot = Annotation.builder()
+                .addAnnotation(new Annotation("chr1", 2, 6, Strand.NEGATIVE))
+                .addAnnotation(new Annotation("chr1", 10, 14, Strand.NEGATIVE))
+                .build();
+        assertThat(seq.subsequence(annot).getBases(), is("AACCGGTT"));
+    }
+
+    @Test
+    public void testEqualsFastaBases() {
+        FastaSequence fasta = new FastaSequence("seq", "ACGTacgtNN");
+        PackedSequence seq = new PackedSequence(fasta);
+        assertThat(seq.toFastaSequence(), is(fasta));
+        assertThat(seq.toFasta(), is(fasta.toFasta()));
+    }
+
+    @Test
+    public void testAmbiguousBasesCompareEqualAfterComplement() {
+        PackedSequence seq = new PackedSequence("seq", "NNNN");
+        assertThat(seq.complement(), is(seq));
+    }
+}
@@ -0,0 +1,107 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.io.FastqWriter;
+import edu.caltech.lncrna.bio.io.IncompleteFileException;
+import edu.caltech.lncrna.bio.io.MalformedRecordException;
+import edu.caltech.lncrna.bio.io.PairedFastqParser;
+import edu.caltech.lncrna.bio.sequence.FastqPair;
+import edu.caltech.lncrna.bio.sequence.FastqSequence;
+
+public class TestPairedFastqParser {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path writeReads(String fileName, int n, String suffix)
+            throws IOException {
+        Path p = folder.getRoot().toPath().resolve(fileName);
+        try (FastqWriter writer = new FastqWriter(p)) {
+            for (int i = 0; i < n; i++) {
+                writer.write(new FastqSequence("read" + i + suffix, "ACGT",
+                        "IIII"));
+            }
+        }
+        return p;
+    }
+
+    @Test
+    public void testNamesAgree() {
+        assertThat(PairedFastqParser.namesAgree("read1/1", "read1/2"), is(true));
+        assertThat(PairedFastqParser.namesAgree("read1 1:N:0:1",
+                "read1 2:N:0:1"), is(true));
+        assertThat(PairedFastqParser.namesAgree("read1", "read1/2"), is(true));
+        assertThat(PairedFastqParser.namesAgree("read1", "read12"), is(false));
+        assertThat(PairedFastqParser.namesAgree("read1/3", "read1/4"),
+                is(false));
+    }
+
+    @Test
+    public void testPairsInOrder() throws IOException {
+        Path p1 = writeReads("r1.fastq.gz", 2500, "/1");
+        Path p2 = writeReads("r2.fastq", 2500, "/2");
+        try (PairedFastqParser parser = new PairedFastqParser(p1, p2)) {
+            List<FastqPair> pairs = parser.toList();
+            assertThat(pairs.size(), is(2500));
+            assertThat(pairs.get(2499).getRead1().getName(), is("read2499/1"));
+            assertThat(pairs.get(2499).getRead2().getName(), is("read2499/2"));
+        }
+    }
+
+    @Test
+    public void testBatches() throws IOException {
+        Path p1 = writeReads("r1.fastq", 2500, "");
+        Path p2 = writeReads("r2.fastq", 2500, "");
+        int total = 0;
+        try (PairedFastqParser parser = new PairedFastqParser(p1, p2)) {
+            List<FastqPair> batch;
+            while (!(batch = parser.nextBatch()).isEmpty()) {
+                total += batch.size();
+            }
+        }
+        assertThat(total, is(2500));
+    }
+
+    @Test
+    public void testDifferentLengths() throws IOException {
+        Path p1 = writeReads("r1.fastq", 10, "");
+        Path p2 = writeReads("r2.fastq", 9, "");
+        thrown.expect(IncompleteFileException.class);
+        try (PairedFastqParser parser = new PairedFastqParser(p1, p2)) {
+            parser.toList();
+        }
+    }
+
+    @Test
+    public void testMismatchedNames() throws IOException {
+        Path p1 = writeReads("r1.fastq", 10, "a");
+        Path p2 = writeReads("r2.fastq", 10, "b");
+        thrown.expect(MalformedRecordException.class);
+        try (PairedFastqParser parser = new PairedFastqParser(p1, p2)) {
+            parser.next();
+        }
+    }
+
+    @Test
+    public void testCloseBeforeExhausted() throws IOException {
+        Path p1 = writeReads("r1.fastq", 20000, "");
+        Path p2 = writeReads("r2.fastq", 20000, "");
+        try (PairedFastqParser parser = new PairedFastqParser(p1, p2)) {
+            assertThat(parser.next().getRead1().getName(), is("read0"));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.alignment.CoordinateSpace;
+import edu.caltech.lncrna.bio.annotation.Annotated;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.GenomeMask;
+import edu.caltech.lncrna.bio.datastructures.PermutationTest;
+
+public class TestPermutationTest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static CoordinateSpace space() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("chr1", 500000);
+        sizes.put("chr2", 500000);
+        return new CoordinateSpace(sizes);
+    }
+
+    // Ten 100-bp features on chr1, with a 50-bp peak inside each
+    private static List<Annotated> features() {
+        List<Annotated> rtrn = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rtrn.add(new Annotation("chr1", 10000 * (i + 1),
+                    10000 * (i + 1) + 100, Strand.POSITIVE));
+        }
+        return rtrn;
+    }
+
+    private static List<Annotated> peaks() {
+        List<Annotated> rtrn = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rtrn.add(new Annotation("chr1", 10000 * (i + 1) + 25,
+                    10000 * (i + 1) + 75, Strand.BOTH));
+        }
+        return rtrn;
+    }
+
+    @Test
+    public void testEnrichment() {
+        PermutationTest.Result result = PermutationTest.builder(space())
+                .seed(1)
+                .build()
+                .test(peaks().iterator(), features().iterator(), 99);
+        assertThat(result.getObserved(), is(10));
+        assertThat(result.getNullDistribution().length, is(99));
+        assertThat(result.getPValue(), is(0.01));
+        assertThat(result.getDepletionPValue(), is(1.0));
+        assertThat(result.getExpected() < 1, is(true));
+    }
+
+    @Test
+    public void testReproducibleAcrossThreadCounts() {
+        // Every other 10-kb block of chr1, so that the null varies
+        CoordinateSpace space = space();
+        GenomeMask.Builder builder = GenomeMask.builder(space);
+        for (int i = 0; i < 500000; i += 20000) {
+            builder.add(new Annotation("chr1", i, i + 10000, Strand.BOTH));
+        }
+        GenomeMask features = builder.build();
+        int[] one = PermutationTest.builder(space).seed(42).numThreads(1)
+                .build().test(peaks().iterator(), features, 50)
+                .getNullDistribution();
+        int[] three = PermutationTest.builder(space).seed(42).numThreads(3)
+                .build().test(peaks().iterator(), features, 50)
+                .getNullDistribution();
+        int[] other = PermutationTest.builder(space).seed(43).numThreads(3)
+                .build().test(peaks().iterator(), features, 50)
+                .getNullDistribution();
+        assertThat(Arrays.equals(one, three), is(true));
+        assertThat(Arrays.equals(one, other), is(false));
+    }
+
+    @Test
+    public void testPreserveReferences() {
+        // Every shuffled peak stays on chr1, which is covered by one feature
+        List<Annotated> features = Collections.singletonList(
+                new Annotation("chr1", 0, 500000, Strand.BOTH));
+        PermutationTest.Result result = PermutationTest.builder(space())
+                .preserveReferences(true)
+                .build()
+                .test(peaks().iterator(), features.iterator(), 20);
+        for (int n : result.getNullDistribution()) {
+            assertThat(n, is(10));
+        }
+    }
+
+    @Test
+    public void testExclusion() {
+        // Only the first 1000 bases of chr1 are open
+        CoordinateSpace space = space();
+        GenomeMask exclude = GenomeMask.builder(space)
+                .add(new Annotation("chr1", 1000, 500000, Strand.BOTH))
+                .add(new Annotation("chr2", 0, 500000, Strand.BOTH))
+                .build();
+        List<Annotated> features = Collections.singletonList(
+                new Annotation("chr1", 0, 1000, Strand.BOTH));
+        PermutationTest.Result result = PermutationTest.builder(space)
+                .exclude(exclude)
+                .numThreads(2)
+                .build()
+                .test(peaks().iterator(), features.iterator(), 20);
+        assertThat(result.getObserved(), is(0));
+        for (int n : result.getNullDistribution()) {
+            assertThat(n, is(10));
+        }
+    }
+
+    @Test
+    public void testMaskReadFromDiskIsCompatible() throws Exception {
+        CoordinateSpace space = space();
+        Path p = folder.newFile().toPath();
+        GenomeMask.builder(space).addAll(features().iterator()).build()
+                .write(p);
+        PermutationTest.Result result = PermutationTest.builder(space)
+                .build()
+                .test(peaks().iterator(), new GenomeMask(p), 10);
+        assertThat(result.getObserved(), is(10));
+    }
+
+    @Test
+    public void testUnplaceableAnnotationThrowsException() {
+        CoordinateSpace space = space();
+        GenomeMask exclude = GenomeMask.builder(space)
+                .add(new Annotation("chr1", 0, 500000, Strand.BOTH))
+                .build();
+        thrown.expect(IllegalStateException.class);
+        PermutationTest.builder(space)
+                .exclude(exclude)
+                .preserveReferences(true)
+                .build()
+                .test(peaks().iterator(), features().iterator(), 1);
+    }
+}
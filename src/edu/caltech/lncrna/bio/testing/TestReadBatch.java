@@ -0,0 +1,143 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import edu.caltech.lncrna.bio.alignment.ReadBatch;
+import edu.caltech.lncrna.bio.alignment.SingleRead;
+import edu.caltech.lncrna.bio.alignment.SingleReadAlignment;
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.datastructures.GenomeTree;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class TestReadBatch {
+
+    private SAMFileHeader header;
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Before
+    public void setup() {
+        header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", 100000));
+        header.addSequence(new SAMSequenceRecord("chr2", 100000));
+    }
+
+    private SAMRecord record(String name, String ref, int start, String cigar,
+            boolean reverse) {
+        SAMRecord rec = new SAMRecord(header);
+        rec.setReadName(name);
+        rec.setReferenceName(ref);
+        rec.setAlignmentStart(start);
+        rec.setCigarString(cigar);
+        rec.setReadNegativeStrandFlag(reverse);
+        rec.setMappingQuality(42);
+        return rec;
+    }
+
+    @Test
+    public void testEmptyBatch() {
+        ReadBatch batch = new ReadBatch();
+        assertThat(batch.isEmpty(), is(true));
+        assertThat(batch.iterator().hasNext(), is(false));
+    }
+
+    @Test
+    public void testUnmappedRecordIsNotAdded() {
+        ReadBatch batch = new ReadBatch();
+        SAMRecord rec = record("read", "chr1", 100, "10M", false);
+        rec.setReadUnmappedFlag(true);
+        assertThat(batch.add(rec), is(false));
+        assertThat(batch.size(), is(0));
+    }
+
+    @Test
+    public void testColumnsMatchSingleReadAlignment() {
+        ReadBatch batch = new ReadBatch();
+        SAMRecord rec = record("read1", "chr1", 100, "5S10M200N20M3D5M", true);
+        batch.add(rec);
+
+        SingleReadAlignment expected = new SingleRead(rec).getAlignment().get();
+        ReadBatch.Record actual = batch.get(0);
+
+        assertThat(actual.getReferenceName(), is("chr1"));
+        assertThat(actual.getStart(), is(expected.getStart()));
+        assertThat(actual.getEnd(), is(expected.getEnd()));
+        assertThat(actual.getStrand(), is(Strand.NEGATIVE));
+        assertThat(actual.getBlockBoundaries(), is(expected.getBlockBoundaries()));
+        assertThat(actual.getSize(), is(expected.getSize()));
+        assertThat(actual.getName(), is("read1"));
+        assertThat(actual.getMappingQuality(), is(42));
+        assertThat(actual.toAnnotation(), is(new Annotation(expected)));
+    }
+
+    @Test
+    public void testGrowsPastInitialCapacity() {
+        ReadBatch batch = new ReadBatch(2);
+        for (int i = 0; i < 100; i++) {
+            batch.add(record("read" + i, i % 2 == 0 ? "chr1" : "chr2",
+                    1 + i * 10, "4M2N4M", false));
+        }
+        assertThat(batch.size(), is(100));
+        assertThat(batch.getName(99), is("read99"));
+        assertThat(batch.getReferenceName(99), is("chr2"));
+        assertThat(batch.getNumberOfBlocks(57), is(2));
+        assertThat(batch.getStart(57), is(571));
+        assertThat(batch.getEnd(57), is(581));
+    }
+
+    @Test
+    public void testReferenceNamesAreShared() {
+        ReadBatch batch = new ReadBatch();
+        batch.add(record("a", "chr1", 1, "10M", false));
+        batch.add(record("b", "chr1", 50, "10M", false));
+        assertThat(batch.getReferenceName(0) == batch.getReferenceName(1),
+                is(true));
+    }
+
+    @Test
+    public void testGenomeTreeOverlappers() {
+        ReadBatch batch = new ReadBatch();
+        batch.add(record("a", "chr1", 100, "10M", false));
+        batch.add(record("b", "chr1", 105, "10M", true));
+        batch.add(record("c", "chr2", 100, "10M", false));
+
+        GenomeTree<ReadBatch.Record> tree = new GenomeTree<>();
+        batch.forEach(tree::add);
+        assertThat(tree.size(), is(3));
+
+        Iterator<ReadBatch.Record> overlappers = tree.overlappers(
+                new Annotation("chr1", 90, 104, Strand.BOTH));
+        assertThat(overlappers.next().getName(), is("a"));
+        assertThat(overlappers.hasNext(), is(false));
+    }
+
+    @Test
+    public void testClearResetsBatch() {
+        ReadBatch batch = new ReadBatch();
+        batch.add(record("a", "chr1", 100, "10M", false));
+        batch.clear();
+        batch.add(record("b", "chr1", 200, "10M", false));
+        assertThat(batch.size(), is(1));
+        assertThat(batch.getName(0), is("b"));
+        assertThat(batch.getStart(0), is(200));
+    }
+
+    @Test
+    public void testInvalidIndex() {
+        ReadBatch batch = new ReadBatch();
+        thrown.expect(IndexOutOfBoundsException.class);
+        batch.get(0);
+    }
+}
@@ -0,0 +1,102 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import edu.caltech.lncrna.bio.io.FastqWriter;
+import edu.caltech.lncrna.bio.sequence.FastqSequence;
+import edu.caltech.lncrna.bio.sequence.PhredEncoding;
+import edu.caltech.lncrna.bio.sequence.ReadTrimmer;
+
+public class TestReadTrimmer {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void testNoTrimmingByDefault() {
+        FastqSequence read = new FastqSequence("r", "ACGTN", "!!!!!");
+        assertThat(ReadTrimmer.builder().build().trim(read),
+                is(Optional.of(read)));
+    }
+
+    @Test
+    public void testSlidingWindowCutsAtFirstBadWindow() {
+        FastqSequence read = new FastqSequence("r", "ACGTACGTAC",
+                "IIIIII##I#");
+        ReadTrimmer trimmer = ReadTrimmer.builder()
+                .slidingWindow(2, 20)
+                .build();
+        assertThat(trimmer.trim(read).get().getBases(), is("ACGTAC"));
+    }
+
+    @Test
+    public void testSlidingWindowShortRead() {
+        FastqSequence read = new FastqSequence("r", "AC", "#I");
+        ReadTrimmer trimmer = ReadTrimmer.builder()
+                .slidingWindow(4, 30)
+                .build();
+        assertThat(trimmer.trim(read).get().length(), is(0));
+    }
+
+    @Test
+    public void testLengthFilterAfterTrimming() {
+        FastqSequence read = new FastqSequence("r", "ACGTACGTAC",
+                "III#######");
+        ReadTrimmer trimmer = ReadTrimmer.builder()
+                .slidingWindow(1, 20)
+                .minimumLength(5)
+                .build();
+        assertThat(trimmer.trim(read).isPresent(), is(false));
+    }
+
+    @Test
+    public void testNFilter() {
+        ReadTrimmer trimmer = ReadTrimmer.builder().maximumNs(1).build();
+        assertThat(trimmer.trim(new FastqSequence("r", "ANGT", "IIII"))
+                .isPresent(), is(true));
+        assertThat(trimmer.trim(new FastqSequence("r", "ANnT", "IIII"))
+                .isPresent(), is(false));
+    }
+
+    @Test
+    public void testInvalidLengths() {
+        thrown.expect(IllegalArgumentException.class);
+        ReadTrimmer.builder().minimumLength(10).maximumLength(5).build();
+    }
+
+    @Test
+    public void testTrimAllPreservesOrder() {
+        List<FastqSequence> reads = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            reads.add(new FastqSequence("r" + i, "ACGTACGT",
+                    i % 2 == 0 ? "IIIIIIII" : "IIII####"));
+            if (i % 2 == 0) {
+                expected.append("@r" + i + "\nACGTACGT\n+\nIIIIIIII\n");
+            }
+        }
+        ReadTrimmer trimmer = ReadTrimmer.builder()
+                .slidingWindow(2, 20)
+                .minimumLength(6)
+                .build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written;
+        try (FastqWriter writer = new FastqWriter(out, PhredEncoding.SANGER)) {
+            written = trimmer.trimAll(reads.iterator(), writer, 4, true);
+        }
+        assertThat(written, is(2500L));
+        assertThat(new String(out.toByteArray(), StandardCharsets.US_ASCII),
+                is(expected.toString()));
+    }
+}
@@ -0,0 +1,113 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.annotation.Annotation;
+import edu.caltech.lncrna.bio.annotation.BedFileRecord;
+import edu.caltech.lncrna.bio.annotation.ReferenceDictionary;
+import edu.caltech.lncrna.bio.annotation.ReferenceNames;
+import edu.caltech.lncrna.bio.annotation.Strand;
+import edu.caltech.lncrna.bio.io.BedParser;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class TestReferenceDictionary {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ReferenceDictionary dictionary() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("chr1", 1000);
+        sizes.put("chr2", 2000);
+        sizes.put("chrM", 16);
+        return new ReferenceDictionary(sizes);
+    }
+
+    @Test
+    public void testIdsFollowMapOrder() {
+        ReferenceDictionary dict = dictionary();
+        assertThat(dict.size(), is(3));
+        assertThat(dict.getId("chr2"), is(1));
+        assertThat(dict.getName(2), is("chrM"));
+        assertThat(dict.getLength(1), is(2000));
+        assertThat(dict.getNames(), is(Arrays.asList("chr1", "chr2", "chrM")));
+    }
+
+    @Test
+    public void testUnknownNameHasNoId() {
+        assertThat(dictionary().getId("chr3"), is(-1));
+        assertThat(dictionary().contains("chr3"), is(false));
+    }
+
+    @Test
+    public void testAliasesResolveToDictionaryName() {
+        ReferenceDictionary dict = dictionary();
+        assertThat(dict.getId("1"), is(0));
+        assertThat(dict.getId("MT"), is(2));
+        assertThat(dict.getCanonicalName("MT"), is("chrM"));
+        assertThat(dict.getCanonicalName("2"),
+                sameInstance(dict.getName(1)));
+    }
+
+    @Test
+    public void testSamHeaderOrder() {
+        SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("2", 200));
+        header.addSequence(new SAMSequenceRecord("1", 100));
+        ReferenceDictionary dict = new ReferenceDictionary(header);
+        assertThat(dict.getId("2"), is(0));
+        assertThat(dict.getId("chr1"), is(1));
+        assertThat(dict.getLength(dict.getId("1")), is(100));
+    }
+
+    @Test
+    public void testAnnotationsShareReferenceName() {
+        Annotation a1 = new Annotation(new String("chr7"), 0, 10,
+                Strand.POSITIVE);
+        Annotation a2 = new Annotation(new String("chr7"), 5, 15,
+                Strand.POSITIVE);
+        assertThat(a1.getReferenceName(), sameInstance(a2.getReferenceName()));
+        assertThat(a1.getReferenceId(), is(a2.getReferenceId()));
+        assertThat(a1.getReferenceId(), is(ReferenceNames.getId("chr7")));
+        assertThat(a1.overlaps(a2), is(true));
+    }
+
+    @Test
+    public void testAnnotationsOnDifferentReferences() {
+        Annotation a1 = new Annotation("chr8", 0, 10, Strand.POSITIVE);
+        Annotation a2 = new Annotation("chr9", 0, 10, Strand.POSITIVE);
+        assertThat(a1.getReferenceId(), not(a2.getReferenceId()));
+        assertThat(a1.overlaps(a2), is(false));
+        assertThat(a1.equals(a2), is(false));
+    }
+
+    @Test
+    public void testBedParserRenamesReferences() throws IOException {
+        Path p = folder.newFile("aliases.bed").toPath();
+        Files.write(p, Arrays.asList("1\t10\t20", "chr2\t30\t40", "X\t5\t6"));
+        try (BedParser parser = new BedParser(p, dictionary())) {
+            BedFileRecord r1 = parser.next();
+            BedFileRecord r2 = parser.next();
+            BedFileRecord r3 = parser.next();
+            assertThat(r1.getReferenceName(), is("chr1"));
+            assertThat(r2.getReferenceName(), is("chr2"));
+            assertThat(r3.getReferenceName(), is("X"));
+            assertThat(parser.hasNext(), is(false));
+        }
+    }
+}
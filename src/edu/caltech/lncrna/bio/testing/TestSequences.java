@@ -20,6 +20,36 @@ public class TestSequences {
         assertThat(Sequences.reverseComplement("ACTGactgnN"), is("NncagtCAGT"));
     }
     
+    @Test
+    public void testReverseComplementOddLength() {
+        assertThat(Sequences.reverseComplement("ACg"), is("cGT"));
+        assertThat(Sequences.reverseComplement(""), is(""));
+    }
+    
+    @Test
+    public void testComplementString() {
+        assertThat(Sequences.complement("ACTGactgnN"), is("TGACtgacnN"));
+    }
+    
+    @Test
+    public void testComplementStringUnknownCharacter() {
+        thrown.expect(IllegalArgumentException.class);
+        Sequences.complement("ACGU");
+    }
+    
+    @Test
+    public void testReverseComplementNonAsciiCharacter() {
+        thrown.expect(IllegalArgumentException.class);
+        Sequences.reverseComplement("AC\u00e9");
+    }
+    
+    @Test
+    public void testCountGC() {
+        assertThat(Sequences.countGC("ACGTNacgtn"), is(4));
+        assertThat(Sequences.gcContent("GGcc"), is(1.0));
+        assertThat(Sequences.gcContent(""), is(0.0));
+    }
+    
     @Test
     public void testComplementUnknownCharacter() {
         thrown.expect(IllegalArgumentException.class);
@@ -21,6 +21,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import edu.caltech.lncrna.bio.datastructures.Interval;
+import edu.caltech.lncrna.bio.datastructures.IntervalTree;
 import edu.caltech.lncrna.bio.datastructures.RedBlackIntervalTree;
 import edu.caltech.lncrna.bio.datastructures.SimpleInterval;
 import edu.caltech.lncrna.bio.datastructures.SimpleIntervalTree;
@@ -1063,4 +1064,126 @@ public class TestSimpleIntervalTree {
                 gappedLowerBound);
         assertThat(gappedTree.removeOverlappers(interval), is(false));
     }
-}
\ No newline at end of file
+    
+    ////////////////////////////
+    // Nearest-interval tests //
+    ////////////////////////////
+    
+    private static int distance(Interval a, Interval b) {
+        if (a.getEnd() <= b.getStart()) {
+            return b.getStart() - a.getEnd();
+        }
+        if (b.getEnd() <= a.getStart()) {
+            return a.getStart() - b.getEnd();
+        }
+        return 0;
+    }
+    
+    private static List<Integer> distances(Iterator<Interval> iter,
+            Interval query) {
+        List<Integer> rtrn = new ArrayList<>();
+        iter.forEachRemaining(x -> rtrn.add(distance(x, query)));
+        return rtrn;
+    }
+    
+    private List<Integer> bruteForceDistances(Set<Interval> intervals,
+            Interval query, int k, int maxDistance, boolean before,
+            boolean after) {
+        List<Integer> rtrn = new ArrayList<>();
+        for (Interval i : intervals) {
+            boolean isBefore = i.getEnd() <= query.getStart();
+            boolean isAfter = i.getStart() >= query.getEnd();
+            boolean overlaps = !isBefore && !isAfter;
+            if ((isBefore && before) || (isAfter && after) ||
+                    (overlaps && before && after)) {
+                int d = distance(i, query);
+                if (d <= maxDistance) {
+                    rtrn.add(d);
+                }
+            }
+        }
+        Collections.sort(rtrn);
+        return rtrn.subList(0, Math.min(k, rtrn.size()));
+    }
+    
+    @Test
+    public void testEmptyTreeNearest() {
+        assertThat(emptyTree.nearest(new SimpleInterval(0, 10), 5, 100)
+                .hasNext(), is(false));
+    }
+    
+    @Test
+    public void testNearestNegativeKThrowsException() {
+        thrown.expect(IllegalArgumentException.class);
+        singletonTree.nearest(new SimpleInterval(0, 10), -1, 100);
+    }
+    
+    @Test
+    public void testGappedTreeNearestFollowing() {
+        Interval query = new SimpleInterval(gappedUpperBound,
+                gappedUpperBound + 1);
+        assertThat(gappedTree.nearestFollowing(query, 1, gappedLowerBound)
+                .next().getStart() >= gappedLowerBound, is(true));
+        assertThat(gappedTree.nearestFollowing(query, 1, 10).hasNext(),
+                is(false));
+    }
+    
+    @Test
+    public void testRandomTreeNearestMatchesBruteForce() {
+        Random rand = new Random(3);
+        for (int trial = 0; trial < 500; trial++) {
+            int start = rand.nextInt(randomUpperBound + 100);
+            Interval query = new SimpleInterval(start,
+                    start + 1 + rand.nextInt(50));
+            int k = rand.nextInt(20);
+            int maxDistance = rand.nextInt(300);
+            assertThat(distances(randomTree.nearest(query, k, maxDistance),
+                    query), is(bruteForceDistances(randomIntervals, query, k,
+                    maxDistance, true, true)));
+            assertThat(distances(randomTree.nearestPreceding(query, k,
+                    maxDistance), query), is(bruteForceDistances(
+                    randomIntervals, query, k, maxDistance, true, false)));
+            assertThat(distances(randomTree.nearestFollowing(query, k,
+                    maxDistance), query), is(bruteForceDistances(
+                    randomIntervals, query, k, maxDistance, false, true)));
+        }
+    }
+    
+    @Test
+    public void testRandomTreeNearestCursorWithSortedQueries() {
+        IntervalTree.NearestCursor<Interval> cursor =
+                randomTree.nearestCursor();
+        for (int start = 0; start < randomUpperBound; start += 37) {
+            Interval query = new SimpleInterval(start, start + 5);
+            assertThat(distances(cursor.nearest(query, 3, 1000), query),
+                    is(bruteForceDistances(randomIntervals, query, 3, 1000,
+                    true, true)));
+        }
+    }
+    
+    ////////////////////////////////
+    // addAll and removeAll tests //
+    ////////////////////////////////
+    
+    @Test
+    public void testAddAllAddsEveryInterval() {
+        List<Interval> intervals = new ArrayList<>();
+        intervals.add(new SimpleInterval(0, 10));
+        intervals.add(new SimpleInterval(20, 30));
+        intervals.add(new SimpleInterval(40, 50));
+        assertThat(emptyTree.addAll(intervals), is(true));
+        assertThat(emptyTree.size(), is(3));
+        assertThat(emptyTree.containsAll(intervals), is(true));
+    }
+    
+    @Test
+    public void testRemoveAllRemovesEveryInterval() {
+        List<Interval> intervals = new ArrayList<>();
+        intervals.add(new SimpleInterval(0, 10));
+        intervals.add(new SimpleInterval(20, 30));
+        intervals.add(new SimpleInterval(40, 50));
+        emptyTree.addAll(intervals);
+        assertThat(emptyTree.removeAll(intervals), is(true));
+        assertThat(emptyTree.isEmpty(), is(true));
+    }
+}
@@ -8,22 +8,39 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
     
     // alignment package
+    TestClusterAssembler.class,
+    TestDuplicateMarker.class,
+    TestFeatureCounter.class,
+    TestJunctionCounter.class,
     TestPairedEndReadAlignment.class,
+    TestReadBatch.class,
     TestSingleRead.class,
     TestSingleReadAlignment.class,
+    TestUmiDeduplicator.class,
     
     // annotation package
     TestAnnotation.class,
     TestAnnotationBuilder.class,
     TestAnnotationContainment.class,
     TestAnnotationIntersection.class,
+    TestAnnotationMerger.class,
+    TestCoordinateMapper.class,
     TestAnnotationOverlap.class,
+    TestReferenceDictionary.class,
     TestCigarIterator.class,
     TestStrand.class,
     TestWindowIterator.class,
     
     // datastructures package
+    TestBedpeIndex.class,
+    TestContactMatrix.class,
+    TestGenomeMask.class,
+    TestGenomeSetOperations.class,
     TestGenomeTree.class,
+    TestGenomeTreeNearest.class,
+    TestGenomeTreeBulkUpdates.class,
+    TestLongIntHashMap.class,
+    TestPermutationTest.class,
     TestSimpleIntervalTree.class,
     TestDegenerateIntervalTree.class,
     
@@ -32,12 +49,22 @@ import org.junit.runners.Suite;
     TestBedParser.class,
     TestFastaParser.class,
     TestFastqParser.class,
+    TestFastqWriter.class,
+    TestMergedBamParser.class,
     TestPairedEndBamParser.class,
+    TestPairedFastqParser.class,
     TestSingleReadBamParser.class,
     
     // sequence package
+    TestAdapterTrimmer.class,
+    TestBarcodeDemultiplexer.class,
     TestFastaSequence.class,
     TestFastqSequence.class,
+    TestFmIndex.class,
+    TestKmerCounter.class,
+    TestMotifScanner.class,
+    TestPackedSequence.class,
+    TestReadTrimmer.class,
     TestSequences.class
 })
 
@@ -0,0 +1,269 @@
+package edu.caltech.lncrna.bio.testing;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import edu.caltech.lncrna.bio.alignment.UmiDeduplicator;
+import edu.caltech.lncrna.bio.alignment.UmiDeduplicator.Metrics;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.TextCigarCodec;
+
+public class TestUmiDeduplicator {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SAMRecord record(SAMFileHeader header, String name,
+            String ref, int start) {
+        return BamFixtures.read(header, name, ref, start, "10M");
+    }
+
+    private static void pair(SAMRecord first, SAMRecord second) {
+        second.setReadNegativeStrandFlag(true);
+        BamFixtures.mate(first, second);
+    }
+
+    private static List<String> names(List<SAMRecord> records) {
+        List<String> rtrn = new ArrayList<>();
+        records.forEach(r -> rtrn.add(r.getReadName()));
+        Collections.sort(rtrn);
+        return rtrn;
+    }
+
+    private static void addAll(List<SAMRecord> records, String umi, int n,
+            int start) {
+        SAMFileHeader header = BamFixtures.header();
+        for (int i = 0; i < n; i++) {
+            records.add(record(header, umi + i + "_" + umi, "chr1", start));
+        }
+    }
+
+    @Test
+    public void testDirectionalClustering() throws IOException {
+        List<SAMRecord> records = new ArrayList<>();
+        // AAAA absorbs AAAT, which absorbs AATT
+        addAll(records, "AAAA", 10, 100);
+        addAll(records, "AAAT", 3, 100);
+        addAll(records, "AATT", 1, 100);
+        // Two away from AAAA
+        addAll(records, "CCAA", 2, 100);
+        // Too evenly matched to merge
+        addAll(records, "GGGG", 5, 100);
+        addAll(records, "GGGC", 5, 100);
+        Path in = BamFixtures.write(folder, BamFixtures.header(), records,
+                true);
+        Path out = folder.getRoot().toPath().resolve("out.bam");
+        Metrics metrics = UmiDeduplicator.builder().build()
+                .deduplicate(in, out);
+
+        assertThat(metrics.getExaminedFragments(), is(26L));
+        assertThat(metrics.getDuplicateFragments(), is(22L));
+        assertThat(metrics.getNumberOfPositions(), is(1L));
+        assertThat(metrics.getNumberOfUmis(), is(6L));
+        List<SAMRecord> kept = BamFixtures.readAll(out);
+        assertThat(kept.size(), is(4));
+        for (SAMRecord r : kept) {
+            assertThat(r.getReadName().endsWith("0_" + r.getReadName()
+                    .substring(0, 4)), is(true));
+        }
+    }
+
+    @Test
+    public void testHighestMappingQualityIsKept() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            SAMRecord r = record(header, "r" + i + "_ACGT", "chr1", 100);
+            r.setMappingQuality(i == 1 ? 60 : 30);
+            records.add(r);
+        }
+        Path in = BamFixtures.write(folder, BamFixtures.header(), records,
+                true);
+        Path out = folder.getRoot().toPath().resolve("out.bam");
+        UmiDeduplicator.builder().build().deduplicate(in, out);
+        assertThat(names(BamFixtures.readAll(out)).toString(), is("[r1_ACGT]"));
+    }
+
+    @Test
+    public void testPositionsAndStrandsAreSeparate() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = new ArrayList<>();
+        records.add(record(header, "a_ACGT", "chr1", 100));
+        records.add(record(header, "b_ACGT", "chr1", 101));
+        SAMRecord reverse = record(header, "c_ACGT", "chr1", 100);
+        reverse.setReadNegativeStrandFlag(true);
+        records.add(reverse);
+        // Soft-clipped, but with the same unclipped start as a
+        SAMRecord clipped = record(header, "d_ACGT", "chr1", 102);
+        clipped.setCigar(TextCigarCodec.decode("2S8M"));
+        records.add(clipped);
+        records.add(record(header, "e_ACGT", "chr2", 100));
+        Path in = BamFixtures.write(folder, BamFixtures.header(), records,
+                true);
+        Path out = folder.getRoot().toPath().resolve("out.bam");
+        Metrics metrics = UmiDeduplicator.builder().build()
+                .deduplicate(in, out);
+        assertThat(metrics.getNumberOfPositions(), is(4L));
+        assertThat(names(BamFixtures.readAll(out)).toString(),
+                is("[a_ACGT, b_ACGT, c_ACGT, e_ACGT]"));
+    }
+
+    @Test
+    public void testMatesAreRemovedTogether() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            SAMRecord first = record(header, "p" + i + "_ACGT", "chr1", 100);
+            // The mates of duplicates may be on another reference
+            SAMRecord second = record(header, "p" + i + "_ACGT", "chr2", 500);
+            pair(first, second);
+            records.add(first);
+            records.add(second);
+        }
+        // Same first read, but a different mate position
+        SAMRecord first = record(header, "q_ACGT", "chr1", 100);
+        SAMRecord second = record(header, "q_ACGT", "chr2", 600);
+        pair(first, second);
+        records.add(first);
+        records.add(second);
+
+        Path in = BamFixtures.write(folder, BamFixtures.header(), records,
+                true);
+        Path out = folder.getRoot().toPath().resolve("out.bam");
+        Metrics metrics = UmiDeduplicator.builder().numThreads(2).build()
+                .deduplicate(in, out);
+        assertThat(metrics.getExaminedFragments(), is(4L));
+        assertThat(metrics.getDuplicateFragments(), is(2L));
+        assertThat(names(BamFixtures.readAll(out)).toString(),
+                is("[p0_ACGT, p0_ACGT, q_ACGT, q_ACGT]"));
+    }
+
+    @Test
+    public void testDuplicatesCanBeFlagged() throws IOException {
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = new ArrayList<>();
+        records.add(record(header, "a_ACGT", "chr1", 100));
+        records.add(record(header, "b_ACGT", "chr1", 100));
+        // Unencodable UMIs are kept
+        records.add(record(header, "c_ACNT", "chr1", 100));
+        records.add(record(header, "d", "chr1", 100));
+        Path in = BamFixtures.write(folder, BamFixtures.header(), records,
+                true);
+        Path out = folder.getRoot().toPath().resolve("out.bam");
+        Metrics metrics = UmiDeduplicator.builder()
+                .removeDuplicates(false)
+                .build()
+                .deduplicate(in, out);
+        assertThat(metrics.getUnencodableFragments(), is(2L));
+        List<SAMRecord> kept = BamFixtures.readAll(out);
+        assertThat(kept.size(), is(4));
+        int flagged = 0;
+        for (SAMRecord r : kept) {
+            if (r.getDuplicateReadFlag()) {
+                flagged++;
+                assertThat(r.getReadName(), is("b_ACGT"));
+            }
+        }
+        assertThat(flagged, is(1));
+    }
+
+    @Test
+    public void testLargeGroupMatchesBruteForce() throws IOException {
+        // Enough distinct UMIs that neighbors are found by lookup rather
+        // than by comparing every pair
+        Random rng = new Random(11);
+        SAMFileHeader header = BamFixtures.header();
+        List<SAMRecord> records = new ArrayList<>();
+        Map<String, Integer> counts = new TreeMap<>();
+        String bases = "ACGT";
+        for (int i = 0; i < 400; i++) {
+            StringBuilder umi = new StringBuilder("AAA");
+            for (int j = 0; j < 3; j++) {
+                umi.append(bases.charAt(rng.nextInt(4)));
+            }
+            records.add(record(header, "r" + i + "_" + umi, "chr1", 100));
+            counts.merge(umi.toString(), 1, Integer::sum);
+        }
+        Path in = BamFixtures.write(folder, BamFixtures.header(), records,
+                true);
+        Path out = folder.getRoot().toPath().resolve("out.bam");
+        Metrics metrics = UmiDeduplicator.builder().build()
+                .deduplicate(in, out);
+        assertThat(metrics.getNumberOfUmis(), is((long) counts.size()));
+        assertThat(BamFixtures.readAll(out).size(), is(countMolecules(counts)));
+    }
+
+    /**
+     * Counts the molecules the directional method finds, by brute force.
+     */
+    private static int countMolecules(Map<String, Integer> counts) {
+        List<String> umis = new ArrayList<>(counts.keySet());
+        umis.sort((a, b) -> counts.get(a).equals(counts.get(b))
+                ? a.compareTo(b)
+                : counts.get(b) - counts.get(a));
+        Set<String> assigned = new HashSet<>();
+        int rtrn = 0;
+        for (String root : umis) {
+            if (!assigned.add(root)) {
+                continue;
+            }
+            rtrn++;
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                String x = stack.pop();
+                for (String y : umis) {
+                    if (!assigned.contains(y) && distance(x, y) == 1 &&
+                            counts.get(x) >= 2 * counts.get(y) - 1) {
+                        assigned.add(y);
+                        stack.push(y);
+                    }
+                }
+            }
+        }
+        return rtrn;
+    }
+
+    private static int distance(String a, String b) {
+        int d = 0;
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                d++;
+            }
+        }
+        return d;
+    }
+
+    @Test
+    public void testUnindexedBamThrowsException() throws IOException {
+        List<SAMRecord> records = new ArrayList<>();
+        addAll(records, "ACGT", 2, 100);
+        Path bam = BamFixtures.write(folder, BamFixtures.header(), records,
+                false);
+        thrown.expect(IllegalArgumentException.class);
+        UmiDeduplicator.builder().build().deduplicate(bam,
+                folder.getRoot().toPath().resolve("out.bam"));
+    }
+}
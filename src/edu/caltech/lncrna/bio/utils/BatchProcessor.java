@@ -0,0 +1,165 @@
+package edu.caltech.lncrna.bio.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * This class applies a function to every element of an iterator using a pool
+ * of worker threads.
+ * <p>
+ * The calling thread reads elements from the iterator, groups them into
+ * batches, and hands the batches to the workers. Results are passed back to a
+ * consumer on the calling thread, so neither the iterator nor the consumer
+ * needs to be thread-safe. This makes it suitable for reading from a parser
+ * and writing to a single output file.
+ * <p>
+ * If order is preserved, results reach the consumer in the same order as
+ * their inputs. Otherwise, each batch is consumed as soon as it is finished,
+ * which keeps the workers busier when batches take uneven amounts of time.
+ * <p>
+ * Only a bounded number of batches are in flight at once.
+ */
+public final class BatchProcessor {
+
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private final int numThreads;
+    private final int batchSize;
+    private final boolean preserveOrder;
+
+    /**
+     * Class constructor.
+     * <p>
+     * Constructs a <code>BatchProcessor</code> that preserves order and uses
+     * the default batch size.
+     *
+     * @param numThreads - the number of worker threads
+     * @throws IllegalArgumentException if <code>numThreads</code> is not
+     * positive
+     */
+    public BatchProcessor(int numThreads) {
+        this(numThreads, DEFAULT_BATCH_SIZE, true);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param numThreads - the number of worker threads
+     * @param batchSize - the number of elements handed to a worker at a time
+     * @param preserveOrder - whether results should be consumed in input
+     * order
+     * @throws IllegalArgumentException if <code>numThreads</code> or
+     * <code>batchSize</code> is not positive
+     */
+    public BatchProcessor(int numThreads, int batchSize,
+            boolean preserveOrder) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Attempted to create a " +
+                    "BatchProcessor with a non-positive number of threads: " +
+                    numThreads);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Attempted to create a " +
+                    "BatchProcessor with a non-positive batch size: " +
+                    batchSize);
+        }
+        this.numThreads = numThreads;
+        this.batchSize = batchSize;
+        this.preserveOrder = preserveOrder;
+    }
+
+    /**
+     * Applies a function to every element of an iterator and passes the
+     * results to a consumer.
+     * <p>
+     * A function may return <code>null</code> to drop an element; nothing is
+     * passed to the consumer in that case.
+     * <p>
+     * The iterator is not closed by this method. If the function throws an
+     * exception, processing stops and the exception is rethrown, wrapped in a
+     * <code>RuntimeException</code> if it is checked.
+     *
+     * @param input - the elements to process
+     * @param function - the function to apply, called from worker threads
+     * @param sink - the consumer of results, called from the calling thread
+     */
+    public <T, R> void process(Iterator<? extends T> input,
+            Function<? super T, ? extends R> function,
+            Consumer<? super R> sink) {
+        Objects.requireNonNull(input, "Attempted to process a null iterator.");
+        Objects.requireNonNull(function, "Attempted to process with a null " +
+                "function.");
+        Objects.requireNonNull(sink, "Attempted to process with a null sink.");
+
+        int maxInFlight = 2 * numThreads;
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        CompletionService<List<R>> completion =
+                new ExecutorCompletionService<>(pool);
+        Deque<Future<List<R>>> inFlight = new ArrayDeque<>();
+
+        try {
+            while (input.hasNext()) {
+                List<T> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && input.hasNext()) {
+                    batch.add(input.next());
+                }
+                if (inFlight.size() == maxInFlight) {
+                    drainOne(completion, inFlight, sink);
+                }
+                Callable<List<R>> task = () -> {
+                    List<R> results = new ArrayList<>(batch.size());
+                    for (T element : batch) {
+                        R result = function.apply(element);
+                        if (result != null) {
+                            results.add(result);
+                        }
+                    }
+                    return results;
+                };
+                // Ordered results are collected from the head of the deque,
+                // so they bypass the completion queue entirely.
+                inFlight.addLast(preserveOrder
+                        ? pool.submit(task)
+                        : completion.submit(task));
+            }
+            while (!inFlight.isEmpty()) {
+                drainOne(completion, inFlight, sink);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Futures.propagate(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private <R> void drainOne(CompletionService<List<R>> completion,
+            Deque<Future<List<R>>> inFlight, Consumer<? super R> sink)
+            throws InterruptedException, ExecutionException {
+        Future<List<R>> done;
+        if (preserveOrder) {
+            done = inFlight.removeFirst();
+        } else {
+            done = completion.take();
+            inFlight.remove(done);
+        }
+        for (R result : done.get()) {
+            sink.accept(result);
+        }
+    }
+}
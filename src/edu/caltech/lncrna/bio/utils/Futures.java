@@ -0,0 +1,60 @@
+package edu.caltech.lncrna.bio.utils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * This class contains static methods for collecting the results of tasks run
+ * on worker threads.
+ * <p>
+ * An exception thrown by a task reaches the calling thread as it was thrown,
+ * rather than wrapped in an <code>ExecutionException</code>, so that callers
+ * see the same exceptions as they would if the task had run on their own
+ * thread.
+ */
+public final class Futures {
+
+    private Futures() { }
+
+    /**
+     * Waits for a task to finish and returns its result.
+     *
+     * @param future - the future of the task
+     * @return the result of the task
+     * @throws RuntimeException if the task threw an unchecked exception, that
+     * exception; if it threw a checked exception, or the calling thread was
+     * interrupted, the exception wrapped in a <code>RuntimeException</code>
+     */
+    public static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Returns an exception thrown on another thread in a form that can be
+     * rethrown without declaring it. An <code>Error</code> is thrown rather
+     * than returned.
+     * <p>
+     * This method is meant to be used as
+     * <code>throw Futures.propagate(cause);</code>.
+     *
+     * @param cause - the exception
+     * @return the exception if it is unchecked, or else the exception wrapped
+     * in a <code>RuntimeException</code>
+     */
+    public static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new RuntimeException(cause);
+    }
+}